@@ -19,6 +19,7 @@ import android.widget.Toast;
 import androidx.appcompat.app.AppCompatActivity;
 
 import com.heibeieast.campusnav.models.CampusLocation;
+import com.heibeieast.campusnav.services.AsyncDatabaseService;
 import com.heibeieast.campusnav.services.DatabaseService;
 import com.heibeieast.campusnav.services.LocationService;
 import com.heibeieast.campusnav.services.VoiceService;
@@ -35,10 +36,11 @@ public class LocationManagementActivity extends AppCompatActivity {
     private Button btnDeleteLocation;
 
     private DatabaseService databaseService;
+    private AsyncDatabaseService asyncDatabaseService;
     private LocationService locationService;
     private VoiceService voiceService;
 
-    private List<CampusLocation> locations;
+    private List<CampusLocation> locations = new ArrayList<>();
     private ArrayAdapter<String> locationAdapter;
     private int selectedPosition = -1;
 
@@ -49,6 +51,7 @@ public class LocationManagementActivity extends AppCompatActivity {
 
         // Initialize services
         databaseService = DatabaseService.getInstance(this);
+        asyncDatabaseService = AsyncDatabaseService.getInstance(databaseService);
         locationService = new LocationService(this);
         voiceService = new VoiceService(this);
 
@@ -120,7 +123,16 @@ public class LocationManagementActivity extends AppCompatActivity {
     }
 
     private void loadLocations() {
-        locations = databaseService.getAllLocations();
+        asyncDatabaseService.getAllLocations(this, new AsyncDatabaseService.Callback<List<CampusLocation>>() {
+            @Override
+            public void onResult(List<CampusLocation> result) {
+                showLocations(result);
+            }
+        });
+    }
+
+    private void showLocations(List<CampusLocation> loaded) {
+        locations = loaded;
         List<String> locationNames = new ArrayList<>();
         for (CampusLocation location : locations) {
             String item = location.getName() + "\n(" + location.getCategory() + ")";
@@ -215,12 +227,24 @@ public class LocationManagementActivity extends AppCompatActivity {
                     double latitude = Double.parseDouble(latStr);
                     double longitude = Double.parseDouble(lonStr);
 
+                    final String locationName = name;
                     CampusLocation location = new CampusLocation(name, latitude, longitude, category, description);
-                    databaseService.addLocation(location);
-
-                    loadLocations();
-                    Toast.makeText(LocationManagementActivity.this, "位置已添加", Toast.LENGTH_SHORT).show();
-                    voiceService.announceLocationAdded(name);
+                    asyncDatabaseService.addLocation(LocationManagementActivity.this, location,
+                            new AsyncDatabaseService.Callback<Long>() {
+                                @Override
+                                public void onResult(Long id) {
+                                    if (id == -1) {
+                                        // Names are unique, so the insert fails when the name is taken
+                                        Toast.makeText(LocationManagementActivity.this, "位置名称已存在", Toast.LENGTH_SHORT).show();
+                                        voiceService.speak("位置名称已存在");
+                                        return;
+                                    }
+
+                                    loadLocations();
+                                    Toast.makeText(LocationManagementActivity.this, "位置已添加", Toast.LENGTH_SHORT).show();
+                                    voiceService.announceLocationAdded(locationName);
+                                }
+                            });
 
                 } catch (NumberFormatException e) {
                     Toast.makeText(LocationManagementActivity.this, "坐标格式错误", Toast.LENGTH_SHORT).show();
@@ -318,11 +342,22 @@ public class LocationManagementActivity extends AppCompatActivity {
                     location.setLatitude(latitude);
                     location.setLongitude(longitude);
 
-                    databaseService.updateLocation(location);
-
-                    loadLocations();
-                    Toast.makeText(LocationManagementActivity.this, "位置已更新", Toast.LENGTH_SHORT).show();
-                    voiceService.announceLocationEdited(name);
+                    final String locationName = name;
+                    asyncDatabaseService.updateLocation(LocationManagementActivity.this, location,
+                            new AsyncDatabaseService.Callback<Boolean>() {
+                                @Override
+                                public void onResult(Boolean updated) {
+                                    loadLocations();
+                                    if (!updated) {
+                                        Toast.makeText(LocationManagementActivity.this, "位置名称已存在", Toast.LENGTH_SHORT).show();
+                                        voiceService.speak("位置名称已存在");
+                                        return;
+                                    }
+
+                                    Toast.makeText(LocationManagementActivity.this, "位置已更新", Toast.LENGTH_SHORT).show();
+                                    voiceService.announceLocationEdited(locationName);
+                                }
+                            });
 
                 } catch (NumberFormatException e) {
                     Toast.makeText(LocationManagementActivity.this, "坐标格式错误", Toast.LENGTH_SHORT).show();
@@ -343,11 +378,15 @@ public class LocationManagementActivity extends AppCompatActivity {
         builder.setPositiveButton("删除", new DialogInterface.OnClickListener() {
             @Override
             public void onClick(DialogInterface dialog, int which) {
-                databaseService.deleteLocation(location.getId());
-
-                loadLocations();
-                Toast.makeText(LocationManagementActivity.this, "位置已删除", Toast.LENGTH_SHORT).show();
-                voiceService.announceLocationDeleted(location.getName());
+                asyncDatabaseService.deleteLocation(LocationManagementActivity.this, location.getId(),
+                        new AsyncDatabaseService.Callback<Boolean>() {
+                            @Override
+                            public void onResult(Boolean deleted) {
+                                loadLocations();
+                                Toast.makeText(LocationManagementActivity.this, "位置已删除", Toast.LENGTH_SHORT).show();
+                                voiceService.announceLocationDeleted(location.getName());
+                            }
+                        });
             }
         });
 
@@ -374,6 +413,9 @@ public class LocationManagementActivity extends AppCompatActivity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        if (asyncDatabaseService != null) {
+            asyncDatabaseService.cancelAll(this);
+        }
         if (voiceService != null) {
             voiceService.shutdown();
         }
@@ -1,13 +1,16 @@
 package com.heibeieast.campusnav;
 
 import android.content.Intent;
+import android.content.pm.ApplicationInfo;
 import android.os.Bundle;
+import android.os.StrictMode;
 import android.view.View;
 import android.widget.Button;
 import android.widget.TextView;
 
 import androidx.appcompat.app.AppCompatActivity;
 
+import com.heibeieast.campusnav.services.AsyncDatabaseService;
 import com.heibeieast.campusnav.services.DatabaseService;
 import com.heibeieast.campusnav.services.VoiceService;
 import com.heibeieast.campusnav.utils.PermissionManager;
@@ -27,10 +30,15 @@ public class MainActivity extends AppCompatActivity {
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        enableStrictModeInDebugBuilds();
         setContentView(R.layout.activity_main);
 
         // Initialize services
         databaseService = DatabaseService.getInstance(this);
+
+        // Open the database and load preferences off the main thread before TTS asks for them
+        AsyncDatabaseService.getInstance(databaseService).getPreferences(this, null);
+
         voiceService = new VoiceService(this);
         permissionManager = new PermissionManager(this);
 
@@ -44,6 +52,21 @@ public class MainActivity extends AppCompatActivity {
         voiceService.initializeTTS();
     }
 
+    /**
+     * Log any disk or database access on the main thread while developing, so it is caught before
+     * release; database work belongs on AsyncDatabaseService. StrictModeTest enforces this.
+     */
+    private void enableStrictModeInDebugBuilds() {
+        if ((getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0) {
+            StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+                    .detectDiskReads()
+                    .detectDiskWrites()
+                    .detectCustomSlowCalls()
+                    .penaltyLog()
+                    .build());
+        }
+    }
+
     private void initializeViews() {
         btnNavigation = findViewById(R.id.btnNavigation);
         btnManageLocations = findViewById(R.id.btnManageLocations);
@@ -130,6 +153,7 @@ public class MainActivity extends AppCompatActivity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        AsyncDatabaseService.getInstance(databaseService).cancelAll(this);
         if (voiceService != null) {
             voiceService.shutdown();
         }
@@ -1,12 +1,22 @@
 package com.heibeieast.campusnav;
 
+import android.Manifest;
 import android.annotation.SuppressLint;
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.ServiceConnection;
 import android.location.Location;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.view.View;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
+import android.widget.EditText;
 import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.Toast;
@@ -15,19 +25,29 @@ import androidx.appcompat.app.AppCompatActivity;
 
 import com.heibeieast.campusnav.models.CampusLocation;
 import com.heibeieast.campusnav.models.NavigationInstruction;
+import com.heibeieast.campusnav.services.AsyncDatabaseService;
 import com.heibeieast.campusnav.services.DatabaseService;
+import com.heibeieast.campusnav.services.LocationMatcher;
+import com.heibeieast.campusnav.services.LocationPipeline;
 import com.heibeieast.campusnav.services.LocationService;
+import com.heibeieast.campusnav.services.NavigationService;
 import com.heibeieast.campusnav.services.PathPlanningService;
 import com.heibeieast.campusnav.services.VoiceService;
+import com.heibeieast.campusnav.utils.PermissionManager;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 public class NavigationActivity extends AppCompatActivity {
     private static final String TAG = "NavigationActivity";
+    private static final int SEARCH_RESULT_LIMIT = 20;
+    private static final int SPOKEN_CANDIDATE_LIMIT = 5;
 
     private Spinner spinnerFromLocation;
     private Spinner spinnerToLocation;
+    private EditText etDestinationSearch;
+    private Button btnVoiceDestination;
     private Button btnStartNavigation;
     private Button btnStopNavigation;
     private TextView tvCurrentLocation;
@@ -37,16 +57,104 @@ public class NavigationActivity extends AppCompatActivity {
     private View navigationInfoSection;
 
     private DatabaseService databaseService;
+    private AsyncDatabaseService asyncDatabaseService;
+    private LocationMatcher locationMatcher;
+    private PermissionManager permissionManager;
+    // Shared with the rest of the app through NavigationService; null until bound
+    private NavigationService navigationService;
     private LocationService locationService;
     private VoiceService voiceService;
     private PathPlanningService pathPlanningService;
 
-    private List<CampusLocation> locations;
+    private List<CampusLocation> locations = new ArrayList<>();
     private ArrayAdapter<String> locationAdapter;
+    private AsyncDatabaseService.Task<List<CampusLocation>> searchTask;
+    private AsyncDatabaseService.Task<List<LocationMatcher.Match>> spokenDestinationTask;
 
     private String selectedFromLocation;
     private String selectedToLocation;
-    private boolean isNavigating = false;
+    private boolean isStarted = false;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // Attached to the service between onStart and onStop; navigation itself runs in the service
+    private final NavigationService.NavigationListener navigationListener =
+            new NavigationService.NavigationListener() {
+                @Override
+                public void onNavigationProgress(Location location, NavigationInstruction instruction) {
+                    onNavigationLocation(location, instruction);
+                }
+
+                @Override
+                public void onArrived(Location location, String destination) {
+                    updateUIOnArrival(location, destination);
+                }
+            };
+
+    // Delivered on the main thread
+    private final VoiceService.SpeechRecognitionCallback destinationRecognition =
+            new VoiceService.SpeechRecognitionCallback() {
+                @Override
+                public void onResult(String result, List<String> alternatives) {
+                    matchSpokenDestination(alternatives);
+                }
+
+                @Override
+                public void onError(int error) {
+                    if (voiceService != null) {
+                        voiceService.announceDestinationNotFound();
+                    }
+                }
+            };
+
+    private final ServiceConnection serviceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            navigationService = ((NavigationService.LocalBinder) binder).getService();
+            locationService = navigationService.getLocationService();
+            voiceService = navigationService.getVoiceService();
+            pathPlanningService = navigationService.getPathPlanningService();
+            voiceService.updateSettings();
+            btnStartNavigation.setEnabled(true);
+            if (isStarted) {
+                attachNavigation();
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            // Same process, so only if it crashed
+            navigationService = null;
+            btnStartNavigation.setEnabled(false);
+        }
+    };
+
+    /**
+     * What the navigation views show for one position, prepared on the
+     * location pipeline thread so the main thread only copies it into views
+     */
+    private static final class NavigationUiState {
+        final String locationText;
+        final String locationDescription;
+        final String distanceText;
+        final String distanceDescription;
+        final String stepsText;
+        final String stepsDescription;
+        final String instructionText;
+        final long createdNanos;
+
+        NavigationUiState(String locationText, String locationDescription, String distanceText,
+                          String distanceDescription, String stepsText, String stepsDescription,
+                          String instructionText) {
+            this.locationText = locationText;
+            this.locationDescription = locationDescription;
+            this.distanceText = distanceText;
+            this.distanceDescription = distanceDescription;
+            this.stepsText = stepsText;
+            this.stepsDescription = stepsDescription;
+            this.instructionText = instructionText;
+            this.createdNanos = System.nanoTime();
+        }
+    }
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -55,9 +163,28 @@ public class NavigationActivity extends AppCompatActivity {
 
         // Initialize services
         databaseService = DatabaseService.getInstance(this);
-        locationService = new LocationService(this);
-        voiceService = new VoiceService(this);
-        pathPlanningService = new PathPlanningService(databaseService, locationService, voiceService);
+        asyncDatabaseService = AsyncDatabaseService.getInstance(databaseService);
+        locationMatcher = LocationMatcher.getInstance(databaseService);
+        permissionManager = new PermissionManager(this);
+        permissionManager.setCallback(new PermissionManager.PermissionCallback() {
+            @Override
+            public void onPermissionGranted(String permission) {
+                if (Manifest.permission.RECORD_AUDIO.equals(permission)) {
+                    listenForDestination();
+                }
+            }
+
+            @Override
+            public void onPermissionDenied(String permission) {
+                if (Manifest.permission.RECORD_AUDIO.equals(permission)) {
+                    Toast.makeText(NavigationActivity.this, "需要麦克风权限才能语音输入", Toast.LENGTH_SHORT).show();
+                }
+            }
+
+            @Override
+            public void onAllPermissionsGranted() {
+            }
+        });
 
         // Initialize views
         initializeViews();
@@ -65,13 +192,15 @@ public class NavigationActivity extends AppCompatActivity {
         // Load locations
         loadLocations();
 
-        // Initialize TTS
-        voiceService.initializeTTS();
+        // Location, voice and path planning come from the navigation service
+        bindService(new Intent(this, NavigationService.class), serviceConnection, BIND_AUTO_CREATE);
     }
 
     private void initializeViews() {
         spinnerFromLocation = findViewById(R.id.spinnerFromLocation);
         spinnerToLocation = findViewById(R.id.spinnerToLocation);
+        etDestinationSearch = findViewById(R.id.etDestinationSearch);
+        btnVoiceDestination = findViewById(R.id.btnVoiceDestination);
         btnStartNavigation = findViewById(R.id.btnStartNavigation);
         btnStopNavigation = findViewById(R.id.btnStopNavigation);
         tvCurrentLocation = findViewById(R.id.tvCurrentLocation);
@@ -80,7 +209,8 @@ public class NavigationActivity extends AppCompatActivity {
         tvInstruction = findViewById(R.id.tvInstruction);
         navigationInfoSection = findViewById(R.id.navigationInfoSection);
 
-        // Set initial button state
+        // Set initial button state; starting waits for the navigation service
+        btnStartNavigation.setEnabled(false);
         btnStopNavigation.setEnabled(false);
         btnStopNavigation.setVisibility(View.GONE);
 
@@ -110,6 +240,31 @@ public class NavigationActivity extends AppCompatActivity {
             }
         });
 
+        // Narrow the destination list while typing
+        etDestinationSearch.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                searchDestinations(s.toString());
+            }
+        });
+
+        // Speak the destination instead of typing it
+        btnVoiceDestination.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                // Listening starts from the permission callback, at once if the microphone is already allowed
+                permissionManager.checkAndRequestAudioPermission();
+            }
+        });
+
         // Start navigation button
         btnStartNavigation.setOnClickListener(new View.OnClickListener() {
             @Override
@@ -140,7 +295,16 @@ public class NavigationActivity extends AppCompatActivity {
     }
 
     private void loadLocations() {
-        locations = databaseService.getAllLocations();
+        asyncDatabaseService.getAllLocations(this, new AsyncDatabaseService.Callback<List<CampusLocation>>() {
+            @Override
+            public void onResult(List<CampusLocation> result) {
+                showLocations(result);
+            }
+        });
+    }
+
+    private void showLocations(List<CampusLocation> loaded) {
+        locations = loaded;
         List<String> locationNames = new ArrayList<>();
         for (CampusLocation location : locations) {
             locationNames.add(location.getName());
@@ -154,7 +318,7 @@ public class NavigationActivity extends AppCompatActivity {
         locationAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
 
         spinnerFromLocation.setAdapter(locationAdapter);
-        spinnerToLocation.setAdapter(locationAdapter);
+        showDestinations(locationNames);
 
         // Set default selections
         if (!locationNames.isEmpty()) {
@@ -165,149 +329,291 @@ public class NavigationActivity extends AppCompatActivity {
         }
     }
 
-    @SuppressLint("MissingPermission")
-    private void startNavigation() {
-        // Plan path
-        boolean pathPlanned = pathPlanningService.planPath(selectedFromLocation, selectedToLocation);
+    /**
+     * Replace the destination list with the best matches for the typed text,
+     * or all locations when the box is empty
+     */
+    private void searchDestinations(String query) {
+        if (searchTask != null) {
+            searchTask.cancel();
+            searchTask = null;
+        }
 
-        if (!pathPlanned) {
-            Toast.makeText(this, "无法规划路径", Toast.LENGTH_SHORT).show();
-            voiceService.speak("无法规划路径");
+        if (query.trim().isEmpty()) {
+            List<String> locationNames = new ArrayList<>();
+            for (CampusLocation location : locations) {
+                locationNames.add(location.getName());
+            }
+            showDestinations(locationNames);
+            return;
+        }
+
+        searchTask = asyncDatabaseService.searchLocations(this, query, SEARCH_RESULT_LIMIT,
+                new AsyncDatabaseService.Callback<List<CampusLocation>>() {
+                    @Override
+                    public void onResult(List<CampusLocation> result) {
+                        searchTask = null;
+                        List<String> matchNames = new ArrayList<>();
+                        for (CampusLocation location : result) {
+                            matchNames.add(location.getName());
+                        }
+                        showDestinations(matchNames);
+                        if (matchNames.isEmpty()) {
+                            spinnerToLocation.setContentDescription("没有找到匹配的位置");
+                        } else {
+                            spinnerToLocation.setContentDescription("找到" + matchNames.size() + "个位置，当前为" +
+                                    matchNames.get(0));
+                        }
+                    }
+                });
+    }
+
+    private void listenForDestination() {
+        if (voiceService == null) {
+            return;
+        }
+        if (!voiceService.initializeSpeechRecognition(destinationRecognition)) {
+            Toast.makeText(this, "设备不支持语音识别", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        voiceService.stop();
+        voiceService.startListening();
+    }
+
+    /**
+     * Offer the locations that sound most like what was said, best first, and pick the best one
+     * @param alternatives The recognizer's hypotheses, best first
+     */
+    private void matchSpokenDestination(final List<String> alternatives) {
+        if (searchTask != null) {
+            searchTask.cancel();
+            searchTask = null;
+        }
+        if (spokenDestinationTask != null) {
+            spokenDestinationTask.cancel();
+        }
+        // The matcher reads all locations the first time it is used
+        spokenDestinationTask = asyncDatabaseService.submit(this, new Callable<List<LocationMatcher.Match>>() {
+            @Override
+            public List<LocationMatcher.Match> call() {
+                return locationMatcher.match(alternatives, SPOKEN_CANDIDATE_LIMIT);
+            }
+        }, new AsyncDatabaseService.Callback<List<LocationMatcher.Match>>() {
+            @Override
+            public void onResult(List<LocationMatcher.Match> matches) {
+                spokenDestinationTask = null;
+                showSpokenDestinations(matches);
+            }
+        });
+    }
+
+    private void showSpokenDestinations(List<LocationMatcher.Match> matches) {
+        if (matches.isEmpty()) {
+            Toast.makeText(this, "没有找到匹配的位置", Toast.LENGTH_SHORT).show();
+            voiceService.announceDestinationNotFound();
             return;
         }
 
-        // Start location tracking
-        boolean trackingStarted = locationService.startLocationTracking(new LocationService.LocationUpdateListener() {
+        List<String> matchNames = new ArrayList<>();
+        for (LocationMatcher.Match match : matches) {
+            matchNames.add(match.getLocation().getName());
+        }
+        showDestinations(matchNames);
+        spinnerToLocation.setSelection(0);
+        selectedToLocation = matchNames.get(0);
+        spinnerToLocation.setContentDescription("找到" + matchNames.size() + "个位置，当前为" + matchNames.get(0));
+        voiceService.announceSpokenDestination(matchNames.get(0), matchNames.size());
+    }
+
+    private void showDestinations(List<String> names) {
+        ArrayAdapter<String> destinationAdapter = new ArrayAdapter<>(
+                this,
+                android.R.layout.simple_spinner_item,
+                names
+        );
+        destinationAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        spinnerToLocation.setAdapter(destinationAdapter);
+        if (names.isEmpty()) {
+            selectedToLocation = null;
+        }
+    }
+
+    private void startNavigation() {
+        // Plan path off the main thread; it reads locations and walkways on a cache miss
+        final String from = selectedFromLocation;
+        final String to = selectedToLocation;
+        btnStartNavigation.setEnabled(false);
+        asyncDatabaseService.submit(this, new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return pathPlanningService.planPath(from, to);
+            }
+        }, new AsyncDatabaseService.Callback<Boolean>() {
             @Override
-            public void onLocationUpdated(Location location) {
-                updateNavigationUI(location);
+            public void onResult(Boolean pathPlanned) {
+                onPathPlanned(pathPlanned, from, to);
+            }
+
+            @Override
+            public void onError(Exception error) {
+                super.onError(error);
+                onPathPlanned(false, from, to);
             }
         });
+    }
 
-        if (!trackingStarted) {
+    /**
+     * @param from Start the route was planned from, as selected when planning began
+     * @param to Destination the route was planned to; the selection may have changed since
+     */
+    @SuppressLint("MissingPermission")
+    private void onPathPlanned(boolean pathPlanned, String from, String to) {
+        btnStartNavigation.setEnabled(true);
+        if (!pathPlanned) {
+            Toast.makeText(this, "无法规划路径", Toast.LENGTH_SHORT).show();
+            voiceService.speak("无法规划路径");
+            return;
+        }
+
+        // Start location tracking; the service navigates on the location pipeline thread
+        if (!navigationService.startNavigation(from, to)) {
             Toast.makeText(this, "无法启动位置跟踪", Toast.LENGTH_SHORT).show();
             voiceService.speak("无法启动位置跟踪");
             return;
         }
 
         // Announce navigation start
-        voiceService.announceNavigation(selectedFromLocation, selectedToLocation);
+        voiceService.announceNavigation(from, to);
 
-        // Update UI state
-        isNavigating = true;
+        showNavigationControls();
+    }
+
+    /**
+     * Follow the service's navigation while this screen is visible; it may have started
+     * or ended while the screen was away, e.g. before the system recreated it
+     */
+    private void attachNavigation() {
+        navigationService.setNavigationListener(navigationListener);
+        if (navigationService.isNavigating()) {
+            selectedFromLocation = navigationService.getNavigationFrom();
+            selectedToLocation = navigationService.getNavigationTo();
+            showNavigationControls();
+        } else if (btnStopNavigation.getVisibility() == View.VISIBLE) {
+            showStartControls();
+            resetNavigationViews();
+        }
+    }
+
+    private boolean isNavigating() {
+        return navigationService != null && navigationService.isNavigating();
+    }
+
+    private void showNavigationControls() {
         btnStartNavigation.setEnabled(false);
         btnStartNavigation.setVisibility(View.GONE);
         btnStopNavigation.setEnabled(true);
         btnStopNavigation.setVisibility(View.VISIBLE);
         navigationInfoSection.setVisibility(View.VISIBLE);
-
-        // Initial update
-        Location currentLocation = locationService.getCurrentLocation();
-        if (currentLocation != null) {
-            updateNavigationUI(currentLocation);
-        }
     }
 
-    private void updateNavigationUI(Location location) {
-        if (!isNavigating) {
-            return;
-        }
+    private void showStartControls() {
+        btnStartNavigation.setEnabled(true);
+        btnStartNavigation.setVisibility(View.VISIBLE);
+        btnStopNavigation.setEnabled(false);
+        btnStopNavigation.setVisibility(View.GONE);
+    }
 
-        // Update current location display
-        String locationText = String.format("当前位置: %.6f, %.6f",
-                location.getLatitude(), location.getLongitude());
-        tvCurrentLocation.setText(locationText);
-        tvCurrentLocation.setContentDescription("当前位置：" +
-                String.format("北纬%.4f，东经%.4f", location.getLatitude(), location.getLongitude()));
+    /**
+     * Post the view state for a navigated position; runs on the location pipeline thread
+     */
+    private void onNavigationLocation(Location location, NavigationInstruction instruction) {
+        final NavigationUiState state = computeNavigationState(location, instruction);
+        final LocationPipeline.Metrics metrics = locationService.getPipelineMetrics();
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (metrics != null) {
+                    metrics.getUiDelivery().record(System.nanoTime() - state.createdNanos);
+                }
+                applyNavigationState(state);
+            }
+        });
+    }
 
-        // Get destination location
-        long destId = databaseService.getLocationIdByName(selectedToLocation);
-        CampusLocation destination = databaseService.getLocationById(destId);
+    private NavigationUiState computeNavigationState(Location location, NavigationInstruction instruction) {
+        return new NavigationUiState(
+                formatLocation(location),
+                describeLocation(location),
+                String.format("距离: %.0f米", instruction.getDistance()),
+                String.format("距离目标%.0f米", instruction.getDistance()),
+                String.format("剩余步数: %d步", instruction.getSteps()),
+                String.format("还需走%d步", instruction.getSteps()),
+                instruction.getInstruction());
+    }
 
-        if (destination == null) {
-            return;
-        }
+    private static String formatLocation(Location location) {
+        return String.format("当前位置: %.6f, %.6f", location.getLatitude(), location.getLongitude());
+    }
 
-        // Update navigation progress
-        NavigationInstruction instruction = pathPlanningService.updateNavigationProgress(
-                location.getLatitude(),
-                location.getLongitude(),
-                selectedToLocation
-        );
+    private static String describeLocation(Location location) {
+        return "当前位置：" + String.format("北纬%.4f，东经%.4f", location.getLatitude(), location.getLongitude());
+    }
 
-        if (instruction == null) {
-            // Arrived at destination
-            updateUIOnArrival();
+    private void applyNavigationState(NavigationUiState state) {
+        // Posted before navigation ended
+        if (!isNavigating()) {
             return;
         }
 
+        // Update current location display
+        tvCurrentLocation.setText(state.locationText);
+        tvCurrentLocation.setContentDescription(state.locationDescription);
+
         // Update distance display
-        tvDistance.setText(String.format("距离: %.0f米", instruction.getDistance()));
-        tvDistance.setContentDescription(String.format("距离目标%.0f米", instruction.getDistance()));
+        tvDistance.setText(state.distanceText);
+        tvDistance.setContentDescription(state.distanceDescription);
 
         // Update steps display
-        tvRemainingSteps.setText(String.format("剩余步数: %d步", instruction.getSteps()));
-        tvRemainingSteps.setContentDescription(String.format("还需走%d步", instruction.getSteps()));
+        tvRemainingSteps.setText(state.stepsText);
+        tvRemainingSteps.setContentDescription(state.stepsDescription);
 
         // Update instruction display
-        tvInstruction.setText(instruction.getInstruction());
-        tvInstruction.setContentDescription(instruction.getInstruction());
-
-        // Voice announcement (only when significant change)
-        announceNavigationUpdate(instruction);
+        tvInstruction.setText(state.instructionText);
+        tvInstruction.setContentDescription(state.instructionText);
     }
 
-    private void announceNavigationUpdate(NavigationInstruction instruction) {
-        // Only announce direction changes or major distance updates
-        String direction = LocationService.getDirectionName(instruction.getBearing());
-        String message = String.format("请向%s方向走%.0f米", direction, instruction.getDistance());
-        voiceService.announceInstruction(message);
-    }
-
-    private void updateUIOnArrival() {
-        isNavigating = false;
-
-        // Stop location tracking
-        locationService.stopLocationTracking();
-
-        // Stop path planning
-        pathPlanningService.stopNavigation();
-
-        // Announce cancellation
-        voiceService.announceArrival(selectedToLocation);
-
+    /**
+     * The service has already ended navigation and announced the arrival
+     * @param destination The destination navigated to, even if the lists changed since
+     */
+    private void updateUIOnArrival(Location location, String destination) {
         // Update UI to show arrival state
         navigationInfoSection.setVisibility(View.VISIBLE);
-        btnStartNavigation.setEnabled(true);
-        btnStartNavigation.setVisibility(View.VISIBLE);
-        btnStopNavigation.setEnabled(false);
-        btnStopNavigation.setVisibility(View.GONE);
+        showStartControls();
 
+        tvCurrentLocation.setText(formatLocation(location));
+        tvCurrentLocation.setContentDescription(describeLocation(location));
         tvDistance.setText("已到达目标");
-        tvDistance.setContentDescription("已到达" + selectedToLocation);
+        tvDistance.setContentDescription("已到达" + destination);
         tvRemainingSteps.setText("剩余步数: 0步");
         tvInstruction.setText("导航结束");
 
-        Toast.makeText(this, "已到达" + selectedToLocation, Toast.LENGTH_SHORT).show();
+        Toast.makeText(this, "已到达" + destination, Toast.LENGTH_SHORT).show();
     }
 
     private void stopNavigation() {
-        isNavigating = false;
-
-        // Stop location tracking
-        locationService.stopLocationTracking();
-
-        // Stop path planning
-        pathPlanningService.stopNavigation();
+        // Stops tracking and path planning
+        navigationService.stopNavigation();
 
         // Announce cancellation
         voiceService.announceNavigationCancelled();
 
         // Update UI state
-        btnStartNavigation.setEnabled(true);
-        btnStartNavigation.setVisibility(View.VISIBLE);
-        btnStopNavigation.setEnabled(false);
-        btnStopNavigation.setVisibility(View.GONE);
+        showStartControls();
+        resetNavigationViews();
+    }
+
+    private void resetNavigationViews() {
         navigationInfoSection.setVisibility(View.GONE);
 
         // Clear navigation data
@@ -319,6 +625,21 @@ public class NavigationActivity extends AppCompatActivity {
         tvInstruction.setContentDescription("请选择起点和终点开始导航");
     }
 
+    @Override
+    public void onRequestPermissionsResult(int requestCode, String[] permissions, int[] grantResults) {
+        super.onRequestPermissionsResult(requestCode, permissions, grantResults);
+        permissionManager.onRequestPermissionsResult(requestCode, permissions, grantResults);
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        isStarted = true;
+        if (navigationService != null) {
+            attachNavigation();
+        }
+    }
+
     @Override
     protected void onResume() {
         super.onResume();
@@ -330,22 +651,40 @@ public class NavigationActivity extends AppCompatActivity {
     @Override
     protected void onPause() {
         super.onPause();
-        if (voiceService != null) {
+        // Instructions keep coming with the screen off while navigating
+        if (voiceService != null && !isNavigating()) {
             voiceService.stop();
         }
     }
 
+    @Override
+    protected void onStop() {
+        super.onStop();
+        isStarted = false;
+        // Navigation goes on in the service; only the views stop following it
+        if (navigationService != null) {
+            navigationService.setNavigationListener(null);
+        }
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        if (locationService != null && isNavigating) {
-            locationService.stopLocationTracking();
-        }
-        if (pathPlanningService != null) {
-            pathPlanningService.stopNavigation();
+        mainHandler.removeCallbacksAndMessages(null);
+        if (asyncDatabaseService != null) {
+            asyncDatabaseService.cancelAll(this);
         }
         if (voiceService != null) {
-            voiceService.shutdown();
+            // The recognizer lives in the service and would otherwise hold on to this screen
+            voiceService.releaseSpeechRecognition();
+        }
+        if (navigationService != null && isFinishing()) {
+            // Only leaving the screen ends navigation; when the system destroys it to recreate it,
+            // or to reclaim memory, guidance goes on in the service until a new screen attaches
+            navigationService.stopNavigation();
         }
+        navigationService = null;
+        // The service shuts voice down once nothing is bound or navigating
+        unbindService(serviceConnection);
     }
 }
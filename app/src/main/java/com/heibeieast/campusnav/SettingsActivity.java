@@ -10,6 +10,8 @@ import android.widget.Toast;
 
 import androidx.appcompat.app.AppCompatActivity;
 
+import com.heibeieast.campusnav.models.UserPreferences;
+import com.heibeieast.campusnav.services.AsyncDatabaseService;
 import com.heibeieast.campusnav.services.DatabaseService;
 import com.heibeieast.campusnav.services.VoiceService;
 
@@ -28,6 +30,7 @@ public class SettingsActivity extends AppCompatActivity {
     private TextView tvVoiceVolumeValue;
 
     private DatabaseService databaseService;
+    private AsyncDatabaseService asyncDatabaseService;
     private VoiceService voiceService;
 
     @Override
@@ -37,6 +40,7 @@ public class SettingsActivity extends AppCompatActivity {
 
         // Initialize services
         databaseService = DatabaseService.getInstance(this);
+        asyncDatabaseService = AsyncDatabaseService.getInstance(databaseService);
         voiceService = new VoiceService(this);
 
         // Initialize views
@@ -101,7 +105,7 @@ public class SettingsActivity extends AppCompatActivity {
             @Override
             public void onStopTrackingTouch(SeekBar seekBar) {
                 // Test voice speed when slider stops
-                double voiceSpeed = 0.5 + (progress * 0.01);
+                double voiceSpeed = 0.5 + (seekBar.getProgress() * 0.01);
                 voiceService.setSpeechRate((float) voiceSpeed);
                 voiceService.speak("语音速度测试");
             }
@@ -150,25 +154,34 @@ public class SettingsActivity extends AppCompatActivity {
     }
 
     private void loadSettings() {
+        asyncDatabaseService.getPreferences(this, new AsyncDatabaseService.Callback<UserPreferences>() {
+            @Override
+            public void onResult(UserPreferences preferences) {
+                showSettings(preferences);
+            }
+        });
+    }
+
+    private void showSettings(UserPreferences preferences) {
         // Load step length
-        double stepLength = databaseService.getAverageStepLength();
+        double stepLength = preferences.getAverageStepLength();
         int stepLengthProgress = (int) ((stepLength - 0.5) * 100);
         seekBarStepLength.setProgress(stepLengthProgress);
         tvStepLengthValue.setText(String.format("%.2f 米", stepLength));
 
         // Load voice speed
-        double voiceSpeed = databaseService.getVoiceSpeed();
+        double voiceSpeed = preferences.getVoiceSpeed();
         int voiceSpeedProgress = (int) ((voiceSpeed - 0.5) * 100);
         seekBarVoiceSpeed.setProgress(voiceSpeedProgress);
         tvVoiceSpeedValue.setText(String.format("%.1f 倍", voiceSpeed));
 
         // Load voice volume
-        int voiceVolume = databaseService.getVoiceVolume();
+        int voiceVolume = preferences.getVoiceVolume();
         seekBarVoiceVolume.setProgress(voiceVolume);
         tvVoiceVolumeValue.setText(String.format("%d", voiceVolume));
 
         // Load accessibility mode
-        boolean accessibilityMode = databaseService.getAccessibilityMode();
+        boolean accessibilityMode = preferences.isAccessibilityMode();
         switchAccessibilityMode.setChecked(accessibilityMode);
         switchAccessibilityMode.setContentDescription(
                 accessibilityMode ? "无障碍模式已开启" : "无障碍模式已关闭"
@@ -182,18 +195,17 @@ public class SettingsActivity extends AppCompatActivity {
         int voiceVolume = seekBarVoiceVolume.getProgress();
         boolean accessibilityMode = switchAccessibilityMode.isChecked();
 
-        // Save to database
-        databaseService.updateAverageStepLength(stepLength);
-        databaseService.updateVoiceSpeed(voiceSpeed);
-        databaseService.updateVoiceVolume(voiceVolume);
-        databaseService.updateAccessibilityMode(accessibilityMode);
-
-        // Update TTS settings
-        voiceService.updateSettings();
-
-        // Show feedback
-        Toast.makeText(this, "设置已保存", Toast.LENGTH_SHORT).show();
-        voiceService.announceSettingsSaved();
+        // Save to database; voice services pick up the change through their preferences listener
+        asyncDatabaseService.updatePreferences(this,
+                new UserPreferences(stepLength, voiceSpeed, voiceVolume, accessibilityMode),
+                new AsyncDatabaseService.Callback<Boolean>() {
+                    @Override
+                    public void onResult(Boolean saved) {
+                        // Show feedback
+                        Toast.makeText(SettingsActivity.this, "设置已保存", Toast.LENGTH_SHORT).show();
+                        voiceService.announceSettingsSaved();
+                    }
+                });
     }
 
     private void resetDefaults() {
@@ -229,6 +241,9 @@ public class SettingsActivity extends AppCompatActivity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        if (asyncDatabaseService != null) {
+            asyncDatabaseService.cancelAll(this);
+        }
         if (voiceService != null) {
             voiceService.shutdown();
         }
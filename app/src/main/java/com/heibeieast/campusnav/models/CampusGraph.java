@@ -0,0 +1,224 @@
+package com.heibeieast.campusnav.models;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Campus walkway network in compressed sparse row form.
+ * Nodes are campus locations renumbered densely from 0 in ascending id order;
+ * the edges leaving node n are targets[offsets[n]] .. targets[offsets[n + 1] - 1]
+ * with the matching lengths in weights. Walkways are stored in both directions.
+ * No walkway is shorter than the straight line between its ends, which A*
+ * and the route cache rely on when they use that distance as a lower bound.
+ */
+public class CampusGraph {
+    private final long[] locationIds;
+    private final CampusLocation[] locations;
+    private final double[] latitudes;
+    private final double[] longitudes;
+
+    private final int[] offsets;
+    private final int[] targets;
+    private final float[] weights;
+    private final String[] descriptions;
+
+    /**
+     * @param nodeLocations All campus locations, in any order
+     * @param edgeFrom Walkway start location ids
+     * @param edgeTo Walkway end location ids
+     * @param edgeWeights Walkway lengths in meters; see {@link #walkwayLength(double, double)}
+     * @param edgeDescriptions Walkway descriptions, may contain nulls
+     * @param edgeCount Number of valid entries in the edge arrays
+     */
+    public CampusGraph(List<CampusLocation> nodeLocations, long[] edgeFrom, long[] edgeTo,
+                       float[] edgeWeights, String[] edgeDescriptions, int edgeCount) {
+        int nodeCount = nodeLocations.size();
+        locationIds = new long[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            locationIds[i] = nodeLocations.get(i).getId();
+        }
+        Arrays.sort(locationIds);
+
+        locations = new CampusLocation[nodeCount];
+        latitudes = new double[nodeCount];
+        longitudes = new double[nodeCount];
+        for (CampusLocation location : nodeLocations) {
+            int node = Arrays.binarySearch(locationIds, location.getId());
+            locations[node] = location;
+            latitudes[node] = location.getLatitude();
+            longitudes[node] = location.getLongitude();
+        }
+
+        // Resolve endpoints once and count out-degrees (each walkway adds two arcs)
+        int[] fromNodes = new int[edgeCount];
+        int[] toNodes = new int[edgeCount];
+        offsets = new int[nodeCount + 1];
+        int arcCount = 0;
+        for (int e = 0; e < edgeCount; e++) {
+            int from = indexOf(edgeFrom[e]);
+            int to = indexOf(edgeTo[e]);
+            fromNodes[e] = from;
+            toNodes[e] = to;
+            if (from < 0 || to < 0 || from == to) {
+                continue;
+            }
+            offsets[from + 1]++;
+            offsets[to + 1]++;
+            arcCount += 2;
+        }
+        for (int n = 0; n < nodeCount; n++) {
+            offsets[n + 1] += offsets[n];
+        }
+
+        targets = new int[arcCount];
+        weights = new float[arcCount];
+        descriptions = new String[arcCount];
+        int[] cursor = Arrays.copyOf(offsets, nodeCount);
+        for (int e = 0; e < edgeCount; e++) {
+            int from = fromNodes[e];
+            int to = toNodes[e];
+            if (from < 0 || to < 0 || from == to) {
+                continue;
+            }
+            float weight = walkwayLength(edgeWeights[e], straightLineDistance(from, to));
+            int forward = cursor[from]++;
+            targets[forward] = to;
+            weights[forward] = weight;
+            descriptions[forward] = edgeDescriptions[e];
+            int backward = cursor[to]++;
+            targets[backward] = from;
+            weights[backward] = weight;
+            descriptions[backward] = edgeDescriptions[e];
+        }
+    }
+
+    /**
+     * Length a walkway gets in the graph: the stored length, but never less than the straight line,
+     * so a missing, rounded or mistyped length cannot make the distance heuristic overestimate
+     * @param storedLength Length from campus_routes in meters, non-positive if unknown
+     * @param straightLine Straight-line distance between the walkway's ends in meters
+     */
+    public static float walkwayLength(double storedLength, double straightLine) {
+        float length = (float) Math.max(storedLength, straightLine);
+        // Rounding to float must not undercut the straight line either
+        return length < straightLine ? Math.nextUp(length) : length;
+    }
+
+    /**
+     * Dense node index for a campus_locations id
+     * @return Node index, or -1 if the location is not part of the graph
+     */
+    public int indexOf(long locationId) {
+        int node = Arrays.binarySearch(locationIds, locationId);
+        return node >= 0 ? node : -1;
+    }
+
+    public int getNodeCount() {
+        return locationIds.length;
+    }
+
+    public int getArcCount() {
+        return targets.length;
+    }
+
+    public long getLocationId(int node) {
+        return locationIds[node];
+    }
+
+    public CampusLocation getLocation(int node) {
+        return locations[node];
+    }
+
+    public double getLatitude(int node) {
+        return latitudes[node];
+    }
+
+    public double getLongitude(int node) {
+        return longitudes[node];
+    }
+
+    /**
+     * First arc leaving the node
+     */
+    public int firstArc(int node) {
+        return offsets[node];
+    }
+
+    /**
+     * One past the last arc leaving the node
+     */
+    public int endArc(int node) {
+        return offsets[node + 1];
+    }
+
+    public int getTarget(int arc) {
+        return targets[arc];
+    }
+
+    public float getWeight(int arc) {
+        return weights[arc];
+    }
+
+    public String getDescription(int arc) {
+        return descriptions[arc];
+    }
+
+    /**
+     * Node closest to a position among those with at least one walkway
+     * @return Node index, or -1 if no node has a walkway
+     */
+    public int nearestConnectedNode(double latitude, double longitude) {
+        int nearest = -1;
+        double minDistance = Double.MAX_VALUE;
+        for (int node = 0; node < locationIds.length; node++) {
+            if (offsets[node] == offsets[node + 1]) {
+                continue;
+            }
+            double distance = haversine(latitude, longitude, latitudes[node], longitudes[node]);
+            if (distance < minDistance) {
+                minDistance = distance;
+                nearest = node;
+            }
+        }
+        return nearest;
+    }
+
+    /**
+     * Hash of the node ids and walkways, used to tell whether data derived
+     * from the graph (such as a stored contraction hierarchy) is still valid
+     */
+    public long fingerprint() {
+        long hash = 1125899906842597L;
+        for (long id : locationIds) {
+            hash = 31 * hash + id;
+        }
+        for (int offset : offsets) {
+            hash = 31 * hash + offset;
+        }
+        for (int arc = 0; arc < targets.length; arc++) {
+            hash = 31 * hash + targets[arc];
+            hash = 31 * hash + Float.floatToIntBits(weights[arc]);
+        }
+        return hash;
+    }
+
+    /**
+     * Haversine distance between two nodes in meters
+     */
+    public double straightLineDistance(int from, int to) {
+        return haversine(latitudes[from], longitudes[from], latitudes[to], longitudes[to]);
+    }
+
+    private static double haversine(double lat1, double lon1, double lat2, double lon2) {
+        final int R = 6371000; // Earth's radius in meters
+
+        double latDistance = Math.toRadians(lat2 - lat1);
+        double lonDistance = Math.toRadians(lon2 - lon1);
+
+        double a = Math.sin(latDistance / 2) * Math.sin(latDistance / 2)
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2))
+                * Math.sin(lonDistance / 2) * Math.sin(lonDistance / 2);
+
+        return R * 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+    }
+}
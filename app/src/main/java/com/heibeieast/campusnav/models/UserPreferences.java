@@ -0,0 +1,88 @@
+package com.heibeieast.campusnav.models;
+
+/**
+ * Immutable snapshot of the user_preferences row.
+ * A changed setting produces a new snapshot, so readers on any thread always
+ * see a consistent set of values.
+ */
+public class UserPreferences {
+    public static final double DEFAULT_STEP_LENGTH = 0.7;
+    public static final double DEFAULT_VOICE_SPEED = 0.8;
+    public static final int DEFAULT_VOICE_VOLUME = 100;
+    public static final boolean DEFAULT_ACCESSIBILITY_MODE = true;
+
+    private final double averageStepLength;
+    private final double voiceSpeed;
+    private final int voiceVolume;
+    private final boolean accessibilityMode;
+
+    public UserPreferences(double averageStepLength, double voiceSpeed, int voiceVolume, boolean accessibilityMode) {
+        this.averageStepLength = averageStepLength;
+        this.voiceSpeed = voiceSpeed;
+        this.voiceVolume = voiceVolume;
+        this.accessibilityMode = accessibilityMode;
+    }
+
+    public static UserPreferences defaults() {
+        return new UserPreferences(DEFAULT_STEP_LENGTH, DEFAULT_VOICE_SPEED,
+                DEFAULT_VOICE_VOLUME, DEFAULT_ACCESSIBILITY_MODE);
+    }
+
+    public double getAverageStepLength() {
+        return averageStepLength;
+    }
+
+    public double getVoiceSpeed() {
+        return voiceSpeed;
+    }
+
+    public int getVoiceVolume() {
+        return voiceVolume;
+    }
+
+    public boolean isAccessibilityMode() {
+        return accessibilityMode;
+    }
+
+    public UserPreferences withAverageStepLength(double averageStepLength) {
+        return new UserPreferences(averageStepLength, voiceSpeed, voiceVolume, accessibilityMode);
+    }
+
+    public UserPreferences withVoiceSpeed(double voiceSpeed) {
+        return new UserPreferences(averageStepLength, voiceSpeed, voiceVolume, accessibilityMode);
+    }
+
+    public UserPreferences withVoiceVolume(int voiceVolume) {
+        return new UserPreferences(averageStepLength, voiceSpeed, voiceVolume, accessibilityMode);
+    }
+
+    public UserPreferences withAccessibilityMode(boolean accessibilityMode) {
+        return new UserPreferences(averageStepLength, voiceSpeed, voiceVolume, accessibilityMode);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof UserPreferences)) {
+            return false;
+        }
+        UserPreferences other = (UserPreferences) o;
+        return averageStepLength == other.averageStepLength
+                && voiceSpeed == other.voiceSpeed
+                && voiceVolume == other.voiceVolume
+                && accessibilityMode == other.accessibilityMode;
+    }
+
+    @Override
+    public int hashCode() {
+        long bits = Double.doubleToLongBits(averageStepLength);
+        int result = (int) (bits ^ (bits >>> 32));
+        bits = Double.doubleToLongBits(voiceSpeed);
+        result = 31 * result + (int) (bits ^ (bits >>> 32));
+        result = 31 * result + voiceVolume;
+        result = 31 * result + (accessibilityMode ? 1 : 0);
+        return result;
+    }
+}
@@ -0,0 +1,125 @@
+package com.heibeieast.campusnav.services;
+
+import com.heibeieast.campusnav.models.CampusGraph;
+import com.heibeieast.campusnav.models.CampusLocation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A* over a {@link CampusGraph}, guided by the straight-line distance to the goal.
+ * Search state lives in primitive arrays sized for the graph and reused
+ * between queries, so a query allocates only its result. Not thread-safe.
+ */
+class AStarSearch {
+    private final CampusGraph graph;
+
+    // Per-query search state, indexed by dense node id
+    private final double[] gScore;
+    private final int[] parentNode;
+    private final int[] parentArc;
+    private final int[] reachedStamp;
+    private final int[] closedStamp;
+    private int stamp;
+    private final NodeHeap open;
+    private int settledCount;
+
+    AStarSearch(CampusGraph graph) {
+        this.graph = graph;
+        int nodeCount = graph.getNodeCount();
+        gScore = new double[nodeCount];
+        parentNode = new int[nodeCount];
+        parentArc = new int[nodeCount];
+        reachedStamp = new int[nodeCount];
+        closedStamp = new int[nodeCount];
+        open = new NodeHeap(nodeCount);
+    }
+
+    /**
+     * Shortest path between two nodes
+     * @return The path, or null if the nodes are not connected
+     */
+    RoutingEngine.Path findPath(int source, int goal) {
+        nextStamp();
+        open.clear();
+        settledCount = 0;
+
+        gScore[source] = 0;
+        parentNode[source] = -1;
+        reachedStamp[source] = stamp;
+        open.push(source, graph.straightLineDistance(source, goal));
+
+        while (!open.isEmpty()) {
+            int current = open.pop();
+            if (closedStamp[current] == stamp) {
+                continue;
+            }
+            closedStamp[current] = stamp;
+            settledCount++;
+
+            if (current == goal) {
+                return reconstructPath(source, goal);
+            }
+
+            double currentG = gScore[current];
+            for (int arc = graph.firstArc(current), end = graph.endArc(current); arc < end; arc++) {
+                int next = graph.getTarget(arc);
+                if (closedStamp[next] == stamp) {
+                    continue;
+                }
+                double tentativeG = currentG + graph.getWeight(arc);
+                if (reachedStamp[next] != stamp || tentativeG < gScore[next]) {
+                    reachedStamp[next] = stamp;
+                    gScore[next] = tentativeG;
+                    parentNode[next] = current;
+                    parentArc[next] = arc;
+                    // Haversine distance never overestimates a walkway length, so A* stays optimal
+                    open.push(next, tentativeG + graph.straightLineDistance(next, goal));
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Nodes settled by the last query
+     */
+    int getSettledCount() {
+        return settledCount;
+    }
+
+    /**
+     * Advance the generation marker; arrays are only cleared when it wraps
+     */
+    private void nextStamp() {
+        stamp++;
+        if (stamp == Integer.MAX_VALUE) {
+            Arrays.fill(reachedStamp, 0);
+            Arrays.fill(closedStamp, 0);
+            stamp = 1;
+        }
+    }
+
+    private RoutingEngine.Path reconstructPath(int source, int goal) {
+        int legCount = 0;
+        for (int node = goal; node != source; node = parentNode[node]) {
+            legCount++;
+        }
+
+        CampusLocation[] waypoints = new CampusLocation[legCount + 1];
+        float[] legDistances = new float[legCount];
+        String[] legDescriptions = new String[legCount];
+        int leg = legCount;
+        for (int node = goal; node != source; node = parentNode[node]) {
+            leg--;
+            waypoints[leg + 1] = graph.getLocation(node);
+            legDistances[leg] = graph.getWeight(parentArc[node]);
+            legDescriptions[leg] = graph.getDescription(parentArc[node]);
+        }
+        waypoints[0] = graph.getLocation(source);
+
+        return new RoutingEngine.Path(new ArrayList<>(Arrays.asList(waypoints)), legDistances, legDescriptions,
+                gScore[goal]);
+    }
+}
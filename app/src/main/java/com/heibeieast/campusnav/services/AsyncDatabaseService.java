@@ -0,0 +1,322 @@
+package com.heibeieast.campusnav.services;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import com.heibeieast.campusnav.models.CampusLocation;
+import com.heibeieast.campusnav.models.UserPreferences;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs {@link DatabaseService} calls on a background thread and delivers the
+ * results on the main thread, so activities never touch SQLite themselves.
+ * Work runs on a single thread in submission order, so a write followed by a
+ * read sees the write. Reads are bounded; a read submitted while too many
+ * are pending fails through the callback instead of piling up. Writes are
+ * always queued and always run.
+ * Every task belongs to an owner, usually an activity, which cancels its
+ * outstanding tasks with {@link #cancelAll(Object)} when it is destroyed.
+ * Cancelling a read skips it; cancelling a write only drops its callback,
+ * so leaving a screen right after saving never loses the save.
+ */
+public class AsyncDatabaseService {
+    private static final String TAG = "AsyncDatabaseService";
+    private static final int MAX_PENDING_TASKS = 64;
+
+    private static AsyncDatabaseService instance;
+
+    private final DatabaseService databaseService;
+    private final ThreadPoolExecutor executor;
+    private final Handler mainHandler;
+    private final Map<Object, List<Task<?>>> tasksByOwner = new HashMap<>();
+    private final AtomicInteger pendingReads = new AtomicInteger();
+
+    /**
+     * Receives the outcome of a task on the main thread; not called once the task is cancelled
+     */
+    public abstract static class Callback<T> {
+        public abstract void onResult(T result);
+
+        public void onError(Exception error) {
+            Log.e(TAG, "Database task failed", error);
+        }
+    }
+
+    /**
+     * Handle for submitted work; {@link #get()} blocks and must not be called on the main thread
+     */
+    public class Task<T> extends FutureTask<T> {
+        private final Object owner;
+        private final Callback<T> callback;
+        private final boolean write;
+        private volatile boolean callbackDropped;
+
+        private Task(Object owner, Callable<T> work, Callback<T> callback, boolean write) {
+            super(work);
+            this.owner = owner;
+            this.callback = callback;
+            this.write = write;
+        }
+
+        /**
+         * Drop the callback, and skip the work if it is a read that has not started.
+         * A running statement is left to finish so SQLite is never interrupted mid-write.
+         */
+        public void cancel() {
+            cancel(false);
+        }
+
+        /**
+         * Writes are never cancelled; only their callback is dropped
+         * @return false for a write, as its work still runs
+         */
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            callbackDropped = true;
+            return !write && super.cancel(false);
+        }
+
+        /**
+         * Give up on work that was never queued, so {@link #get()} does not wait for it
+         */
+        private void reject() {
+            callbackDropped = true;
+            super.cancel(false);
+        }
+
+        @Override
+        protected void done() {
+            unregister(this);
+            if (!write) {
+                pendingReads.decrementAndGet();
+            }
+            if (!isCancelled() && !callbackDropped && callback != null) {
+                deliver(this);
+            }
+        }
+    }
+
+    private AsyncDatabaseService(DatabaseService databaseService) {
+        this.databaseService = databaseService;
+        this.mainHandler = new Handler(Looper.getMainLooper());
+        this.executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                runnable.run();
+                            }
+                        }, "DatabaseIO");
+                    }
+                });
+    }
+
+    public static synchronized AsyncDatabaseService getInstance(DatabaseService databaseService) {
+        if (instance == null) {
+            instance = new AsyncDatabaseService(databaseService);
+        }
+        return instance;
+    }
+
+    /**
+     * Run a read on the database thread
+     * @param owner Object whose {@link #cancelAll(Object)} cancels the task
+     * @param work Work to run; may use any blocking DatabaseService call
+     * @param callback Receives the result on the main thread, may be null
+     */
+    public <T> Task<T> submit(Object owner, Callable<T> work, Callback<T> callback) {
+        return submit(owner, work, callback, false);
+    }
+
+    /**
+     * Run a write on the database thread; it runs even if the owner cancels it
+     * @param owner Object whose {@link #cancelAll(Object)} drops the callback
+     * @param work Work to run; may use any blocking DatabaseService call
+     * @param callback Receives the result on the main thread, may be null
+     */
+    public <T> Task<T> submitWrite(Object owner, Callable<T> work, Callback<T> callback) {
+        return submit(owner, work, callback, true);
+    }
+
+    private <T> Task<T> submit(Object owner, Callable<T> work, Callback<T> callback, boolean write) {
+        Task<T> task = new Task<>(owner, work, callback, write);
+        if (!write && pendingReads.incrementAndGet() > MAX_PENDING_TASKS) {
+            Log.w(TAG, "Database queue full, rejecting read");
+            task.reject();
+            fail(callback, new RejectedExecutionException("Too many pending database reads"));
+            return task;
+        }
+        register(task);
+
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Database executor rejected task", e);
+            task.reject();
+            fail(callback, e);
+        }
+        return task;
+    }
+
+    private <T> void fail(final Callback<T> callback, final Exception error) {
+        if (callback != null) {
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onError(error);
+                }
+            });
+        }
+    }
+
+    private <T> void deliver(final Task<T> task) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (task.isCancelled() || task.callbackDropped) {
+                    return;
+                }
+                T result;
+                try {
+                    result = task.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    task.callback.onError(cause instanceof Exception ? (Exception) cause : e);
+                    return;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                task.callback.onResult(result);
+            }
+        });
+    }
+
+    private synchronized void register(Task<?> task) {
+        List<Task<?>> tasks = tasksByOwner.get(task.owner);
+        if (tasks == null) {
+            tasks = new ArrayList<>();
+            tasksByOwner.put(task.owner, tasks);
+        }
+        tasks.add(task);
+    }
+
+    private synchronized void unregister(Task<?> task) {
+        List<Task<?>> tasks = tasksByOwner.get(task.owner);
+        if (tasks != null) {
+            tasks.remove(task);
+            if (tasks.isEmpty()) {
+                tasksByOwner.remove(task.owner);
+            }
+        }
+    }
+
+    /**
+     * Cancel every unfinished task of an owner; call from onDestroy.
+     * Pending writes still run, without their callbacks.
+     */
+    public void cancelAll(Object owner) {
+        List<Task<?>> tasks;
+        synchronized (this) {
+            tasks = tasksByOwner.remove(owner);
+        }
+        if (tasks != null) {
+            for (Task<?> task : tasks) {
+                task.cancel();
+            }
+        }
+    }
+
+    public Task<List<CampusLocation>> getAllLocations(Object owner, Callback<List<CampusLocation>> callback) {
+        return submit(owner, new Callable<List<CampusLocation>>() {
+            @Override
+            public List<CampusLocation> call() {
+                return databaseService.getAllLocations();
+            }
+        }, callback);
+    }
+
+    public Task<List<CampusLocation>> searchLocations(Object owner, final String query, final int limit,
+                                                      Callback<List<CampusLocation>> callback) {
+        return submit(owner, new Callable<List<CampusLocation>>() {
+            @Override
+            public List<CampusLocation> call() {
+                return databaseService.searchLocations(query, limit);
+            }
+        }, callback);
+    }
+
+    public Task<Long> addLocation(Object owner, final CampusLocation location, Callback<Long> callback) {
+        return submitWrite(owner, new Callable<Long>() {
+            @Override
+            public Long call() {
+                return databaseService.addLocation(location);
+            }
+        }, callback);
+    }
+
+    public Task<Boolean> updateLocation(Object owner, final CampusLocation location, Callback<Boolean> callback) {
+        return submitWrite(owner, new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return databaseService.updateLocation(location);
+            }
+        }, callback);
+    }
+
+    public Task<Boolean> deleteLocation(Object owner, final long locationId, Callback<Boolean> callback) {
+        return submitWrite(owner, new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return databaseService.deleteLocation(locationId);
+            }
+        }, callback);
+    }
+
+    public Task<UserPreferences> getPreferences(Object owner, Callback<UserPreferences> callback) {
+        return submit(owner, new Callable<UserPreferences>() {
+            @Override
+            public UserPreferences call() {
+                return databaseService.getPreferences();
+            }
+        }, callback);
+    }
+
+    public Task<Boolean> updatePreferences(Object owner, final UserPreferences preferences,
+                                           Callback<Boolean> callback) {
+        return submitWrite(owner, new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return databaseService.updatePreferences(preferences);
+            }
+        }, callback);
+    }
+
+    public Task<Boolean> updateAverageStepLength(Object owner, final double stepLength, Callback<Boolean> callback) {
+        return submitWrite(owner, new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return databaseService.updateAverageStepLength(stepLength);
+            }
+        }, callback);
+    }
+}
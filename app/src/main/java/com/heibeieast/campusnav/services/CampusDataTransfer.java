@@ -0,0 +1,333 @@
+package com.heibeieast.campusnav.services;
+
+import android.database.Cursor;
+import android.util.Log;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Imports and exports campus locations and routes as JSON:
+ * <pre>
+ * {"format": "campusnav", "version": 1,
+ *  "locations": [{"id", "name", "latitude", "longitude", "category", "description", "createdAt"}],
+ *  "routes": [{"fromId", "toId", "distance", "description", "estimatedSteps"}]}
+ * </pre>
+ * Both directions stream one row at a time, so a file with tens of thousands of
+ * locations is never held in memory. Route endpoints refer to the location ids
+ * in the same file, which are remapped to the ids assigned on import; locations
+ * must therefore come before routes. Run on a background thread.
+ */
+public class CampusDataTransfer {
+    private static final String TAG = "CampusDataTransfer";
+    private static final String FORMAT = "campusnav";
+    private static final int VERSION = 1;
+    private static final int PROGRESS_INTERVAL = 1000;
+
+    private final DatabaseService databaseService;
+
+    public interface ProgressListener {
+        void onProgress(int locations, int routes);
+    }
+
+    public static class ImportResult {
+        private int locationsImported;
+        private int locationsSkipped;
+        private int routesImported;
+        private int routesSkipped;
+
+        public int getLocationsImported() {
+            return locationsImported;
+        }
+
+        public int getLocationsSkipped() {
+            return locationsSkipped;
+        }
+
+        public int getRoutesImported() {
+            return routesImported;
+        }
+
+        public int getRoutesSkipped() {
+            return routesSkipped;
+        }
+    }
+
+    public CampusDataTransfer(DatabaseService databaseService) {
+        this.databaseService = databaseService;
+    }
+
+    /**
+     * Import locations and routes.
+     * When merging, a location whose name already exists keeps its stored values,
+     * and routes between two already existing locations are skipped, so importing
+     * the same file twice adds nothing. Rows are committed in batches; if the file
+     * turns out to be malformed part way through, the batches before it stay.
+     * A replace commits once at the end instead, so a failed replace keeps the
+     * existing data.
+     * @param replaceExisting Delete all locations and routes before importing
+     * @param listener Receives running totals, may be null
+     * @throws IOException If the file cannot be read or is not a campus data file
+     */
+    public ImportResult importFrom(Reader in, boolean replaceExisting, ProgressListener listener) throws IOException {
+        ImportResult result = new ImportResult();
+        Map<Long, Long> idMap = new HashMap<>();
+        Set<Long> existingIds = new HashSet<>();
+
+        JsonReader reader = new JsonReader(in);
+        DatabaseService.BulkImport bulkImport = databaseService.beginBulkImport(replaceExisting);
+        boolean finished = false;
+        try {
+            boolean routesSeen = false;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String field = reader.nextName();
+                if (field.equals("format")) {
+                    String format = reader.nextString();
+                    if (!FORMAT.equals(format)) {
+                        throw new IOException("Not a campus data file: " + format);
+                    }
+                } else if (field.equals("version")) {
+                    int version = reader.nextInt();
+                    if (version > VERSION) {
+                        throw new IOException("Unsupported campus data version: " + version);
+                    }
+                } else if (field.equals("locations")) {
+                    if (routesSeen) {
+                        throw new IOException("Locations must come before routes");
+                    }
+                    readLocations(reader, bulkImport, idMap, existingIds, result, listener);
+                } else if (field.equals("routes")) {
+                    routesSeen = true;
+                    readRoutes(reader, bulkImport, idMap, existingIds, result, listener);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            bulkImport.finish();
+            finished = true;
+            if (listener != null) {
+                listener.onProgress(result.locationsImported, result.routesImported);
+            }
+        } catch (IllegalStateException | NumberFormatException e) {
+            // JsonReader reports unexpected tokens this way
+            throw new IOException("Malformed campus data file", e);
+        } finally {
+            if (!finished) {
+                bulkImport.abort();
+            }
+        }
+
+        Log.d(TAG, "Imported " + result.locationsImported + " locations (" + result.locationsSkipped +
+                " skipped) and " + result.routesImported + " routes (" + result.routesSkipped + " skipped)");
+        return result;
+    }
+
+    private void readLocations(JsonReader reader, DatabaseService.BulkImport bulkImport, Map<Long, Long> idMap,
+                               Set<Long> existingIds, ImportResult result, ProgressListener listener)
+            throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            long fileId = -1;
+            String name = null;
+            Double latitude = null;
+            Double longitude = null;
+            String category = null;
+            String description = null;
+            String createdAt = null;
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String field = reader.nextName();
+                if (reader.peek() == JsonToken.NULL) {
+                    reader.nextNull();
+                } else if (field.equals("id")) {
+                    fileId = reader.nextLong();
+                } else if (field.equals("name")) {
+                    name = reader.nextString();
+                } else if (field.equals("latitude")) {
+                    latitude = reader.nextDouble();
+                } else if (field.equals("longitude")) {
+                    longitude = reader.nextDouble();
+                } else if (field.equals("category")) {
+                    category = reader.nextString();
+                } else if (field.equals("description")) {
+                    description = reader.nextString();
+                } else if (field.equals("createdAt")) {
+                    createdAt = reader.nextString();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            if (name == null || name.trim().isEmpty() || latitude == null || longitude == null) {
+                result.locationsSkipped++;
+                continue;
+            }
+
+            long id = bulkImport.insertLocation(name, latitude, longitude, category, description, createdAt);
+            if (id == -1) {
+                // Name already taken; routes in the file still attach to the stored location
+                id = databaseService.getLocationIdByName(name);
+                existingIds.add(id);
+                result.locationsSkipped++;
+            } else {
+                result.locationsImported++;
+            }
+            if (fileId != -1 && id != -1) {
+                idMap.put(fileId, id);
+            }
+            reportProgress(listener, result);
+        }
+        reader.endArray();
+    }
+
+    private void readRoutes(JsonReader reader, DatabaseService.BulkImport bulkImport, Map<Long, Long> idMap,
+                            Set<Long> existingIds, ImportResult result, ProgressListener listener)
+            throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            long fromFileId = -1;
+            long toFileId = -1;
+            double distance = 0;
+            String description = null;
+            int estimatedSteps = 0;
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String field = reader.nextName();
+                if (reader.peek() == JsonToken.NULL) {
+                    reader.nextNull();
+                } else if (field.equals("fromId")) {
+                    fromFileId = reader.nextLong();
+                } else if (field.equals("toId")) {
+                    toFileId = reader.nextLong();
+                } else if (field.equals("distance")) {
+                    distance = reader.nextDouble();
+                } else if (field.equals("description")) {
+                    description = reader.nextString();
+                } else if (field.equals("estimatedSteps")) {
+                    estimatedSteps = reader.nextInt();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            Long fromId = idMap.get(fromFileId);
+            Long toId = idMap.get(toFileId);
+            if (fromId == null || toId == null || (existingIds.contains(fromId) && existingIds.contains(toId))) {
+                result.routesSkipped++;
+                continue;
+            }
+
+            bulkImport.insertRoute(fromId, toId, distance, description, estimatedSteps);
+            result.routesImported++;
+            reportProgress(listener, result);
+        }
+        reader.endArray();
+    }
+
+    private static void reportProgress(ProgressListener listener, ImportResult result) {
+        int rows = result.locationsImported + result.routesImported;
+        if (listener != null && rows % PROGRESS_INTERVAL == 0) {
+            listener.onProgress(result.locationsImported, result.routesImported);
+        }
+    }
+
+    /**
+     * Export all locations and routes
+     * @param listener Receives running totals, may be null
+     */
+    public void exportTo(Writer out, ProgressListener listener) throws IOException {
+        JsonWriter writer = new JsonWriter(out);
+        writer.setIndent("  ");
+        int locationCount = 0;
+        int routeCount = 0;
+
+        writer.beginObject();
+        writer.name("format").value(FORMAT);
+        writer.name("version").value(VERSION);
+
+        writer.name("locations").beginArray();
+        Cursor cursor = databaseService.queryLocationsForExport();
+        try {
+            int idIndex = cursor.getColumnIndexOrThrow("id");
+            int nameIndex = cursor.getColumnIndexOrThrow("name");
+            int latitudeIndex = cursor.getColumnIndexOrThrow("latitude");
+            int longitudeIndex = cursor.getColumnIndexOrThrow("longitude");
+            int categoryIndex = cursor.getColumnIndexOrThrow("category");
+            int descriptionIndex = cursor.getColumnIndexOrThrow("description");
+            int createdAtIndex = cursor.getColumnIndexOrThrow("created_at");
+            while (cursor.moveToNext()) {
+                writer.beginObject();
+                writer.name("id").value(cursor.getLong(idIndex));
+                writer.name("name").value(cursor.getString(nameIndex));
+                writer.name("latitude").value(cursor.getDouble(latitudeIndex));
+                writer.name("longitude").value(cursor.getDouble(longitudeIndex));
+                writeOptional(writer, "category", cursor, categoryIndex);
+                writeOptional(writer, "description", cursor, descriptionIndex);
+                writeOptional(writer, "createdAt", cursor, createdAtIndex);
+                writer.endObject();
+
+                locationCount++;
+                if (listener != null && locationCount % PROGRESS_INTERVAL == 0) {
+                    listener.onProgress(locationCount, routeCount);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        writer.endArray();
+
+        writer.name("routes").beginArray();
+        cursor = databaseService.queryRoutesForExport();
+        try {
+            int fromIndex = cursor.getColumnIndexOrThrow("from_location_id");
+            int toIndex = cursor.getColumnIndexOrThrow("to_location_id");
+            int distanceIndex = cursor.getColumnIndexOrThrow("distance_meters");
+            int descriptionIndex = cursor.getColumnIndexOrThrow("route_description");
+            int stepsIndex = cursor.getColumnIndexOrThrow("estimated_steps");
+            while (cursor.moveToNext()) {
+                writer.beginObject();
+                writer.name("fromId").value(cursor.getLong(fromIndex));
+                writer.name("toId").value(cursor.getLong(toIndex));
+                writer.name("distance").value(cursor.getDouble(distanceIndex));
+                writeOptional(writer, "description", cursor, descriptionIndex);
+                writer.name("estimatedSteps").value(cursor.getInt(stepsIndex));
+                writer.endObject();
+
+                routeCount++;
+                if (listener != null && routeCount % PROGRESS_INTERVAL == 0) {
+                    listener.onProgress(locationCount, routeCount);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        writer.endArray();
+
+        writer.endObject();
+        writer.flush();
+        if (listener != null) {
+            listener.onProgress(locationCount, routeCount);
+        }
+    }
+
+    private static void writeOptional(JsonWriter writer, String name, Cursor cursor, int index) throws IOException {
+        if (!cursor.isNull(index)) {
+            writer.name(name).value(cursor.getString(index));
+        }
+    }
+}
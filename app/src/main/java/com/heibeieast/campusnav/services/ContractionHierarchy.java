@@ -0,0 +1,639 @@
+package com.heibeieast.campusnav.services;
+
+import com.heibeieast.campusnav.models.CampusGraph;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Contraction hierarchy over a {@link CampusGraph}.
+ * Preprocessing contracts nodes one by one in order of importance and adds
+ * shortcut edges so shortest paths survive; afterwards every shortest path
+ * climbs to a single highest-ranked node and descends again. A query is a
+ * bidirectional Dijkstra that only follows edges towards higher-ranked nodes,
+ * which settles a few dozen nodes instead of a large part of the campus.
+ * Walkways are undirected, so one upward graph serves both search directions.
+ */
+public class ContractionHierarchy {
+    public static final String FILE_NAME = "campus_nav.ch";
+
+    private static final int FILE_MAGIC = 0x43484e56; // "CHNV"
+    private static final int FILE_VERSION = 1;
+    private static final int WITNESS_SETTLE_LIMIT = 64;
+
+    private final int nodeCount;
+    private final int[] rank;
+
+    // Upward graph in CSR form: edges from a node to higher-ranked nodes only
+    private final int[] upOffsets;
+    private final int[] upTargets;
+    private final float[] upWeights;
+    private final int[] upMiddle; // contracted middle node of a shortcut, -1 for a walkway
+    private final int[] upArc;    // CampusGraph arc of a walkway, -1 for a shortcut
+
+    // Query state, reused between queries
+    private double[] forwardDist;
+    private double[] backwardDist;
+    private int[] forwardParent;
+    private int[] backwardParent;
+    private int[] forwardStamp;
+    private int[] backwardStamp;
+    private int stamp;
+    private NodeHeap forwardHeap;
+    private NodeHeap backwardHeap;
+
+    /**
+     * Shortest path found by a query, expressed in CampusGraph terms
+     */
+    public static class Result {
+        /** Nodes from source to target */
+        public final int[] nodes;
+        /** CampusGraph arc joining nodes[i] and nodes[i + 1] (in either direction) */
+        public final int[] arcs;
+        public final double distance;
+
+        Result(int[] nodes, int[] arcs, double distance) {
+            this.nodes = nodes;
+            this.arcs = arcs;
+            this.distance = distance;
+        }
+    }
+
+    private ContractionHierarchy(int[] rank, int[] upOffsets, int[] upTargets, float[] upWeights,
+                                 int[] upMiddle, int[] upArc) {
+        this.nodeCount = rank.length;
+        this.rank = rank;
+        this.upOffsets = upOffsets;
+        this.upTargets = upTargets;
+        this.upWeights = upWeights;
+        this.upMiddle = upMiddle;
+        this.upArc = upArc;
+    }
+
+    public int getShortcutCount() {
+        int shortcuts = 0;
+        for (int middle : upMiddle) {
+            if (middle >= 0) {
+                shortcuts++;
+            }
+        }
+        return shortcuts;
+    }
+
+    // ---------------------------------------------------------------------
+    // Preprocessing
+    // ---------------------------------------------------------------------
+
+    /**
+     * Mutable adjacency of one node while the hierarchy is being built
+     */
+    private static class Adjacency {
+        int[] to = new int[4];
+        float[] weight = new float[4];
+        int[] middle = new int[4];
+        int[] arc = new int[4];
+        int size;
+
+        /**
+         * Add an edge, or shorten the existing edge to the same neighbor
+         */
+        void put(int target, float w, int mid, int graphArc) {
+            for (int i = 0; i < size; i++) {
+                if (to[i] == target) {
+                    if (w < weight[i]) {
+                        weight[i] = w;
+                        middle[i] = mid;
+                        arc[i] = graphArc;
+                    }
+                    return;
+                }
+            }
+            if (size == to.length) {
+                to = Arrays.copyOf(to, size * 2);
+                weight = Arrays.copyOf(weight, size * 2);
+                middle = Arrays.copyOf(middle, size * 2);
+                arc = Arrays.copyOf(arc, size * 2);
+            }
+            to[size] = target;
+            weight[size] = w;
+            middle[size] = mid;
+            arc[size] = graphArc;
+            size++;
+        }
+    }
+
+    /**
+     * Working state of the contraction, discarded once the hierarchy is built
+     */
+    private static class Builder {
+        final int nodeCount;
+        final Adjacency[] adjacency;
+        final boolean[] contracted;
+        final int[] contractedNeighbors;
+        final int[] level;
+
+        // Witness search state
+        final double[] witnessDist;
+        final int[] witnessStamp;
+        int stamp;
+        final NodeHeap witnessHeap;
+
+        // Shortcuts produced by the last contraction
+        int[] shortcutFrom = new int[16];
+        int[] shortcutTo = new int[16];
+        float[] shortcutWeight = new float[16];
+        int shortcutCount;
+
+        Builder(CampusGraph graph) {
+            nodeCount = graph.getNodeCount();
+            adjacency = new Adjacency[nodeCount];
+            for (int node = 0; node < nodeCount; node++) {
+                Adjacency adj = new Adjacency();
+                for (int arc = graph.firstArc(node), end = graph.endArc(node); arc < end; arc++) {
+                    adj.put(graph.getTarget(arc), graph.getWeight(arc), -1, arc);
+                }
+                adjacency[node] = adj;
+            }
+            contracted = new boolean[nodeCount];
+            contractedNeighbors = new int[nodeCount];
+            level = new int[nodeCount];
+            witnessDist = new double[nodeCount];
+            witnessStamp = new int[nodeCount];
+            witnessHeap = new NodeHeap(64);
+        }
+
+        /**
+         * Work out which shortcuts contracting the node needs; fills the shortcut buffers
+         */
+        void findShortcuts(int node) {
+            shortcutCount = 0;
+            Adjacency adj = adjacency[node];
+            for (int i = 0; i < adj.size; i++) {
+                int from = adj.to[i];
+                if (contracted[from]) {
+                    continue;
+                }
+
+                double maxVia = 0;
+                for (int j = i + 1; j < adj.size; j++) {
+                    if (!contracted[adj.to[j]]) {
+                        maxVia = Math.max(maxVia, adj.weight[i] + adj.weight[j]);
+                    }
+                }
+                if (maxVia == 0) {
+                    continue;
+                }
+
+                witnessSearch(from, node, maxVia);
+
+                for (int j = i + 1; j < adj.size; j++) {
+                    int to = adj.to[j];
+                    if (contracted[to]) {
+                        continue;
+                    }
+                    float via = adj.weight[i] + adj.weight[j];
+                    if (witnessStamp[to] != stamp || witnessDist[to] > via) {
+                        addShortcut(from, to, via);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Bounded Dijkstra from a neighbor that ignores the node being contracted
+         */
+        private void witnessSearch(int source, int excluded, double maxDistance) {
+            stamp++;
+            witnessHeap.clear();
+            witnessDist[source] = 0;
+            witnessStamp[source] = stamp;
+            witnessHeap.push(source, 0);
+
+            int settled = 0;
+            while (!witnessHeap.isEmpty() && settled < WITNESS_SETTLE_LIMIT) {
+                double key = witnessHeap.peekKey();
+                int current = witnessHeap.pop();
+                if (key > witnessDist[current]) {
+                    continue;
+                }
+                if (key > maxDistance) {
+                    break;
+                }
+                settled++;
+
+                Adjacency adj = adjacency[current];
+                for (int i = 0; i < adj.size; i++) {
+                    int next = adj.to[i];
+                    if (next == excluded || contracted[next]) {
+                        continue;
+                    }
+                    double dist = key + adj.weight[i];
+                    if (witnessStamp[next] != stamp || dist < witnessDist[next]) {
+                        witnessStamp[next] = stamp;
+                        witnessDist[next] = dist;
+                        witnessHeap.push(next, dist);
+                    }
+                }
+            }
+        }
+
+        private void addShortcut(int from, int to, float weight) {
+            if (shortcutCount == shortcutFrom.length) {
+                shortcutFrom = Arrays.copyOf(shortcutFrom, shortcutCount * 2);
+                shortcutTo = Arrays.copyOf(shortcutTo, shortcutCount * 2);
+                shortcutWeight = Arrays.copyOf(shortcutWeight, shortcutCount * 2);
+            }
+            shortcutFrom[shortcutCount] = from;
+            shortcutTo[shortcutCount] = to;
+            shortcutWeight[shortcutCount] = weight;
+            shortcutCount++;
+        }
+
+        int remainingDegree(int node) {
+            Adjacency adj = adjacency[node];
+            int degree = 0;
+            for (int i = 0; i < adj.size; i++) {
+                if (!contracted[adj.to[i]]) {
+                    degree++;
+                }
+            }
+            return degree;
+        }
+
+        /**
+         * Edge difference, contracted neighbors and level keep the hierarchy sparse and shallow
+         */
+        double priority(int node) {
+            findShortcuts(node);
+            return 2 * (shortcutCount - remainingDegree(node)) + contractedNeighbors[node] + level[node];
+        }
+    }
+
+    /**
+     * Contract every node of the graph
+     */
+    public static ContractionHierarchy build(CampusGraph graph) {
+        Builder builder = new Builder(graph);
+        int nodeCount = builder.nodeCount;
+
+        NodeHeap queue = new NodeHeap(nodeCount);
+        double[] priorities = new double[nodeCount];
+        for (int node = 0; node < nodeCount; node++) {
+            priorities[node] = builder.priority(node);
+            queue.push(node, priorities[node]);
+        }
+
+        int[] rank = new int[nodeCount];
+        int[] upCounts = new int[nodeCount + 1];
+        Adjacency[] upward = new Adjacency[nodeCount];
+        int nextRank = 0;
+
+        while (!queue.isEmpty()) {
+            double key = queue.peekKey();
+            int node = queue.pop();
+            if (builder.contracted[node] || key != priorities[node]) {
+                continue;
+            }
+
+            // Lazy update: priorities go stale as the graph around a node changes
+            double priority = builder.priority(node);
+            if (!queue.isEmpty() && priority > queue.peekKey()) {
+                priorities[node] = priority;
+                queue.push(node, priority);
+                continue;
+            }
+
+            // Remaining edges of the node all lead to nodes contracted later, i.e. upwards
+            Adjacency adj = builder.adjacency[node];
+            Adjacency up = new Adjacency();
+            for (int i = 0; i < adj.size; i++) {
+                int neighbor = adj.to[i];
+                if (!builder.contracted[neighbor]) {
+                    up.put(neighbor, adj.weight[i], adj.middle[i], adj.arc[i]);
+                    builder.contractedNeighbors[neighbor]++;
+                    builder.level[neighbor] = Math.max(builder.level[neighbor], builder.level[node] + 1);
+                }
+            }
+            upward[node] = up;
+            upCounts[node + 1] = up.size;
+
+            for (int s = 0; s < builder.shortcutCount; s++) {
+                int from = builder.shortcutFrom[s];
+                int to = builder.shortcutTo[s];
+                float weight = builder.shortcutWeight[s];
+                builder.adjacency[from].put(to, weight, node, -1);
+                builder.adjacency[to].put(from, weight, node, -1);
+            }
+
+            builder.contracted[node] = true;
+            builder.adjacency[node] = null;
+            rank[node] = nextRank++;
+
+            // Neighbors lost an edge and may have gained shortcuts; refresh their priorities
+            for (int i = 0; i < up.size; i++) {
+                int neighbor = up.to[i];
+                priorities[neighbor] = builder.priority(neighbor);
+                queue.push(neighbor, priorities[neighbor]);
+            }
+        }
+
+        for (int node = 0; node < nodeCount; node++) {
+            upCounts[node + 1] += upCounts[node];
+        }
+        int upCount = upCounts[nodeCount];
+        int[] upTargets = new int[upCount];
+        float[] upWeights = new float[upCount];
+        int[] upMiddle = new int[upCount];
+        int[] upArc = new int[upCount];
+        for (int node = 0; node < nodeCount; node++) {
+            Adjacency up = upward[node];
+            int base = upCounts[node];
+            System.arraycopy(up.to, 0, upTargets, base, up.size);
+            System.arraycopy(up.weight, 0, upWeights, base, up.size);
+            System.arraycopy(up.middle, 0, upMiddle, base, up.size);
+            System.arraycopy(up.arc, 0, upArc, base, up.size);
+        }
+
+        return new ContractionHierarchy(rank, upCounts, upTargets, upWeights, upMiddle, upArc);
+    }
+
+    // ---------------------------------------------------------------------
+    // Query
+    // ---------------------------------------------------------------------
+
+    /**
+     * Shortest path between two nodes of the graph the hierarchy was built from
+     * @return The path, or null if the nodes are not connected
+     */
+    public Result findPath(int source, int target) {
+        if (forwardDist == null) {
+            forwardDist = new double[nodeCount];
+            backwardDist = new double[nodeCount];
+            forwardParent = new int[nodeCount];
+            backwardParent = new int[nodeCount];
+            forwardStamp = new int[nodeCount];
+            backwardStamp = new int[nodeCount];
+            forwardHeap = new NodeHeap(64);
+            backwardHeap = new NodeHeap(64);
+        }
+        stamp++;
+        if (stamp == Integer.MAX_VALUE) {
+            Arrays.fill(forwardStamp, 0);
+            Arrays.fill(backwardStamp, 0);
+            stamp = 1;
+        }
+
+        forwardHeap.clear();
+        backwardHeap.clear();
+        reach(forwardDist, forwardParent, forwardStamp, forwardHeap, source, 0, -1);
+        reach(backwardDist, backwardParent, backwardStamp, backwardHeap, target, 0, -1);
+
+        double best = Double.POSITIVE_INFINITY;
+        int meeting = -1;
+        while (true) {
+            boolean forwardOpen = !forwardHeap.isEmpty() && forwardHeap.peekKey() < best;
+            boolean backwardOpen = !backwardHeap.isEmpty() && backwardHeap.peekKey() < best;
+            if (!forwardOpen && !backwardOpen) {
+                break;
+            }
+
+            boolean forward = forwardOpen
+                    && (!backwardOpen || forwardHeap.peekKey() <= backwardHeap.peekKey());
+            NodeHeap heap = forward ? forwardHeap : backwardHeap;
+            double[] dist = forward ? forwardDist : backwardDist;
+            int[] parent = forward ? forwardParent : backwardParent;
+            int[] reached = forward ? forwardStamp : backwardStamp;
+            double[] otherDist = forward ? backwardDist : forwardDist;
+            int[] otherReached = forward ? backwardStamp : forwardStamp;
+
+            double key = heap.peekKey();
+            int node = heap.pop();
+            if (key > dist[node]) {
+                continue;
+            }
+
+            if (otherReached[node] == stamp && key + otherDist[node] < best) {
+                best = key + otherDist[node];
+                meeting = node;
+            }
+
+            if (isStalled(node, key, dist, reached)) {
+                continue;
+            }
+
+            for (int arc = upOffsets[node], end = upOffsets[node + 1]; arc < end; arc++) {
+                int next = upTargets[arc];
+                double nextDist = key + upWeights[arc];
+                if (reached[next] != stamp || nextDist < dist[next]) {
+                    reach(dist, parent, reached, heap, next, nextDist, arc);
+                }
+            }
+        }
+
+        if (meeting < 0) {
+            return null;
+        }
+        return unpack(source, target, meeting, best);
+    }
+
+    /**
+     * Stall-on-demand: a node reached more cheaply through a higher-ranked
+     * neighbor cannot lie on a shortest upward path, so its edges are not relaxed
+     */
+    private boolean isStalled(int node, double key, double[] dist, int[] reached) {
+        for (int arc = upOffsets[node], end = upOffsets[node + 1]; arc < end; arc++) {
+            int higher = upTargets[arc];
+            if (reached[higher] == stamp && dist[higher] + upWeights[arc] < key) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void reach(double[] dist, int[] parent, int[] reached, NodeHeap heap, int node, double d, int arc) {
+        dist[node] = d;
+        parent[node] = arc;
+        reached[node] = stamp;
+        heap.push(node, d);
+    }
+
+    private Result unpack(int source, int target, int meeting, double distance) {
+        IntList nodes = new IntList();
+        IntList arcs = new IntList();
+
+        // Forward half: collect the upward arcs from the meeting node back to the source
+        IntList forwardArcs = new IntList();
+        IntList forwardTails = new IntList();
+        for (int node = meeting; node != source; ) {
+            int arc = forwardParent[node];
+            int tail = tailOf(arc);
+            forwardArcs.add(arc);
+            forwardTails.add(tail);
+            node = tail;
+        }
+
+        nodes.add(source);
+        for (int i = forwardArcs.size - 1; i >= 0; i--) {
+            int tail = forwardTails.values[i];
+            int head = upTargets[forwardArcs.values[i]];
+            unpackEdge(tail, head, nodes, arcs);
+        }
+
+        // Backward half: walk from the meeting node down to the target
+        for (int node = meeting; node != target; ) {
+            int arc = backwardParent[node];
+            int tail = tailOf(arc);
+            unpackEdge(node, tail, nodes, arcs);
+            node = tail;
+        }
+
+        return new Result(nodes.toArray(), arcs.toArray(), distance);
+    }
+
+    /**
+     * Node an upward arc starts from
+     */
+    private int tailOf(int arc) {
+        int low = 0;
+        int high = nodeCount - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (upOffsets[mid] <= arc) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        // Largest node whose arcs start at or before the arc; empty nodes sharing the offset come earlier
+        return low;
+    }
+
+    /**
+     * Expand the edge between two adjacent hierarchy nodes into walkways, walking from one to the other
+     */
+    private void unpackEdge(int from, int to, IntList nodes, IntList arcs) {
+        int lower = rank[from] < rank[to] ? from : to;
+        int upper = lower == from ? to : from;
+
+        int best = -1;
+        for (int arc = upOffsets[lower], end = upOffsets[lower + 1]; arc < end; arc++) {
+            if (upTargets[arc] == upper && (best < 0 || upWeights[arc] < upWeights[best])) {
+                best = arc;
+            }
+        }
+
+        int middle = upMiddle[best];
+        if (middle < 0) {
+            nodes.add(to);
+            arcs.add(upArc[best]);
+        } else {
+            unpackEdge(from, middle, nodes, arcs);
+            unpackEdge(middle, to, nodes, arcs);
+        }
+    }
+
+    private static class IntList {
+        int[] values = new int[16];
+        int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+
+    // ---------------------------------------------------------------------
+    // Persistence
+    // ---------------------------------------------------------------------
+
+    /**
+     * Write the hierarchy, tagged with the fingerprint of the graph it was built from.
+     * The data goes to a temporary file of its own first and then replaces the file in one step.
+     */
+    public void writeTo(File file, long graphFingerprint) throws IOException {
+        File temp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                out.writeInt(FILE_MAGIC);
+                out.writeInt(FILE_VERSION);
+                out.writeLong(graphFingerprint);
+                out.writeInt(nodeCount);
+                out.writeInt(upTargets.length);
+                for (int node = 0; node < nodeCount; node++) {
+                    out.writeInt(rank[node]);
+                }
+                for (int node = 0; node <= nodeCount; node++) {
+                    out.writeInt(upOffsets[node]);
+                }
+                for (int arc = 0; arc < upTargets.length; arc++) {
+                    out.writeInt(upTargets[arc]);
+                    out.writeFloat(upWeights[arc]);
+                    out.writeInt(upMiddle[arc]);
+                    out.writeInt(upArc[arc]);
+                }
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Could not replace " + file);
+            }
+        } finally {
+            // Nothing left to delete once renamed
+            temp.delete();
+        }
+    }
+
+    /**
+     * Read a stored hierarchy
+     * @return The hierarchy, or null if the file is missing or was built from a different graph
+     */
+    public static ContractionHierarchy readFrom(File file, long graphFingerprint) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION
+                    || in.readLong() != graphFingerprint) {
+                return null;
+            }
+            int nodeCount = in.readInt();
+            int upCount = in.readInt();
+            int[] rank = new int[nodeCount];
+            for (int node = 0; node < nodeCount; node++) {
+                rank[node] = in.readInt();
+            }
+            int[] upOffsets = new int[nodeCount + 1];
+            for (int node = 0; node <= nodeCount; node++) {
+                upOffsets[node] = in.readInt();
+            }
+            int[] upTargets = new int[upCount];
+            float[] upWeights = new float[upCount];
+            int[] upMiddle = new int[upCount];
+            int[] upArc = new int[upCount];
+            for (int arc = 0; arc < upCount; arc++) {
+                upTargets[arc] = in.readInt();
+                upWeights[arc] = in.readFloat();
+                upMiddle[arc] = in.readInt();
+                upArc[arc] = in.readInt();
+            }
+            return new ContractionHierarchy(rank, upOffsets, upTargets, upWeights, upMiddle, upArc);
+        } finally {
+            in.close();
+        }
+    }
+}
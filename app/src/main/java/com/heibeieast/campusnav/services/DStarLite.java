@@ -0,0 +1,303 @@
+package com.heibeieast.campusnav.services;
+
+import com.heibeieast.campusnav.models.CampusGraph;
+
+import java.util.Arrays;
+
+/**
+ * D* Lite re-planner towards a fixed destination.
+ * The search runs backwards from the goal, so the g-values it computes are
+ * distances to the goal and stay valid when the walker's start node moves.
+ * Re-planning after a wrong turn only expands the nodes whose keys changed
+ * with the new start, instead of searching the whole campus again.
+ */
+public class DStarLite {
+    private static final double INFINITY = Double.POSITIVE_INFINITY;
+
+    private final CampusGraph graph;
+    private final int goal;
+    private int start;
+    private double keyModifier;
+
+    private final double[] g;
+    private final double[] rhs;
+    private final boolean[] open;
+    private final double[] openKey1;
+    private final double[] openKey2;
+    private final KeyHeap heap;
+
+    private int expanded;
+
+    public DStarLite(CampusGraph graph, int start, int goal) {
+        this.graph = graph;
+        this.start = start;
+        this.goal = goal;
+
+        int nodeCount = graph.getNodeCount();
+        g = new double[nodeCount];
+        rhs = new double[nodeCount];
+        open = new boolean[nodeCount];
+        openKey1 = new double[nodeCount];
+        openKey2 = new double[nodeCount];
+        heap = new KeyHeap(64);
+        Arrays.fill(g, INFINITY);
+        Arrays.fill(rhs, INFINITY);
+
+        rhs[goal] = 0;
+        insert(goal);
+    }
+
+    /**
+     * Graph the re-planner was built on; node indices refer to this graph even after the engine reloads its own
+     */
+    public CampusGraph getGraph() {
+        return graph;
+    }
+
+    public int getGoal() {
+        return goal;
+    }
+
+    public int getStart() {
+        return start;
+    }
+
+    /**
+     * Nodes expanded by the last call to {@link #computePath()} or {@link #moveStart(int)}
+     */
+    public int getExpandedCount() {
+        return expanded;
+    }
+
+    /**
+     * Shortest path from the current start node to the goal
+     * @return The path, or null if the goal cannot be reached
+     */
+    public RoutingEngine.Path computePath() {
+        computeShortestPath();
+        return extractPath();
+    }
+
+    /**
+     * Re-plan after the walker ended up closer to another node, reusing the previous search
+     */
+    public RoutingEngine.Path moveStart(int newStart) {
+        if (newStart != start) {
+            keyModifier += heuristic(start, newStart);
+            start = newStart;
+        }
+        return computePath();
+    }
+
+    private double heuristic(int from, int to) {
+        return graph.straightLineDistance(from, to);
+    }
+
+    private void insert(int node) {
+        double best = Math.min(g[node], rhs[node]);
+        open[node] = true;
+        openKey1[node] = best + heuristic(start, node) + keyModifier;
+        openKey2[node] = best;
+        heap.push(node, openKey1[node], openKey2[node]);
+    }
+
+    private void updateVertex(int node) {
+        if (node != goal) {
+            double best = INFINITY;
+            for (int arc = graph.firstArc(node), end = graph.endArc(node); arc < end; arc++) {
+                double candidate = graph.getWeight(arc) + g[graph.getTarget(arc)];
+                if (candidate < best) {
+                    best = candidate;
+                }
+            }
+            rhs[node] = best;
+        }
+        open[node] = false;
+        if (g[node] != rhs[node]) {
+            insert(node);
+        }
+    }
+
+    private static boolean keyLess(double a1, double a2, double b1, double b2) {
+        return a1 < b1 || (a1 == b1 && a2 < b2);
+    }
+
+    private void computeShortestPath() {
+        expanded = 0;
+        while (true) {
+            discardStaleEntries();
+
+            double startBest = Math.min(g[start], rhs[start]);
+            double startKey1 = startBest + keyModifier;
+            boolean startLocallyConsistent = rhs[start] <= g[start];
+            if (heap.isEmpty()
+                    || (!keyLess(heap.peekKey1(), heap.peekKey2(), startKey1, startBest) && startLocallyConsistent)) {
+                return;
+            }
+
+            double oldKey1 = heap.peekKey1();
+            double oldKey2 = heap.peekKey2();
+            int node = heap.pop();
+            open[node] = false;
+
+            double best = Math.min(g[node], rhs[node]);
+            double newKey1 = best + heuristic(start, node) + keyModifier;
+            if (keyLess(oldKey1, oldKey2, newKey1, best)) {
+                // Key grew since the walker moved; queue it again with the up-to-date key
+                insert(node);
+                continue;
+            }
+
+            expanded++;
+            if (g[node] > rhs[node]) {
+                g[node] = rhs[node];
+                for (int arc = graph.firstArc(node), end = graph.endArc(node); arc < end; arc++) {
+                    updateVertex(graph.getTarget(arc));
+                }
+            } else {
+                g[node] = INFINITY;
+                updateVertex(node);
+                for (int arc = graph.firstArc(node), end = graph.endArc(node); arc < end; arc++) {
+                    updateVertex(graph.getTarget(arc));
+                }
+            }
+        }
+    }
+
+    /**
+     * Drop heap entries for nodes that left the open list or were re-queued with another key
+     */
+    private void discardStaleEntries() {
+        while (!heap.isEmpty()) {
+            int node = heap.peekNode();
+            if (open[node] && heap.peekKey1() == openKey1[node] && heap.peekKey2() == openKey2[node]) {
+                return;
+            }
+            heap.pop();
+        }
+    }
+
+    /**
+     * Follow the cheapest neighbor from the start to the goal
+     */
+    private RoutingEngine.Path extractPath() {
+        if (g[start] == INFINITY && rhs[start] == INFINITY) {
+            return null;
+        }
+
+        int nodeCount = graph.getNodeCount();
+        int[] nodes = new int[16];
+        int[] arcs = new int[16];
+        int legs = 0;
+        nodes[0] = start;
+        int current = start;
+        while (current != goal) {
+            int bestArc = -1;
+            double best = INFINITY;
+            for (int arc = graph.firstArc(current), end = graph.endArc(current); arc < end; arc++) {
+                double candidate = graph.getWeight(arc) + g[graph.getTarget(arc)];
+                if (candidate < best) {
+                    best = candidate;
+                    bestArc = arc;
+                }
+            }
+            if (bestArc < 0 || legs >= nodeCount) {
+                return null;
+            }
+            if (legs + 1 == nodes.length) {
+                nodes = Arrays.copyOf(nodes, nodes.length * 2);
+                arcs = Arrays.copyOf(arcs, arcs.length * 2);
+            }
+            arcs[legs] = bestArc;
+            current = graph.getTarget(bestArc);
+            nodes[++legs] = current;
+        }
+
+        return RoutingEngine.Path.fromNodes(graph, Arrays.copyOf(nodes, legs + 1), Arrays.copyOf(arcs, legs));
+    }
+
+    /**
+     * Binary min-heap ordered by a two-part D* Lite key
+     */
+    private static class KeyHeap {
+        private int[] nodes;
+        private double[] keys1;
+        private double[] keys2;
+        private int size;
+
+        KeyHeap(int capacity) {
+            nodes = new int[capacity];
+            keys1 = new double[capacity];
+            keys2 = new double[capacity];
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        int peekNode() {
+            return nodes[0];
+        }
+
+        double peekKey1() {
+            return keys1[0];
+        }
+
+        double peekKey2() {
+            return keys2[0];
+        }
+
+        void push(int node, double key1, double key2) {
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, size * 2);
+                keys1 = Arrays.copyOf(keys1, size * 2);
+                keys2 = Arrays.copyOf(keys2, size * 2);
+            }
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (!keyLess(key1, key2, keys1[parent], keys2[parent])) {
+                    break;
+                }
+                move(parent, i);
+                i = parent;
+            }
+            nodes[i] = node;
+            keys1[i] = key1;
+            keys2[i] = key2;
+        }
+
+        int pop() {
+            int top = nodes[0];
+            size--;
+            if (size > 0) {
+                int node = nodes[size];
+                double key1 = keys1[size];
+                double key2 = keys2[size];
+                int i = 0;
+                int half = size >>> 1;
+                while (i < half) {
+                    int child = 2 * i + 1;
+                    if (child + 1 < size && keyLess(keys1[child + 1], keys2[child + 1], keys1[child], keys2[child])) {
+                        child++;
+                    }
+                    if (!keyLess(keys1[child], keys2[child], key1, key2)) {
+                        break;
+                    }
+                    move(child, i);
+                    i = child;
+                }
+                nodes[i] = node;
+                keys1[i] = key1;
+                keys2[i] = key2;
+            }
+            return top;
+        }
+
+        private void move(int from, int to) {
+            nodes[to] = nodes[from];
+            keys1[to] = keys1[from];
+            keys2[to] = keys2[from];
+        }
+    }
+}
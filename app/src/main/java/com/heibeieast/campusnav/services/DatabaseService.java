@@ -4,18 +4,40 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteConstraintException;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.StrictMode;
 import android.util.Log;
 
+import com.heibeieast.campusnav.models.CampusGraph;
 import com.heibeieast.campusnav.models.CampusLocation;
 import com.heibeieast.campusnav.models.Route;
+import com.heibeieast.campusnav.models.UserPreferences;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class DatabaseService extends SQLiteOpenHelper {
+    private static final String TAG = "DatabaseService";
     private static final String DATABASE_NAME = "campus_nav.db";
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 7;
+    // Steps slower than this are logged as warnings; keep migrations in place and indexed
+    private static final long SLOW_MIGRATION_MILLIS = 500;
 
     // Campus locations table
     private static final String TABLE_LOCATIONS = "campus_locations";
@@ -47,11 +69,103 @@ public class DatabaseService extends SQLiteOpenHelper {
     private static final String COL_START_TIME = "start_time";
     private static final String COL_END_TIME = "end_time";
     private static final String COL_DISTANCE_TRAVELED = "distance_traveled";
+    private static final String COL_ARRIVED = "arrived";
+
+    // GPS fixes recorded during navigation
+    private static final String TABLE_TRACE_POINTS = "navigation_trace_points";
+    private static final String COL_HISTORY_ID = "history_id";
+    private static final String COL_RECORDED_AT = "recorded_at";
+    private static final String COL_ACCURACY = "accuracy";
+    private static final String INDEX_TRACE_HISTORY = "idx_navigation_trace_points_history";
+
+    // Recorded fixes packed by TraceCodec, one row per stretch of a navigation
+    private static final String TABLE_TRACE_SEGMENTS = "navigation_trace_segments";
+    private static final String COL_POINT_COUNT = "point_count";
+    private static final String COL_DATA = "data";
+    private static final String INDEX_TRACE_SEGMENT_HISTORY = "idx_navigation_trace_segments_history";
+    // About 15 minutes at one fix per second, a few kilobytes
+    static final int MAX_SEGMENT_POINTS = 900;
+
+    // Spatial index over campus_locations, one point-sized box per location
+    private static final String TABLE_LOCATION_RTREE = "campus_locations_rtree";
+    private static final String COL_MIN_LAT = "min_lat";
+    private static final String COL_MAX_LAT = "max_lat";
+    private static final String COL_MIN_LON = "min_lon";
+    private static final String COL_MAX_LON = "max_lon";
+    private static final String INDEX_LOCATION_COORDINATES = "idx_campus_locations_coordinates";
+
+    // Lookup indexes
+    private static final String INDEX_LOCATION_NAME = "idx_campus_locations_name";
+    private static final String INDEX_LOCATION_NAME_NOCASE = "idx_campus_locations_name_nocase";
+    private static final String INDEX_ROUTE_FROM = "idx_campus_routes_from";
+
+    // Full-text index over location text, rowid = location id; holds SearchText tokens, not the raw text
+    private static final String TABLE_LOCATION_FTS = "campus_locations_fts";
+    // Highest code point, so name < prefix + this covers every name starting with prefix
+    private static final String MAX_CHARACTER = "\uDBFF\uDFFF";
+
+    private static final String[] LOCATION_COLUMNS = {
+            COL_ID, COL_NAME, COL_LATITUDE, COL_LONGITUDE, COL_CATEGORY, COL_DESCRIPTION, COL_CREATED_AT
+    };
+    private static final String[] ROUTE_COLUMNS = {
+            COL_ID, COL_FROM_ID, COL_TO_ID, COL_DISTANCE, COL_ROUTE_DESC, COL_ESTIMATED_STEPS
+    };
+    // Fixed SQL so the connection's prepared-statement cache reuses the compiled query
+    private static final String SQL_LOCATION_BY_ID = "SELECT " + COL_ID + ", " + COL_NAME + ", " +
+            COL_LATITUDE + ", " + COL_LONGITUDE + ", " + COL_CATEGORY + ", " + COL_DESCRIPTION + ", " +
+            COL_CREATED_AT + " FROM " + TABLE_LOCATIONS + " WHERE " + COL_ID + " = ?";
+    private static final String SQL_WRITE_SEARCH_INDEX = "INSERT OR REPLACE INTO " + TABLE_LOCATION_FTS +
+            " (docid, " + COL_NAME + ", " + COL_DESCRIPTION + ", " + COL_CATEGORY + ") VALUES (?, ?, ?, ?)";
+    private static final String SQL_LOCATION_ID_BY_NAME = "SELECT " + COL_ID + " FROM " + TABLE_LOCATIONS +
+            " WHERE " + COL_NAME + " = ? LIMIT 1";
 
     private static DatabaseService instance;
 
+    private final Context context;
+    private final List<DataChangeListener> dataChangeListeners = new CopyOnWriteArrayList<>();
+
+    private final Object preferencesLock = new Object();
+    private volatile UserPreferences preferences;
+    // Guarded by preferencesLock
+    private final List<PreferencesChangeListener> preferencesListeners = new ArrayList<>();
+
+    // Compiled once on first use; SQLiteStatement is not thread-safe, so callers lock on it
+    private SQLiteStatement locationIdByNameStatement;
+
+    // False when this SQLite build lacks the R*Tree module and bounding-box queries use the coordinate index
+    private volatile boolean rtreeAvailable;
+    private volatile boolean ftsAvailable;
+
+    /**
+     * Notified after a write to campus_locations or campus_routes succeeds,
+     * so in-memory data derived from them can be invalidated precisely
+     */
+    public interface DataChangeListener {
+        void onLocationAdded(long locationId, CampusLocation location);
+        void onLocationUpdated(CampusLocation location);
+        void onLocationDeleted(long locationId);
+        void onRouteAdded(long routeId, Route route);
+
+        /**
+         * Many rows changed at once, e.g. after a bulk import; drop everything derived from the tables
+         */
+        void onDataReloaded();
+    }
+
+    /**
+     * Notified after new preferences have been written, with the new snapshot.
+     * Called on the updating thread without any database lock held.
+     */
+    public interface PreferencesChangeListener {
+        void onPreferencesChanged(UserPreferences preferences);
+    }
+
     private DatabaseService(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this.context = context;
+        // The helper keeps one connection open for the life of the app instead of
+        // reopening per call; WAL lets reads continue while a write is in progress
+        setWriteAheadLoggingEnabled(true);
     }
 
     public static synchronized DatabaseService getInstance(Context context) {
@@ -61,6 +175,48 @@ public class DatabaseService extends SQLiteOpenHelper {
         return instance;
     }
 
+    public void addDataChangeListener(DataChangeListener listener) {
+        dataChangeListeners.add(listener);
+    }
+
+    public void removeDataChangeListener(DataChangeListener listener) {
+        dataChangeListeners.remove(listener);
+    }
+
+    /**
+     * Close the shared instance so the next getInstance opens the database afresh; for tests
+     */
+    static synchronized void resetInstance() {
+        if (instance != null) {
+            instance.close();
+            instance = null;
+        }
+    }
+
+    /**
+     * Every query and write goes through here or {@link #getReadableDatabase()}. Reported as a
+     * custom slow call, so a StrictMode policy on the main thread catches database work even
+     * when SQLite's page cache spares it the disk access.
+     */
+    @Override
+    public SQLiteDatabase getWritableDatabase() {
+        StrictMode.noteSlowCall("DatabaseService");
+        return super.getWritableDatabase();
+    }
+
+    @Override
+    public SQLiteDatabase getReadableDatabase() {
+        StrictMode.noteSlowCall("DatabaseService");
+        return super.getReadableDatabase();
+    }
+
+    /**
+     * Directory holding campus_nav.db, also used for files derived from it
+     */
+    public File getDatabaseDirectory() {
+        return context.getDatabasePath(DATABASE_NAME).getParentFile();
+    }
+
     @Override
     public void onCreate(SQLiteDatabase db) {
         // Create campus_locations table
@@ -112,15 +268,263 @@ public class DatabaseService extends SQLiteOpenHelper {
 
         // Initialize default campus locations
         initializeDefaultLocations(db);
+
+        // The tables above are the version 1 schema; new installs take the same migrations as upgrades
+        runMigrations(db, 1, DATABASE_VERSION);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        db.execSQL("DROP TABLE IF EXISTS " + TABLE_LOCATIONS);
-        db.execSQL("DROP TABLE IF EXISTS " + TABLE_ROUTES);
-        db.execSQL("DROP TABLE IF EXISTS " + TABLE_PREFERENCES);
-        db.execSQL("DROP TABLE IF EXISTS " + TABLE_HISTORY);
-        onCreate(db);
+        runMigrations(db, oldVersion, newVersion);
+    }
+
+    /**
+     * Schema changes after version 1, in order. Add a migration here and bump
+     * DATABASE_VERSION to change the schema; never drop user tables.
+     */
+    static List<SchemaMigrator.Migration> schemaMigrations() {
+        List<SchemaMigrator.Migration> migrations = new ArrayList<>();
+        migrations.add(new SchemaMigrator.Migration(2, "R*Tree over campus_locations") {
+            @Override
+            public void migrate(SchemaMigrator.SqlExecutor db) {
+                createSpatialIndex(db);
+            }
+        });
+        migrations.add(new SchemaMigrator.Migration(3, "Unique location names, route origin index") {
+            @Override
+            public void migrate(SchemaMigrator.SqlExecutor db) {
+                renameDuplicateLocations(db);
+                createLookupIndexes(db);
+            }
+        });
+        migrations.add(new SchemaMigrator.Migration(4, "Navigation trace points, arrival flag") {
+            @Override
+            public void migrate(SchemaMigrator.SqlExecutor db) {
+                db.execSQL("ALTER TABLE " + TABLE_HISTORY + " ADD COLUMN " + COL_ARRIVED + " INTEGER DEFAULT 0");
+                db.execSQL("CREATE TABLE " + TABLE_TRACE_POINTS + " (" +
+                        COL_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                        COL_HISTORY_ID + " INTEGER NOT NULL, " +
+                        COL_RECORDED_AT + " INTEGER NOT NULL, " +
+                        COL_LATITUDE + " REAL NOT NULL, " +
+                        COL_LONGITUDE + " REAL NOT NULL, " +
+                        COL_ACCURACY + " REAL, " +
+                        "FOREIGN KEY (" + COL_HISTORY_ID + ") REFERENCES " + TABLE_HISTORY + "(" + COL_ID + "))");
+                db.execSQL("CREATE INDEX " + INDEX_TRACE_HISTORY + " ON " +
+                        TABLE_TRACE_POINTS + "(" + COL_HISTORY_ID + ")");
+            }
+        });
+        migrations.add(new SchemaMigrator.Migration(5, "Packed navigation trace segments") {
+            @Override
+            public void migrate(SchemaMigrator.SqlExecutor db) {
+                // navigation_trace_points is kept for traces recorded before this version
+                db.execSQL("CREATE TABLE " + TABLE_TRACE_SEGMENTS + " (" +
+                        COL_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                        COL_HISTORY_ID + " INTEGER NOT NULL, " +
+                        COL_START_TIME + " INTEGER NOT NULL, " +
+                        COL_END_TIME + " INTEGER NOT NULL, " +
+                        COL_POINT_COUNT + " INTEGER NOT NULL, " +
+                        COL_DATA + " BLOB NOT NULL, " +
+                        "FOREIGN KEY (" + COL_HISTORY_ID + ") REFERENCES " + TABLE_HISTORY + "(" + COL_ID + "))");
+                db.execSQL("CREATE INDEX " + INDEX_TRACE_SEGMENT_HISTORY + " ON " +
+                        TABLE_TRACE_SEGMENTS + "(" + COL_HISTORY_ID + ")");
+            }
+        });
+        migrations.add(new SchemaMigrator.Migration(6, "Full-text index over location text") {
+            @Override
+            public void migrate(SchemaMigrator.SqlExecutor db) {
+                createSearchIndex(db);
+            }
+        });
+        migrations.add(new SchemaMigrator.Migration(7, "Case-insensitive location name index") {
+            @Override
+            public void migrate(SchemaMigrator.SqlExecutor db) {
+                // Serves name prefix searches, which ignore case; the unique index stays exact
+                db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_LOCATION_NAME_NOCASE + " ON " +
+                        TABLE_LOCATIONS + "(" + COL_NAME + " COLLATE NOCASE)");
+            }
+        });
+        return migrations;
+    }
+
+    private void runMigrations(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // SQLiteOpenHelper already wraps this in a transaction, so each step is nested
+        // in it and a failing step leaves the database at oldVersion
+        List<SchemaMigrator.Step> steps = new SchemaMigrator(schemaMigrations())
+                .migrate(new DatabaseExecutor(db), oldVersion, newVersion);
+        for (SchemaMigrator.Step step : steps) {
+            String message = "Migrated to version " + step.getVersion() + " (" + step.getDescription() +
+                    ") in " + step.getDurationMillis() + " ms";
+            if (step.getDurationMillis() > SLOW_MIGRATION_MILLIS) {
+                Log.w(TAG, message);
+            } else {
+                Log.d(TAG, message);
+            }
+        }
+    }
+
+    /**
+     * Runs migrations on the helper's connection
+     */
+    private static class DatabaseExecutor implements SchemaMigrator.SqlExecutor {
+        private final SQLiteDatabase db;
+
+        DatabaseExecutor(SQLiteDatabase db) {
+            this.db = db;
+        }
+
+        @Override
+        public void execSQL(String sql) {
+            db.execSQL(sql);
+        }
+
+        @Override
+        public void execSQL(String sql, Object[] bindArgs) {
+            db.execSQL(sql, bindArgs);
+        }
+
+        @Override
+        public boolean tryExecSQL(String sql) {
+            try {
+                db.execSQL(sql);
+                return true;
+            } catch (SQLiteException e) {
+                Log.w(TAG, "Statement rejected: " + sql, e);
+                return false;
+            }
+        }
+
+        @Override
+        public void query(String sql, SchemaMigrator.RowHandler handler) {
+            Cursor cursor = db.rawQuery(sql, null);
+            try {
+                String[] row = new String[cursor.getColumnCount()];
+                while (cursor.moveToNext()) {
+                    for (int i = 0; i < row.length; i++) {
+                        row[i] = cursor.getString(i);
+                    }
+                    handler.onRow(row);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        @Override
+        public void beginTransaction() {
+            db.beginTransaction();
+        }
+
+        @Override
+        public void setTransactionSuccessful() {
+            db.setTransactionSuccessful();
+        }
+
+        @Override
+        public void endTransaction() {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Unique index on location names (lookups by name are exact matches) and
+     * an index for reading the walkways leaving a location
+     */
+    private static void createLookupIndexes(SchemaMigrator.SqlExecutor db) {
+        db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS " + INDEX_LOCATION_NAME + " ON " +
+                TABLE_LOCATIONS + "(" + COL_NAME + ")");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_ROUTE_FROM + " ON " +
+                TABLE_ROUTES + "(" + COL_FROM_ID + ")");
+    }
+
+    /**
+     * Make names unique before adding the unique index by appending the id to
+     * every repeat; lookups by name already returned the first of them
+     */
+    private static void renameDuplicateLocations(SchemaMigrator.SqlExecutor db) {
+        db.execSQL("UPDATE " + TABLE_LOCATIONS + " SET " + COL_NAME + " = " + COL_NAME + " || ' (' || " +
+                COL_ID + " || ')' WHERE " + COL_ID + " NOT IN (SELECT MIN(" + COL_ID + ") FROM " +
+                TABLE_LOCATIONS + " GROUP BY " + COL_NAME + ")");
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        boolean rtree = false;
+        boolean fts = false;
+        Cursor cursor = db.query("sqlite_master", new String[]{"name"}, "name IN (?, ?)",
+                new String[]{TABLE_LOCATION_RTREE, TABLE_LOCATION_FTS}, null, null, null);
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                String name = cursor.getString(0);
+                rtree |= TABLE_LOCATION_RTREE.equals(name);
+                fts |= TABLE_LOCATION_FTS.equals(name);
+            }
+            cursor.close();
+        }
+        rtreeAvailable = rtree;
+        ftsAvailable = fts;
+    }
+
+    /**
+     * Create the R*Tree over campus_locations and fill it from the existing rows.
+     * Falls back to a plain index on the coordinates when SQLite was built without R*Tree;
+     * onOpen picks up which of the two exists.
+     */
+    private static void createSpatialIndex(SchemaMigrator.SqlExecutor db) {
+        if (db.tryExecSQL("CREATE VIRTUAL TABLE " + TABLE_LOCATION_RTREE + " USING rtree(" +
+                COL_ID + ", " + COL_MIN_LAT + ", " + COL_MAX_LAT + ", " +
+                COL_MIN_LON + ", " + COL_MAX_LON + ")")) {
+            db.execSQL("INSERT INTO " + TABLE_LOCATION_RTREE + " SELECT " + COL_ID + ", " +
+                    COL_LATITUDE + ", " + COL_LATITUDE + ", " + COL_LONGITUDE + ", " + COL_LONGITUDE +
+                    " FROM " + TABLE_LOCATIONS);
+        } else {
+            Log.w(TAG, "R*Tree module unavailable, indexing coordinates instead");
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_LOCATION_COORDINATES + " ON " +
+                    TABLE_LOCATIONS + "(" + COL_LATITUDE + ", " + COL_LONGITUDE + ")");
+        }
+    }
+
+    /**
+     * Insert or move a location's box in the R*Tree; call inside the transaction writing the row
+     */
+    private void writeSpatialIndex(SQLiteDatabase db, long locationId, double latitude, double longitude) {
+        if (rtreeAvailable) {
+            db.execSQL("INSERT OR REPLACE INTO " + TABLE_LOCATION_RTREE + " VALUES (?, ?, ?, ?, ?)",
+                    new Object[]{locationId, latitude, latitude, longitude, longitude});
+        }
+    }
+
+    /**
+     * Create the FTS4 index over location names, descriptions and categories and
+     * fill it from the existing rows. Without FTS4, searches fall back to LIKE.
+     */
+    private static void createSearchIndex(final SchemaMigrator.SqlExecutor db) {
+        if (!db.tryExecSQL("CREATE VIRTUAL TABLE " + TABLE_LOCATION_FTS + " USING fts4(" +
+                COL_NAME + ", " + COL_DESCRIPTION + ", " + COL_CATEGORY + ")")) {
+            Log.w(TAG, "FTS4 unavailable, location search will scan the table");
+            return;
+        }
+        db.query("SELECT " + COL_ID + ", " + COL_NAME + ", " + COL_DESCRIPTION + ", " + COL_CATEGORY +
+                " FROM " + TABLE_LOCATIONS, new SchemaMigrator.RowHandler() {
+            @Override
+            public void onRow(String[] row) {
+                db.execSQL(SQL_WRITE_SEARCH_INDEX, new Object[]{Long.parseLong(row[0]),
+                        SearchText.toIndexText(row[1]), SearchText.toIndexText(row[2]),
+                        SearchText.toIndexText(row[3])});
+            }
+        });
+    }
+
+    /**
+     * Index or re-index a location's text; call inside the transaction writing the row
+     */
+    private void writeSearchIndex(SQLiteDatabase db, long locationId, CampusLocation location) {
+        if (ftsAvailable) {
+            db.execSQL(SQL_WRITE_SEARCH_INDEX, new Object[]{locationId,
+                    SearchText.toIndexText(location.getName()),
+                    SearchText.toIndexText(location.getDescription()),
+                    SearchText.toIndexText(location.getCategory())});
+        }
     }
 
     private void initializeDefaultPreferences(SQLiteDatabase db) {
@@ -156,7 +560,7 @@ public class DatabaseService extends SQLiteOpenHelper {
             db.insert(TABLE_LOCATIONS, null, values);
         }
 
-        Log.d("DatabaseService", "Initialized " + defaultLocations.size() + " default campus locations");
+        Log.d(TAG, "Initialized " + defaultLocations.size() + " default campus locations");
     }
 
     // CampusLocation CRUD operations
@@ -169,8 +573,24 @@ public class DatabaseService extends SQLiteOpenHelper {
         values.put(COL_CATEGORY, location.getCategory());
         values.put(COL_DESCRIPTION, location.getDescription());
         values.put(COL_CREATED_AT, location.getCreatedAt());
-        long id = db.insert(TABLE_LOCATIONS, null, values);
-        db.close();
+        long id;
+        db.beginTransactionNonExclusive();
+        try {
+            id = db.insert(TABLE_LOCATIONS, null, values);
+            if (id != -1) {
+                writeSpatialIndex(db, id, location.getLatitude(), location.getLongitude());
+                writeSearchIndex(db, id, location);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (id != -1) {
+            location.setId(id);
+            for (DataChangeListener listener : dataChangeListeners) {
+                listener.onLocationAdded(id, location);
+            }
+        }
         return id;
     }
 
@@ -182,85 +602,618 @@ public class DatabaseService extends SQLiteOpenHelper {
         values.put(COL_LONGITUDE, location.getLongitude());
         values.put(COL_CATEGORY, location.getCategory());
         values.put(COL_DESCRIPTION, location.getDescription());
-        int rowsAffected = db.update(TABLE_LOCATIONS, values, COL_ID + " = ?",
-                new String[]{String.valueOf(location.getId())});
-        db.close();
+        int rowsAffected;
+        db.beginTransactionNonExclusive();
+        try {
+            rowsAffected = db.update(TABLE_LOCATIONS, values, COL_ID + " = ?",
+                    new String[]{String.valueOf(location.getId())});
+            if (rowsAffected > 0) {
+                writeSpatialIndex(db, location.getId(), location.getLatitude(), location.getLongitude());
+                writeSearchIndex(db, location.getId(), location);
+            }
+            db.setTransactionSuccessful();
+        } catch (SQLiteConstraintException e) {
+            Log.w(TAG, "Location name already in use: " + location.getName());
+            return false;
+        } finally {
+            db.endTransaction();
+        }
+        if (rowsAffected > 0) {
+            for (DataChangeListener listener : dataChangeListeners) {
+                listener.onLocationUpdated(location);
+            }
+        }
         return rowsAffected > 0;
     }
 
     public boolean deleteLocation(long locationId) {
         SQLiteDatabase db = this.getWritableDatabase();
-        int rowsAffected = db.delete(TABLE_LOCATIONS, COL_ID + " = ?",
-                new String[]{String.valueOf(locationId)});
-        db.close();
+        int rowsAffected;
+        db.beginTransactionNonExclusive();
+        try {
+            rowsAffected = db.delete(TABLE_LOCATIONS, COL_ID + " = ?",
+                    new String[]{String.valueOf(locationId)});
+            if (rowsAffected > 0 && rtreeAvailable) {
+                db.delete(TABLE_LOCATION_RTREE, COL_ID + " = ?", new String[]{String.valueOf(locationId)});
+            }
+            if (rowsAffected > 0 && ftsAvailable) {
+                db.delete(TABLE_LOCATION_FTS, "docid = ?", new String[]{String.valueOf(locationId)});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (rowsAffected > 0) {
+            for (DataChangeListener listener : dataChangeListeners) {
+                listener.onLocationDeleted(locationId);
+            }
+        }
         return rowsAffected > 0;
     }
 
     public CampusLocation getLocationById(long locationId) {
         SQLiteDatabase db = this.getReadableDatabase();
-        Cursor cursor = db.query(TABLE_LOCATIONS, null, COL_ID + " = ?",
-                new String[]{String.valueOf(locationId)}, null, null, null);
+        Cursor cursor = db.rawQuery(SQL_LOCATION_BY_ID, new String[]{String.valueOf(locationId)});
         CampusLocation location = null;
-        if (cursor != null && cursor.moveToFirst()) {
-            location = cursorToLocation(cursor);
+        if (cursor != null) {
+            if (cursor.moveToFirst()) {
+                location = new LocationRowMapper(cursor).map(cursor);
+            }
             cursor.close();
         }
-        db.close();
         return location;
     }
 
     public List<CampusLocation> getAllLocations() {
         List<CampusLocation> locations = new ArrayList<>();
         SQLiteDatabase db = this.getReadableDatabase();
-        Cursor cursor = db.query(TABLE_LOCATIONS, null, null, null, null, null, COL_NAME + " ASC");
-        if (cursor != null && cursor.moveToFirst()) {
-            do {
-                locations.add(cursorToLocation(cursor));
-            } while (cursor.moveToNext());
+        Cursor cursor = db.query(TABLE_LOCATIONS, LOCATION_COLUMNS, null, null, null, null, COL_NAME + " ASC");
+        if (cursor != null) {
+            if (cursor.moveToFirst()) {
+                LocationRowMapper mapper = new LocationRowMapper(cursor);
+                do {
+                    locations.add(mapper.map(cursor));
+                } while (cursor.moveToNext());
+            }
             cursor.close();
         }
-        db.close();
         return locations;
     }
 
     public List<CampusLocation> getLocationsByCategory(String category) {
         List<CampusLocation> locations = new ArrayList<>();
         SQLiteDatabase db = this.getReadableDatabase();
-        Cursor cursor = db.query(TABLE_LOCATIONS, null, COL_CATEGORY + " = ?",
+        Cursor cursor = db.query(TABLE_LOCATIONS, LOCATION_COLUMNS, COL_CATEGORY + " = ?",
                 new String[]{category}, null, null, COL_NAME + " ASC");
-        if (cursor != null && cursor.moveToFirst()) {
-            do {
-                locations.add(cursorToLocation(cursor));
-            } while (cursor.moveToNext());
+        if (cursor != null) {
+            if (cursor.moveToFirst()) {
+                LocationRowMapper mapper = new LocationRowMapper(cursor);
+                do {
+                    locations.add(mapper.map(cursor));
+                } while (cursor.moveToNext());
+            }
             cursor.close();
         }
-        db.close();
         return locations;
     }
 
-    public long getLocationIdByName(String name) {
+    /**
+     * Ranked search for an incremental search box or a spoken name.
+     * Names starting with the query come first, then names containing it, then
+     * locations whose description or category mention it; shorter names rank
+     * higher within each group. Chinese text matches any substring, other words
+     * match by prefix. Latin letters match regardless of case throughout.
+     * @param limit Maximum number of results
+     */
+    public List<CampusLocation> searchLocations(String query, int limit) {
+        String trimmed = query == null ? "" : query.trim();
+        List<String> tokens = SearchText.tokens(trimmed);
+        if (tokens.isEmpty() || limit <= 0) {
+            return new ArrayList<>();
+        }
+
+        SQLiteDatabase db = this.getReadableDatabase();
+        Map<Long, CampusLocation> results = new LinkedHashMap<>();
+        String selectColumns = "SELECT l." + COL_ID + ", l." + COL_NAME + ", l." + COL_LATITUDE + ", l." +
+                COL_LONGITUDE + ", l." + COL_CATEGORY + ", l." + COL_DESCRIPTION + ", l." + COL_CREATED_AT;
+
+        // Name prefix: a range scan on the case-insensitive name index, cheap however many locations there are.
+        // The query is normalized the way the index is, so full-width input finds the name as well
+        String normalized = SearchText.normalize(trimmed);
+        collectSearchResults(db.rawQuery(selectColumns + " FROM " + TABLE_LOCATIONS + " l WHERE l." +
+                        COL_NAME + " >= ? COLLATE NOCASE AND l." + COL_NAME + " < ? COLLATE NOCASE ORDER BY length(l." +
+                        COL_NAME + "), l." + COL_NAME + " LIMIT " + limit,
+                new String[]{normalized, normalized + MAX_CHARACTER}), results, limit);
+
+        if (results.size() < limit && ftsAvailable) {
+            // Names containing the query
+            collectSearchResults(db.rawQuery(selectColumns + " FROM " + TABLE_LOCATION_FTS + " f JOIN " +
+                            TABLE_LOCATIONS + " l ON l." + COL_ID + " = f.docid WHERE " + TABLE_LOCATION_FTS +
+                            " MATCH ? AND instr(lower(l." + COL_NAME + "), ?) > 0 ORDER BY length(l." +
+                            COL_NAME + "), l." + COL_NAME + " LIMIT " + (2 * limit),
+                    new String[]{SearchText.nameQuery(tokens, COL_NAME), normalized}), results, limit);
+        }
+        if (results.size() < limit && ftsAvailable) {
+            // Any column; results already found are skipped, so over-fetch by that many
+            collectSearchResults(db.rawQuery(selectColumns + " FROM " + TABLE_LOCATION_FTS + " f JOIN " +
+                            TABLE_LOCATIONS + " l ON l." + COL_ID + " = f.docid WHERE " + TABLE_LOCATION_FTS +
+                            " MATCH ? ORDER BY length(l." + COL_NAME + "), l." + COL_NAME + " LIMIT " +
+                            (limit + results.size()),
+                    new String[]{SearchText.phraseQuery(tokens)}), results, limit);
+        }
+        if (results.size() < limit && !ftsAvailable) {
+            String pattern = "%" + trimmed.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%";
+            collectSearchResults(db.rawQuery(selectColumns + " FROM " + TABLE_LOCATIONS + " l WHERE l." +
+                            COL_NAME + " LIKE ? ESCAPE '\\' OR l." + COL_DESCRIPTION + " LIKE ? ESCAPE '\\' OR l." +
+                            COL_CATEGORY + " LIKE ? ESCAPE '\\' ORDER BY length(l." + COL_NAME + ") LIMIT " +
+                            (limit + results.size()),
+                    new String[]{pattern, pattern, pattern}), results, limit);
+        }
+        return new ArrayList<>(results.values());
+    }
+
+    private static void collectSearchResults(Cursor cursor, Map<Long, CampusLocation> results, int limit) {
+        try {
+            LocationRowMapper mapper = null;
+            while (results.size() < limit && cursor.moveToNext()) {
+                if (mapper == null) {
+                    mapper = new LocationRowMapper(cursor);
+                }
+                CampusLocation location = mapper.map(cursor);
+                if (!results.containsKey(location.getId())) {
+                    results.put(location.getId(), location);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Locations inside a latitude/longitude box, read through the R*Tree instead of scanning the table
+     */
+    public List<CampusLocation> getLocationsInBoundingBox(double minLatitude, double minLongitude,
+                                                          double maxLatitude, double maxLongitude) {
+        List<CampusLocation> locations = new ArrayList<>();
         SQLiteDatabase db = this.getReadableDatabase();
-        Cursor cursor = db.query(TABLE_LOCATIONS, new String[]{COL_ID}, COL_NAME + " = ?",
-                new String[]{name}, null, null, null);
-        long id = -1;
-        if (cursor != null && cursor.moveToFirst()) {
-            id = cursor.getLong(cursor.getColumnIndexOrThrow(COL_ID));
+        String[] bounds = new String[]{
+                String.valueOf(minLatitude), String.valueOf(maxLatitude),
+                String.valueOf(minLongitude), String.valueOf(maxLongitude)
+        };
+        Cursor cursor;
+        if (rtreeAvailable) {
+            // The R*Tree stores 32-bit boxes rounded outwards, so the exact coordinates are checked again
+            cursor = db.rawQuery("SELECT l.* FROM " + TABLE_LOCATIONS + " l JOIN " + TABLE_LOCATION_RTREE +
+                    " r ON l." + COL_ID + " = r." + COL_ID +
+                    " WHERE r." + COL_MAX_LAT + " >= ?1 AND r." + COL_MIN_LAT + " <= ?2" +
+                    " AND r." + COL_MAX_LON + " >= ?3 AND r." + COL_MIN_LON + " <= ?4" +
+                    " AND l." + COL_LATITUDE + " BETWEEN ?1 AND ?2" +
+                    " AND l." + COL_LONGITUDE + " BETWEEN ?3 AND ?4", bounds);
+        } else {
+            cursor = db.query(TABLE_LOCATIONS, LOCATION_COLUMNS,
+                    COL_LATITUDE + " BETWEEN ? AND ? AND " + COL_LONGITUDE + " BETWEEN ? AND ?",
+                    bounds, null, null, null);
+        }
+        if (cursor != null) {
+            if (cursor.moveToFirst()) {
+                LocationRowMapper mapper = new LocationRowMapper(cursor);
+                do {
+                    locations.add(mapper.map(cursor));
+                } while (cursor.moveToNext());
+            }
             cursor.close();
         }
-        db.close();
-        return id;
+        return locations;
     }
 
-    private CampusLocation cursorToLocation(Cursor cursor) {
-        CampusLocation location = new CampusLocation();
-        location.setId(cursor.getLong(cursor.getColumnIndexOrThrow(COL_ID)));
-        location.setName(cursor.getString(cursor.getColumnIndexOrThrow(COL_NAME)));
-        location.setLatitude(cursor.getDouble(cursor.getColumnIndexOrThrow(COL_LATITUDE)));
-        location.setLongitude(cursor.getDouble(cursor.getColumnIndexOrThrow(COL_LONGITUDE)));
-        location.setCategory(cursor.getString(cursor.getColumnIndexOrThrow(COL_CATEGORY)));
-        location.setDescription(cursor.getString(cursor.getColumnIndexOrThrow(COL_DESCRIPTION)));
-        location.setCreatedAt(cursor.getString(cursor.getColumnIndexOrThrow(COL_CREATED_AT)));
-        return location;
+    /**
+     * Locations within a radius of a position, nearest first
+     * @param radius Radius in meters
+     */
+    public List<CampusLocation> getLocationsNear(final double latitude, final double longitude, double radius) {
+        double latitudeDelta = Math.toDegrees(radius / 6371000);
+        double longitudeDelta = latitudeDelta / Math.max(Math.cos(Math.toRadians(latitude)), 0.01);
+        List<CampusLocation> candidates = getLocationsInBoundingBox(
+                latitude - latitudeDelta, longitude - longitudeDelta,
+                latitude + latitudeDelta, longitude + longitudeDelta);
+
+        final Map<Long, Double> distances = new HashMap<>();
+        List<CampusLocation> locations = new ArrayList<>();
+        for (CampusLocation location : candidates) {
+            double distance = LocationService.calculateDistance(latitude, longitude,
+                    location.getLatitude(), location.getLongitude());
+            if (distance <= radius) {
+                distances.put(location.getId(), distance);
+                locations.add(location);
+            }
+        }
+        Collections.sort(locations, new Comparator<CampusLocation>() {
+            @Override
+            public int compare(CampusLocation a, CampusLocation b) {
+                return Double.compare(distances.get(a.getId()), distances.get(b.getId()));
+            }
+        });
+        return locations;
+    }
+
+    public long getLocationIdByName(String name) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        synchronized (this) {
+            if (locationIdByNameStatement == null) {
+                locationIdByNameStatement = db.compileStatement(SQL_LOCATION_ID_BY_NAME);
+            }
+            locationIdByNameStatement.bindString(1, name);
+            try {
+                return locationIdByNameStatement.simpleQueryForLong();
+            } catch (SQLiteDoneException e) {
+                return -1; // no location with that name
+            } finally {
+                locationIdByNameStatement.clearBindings();
+            }
+        }
+    }
+
+    /**
+     * Maps campus_locations rows to objects, resolving the column indices once per cursor
+     */
+    private static class LocationRowMapper {
+        private final int id;
+        private final int name;
+        private final int latitude;
+        private final int longitude;
+        private final int category;
+        private final int description;
+        private final int createdAt;
+
+        LocationRowMapper(Cursor cursor) {
+            id = cursor.getColumnIndexOrThrow(COL_ID);
+            name = cursor.getColumnIndexOrThrow(COL_NAME);
+            latitude = cursor.getColumnIndexOrThrow(COL_LATITUDE);
+            longitude = cursor.getColumnIndexOrThrow(COL_LONGITUDE);
+            category = cursor.getColumnIndexOrThrow(COL_CATEGORY);
+            description = cursor.getColumnIndexOrThrow(COL_DESCRIPTION);
+            createdAt = cursor.getColumnIndexOrThrow(COL_CREATED_AT);
+        }
+
+        CampusLocation map(Cursor cursor) {
+            return new CampusLocation(
+                    cursor.getLong(id),
+                    cursor.getString(name),
+                    cursor.getDouble(latitude),
+                    cursor.getDouble(longitude),
+                    cursor.getString(category),
+                    cursor.getString(description),
+                    cursor.getString(createdAt)
+            );
+        }
+    }
+
+    /**
+     * Start a bulk import of locations and routes. Rows are written with reused
+     * statements and committed every {@link BulkImport#BATCH_SIZE} rows, so a
+     * large import neither commits per row nor holds one huge transaction.
+     * A replace is the exception: it deletes and imports in one transaction, so
+     * an aborted replace leaves the existing locations and routes untouched.
+     * Use the returned object from a single background thread and always end it
+     * with {@link BulkImport#finish()} or {@link BulkImport#abort()}.
+     * @param replaceExisting Delete all locations and routes first
+     */
+    public BulkImport beginBulkImport(boolean replaceExisting) {
+        return new BulkImport(getWritableDatabase(), replaceExisting);
+    }
+
+    public class BulkImport {
+        public static final int BATCH_SIZE = 1000;
+
+        private final SQLiteDatabase db;
+        private final SQLiteStatement insertLocation;
+        private final SQLiteStatement insertRoute;
+        private final SQLiteStatement insertSpatialIndex;
+        private final SQLiteStatement insertSearchIndex;
+        // Commit only at the end, as a replace must not leave the tables half replaced
+        private final boolean singleTransaction;
+        private int uncommittedRows = 0;
+        private boolean ended = false;
+
+        private BulkImport(SQLiteDatabase db, boolean replaceExisting) {
+            this.db = db;
+            this.singleTransaction = replaceExisting;
+            db.beginTransactionNonExclusive();
+            if (replaceExisting) {
+                db.delete(TABLE_ROUTES, null, null);
+                db.delete(TABLE_LOCATIONS, null, null);
+                if (rtreeAvailable) {
+                    db.delete(TABLE_LOCATION_RTREE, null, null);
+                }
+                if (ftsAvailable) {
+                    db.delete(TABLE_LOCATION_FTS, null, null);
+                }
+            }
+            // Names are unique; an existing name is kept and reported as -1
+            insertLocation = db.compileStatement("INSERT OR IGNORE INTO " + TABLE_LOCATIONS + " (" +
+                    COL_NAME + ", " + COL_LATITUDE + ", " + COL_LONGITUDE + ", " + COL_CATEGORY + ", " +
+                    COL_DESCRIPTION + ", " + COL_CREATED_AT + ") VALUES (?, ?, ?, ?, ?, ?)");
+            insertRoute = db.compileStatement("INSERT INTO " + TABLE_ROUTES + " (" +
+                    COL_FROM_ID + ", " + COL_TO_ID + ", " + COL_DISTANCE + ", " + COL_ROUTE_DESC + ", " +
+                    COL_ESTIMATED_STEPS + ") VALUES (?, ?, ?, ?, ?)");
+            insertSpatialIndex = rtreeAvailable ? db.compileStatement("INSERT OR REPLACE INTO " +
+                    TABLE_LOCATION_RTREE + " VALUES (?, ?, ?, ?, ?)") : null;
+            insertSearchIndex = ftsAvailable ? db.compileStatement(SQL_WRITE_SEARCH_INDEX) : null;
+        }
+
+        /**
+         * @return The new row id, or -1 if a location with that name already exists
+         */
+        public long insertLocation(String name, double latitude, double longitude,
+                                   String category, String description, String createdAt) {
+            insertLocation.bindString(1, name);
+            insertLocation.bindDouble(2, latitude);
+            insertLocation.bindDouble(3, longitude);
+            bindStringOrNull(insertLocation, 4, category);
+            bindStringOrNull(insertLocation, 5, description);
+            bindStringOrNull(insertLocation, 6, createdAt);
+            long id = insertLocation.executeInsert();
+            if (id != -1 && insertSpatialIndex != null) {
+                insertSpatialIndex.bindLong(1, id);
+                insertSpatialIndex.bindDouble(2, latitude);
+                insertSpatialIndex.bindDouble(3, latitude);
+                insertSpatialIndex.bindDouble(4, longitude);
+                insertSpatialIndex.bindDouble(5, longitude);
+                insertSpatialIndex.executeInsert();
+            }
+            if (id != -1 && insertSearchIndex != null) {
+                insertSearchIndex.bindLong(1, id);
+                insertSearchIndex.bindString(2, SearchText.toIndexText(name));
+                insertSearchIndex.bindString(3, SearchText.toIndexText(description));
+                insertSearchIndex.bindString(4, SearchText.toIndexText(category));
+                insertSearchIndex.executeInsert();
+            }
+            rowWritten();
+            return id;
+        }
+
+        public long insertRoute(long fromLocationId, long toLocationId, double distanceMeters,
+                                String routeDescription, int estimatedSteps) {
+            insertRoute.bindLong(1, fromLocationId);
+            insertRoute.bindLong(2, toLocationId);
+            insertRoute.bindDouble(3, distanceMeters);
+            bindStringOrNull(insertRoute, 4, routeDescription);
+            insertRoute.bindLong(5, estimatedSteps);
+            long id = insertRoute.executeInsert();
+            rowWritten();
+            return id;
+        }
+
+        private void rowWritten() {
+            uncommittedRows++;
+            if (!singleTransaction && uncommittedRows >= BATCH_SIZE) {
+                db.setTransactionSuccessful();
+                db.endTransaction();
+                db.beginTransactionNonExclusive();
+                uncommittedRows = 0;
+            }
+        }
+
+        /**
+         * Commit the last batch
+         */
+        public void finish() {
+            if (!ended) {
+                db.setTransactionSuccessful();
+                end();
+            }
+        }
+
+        /**
+         * Roll back the current batch, or the whole import when replacing; batches committed before stay
+         */
+        public void abort() {
+            if (!ended) {
+                end();
+            }
+        }
+
+        private void end() {
+            ended = true;
+            db.endTransaction();
+            insertLocation.close();
+            insertRoute.close();
+            if (insertSpatialIndex != null) {
+                insertSpatialIndex.close();
+            }
+            if (insertSearchIndex != null) {
+                insertSearchIndex.close();
+            }
+            for (DataChangeListener listener : dataChangeListeners) {
+                listener.onDataReloaded();
+            }
+        }
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    /**
+     * Cursor over all locations for export: id, name, latitude, longitude, category, description, created_at
+     */
+    Cursor queryLocationsForExport() {
+        return getReadableDatabase().query(TABLE_LOCATIONS, LOCATION_COLUMNS, null, null, null, null, COL_ID + " ASC");
+    }
+
+    /**
+     * Cursor over all routes for export: id, from, to, distance, description, estimated steps
+     */
+    Cursor queryRoutesForExport() {
+        return getReadableDatabase().query(TABLE_ROUTES, ROUTE_COLUMNS, null, null, null, null, COL_ID + " ASC");
+    }
+
+    // Navigation history operations
+
+    /**
+     * Write a batch of buffered navigation history in one transaction: new sessions
+     * are inserted, known ones updated, then each session's fixes are appended to
+     * its open trace segment. Ids and encoder state are only kept on the sessions
+     * once the batch has committed, so a failed batch can simply be retried.
+     */
+    void writeNavigationHistory(List<NavigationRecorder.SessionRow> sessions,
+                                List<NavigationRecorder.TracePoint> points) {
+        SQLiteDatabase db = getWritableDatabase();
+        Map<NavigationRecorder.Session, Long> insertedIds = new HashMap<>();
+        Map<NavigationRecorder.Session, SegmentState> segmentStates = new HashMap<>();
+        SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+        timeFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        // Fixes of each session in recording order
+        Map<NavigationRecorder.Session, List<NavigationRecorder.TracePoint>> pointsBySession = new LinkedHashMap<>();
+        for (NavigationRecorder.TracePoint point : points) {
+            List<NavigationRecorder.TracePoint> sessionPoints = pointsBySession.get(point.session);
+            if (sessionPoints == null) {
+                sessionPoints = new ArrayList<>();
+                pointsBySession.put(point.session, sessionPoints);
+            }
+            sessionPoints.add(point);
+        }
+
+        db.beginTransactionNonExclusive();
+        try {
+            for (NavigationRecorder.SessionRow row : sessions) {
+                NavigationRecorder.Session session = row.session;
+                ContentValues values = new ContentValues();
+                values.put(COL_DISTANCE_TRAVELED, row.distanceTraveled);
+                values.put(COL_ARRIVED, row.arrived ? 1 : 0);
+                if (row.endTime != 0) {
+                    values.put(COL_END_TIME, timeFormat.format(new Date(row.endTime)));
+                }
+
+                if (session.historyId == -1) {
+                    values.put(COL_FROM_ID, session.fromLocationId);
+                    values.put(COL_TO_ID, session.toLocationId);
+                    values.put(COL_START_TIME, timeFormat.format(new Date(session.startTime)));
+                    insertedIds.put(session, db.insertOrThrow(TABLE_HISTORY, null, values));
+                } else {
+                    db.update(TABLE_HISTORY, values, COL_ID + " = ?",
+                            new String[]{String.valueOf(session.historyId)});
+                }
+            }
+
+            for (Map.Entry<NavigationRecorder.Session, List<NavigationRecorder.TracePoint>> entry
+                    : pointsBySession.entrySet()) {
+                NavigationRecorder.Session session = entry.getKey();
+                Long historyId = insertedIds.get(session);
+                if (historyId == null) {
+                    historyId = session.historyId;
+                }
+                if (historyId == -1) {
+                    continue; // session row was lost with an earlier failed batch
+                }
+                segmentStates.put(session, appendTrace(db, historyId, session, entry.getValue()));
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        for (Map.Entry<NavigationRecorder.Session, Long> entry : insertedIds.entrySet()) {
+            entry.getKey().historyId = entry.getValue();
+        }
+        for (Map.Entry<NavigationRecorder.Session, SegmentState> entry : segmentStates.entrySet()) {
+            entry.getKey().segmentId = entry.getValue().segmentId;
+            entry.getKey().segment = entry.getValue().encoder;
+        }
+    }
+
+    /**
+     * Open trace segment of a session after an append
+     */
+    private static class SegmentState {
+        final long segmentId;
+        final TraceCodec.Encoder encoder;
+
+        SegmentState(long segmentId, TraceCodec.Encoder encoder) {
+            this.segmentId = segmentId;
+            this.encoder = encoder;
+        }
+    }
+
+    /**
+     * Encode fixes onto the session's open segment, starting a new segment every
+     * MAX_SEGMENT_POINTS fixes so appending never rewrites a large blob
+     */
+    private SegmentState appendTrace(SQLiteDatabase db, long historyId, NavigationRecorder.Session session,
+                                     List<NavigationRecorder.TracePoint> points) {
+        long segmentId = session.segmentId;
+        TraceCodec.Encoder encoder = session.segment != null ? session.segment.copy() : new TraceCodec.Encoder();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int appended = 0;
+        long firstTime = 0;
+        long lastTime = 0;
+
+        for (NavigationRecorder.TracePoint point : points) {
+            if (encoder.getCount() == MAX_SEGMENT_POINTS) {
+                storeSegment(db, historyId, segmentId, bytes.toByteArray(), appended, firstTime, lastTime);
+                segmentId = -1;
+                encoder = new TraceCodec.Encoder();
+                bytes.reset();
+                appended = 0;
+            }
+            if (appended == 0) {
+                firstTime = point.time;
+            }
+            encoder.encode(bytes, point.latitude, point.longitude, point.time, point.accuracy);
+            lastTime = point.time;
+            appended++;
+        }
+        segmentId = storeSegment(db, historyId, segmentId, bytes.toByteArray(), appended, firstTime, lastTime);
+        return new SegmentState(segmentId, encoder);
+    }
+
+    /**
+     * @return The id of the segment written to
+     */
+    private long storeSegment(SQLiteDatabase db, long historyId, long segmentId, byte[] data,
+                              int pointCount, long firstTime, long lastTime) {
+        if (pointCount == 0) {
+            return segmentId;
+        }
+        if (segmentId == -1) {
+            ContentValues values = new ContentValues();
+            values.put(COL_HISTORY_ID, historyId);
+            values.put(COL_START_TIME, firstTime);
+            values.put(COL_END_TIME, lastTime);
+            values.put(COL_POINT_COUNT, pointCount);
+            values.put(COL_DATA, data);
+            return db.insertOrThrow(TABLE_TRACE_SEGMENTS, null, values);
+        }
+        // || yields text, which does not keep the encoded bytes; cast so the segment stays a blob
+        db.execSQL("UPDATE " + TABLE_TRACE_SEGMENTS + " SET " + COL_DATA + " = CAST(" + COL_DATA +
+                        " || ? AS BLOB), " + COL_POINT_COUNT + " = " + COL_POINT_COUNT + " + ?, " + COL_END_TIME + " = ? WHERE " +
+                        COL_ID + " = ?",
+                new Object[]{data, pointCount, lastTime, segmentId});
+        return segmentId;
+    }
+
+    /**
+     * Recorded fixes of a navigation, decoded lazily
+     * @param historyId Row id in user_navigation_history
+     */
+    public TraceCodec.Reader readTrace(long historyId) {
+        SQLiteDatabase db = getReadableDatabase();
+        List<byte[]> segments = new ArrayList<>();
+        Cursor cursor = db.query(TABLE_TRACE_SEGMENTS, new String[]{COL_DATA}, COL_HISTORY_ID + " = ?",
+                new String[]{String.valueOf(historyId)}, null, null, COL_ID + " ASC");
+        try {
+            while (cursor.moveToNext()) {
+                segments.add(cursor.getBlob(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return new TraceCodec.Reader(segments);
     }
 
     // Route operations
@@ -273,122 +1226,252 @@ public class DatabaseService extends SQLiteOpenHelper {
         values.put(COL_ROUTE_DESC, route.getRouteDescription());
         values.put(COL_ESTIMATED_STEPS, route.getEstimatedSteps());
         long id = db.insert(TABLE_ROUTES, null, values);
-        db.close();
+        if (id != -1) {
+            for (DataChangeListener listener : dataChangeListeners) {
+                listener.onRouteAdded(id, route);
+            }
+        }
         return id;
     }
 
     public List<Route> getRoutesFromLocation(long fromLocationId) {
         List<Route> routes = new ArrayList<>();
         SQLiteDatabase db = this.getReadableDatabase();
-        Cursor cursor = db.query(TABLE_ROUTES, null, COL_FROM_ID + " = ?",
+        Cursor cursor = db.query(TABLE_ROUTES, ROUTE_COLUMNS, COL_FROM_ID + " = ?",
                 new String[]{String.valueOf(fromLocationId)}, null, null, null);
-        if (cursor != null && cursor.moveToFirst()) {
-            do {
-                routes.add(cursorToRoute(cursor));
-            } while (cursor.moveToNext());
+        if (cursor != null) {
+            if (cursor.moveToFirst()) {
+                RouteRowMapper mapper = new RouteRowMapper(cursor);
+                do {
+                    routes.add(mapper.map(cursor));
+                } while (cursor.moveToNext());
+            }
             cursor.close();
         }
-        db.close();
         return routes;
     }
 
-    private Route cursorToRoute(Cursor cursor) {
-        Route route = new Route();
-        route.setId(cursor.getLong(cursor.getColumnIndexOrThrow(COL_ID)));
-        route.setFromLocationId(cursor.getLong(cursor.getColumnIndexOrThrow(COL_FROM_ID)));
-        route.setToLocationId(cursor.getLong(cursor.getColumnIndexOrThrow(COL_TO_ID)));
-        route.setDistanceMeters(cursor.getDouble(cursor.getColumnIndexOrThrow(COL_DISTANCE)));
-        route.setRouteDescription(cursor.getString(cursor.getColumnIndexOrThrow(COL_ROUTE_DESC)));
-        route.setEstimatedSteps(cursor.getInt(cursor.getColumnIndexOrThrow(COL_ESTIMATED_STEPS)));
-        return route;
-    }
+    /**
+     * Load locations and walkways into a compact routing graph.
+     * Route rows are read straight into primitive arrays without creating Route objects.
+     */
+    public CampusGraph loadCampusGraph() {
+        List<CampusLocation> locations = getAllLocations();
 
-    // User preferences operations
-    public double getAverageStepLength() {
         SQLiteDatabase db = this.getReadableDatabase();
-        Cursor cursor = db.query(TABLE_PREFERENCES, new String[]{COL_AVG_STEP_LENGTH},
-                COL_ID + " = 1", null, null, null, null);
-        double stepLength = 0.7;
-        if (cursor != null && cursor.moveToFirst()) {
-            stepLength = cursor.getDouble(cursor.getColumnIndexOrThrow(COL_AVG_STEP_LENGTH));
+        Cursor cursor = db.query(TABLE_ROUTES,
+                new String[]{COL_FROM_ID, COL_TO_ID, COL_DISTANCE, COL_ROUTE_DESC},
+                null, null, null, null, null);
+        int edgeCount = 0;
+        long[] fromIds = new long[0];
+        long[] toIds = new long[0];
+        float[] distances = new float[0];
+        String[] descriptions = new String[0];
+        if (cursor != null) {
+            int capacity = cursor.getCount();
+            fromIds = new long[capacity];
+            toIds = new long[capacity];
+            distances = new float[capacity];
+            descriptions = new String[capacity];
+            while (cursor.moveToNext()) {
+                fromIds[edgeCount] = cursor.getLong(0);
+                toIds[edgeCount] = cursor.getLong(1);
+                distances[edgeCount] = cursor.isNull(2) ? 0f : cursor.getFloat(2);
+                descriptions[edgeCount] = cursor.getString(3);
+                edgeCount++;
+            }
             cursor.close();
         }
-        db.close();
-        return stepLength;
+
+        return new CampusGraph(locations, fromIds, toIds, distances, descriptions, edgeCount);
     }
 
-    public boolean updateAverageStepLength(double stepLength) {
-        SQLiteDatabase db = this.getWritableDatabase();
-        ContentValues values = new ContentValues();
-        values.put(COL_AVG_STEP_LENGTH, stepLength);
-        int rowsAffected = db.update(TABLE_PREFERENCES, values, COL_ID + " = 1", null);
-        db.close();
-        return rowsAffected > 0;
+    /**
+     * Maps campus_routes rows to objects, resolving the column indices once per cursor
+     */
+    private static class RouteRowMapper {
+        private final int id;
+        private final int fromId;
+        private final int toId;
+        private final int distance;
+        private final int description;
+        private final int estimatedSteps;
+
+        RouteRowMapper(Cursor cursor) {
+            id = cursor.getColumnIndexOrThrow(COL_ID);
+            fromId = cursor.getColumnIndexOrThrow(COL_FROM_ID);
+            toId = cursor.getColumnIndexOrThrow(COL_TO_ID);
+            distance = cursor.getColumnIndexOrThrow(COL_DISTANCE);
+            description = cursor.getColumnIndexOrThrow(COL_ROUTE_DESC);
+            estimatedSteps = cursor.getColumnIndexOrThrow(COL_ESTIMATED_STEPS);
+        }
+
+        Route map(Cursor cursor) {
+            Route route = new Route();
+            route.setId(cursor.getLong(id));
+            route.setFromLocationId(cursor.getLong(fromId));
+            route.setToLocationId(cursor.getLong(toId));
+            route.setDistanceMeters(cursor.getDouble(distance));
+            route.setRouteDescription(cursor.getString(description));
+            route.setEstimatedSteps(cursor.getInt(estimatedSteps));
+            return route;
+        }
     }
 
-    public double getVoiceSpeed() {
+    // User preferences operations
+
+    /**
+     * Current preferences, read from the database on first use and served from memory afterwards
+     */
+    public UserPreferences getPreferences() {
+        UserPreferences current = preferences;
+        if (current == null) {
+            synchronized (preferencesLock) {
+                if (preferences == null) {
+                    preferences = loadPreferences();
+                }
+                current = preferences;
+            }
+        }
+        return current;
+    }
+
+    private UserPreferences loadPreferences() {
         SQLiteDatabase db = this.getReadableDatabase();
-        Cursor cursor = db.query(TABLE_PREFERENCES, new String[]{COL_VOICE_SPEED},
+        Cursor cursor = db.query(TABLE_PREFERENCES,
+                new String[]{COL_AVG_STEP_LENGTH, COL_VOICE_SPEED, COL_VOICE_VOLUME, COL_ACCESSIBILITY_MODE},
                 COL_ID + " = 1", null, null, null, null);
-        double voiceSpeed = 0.8;
-        if (cursor != null && cursor.moveToFirst()) {
-            voiceSpeed = cursor.getDouble(cursor.getColumnIndexOrThrow(COL_VOICE_SPEED));
+        UserPreferences loaded = UserPreferences.defaults();
+        if (cursor != null) {
+            if (cursor.moveToFirst()) {
+                loaded = new UserPreferences(
+                        cursor.getDouble(0),
+                        cursor.getDouble(1),
+                        cursor.getInt(2),
+                        cursor.getInt(3) == 1
+                );
+            }
             cursor.close();
         }
-        db.close();
-        return voiceSpeed;
+        return loaded;
     }
 
-    public boolean updateVoiceSpeed(double voiceSpeed) {
-        SQLiteDatabase db = this.getWritableDatabase();
-        ContentValues values = new ContentValues();
-        values.put(COL_VOICE_SPEED, voiceSpeed);
-        int rowsAffected = db.update(TABLE_PREFERENCES, values, COL_ID + " = 1", null);
-        db.close();
-        return rowsAffected > 0;
+    /**
+     * Write all preferences in one statement and publish them as the new snapshot
+     * @return true if the preferences row was updated
+     */
+    public boolean updatePreferences(final UserPreferences updated) {
+        return editPreferences(new PreferencesEdit() {
+            @Override
+            public UserPreferences apply(UserPreferences current) {
+                return updated;
+            }
+        });
     }
 
-    public int getVoiceVolume() {
-        SQLiteDatabase db = this.getReadableDatabase();
-        Cursor cursor = db.query(TABLE_PREFERENCES, new String[]{COL_VOICE_VOLUME},
-                COL_ID + " = 1", null, null, null, null);
-        int voiceVolume = 100;
-        if (cursor != null && cursor.moveToFirst()) {
-            voiceVolume = cursor.getInt(cursor.getColumnIndexOrThrow(COL_VOICE_VOLUME));
-            cursor.close();
+    /**
+     * Change made to the current preferences, so updating one field cannot undo a concurrent update of another
+     */
+    private interface PreferencesEdit {
+        UserPreferences apply(UserPreferences current);
+    }
+
+    /**
+     * Read, edit, write and publish the preferences under preferencesLock. Listeners are called
+     * once per change after the lock is released, so they can read or update preferences
+     * themselves; concurrent updates may reach them in either order.
+     */
+    private boolean editPreferences(PreferencesEdit edit) {
+        UserPreferences updated;
+        PreferencesChangeListener[] listeners;
+        synchronized (preferencesLock) {
+            UserPreferences current = getPreferences();
+            updated = edit.apply(current);
+            if (updated.equals(current)) {
+                return true;
+            }
+
+            ContentValues values = new ContentValues();
+            values.put(COL_AVG_STEP_LENGTH, updated.getAverageStepLength());
+            values.put(COL_VOICE_SPEED, updated.getVoiceSpeed());
+            values.put(COL_VOICE_VOLUME, updated.getVoiceVolume());
+            values.put(COL_ACCESSIBILITY_MODE, updated.isAccessibilityMode() ? 1 : 0);
+            SQLiteDatabase db = this.getWritableDatabase();
+            int rowsAffected = db.update(TABLE_PREFERENCES, values, COL_ID + " = 1", null);
+            if (rowsAffected == 0) {
+                return false;
+            }
+            preferences = updated;
+            listeners = preferencesListeners.toArray(new PreferencesChangeListener[0]);
+        }
+
+        for (PreferencesChangeListener listener : listeners) {
+            listener.onPreferencesChanged(updated);
         }
-        db.close();
-        return voiceVolume;
+        return true;
     }
 
-    public boolean updateVoiceVolume(int voiceVolume) {
-        SQLiteDatabase db = this.getWritableDatabase();
-        ContentValues values = new ContentValues();
-        values.put(COL_VOICE_VOLUME, voiceVolume);
-        int rowsAffected = db.update(TABLE_PREFERENCES, values, COL_ID + " = 1", null);
-        db.close();
-        return rowsAffected > 0;
+    public void addPreferencesChangeListener(PreferencesChangeListener listener) {
+        synchronized (preferencesLock) {
+            preferencesListeners.add(listener);
+        }
     }
 
-    public boolean getAccessibilityMode() {
-        SQLiteDatabase db = this.getReadableDatabase();
-        Cursor cursor = db.query(TABLE_PREFERENCES, new String[]{COL_ACCESSIBILITY_MODE},
-                COL_ID + " = 1", null, null, null, null);
-        boolean accessibilityMode = true;
-        if (cursor != null && cursor.moveToFirst()) {
-            accessibilityMode = cursor.getInt(cursor.getColumnIndexOrThrow(COL_ACCESSIBILITY_MODE)) == 1;
-            cursor.close();
+    public void removePreferencesChangeListener(PreferencesChangeListener listener) {
+        synchronized (preferencesLock) {
+            preferencesListeners.remove(listener);
         }
-        db.close();
-        return accessibilityMode;
     }
 
-    public boolean updateAccessibilityMode(boolean accessibilityMode) {
-        SQLiteDatabase db = this.getWritableDatabase();
-        ContentValues values = new ContentValues();
-        values.put(COL_ACCESSIBILITY_MODE, accessibilityMode ? 1 : 0);
-        int rowsAffected = db.update(TABLE_PREFERENCES, values, COL_ID + " = 1", null);
-        db.close();
-        return rowsAffected > 0;
+    public double getAverageStepLength() {
+        return getPreferences().getAverageStepLength();
+    }
+
+    public boolean updateAverageStepLength(final double stepLength) {
+        return editPreferences(new PreferencesEdit() {
+            @Override
+            public UserPreferences apply(UserPreferences current) {
+                return current.withAverageStepLength(stepLength);
+            }
+        });
+    }
+
+    public double getVoiceSpeed() {
+        return getPreferences().getVoiceSpeed();
+    }
+
+    public boolean updateVoiceSpeed(final double voiceSpeed) {
+        return editPreferences(new PreferencesEdit() {
+            @Override
+            public UserPreferences apply(UserPreferences current) {
+                return current.withVoiceSpeed(voiceSpeed);
+            }
+        });
+    }
+
+    public int getVoiceVolume() {
+        return getPreferences().getVoiceVolume();
+    }
+
+    public boolean updateVoiceVolume(final int voiceVolume) {
+        return editPreferences(new PreferencesEdit() {
+            @Override
+            public UserPreferences apply(UserPreferences current) {
+                return current.withVoiceVolume(voiceVolume);
+            }
+        });
+    }
+
+    public boolean getAccessibilityMode() {
+        return getPreferences().isAccessibilityMode();
+    }
+
+    public boolean updateAccessibilityMode(final boolean accessibilityMode) {
+        return editPreferences(new PreferencesEdit() {
+            @Override
+            public UserPreferences apply(UserPreferences current) {
+                return current.withAccessibilityMode(accessibilityMode);
+            }
+        });
     }
 }
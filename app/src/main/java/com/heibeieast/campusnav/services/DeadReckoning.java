@@ -0,0 +1,199 @@
+package com.heibeieast.campusnav.services;
+
+/**
+ * Pedestrian dead reckoning: advances a position by one step length in the
+ * walking direction for every detected step, starting from the last good
+ * location fix.
+ * With sensor batching, steps and heading samples arrive in bursts and not
+ * necessarily interleaved in time order, so steps wait in a small queue
+ * until a heading sample at or after their timestamp is known and then use
+ * the heading interpolated to the moment of the step. If headings stop
+ * arriving, waiting steps are taken with the last known heading.
+ * The estimate gets less certain with every meter walked; its accuracy is
+ * meant to be fed to {@link LocationFilter} next to real fixes.
+ * All times are in milliseconds on the same monotonic clock. Not thread-safe.
+ */
+public class DeadReckoning {
+    private static final double EARTH_RADIUS = 6371000;
+    // Error added per meter walked, from step length and heading error (m/m)
+    private static final double DRIFT_PER_METER = 0.08;
+    private static final int MAX_PENDING_STEPS = 64;
+    // Longest a step waits for a heading sample before the last one is used
+    private static final long MAX_HEADING_WAIT_MS = 2000;
+
+    // Set from the database thread when the saved value loads
+    private volatile double stepLength;
+
+    private boolean anchored;
+    private double anchorLatitude;
+    private double anchorLongitude;
+    private double anchorAccuracy;
+    private long anchorTime;
+    private double metersPerDegreeLatitude;
+    private double metersPerDegreeLongitude;
+
+    private double east;
+    private double north;
+    private double walked;
+    private long time;
+
+    private double heading = Double.NaN;
+    private long headingTime;
+    private double previousHeading = Double.NaN;
+    private long previousHeadingTime;
+
+    // Ring buffer of step times waiting for a heading
+    private final long[] pendingSteps = new long[MAX_PENDING_STEPS];
+    private int pendingStart;
+    private int pendingCount;
+
+    public DeadReckoning(double stepLength) {
+        this.stepLength = stepLength;
+    }
+
+    public void setStepLength(double stepLength) {
+        this.stepLength = stepLength;
+    }
+
+    /**
+     * Restart from a trusted position; steps up to the given time are part of it
+     * @param accuracy Accuracy of the position in meters
+     */
+    public void anchor(double latitude, double longitude, float accuracy, long timeMillis) {
+        anchored = true;
+        anchorLatitude = latitude;
+        anchorLongitude = longitude;
+        anchorAccuracy = accuracy;
+        anchorTime = timeMillis;
+        metersPerDegreeLatitude = Math.toRadians(1) * EARTH_RADIUS;
+        metersPerDegreeLongitude = metersPerDegreeLatitude * Math.cos(Math.toRadians(latitude));
+        east = 0;
+        north = 0;
+        walked = 0;
+        time = timeMillis;
+        while (pendingCount > 0 && pendingSteps[pendingStart] <= timeMillis) {
+            dropOldestStep();
+        }
+    }
+
+    /**
+     * Forget the position and all waiting steps
+     */
+    public void reset() {
+        anchored = false;
+        pendingCount = 0;
+        heading = Double.NaN;
+        previousHeading = Double.NaN;
+    }
+
+    /**
+     * A step was detected
+     * @return Number of steps applied to the position, possibly including earlier waiting ones
+     */
+    public int onStep(long timeMillis) {
+        if (!anchored || timeMillis <= anchorTime) {
+            return 0;
+        }
+        if (pendingCount == MAX_PENDING_STEPS) {
+            // No heading for a long time; the oldest step is lost rather than guessed
+            dropOldestStep();
+        }
+        pendingSteps[(pendingStart + pendingCount) % MAX_PENDING_STEPS] = timeMillis;
+        pendingCount++;
+        return applyPendingSteps(timeMillis);
+    }
+
+    /**
+     * A new walking direction sample
+     * @param degrees Direction of travel, clockwise from true north
+     * @return Number of waiting steps applied to the position
+     */
+    public int onHeading(double degrees, long timeMillis) {
+        if (!Double.isNaN(heading) && timeMillis < headingTime) {
+            return 0;
+        }
+        previousHeading = heading;
+        previousHeadingTime = headingTime;
+        heading = degrees;
+        headingTime = timeMillis;
+        return applyPendingSteps(timeMillis);
+    }
+
+    public boolean hasPosition() {
+        return anchored;
+    }
+
+    public double getLatitude() {
+        return anchorLatitude + north / metersPerDegreeLatitude;
+    }
+
+    public double getLongitude() {
+        return anchorLongitude + east / metersPerDegreeLongitude;
+    }
+
+    /**
+     * Estimated accuracy in meters: the anchor's plus the drift since
+     */
+    public float getAccuracy() {
+        return (float) (anchorAccuracy + DRIFT_PER_METER * walked);
+    }
+
+    /**
+     * Time of the last applied step, or of the anchor
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * Meters walked since the last anchor
+     */
+    public double getDistanceWalked() {
+        return walked;
+    }
+
+    /**
+     * Apply waiting steps whose heading is known, and any that waited too long
+     */
+    private int applyPendingSteps(long now) {
+        int applied = 0;
+        while (pendingCount > 0 && !Double.isNaN(heading)) {
+            long stepTime = pendingSteps[pendingStart];
+            if (stepTime > headingTime && now - stepTime < MAX_HEADING_WAIT_MS) {
+                break;
+            }
+            advance(headingAt(stepTime));
+            time = stepTime;
+            dropOldestStep();
+            applied++;
+        }
+        return applied;
+    }
+
+    /**
+     * Heading at a moment between the last two samples, along the shorter way round
+     */
+    private double headingAt(long stepTime) {
+        if (Double.isNaN(previousHeading) || stepTime >= headingTime || headingTime == previousHeadingTime) {
+            return heading;
+        }
+        if (stepTime <= previousHeadingTime) {
+            return previousHeading;
+        }
+        double fraction = (stepTime - previousHeadingTime) / (double) (headingTime - previousHeadingTime);
+        double change = ((heading - previousHeading) % 360 + 540) % 360 - 180;
+        return previousHeading + change * fraction;
+    }
+
+    private void advance(double degrees) {
+        double radians = Math.toRadians(degrees);
+        east += stepLength * Math.sin(radians);
+        north += stepLength * Math.cos(radians);
+        walked += stepLength;
+    }
+
+    private void dropOldestStep() {
+        pendingStart = (pendingStart + 1) % MAX_PENDING_STEPS;
+        pendingCount--;
+    }
+}
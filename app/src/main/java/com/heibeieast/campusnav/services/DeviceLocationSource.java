@@ -0,0 +1,160 @@
+package com.heibeieast.campusnav.services;
+
+import android.Manifest;
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
+import android.os.Bundle;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.core.app.ActivityCompat;
+
+/**
+ * Fixes from the GPS and network providers of the {@link LocationManager}
+ */
+public class DeviceLocationSource implements LocationSource {
+    private static final String TAG = "DeviceLocationSource";
+    private static final float MIN_DISTANCE_FOR_UPDATE = 0; // 0 meters
+
+    private final Context context;
+    private final LocationManager locationManager;
+    private volatile Listener listener;
+
+    private final LocationListener locationListener = new LocationListener() {
+        @Override
+        public void onLocationChanged(Location location) {
+            Listener current = listener;
+            if (current != null) {
+                current.onFix(location);
+            }
+        }
+
+        @Override
+        public void onStatusChanged(String provider, int status, Bundle extras) {
+            Log.d(TAG, "Provider status changed: " + provider + ", status: " + status);
+        }
+
+        @Override
+        public void onProviderEnabled(String provider) {
+            Log.d(TAG, "Provider enabled: " + provider);
+        }
+
+        @Override
+        public void onProviderDisabled(String provider) {
+            Log.d(TAG, "Provider disabled: " + provider);
+        }
+    };
+
+    public DeviceLocationSource(Context context) {
+        this.context = context.getApplicationContext();
+        this.locationManager = (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return hasPermission() && (locationManager.isProviderEnabled(LocationManager.GPS_PROVIDER)
+                || locationManager.isProviderEnabled(LocationManager.NETWORK_PROVIDER));
+    }
+
+    /**
+     * The more recent of the providers' last known fixes
+     */
+    @Override
+    @SuppressLint("MissingPermission")
+    public Location getLastKnownFix() {
+        if (!hasPermission()) {
+            return null;
+        }
+        Location gpsLocation = null;
+        Location networkLocation = null;
+
+        if (locationManager.isProviderEnabled(LocationManager.GPS_PROVIDER)) {
+            gpsLocation = locationManager.getLastKnownLocation(LocationManager.GPS_PROVIDER);
+        }
+
+        if (locationManager.isProviderEnabled(LocationManager.NETWORK_PROVIDER)) {
+            networkLocation = locationManager.getLastKnownLocation(LocationManager.NETWORK_PROVIDER);
+        }
+
+        // Use the most recent location
+        if (gpsLocation != null && networkLocation != null) {
+            return gpsLocation.getTime() > networkLocation.getTime() ? gpsLocation : networkLocation;
+        }
+        return gpsLocation != null ? gpsLocation : networkLocation;
+    }
+
+    @Override
+    public void start(Listener listener, long intervalMillis) {
+        this.listener = listener;
+        try {
+            requestUpdates(intervalMillis);
+        } catch (SecurityException e) {
+            this.listener = null;
+            throw e;
+        }
+    }
+
+    @Override
+    public void setInterval(long intervalMillis) {
+        if (listener != null) {
+            requestUpdates(intervalMillis);
+        }
+    }
+
+    @Override
+    public void stop() {
+        listener = null;
+        try {
+            locationManager.removeUpdates(locationListener);
+        } catch (Exception e) {
+            Log.e(TAG, "Error removing location updates", e);
+        }
+    }
+
+    @Override
+    public long getElapsedRealtime() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    @Override
+    public boolean isLive() {
+        return true;
+    }
+
+    private boolean hasPermission() {
+        return ActivityCompat.checkSelfPermission(context, Manifest.permission.ACCESS_FINE_LOCATION)
+                == PackageManager.PERMISSION_GRANTED;
+    }
+
+    /**
+     * Register the listener with every enabled provider. Requesting again with
+     * the same listener replaces its previous request in place, so no fix is
+     * lost to a remove/add gap. Fixes are always delivered on the main looper,
+     * whichever thread changes the interval.
+     */
+    @SuppressLint("MissingPermission")
+    private void requestUpdates(long interval) {
+        if (locationManager.isProviderEnabled(LocationManager.GPS_PROVIDER)) {
+            locationManager.requestLocationUpdates(
+                    LocationManager.GPS_PROVIDER,
+                    interval,
+                    MIN_DISTANCE_FOR_UPDATE,
+                    locationListener,
+                    Looper.getMainLooper());
+        }
+
+        if (locationManager.isProviderEnabled(LocationManager.NETWORK_PROVIDER)) {
+            locationManager.requestLocationUpdates(
+                    LocationManager.NETWORK_PROVIDER,
+                    interval,
+                    MIN_DISTANCE_FOR_UPDATE,
+                    locationListener,
+                    Looper.getMainLooper());
+        }
+    }
+}
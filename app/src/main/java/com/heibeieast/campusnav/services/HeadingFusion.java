@@ -0,0 +1,173 @@
+package com.heibeieast.campusnav.services;
+
+/**
+ * The direction the user faces, for relative turn cues.
+ * The rotation vector gives it at sensor rate, but a phone held at an angle,
+ * or steel and wiring nearby, turns it away from the walking direction by a
+ * roughly constant amount. While the user walks steadily straight on, the
+ * course from GPS fixes slowly learns that offset; GPS alone would react to
+ * a turn only after a few seconds. Fixes go through a {@link LocationFilter}
+ * of its own, as the tracking filter also takes in dead-reckoned positions
+ * that are steered by the compass itself.
+ * Cues use the compass smoothed just enough to show a turn within about
+ * 100 ms; the offset is learned against a steadier copy that averages out
+ * the phone swaying with each step.
+ * Directions are degrees clockwise from true north; all times are in
+ * milliseconds on the same monotonic clock. Not thread-safe.
+ */
+public class HeadingFusion {
+    // Time constants of the compass smoothing (ms): for the facing direction, and for
+    // telling turns from the phone swaying with each step
+    private static final double SMOOTHING_MS = 30;
+    private static final double STEADY_SMOOTHING_MS = 1000;
+    // Time constant of learning the compass offset (ms of steady walking)
+    private static final double CORRECTION_MS = 30000;
+    // Below this speed (m/s) the GPS course is mostly noise, and likewise while the speed is
+    // within this many standard deviations of zero, as GPS jitter gives a standing user a course
+    private static final double MIN_COURSE_SPEED = 1.0;
+    private static final double COURSE_SPEED_SIGMAS = 2;
+    // Turning faster than this (degrees/s) leaves the GPS course behind for a while
+    private static final double MAX_TURN_RATE = 20;
+    private static final long TURN_SETTLE_MS = 3000;
+    // A compass reading older than this is not compared with a fix
+    private static final long MAX_COMPASS_AGE_MS = 1000;
+    // Largest difference one fix may pull the offset by, so a stray course cannot swing it
+    private static final double MAX_COURSE_ERROR = 45;
+    // Longest stretch one fix counts for when fixes are sparse
+    private static final long MAX_COURSE_STEP_MS = 2000;
+    // Degrees past a clock sector's edge before the next hour is taken
+    private static final double CLOCK_HYSTERESIS = 5;
+
+    private static final String[] CLOCK_SIDES = {
+            "正前方", "右前方", "右前方", "右侧", "右后方", "右后方",
+            "正后方", "左后方", "左后方", "左侧", "左前方", "左前方"
+    };
+
+    private final LocationFilter courseFilter = new LocationFilter();
+
+    private double compass = Double.NaN;
+    private double steadyCompass;
+    private long compassTime;
+    private long lastTurnTime;
+    private double offset;
+    private long lastCourseTime;
+
+    /**
+     * A new compass azimuth from the rotation vector
+     * @return The facing direction
+     */
+    public double onCompass(double azimuth, long timeMillis) {
+        if (Double.isNaN(compass) || timeMillis <= compassTime) {
+            // First reading, or a batch out of order; nothing to smooth against
+            if (Double.isNaN(compass)) {
+                lastTurnTime = timeMillis;
+            }
+            compass = normalize(azimuth);
+            steadyCompass = compass;
+            compassTime = Math.max(compassTime, timeMillis);
+            return getHeading();
+        }
+
+        long dt = timeMillis - compassTime;
+        compass = normalize(compass + (1 - Math.exp(-dt / SMOOTHING_MS)) * difference(azimuth, compass));
+        double change = (1 - Math.exp(-dt / STEADY_SMOOTHING_MS)) * difference(azimuth, steadyCompass);
+        if (Math.abs(change) * 1000 / dt > MAX_TURN_RATE) {
+            lastTurnTime = timeMillis;
+        }
+        steadyCompass = normalize(steadyCompass + change);
+        compassTime = timeMillis;
+        return getHeading();
+    }
+
+    /**
+     * A raw location fix; dead-reckoned positions must not be passed in
+     * @param accuracy Reported accuracy in meters (one standard deviation)
+     */
+    public void onFix(double latitude, double longitude, float accuracy, long timeMillis) {
+        if (!courseFilter.update(latitude, longitude, accuracy, timeMillis)) {
+            return;
+        }
+        long step = Math.min(timeMillis - lastCourseTime, MAX_COURSE_STEP_MS);
+        lastCourseTime = timeMillis;
+        double course = courseFilter.getHeading();
+        if (Double.isNaN(compass) || Double.isNaN(course) || courseFilter.getSpeed() < MIN_COURSE_SPEED
+                || courseFilter.getSpeed() < COURSE_SPEED_SIGMAS * courseFilter.getSpeedAccuracy()
+                || timeMillis - compassTime > MAX_COMPASS_AGE_MS || timeMillis - lastTurnTime < TURN_SETTLE_MS) {
+            return;
+        }
+        double error = difference(course, steadyCompass + offset);
+        error = Math.max(-MAX_COURSE_ERROR, Math.min(MAX_COURSE_ERROR, error));
+        offset = difference(offset + error * step / CORRECTION_MS, 0);
+    }
+
+    public void reset() {
+        courseFilter.reset();
+        compass = Double.NaN;
+        compassTime = 0;
+        offset = 0;
+        lastCourseTime = 0;
+    }
+
+    /**
+     * Facing direction in degrees, NaN before the first compass reading
+     */
+    public double getHeading() {
+        return Double.isNaN(compass) ? Double.NaN : normalize(compass + offset);
+    }
+
+    /**
+     * Learned difference between the walking direction and the compass, in degrees
+     */
+    public double getOffset() {
+        return offset;
+    }
+
+    /**
+     * Angle from the facing direction to a bearing
+     * @return Degrees in (-180, 180], positive to the right
+     */
+    public static double relativeBearing(double bearing, double heading) {
+        return difference(bearing, heading);
+    }
+
+    /**
+     * Clock-face hour of a relative bearing: 12 straight ahead, 3 to the right
+     */
+    public static int toClockHour(double relative) {
+        int hour = (int) Math.round(normalize(relative) / 30) % 12;
+        return hour == 0 ? 12 : hour;
+    }
+
+    /**
+     * Clock-face hour of a relative bearing that stays on the previous hour
+     * until the bearing is clearly past that sector's edge
+     * @param previousHour Hour given last time, or 0 if none
+     */
+    public static int toClockHour(double relative, int previousHour) {
+        if (previousHour >= 1 && previousHour <= 12
+                && Math.abs(difference(relative, previousHour * 30)) <= 15 + CLOCK_HYSTERESIS) {
+            return previousHour;
+        }
+        return toClockHour(relative);
+    }
+
+    /**
+     * Spoken name of a clock-face hour, e.g. 右前方2点钟方向
+     */
+    public static String getClockDirectionName(int hour) {
+        return CLOCK_SIDES[hour % 12] + hour + "点钟方向";
+    }
+
+    /**
+     * Signed difference a - b in degrees, in (-180, 180]
+     */
+    private static double difference(double a, double b) {
+        double d = normalize(a - b);
+        return d > 180 ? d - 360 : d;
+    }
+
+    private static double normalize(double degrees) {
+        double d = degrees % 360;
+        return d < 0 ? d + 360 : d;
+    }
+}
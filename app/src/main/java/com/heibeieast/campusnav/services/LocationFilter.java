@@ -0,0 +1,202 @@
+package com.heibeieast.campusnav.services;
+
+/**
+ * Constant-velocity Kalman filter that smooths position fixes from any mix of
+ * providers into one position, velocity and heading.
+ * Fixes are projected onto a local flat plane in meters around the first
+ * one; east and north are independent under this model, so each axis is a
+ * two-state (position, velocity) filter and an update is a handful of scalar
+ * operations without allocation. Each fix is weighted by its reported
+ * accuracy, so a 30 m network fix barely moves a track held by 5 m GPS fixes
+ * but still carries it when GPS is gone.
+ * Not thread-safe; feed it from one thread.
+ */
+public class LocationFilter {
+    private static final double EARTH_RADIUS = 6371000;
+    // Walking pace changes by about this much per second (m/s^2), as white noise
+    private static final double ACCELERATION_NOISE = 0.5;
+    private static final double MIN_ACCURACY = 1;
+    // Below this speed (m/s) the velocity direction is mostly noise and the last heading is kept
+    private static final double MIN_HEADING_SPEED = 0.3;
+    // A gap longer than this (ms) makes the old track meaningless
+    private static final long MAX_GAP_MS = 30000;
+    // Fixes further than this many standard deviations from the prediction are outliers
+    private static final double GATE_SIGMAS = 5;
+    // Consecutive outliers after which the track itself is assumed wrong
+    private static final int MAX_REJECTED = 3;
+
+    private boolean initialized;
+    private double originLatitude;
+    private double originLongitude;
+    private double metersPerDegreeLatitude;
+    private double metersPerDegreeLongitude;
+    private long lastTime;
+    private int rejected;
+
+    private final Axis east = new Axis();
+    private final Axis north = new Axis();
+    private double heading = Double.NaN;
+
+    /**
+     * Position and velocity along one axis with their 2x2 covariance
+     */
+    private static final class Axis {
+        double position;
+        double velocity;
+        double pp; // var(position)
+        double pv; // cov(position, velocity)
+        double vv; // var(velocity)
+
+        void reset(double measured, double variance) {
+            position = measured;
+            velocity = 0;
+            pp = variance;
+            pv = 0;
+            vv = 4; // (2 m/s)^2, anything from standing to a brisk walk
+        }
+
+        void predict(double dt, double q) {
+            position += velocity * dt;
+            // P = F P F' + Q with F = [1 dt; 0 1] and a piecewise white acceleration Q
+            double dt2 = dt * dt;
+            pp += 2 * dt * pv + dt2 * vv + q * dt2 * dt2 / 4;
+            pv += dt * vv + q * dt2 * dt / 2;
+            vv += q * dt2;
+        }
+
+        double innovationVariance(double r) {
+            return pp + r;
+        }
+
+        void correct(double measured, double r) {
+            double s = pp + r;
+            double gainP = pp / s;
+            double gainV = pv / s;
+            double residual = measured - position;
+            position += gainP * residual;
+            velocity += gainV * residual;
+            // P = (I - K H) P
+            double newPv = pv - gainP * pv;
+            vv -= gainV * pv;
+            pp -= gainP * pp;
+            pv = newPv;
+        }
+    }
+
+    /**
+     * Feed one fix
+     * @param accuracy Reported accuracy in meters (one standard deviation)
+     * @param timeMillis Monotonic time of the fix, e.g. elapsed realtime
+     * @return false if the fix was rejected as an outlier or arrived out of order
+     */
+    public boolean update(double latitude, double longitude, float accuracy, long timeMillis) {
+        double sigma = Math.max(MIN_ACCURACY, accuracy);
+        double r = sigma * sigma;
+
+        if (!initialized || timeMillis - lastTime > MAX_GAP_MS) {
+            reset(latitude, longitude, r, timeMillis);
+            return true;
+        }
+        if (timeMillis < lastTime) {
+            // A slower provider delivered late; the track has already moved past it
+            return false;
+        }
+
+        double dt = (timeMillis - lastTime) / 1000.0;
+        double q = ACCELERATION_NOISE * ACCELERATION_NOISE;
+        east.predict(dt, q);
+        north.predict(dt, q);
+        lastTime = timeMillis;
+
+        double x = (longitude - originLongitude) * metersPerDegreeLongitude;
+        double y = (latitude - originLatitude) * metersPerDegreeLatitude;
+        double dx = x - east.position;
+        double dy = y - north.position;
+        double distance2 = dx * dx / east.innovationVariance(r) + dy * dy / north.innovationVariance(r);
+        if (distance2 > GATE_SIGMAS * GATE_SIGMAS) {
+            rejected++;
+            if (rejected < MAX_REJECTED) {
+                return false;
+            }
+            reset(latitude, longitude, r, timeMillis);
+            return true;
+        }
+        rejected = 0;
+
+        east.correct(x, r);
+        north.correct(y, r);
+
+        if (getSpeed() >= MIN_HEADING_SPEED) {
+            double bearing = Math.toDegrees(Math.atan2(east.velocity, north.velocity));
+            heading = bearing < 0 ? bearing + 360 : bearing;
+        }
+        return true;
+    }
+
+    /**
+     * Forget the track; the next fix starts a new one
+     */
+    public void reset() {
+        initialized = false;
+    }
+
+    public boolean hasFix() {
+        return initialized;
+    }
+
+    public double getLatitude() {
+        return originLatitude + north.position / metersPerDegreeLatitude;
+    }
+
+    public double getLongitude() {
+        return originLongitude + east.position / metersPerDegreeLongitude;
+    }
+
+    /**
+     * One standard deviation of the estimated position, in meters
+     */
+    public float getAccuracy() {
+        return (float) Math.sqrt((east.pp + north.pp) / 2);
+    }
+
+    /**
+     * Speed in m/s
+     */
+    public float getSpeed() {
+        return (float) Math.sqrt(east.velocity * east.velocity + north.velocity * north.velocity);
+    }
+
+    /**
+     * One standard deviation of the estimated velocity along each axis, in m/s
+     */
+    public float getSpeedAccuracy() {
+        return (float) Math.sqrt((east.vv + north.vv) / 2);
+    }
+
+    /**
+     * Direction of travel in degrees (0-360), or NaN until the user has moved
+     */
+    public double getHeading() {
+        return heading;
+    }
+
+    /**
+     * Time of the last accepted fix, in the clock passed to {@link #update}
+     */
+    public long getTime() {
+        return lastTime;
+    }
+
+    private void reset(double latitude, double longitude, double r, long timeMillis) {
+        originLatitude = latitude;
+        originLongitude = longitude;
+        metersPerDegreeLatitude = Math.toRadians(1) * EARTH_RADIUS;
+        metersPerDegreeLongitude = metersPerDegreeLatitude * Math.cos(Math.toRadians(latitude));
+        east.reset(0, r);
+        north.reset(0, r);
+        lastTime = timeMillis;
+        rejected = 0;
+        heading = Double.NaN;
+        initialized = true;
+    }
+}
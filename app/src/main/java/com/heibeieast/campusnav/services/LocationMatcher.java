@@ -0,0 +1,409 @@
+package com.heibeieast.campusnav.services;
+
+import android.icu.text.Transliterator;
+import android.os.Build;
+import android.util.Log;
+
+import com.heibeieast.campusnav.models.CampusLocation;
+import com.heibeieast.campusnav.models.Route;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Resolves recognized speech to campus locations.
+ * Every location name is reduced to two signatures when indexed: its
+ * characters and its pinyin syllables, each as a set of unigrams and bigrams.
+ * Syllables drop tones and the distinctions recognizers and southern accents
+ * commonly blur (zh/z, ch/c, sh/s, n/l, -ng/-n), so a homophone such as
+ * "涂书管" has exactly the signature of "图书馆" and no variants need to be
+ * generated. A query looks up its own grams in an inverted index, so its
+ * cost depends on the query and the postings it hits, not on the number of
+ * possible misrecognitions.
+ * Pinyin comes from ICU's transliterator where Android has it (API 29) and
+ * from a table of the GB2312 characters bundled with the app before that.
+ * One matcher is shared by all screens; it listens for location edits and
+ * updates its index in place.
+ */
+public class LocationMatcher implements DatabaseService.DataChangeListener {
+    private static final String TAG = "LocationMatcher";
+    private static final double MIN_SCORE = 0.3;
+    private static final double SYLLABLE_WEIGHT = 0.8; // sounding alike counts a little less than reading alike
+    private static final String CHARACTER_PREFIX = "c:";
+    private static final String SYLLABLE_PREFIX = "s:";
+
+    private static LocationMatcher instance;
+
+    private final DatabaseService databaseService;
+    private final Pronunciation pronunciation;
+
+    // Null until first use and after a bulk reload
+    private Map<Long, Entry> entries;
+    private final Map<String, List<Entry>> postings = new HashMap<>();
+
+    /**
+     * Pinyin of a single character, lower case without tone, or null if it has none
+     */
+    public interface Pronunciation {
+        String syllable(int codePoint);
+    }
+
+    /**
+     * A candidate location with its similarity to the query, 0 to 1
+     */
+    public static class Match {
+        private final CampusLocation location;
+        private final double score;
+
+        Match(CampusLocation location, double score) {
+            this.location = location;
+            this.score = score;
+        }
+
+        public CampusLocation getLocation() {
+            return location;
+        }
+
+        public double getScore() {
+            return score;
+        }
+    }
+
+    /**
+     * Indexed location with the sizes of its signatures
+     */
+    private static class Entry {
+        final CampusLocation location;
+        final String normalizedName;
+        final Set<String> grams;
+        final int characterGrams;
+        final int syllableGrams;
+
+        Entry(CampusLocation location, String normalizedName, Set<String> grams) {
+            this.location = location;
+            this.normalizedName = normalizedName;
+            this.grams = grams;
+            int characters = 0;
+            for (String gram : grams) {
+                if (gram.startsWith(CHARACTER_PREFIX)) {
+                    characters++;
+                }
+            }
+            this.characterGrams = characters;
+            this.syllableGrams = grams.size() - characters;
+        }
+    }
+
+    LocationMatcher(DatabaseService databaseService, Pronunciation pronunciation) {
+        this.databaseService = databaseService;
+        this.pronunciation = pronunciation;
+    }
+
+    public static synchronized LocationMatcher getInstance(DatabaseService databaseService) {
+        if (instance == null) {
+            Pronunciation pronunciation = Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q
+                    ? new IcuPronunciation() : new TablePronunciation();
+            instance = new LocationMatcher(databaseService, pronunciation);
+            databaseService.addDataChangeListener(instance);
+        }
+        return instance;
+    }
+
+    /**
+     * Best matching locations for one recognized phrase, highest score first
+     * @param k Maximum number of candidates
+     */
+    public List<Match> match(String spokenText, int k) {
+        return match(Collections.singletonList(spokenText), k);
+    }
+
+    /**
+     * Best matching locations over all of a recognizer's alternatives; each
+     * location keeps the score of the alternative that fits it best
+     */
+    public synchronized List<Match> match(List<String> alternatives, int k) {
+        ensureLoaded();
+        Map<Entry, Double> best = new HashMap<>();
+        for (String text : alternatives) {
+            scoreInto(text, best);
+        }
+
+        List<Match> matches = new ArrayList<>();
+        for (Map.Entry<Entry, Double> candidate : best.entrySet()) {
+            if (candidate.getValue() >= MIN_SCORE) {
+                matches.add(new Match(candidate.getKey().location, candidate.getValue()));
+            }
+        }
+        Collections.sort(matches, new Comparator<Match>() {
+            @Override
+            public int compare(Match a, Match b) {
+                int byScore = Double.compare(b.score, a.score);
+                return byScore != 0 ? byScore : a.location.getName().compareTo(b.location.getName());
+            }
+        });
+        return matches.size() > k ? new ArrayList<>(matches.subList(0, k)) : matches;
+    }
+
+    private void scoreInto(String text, Map<Entry, Double> best) {
+        String normalized = SearchText.normalize(text);
+        if (normalized.isEmpty()) {
+            return;
+        }
+        Set<String> queryGrams = signature(normalized);
+        int queryCharacterGrams = 0;
+        for (String gram : queryGrams) {
+            if (gram.startsWith(CHARACTER_PREFIX)) {
+                queryCharacterGrams++;
+            }
+        }
+        int querySyllableGrams = queryGrams.size() - queryCharacterGrams;
+
+        // Count shared grams per candidate through the postings
+        Map<Entry, int[]> shared = new HashMap<>();
+        for (String gram : queryGrams) {
+            List<Entry> list = postings.get(gram);
+            if (list == null) {
+                continue;
+            }
+            boolean character = gram.startsWith(CHARACTER_PREFIX);
+            for (Entry entry : list) {
+                int[] counts = shared.get(entry);
+                if (counts == null) {
+                    counts = new int[2];
+                    shared.put(entry, counts);
+                }
+                counts[character ? 0 : 1]++;
+            }
+        }
+
+        for (Map.Entry<Entry, int[]> candidate : shared.entrySet()) {
+            Entry entry = candidate.getKey();
+            double score;
+            if (entry.normalizedName.equals(normalized)) {
+                score = 1.0;
+            } else {
+                double characters = similarity(candidate.getValue()[0], queryCharacterGrams, entry.characterGrams);
+                double syllables = similarity(candidate.getValue()[1], querySyllableGrams, entry.syllableGrams);
+                // Capped below an exact match
+                score = Math.min(0.99, Math.max(characters, SYLLABLE_WEIGHT * syllables));
+            }
+            Double previous = best.get(entry);
+            if (previous == null || score > previous) {
+                best.put(entry, score);
+            }
+        }
+    }
+
+    /**
+     * Mean of the Dice coefficient and the share of the query found in the name,
+     * so a partial name like "图书" still scores well against "图书馆"
+     */
+    private static double similarity(int shared, int queryGrams, int nameGrams) {
+        if (shared == 0 || queryGrams == 0 || nameGrams == 0) {
+            return 0;
+        }
+        double dice = 2.0 * shared / (queryGrams + nameGrams);
+        double coverage = (double) shared / queryGrams;
+        return (dice + coverage) / 2;
+    }
+
+    /**
+     * Character and syllable unigrams and bigrams of a normalized name
+     */
+    private Set<String> signature(String normalized) {
+        List<String> characters = new ArrayList<>();
+        List<String> syllables = new ArrayList<>();
+        for (String token : SearchText.tokens(normalized)) {
+            characters.add(token);
+            int codePoint = token.codePointAt(0);
+            String syllable = token.codePointCount(0, token.length()) == 1 ? pronunciation.syllable(codePoint) : null;
+            syllables.add(syllable != null ? fuzzy(syllable) : token);
+        }
+
+        Set<String> grams = new HashSet<>();
+        addGrams(grams, CHARACTER_PREFIX, characters);
+        addGrams(grams, SYLLABLE_PREFIX, syllables);
+        return grams;
+    }
+
+    private static void addGrams(Set<String> grams, String prefix, List<String> units) {
+        for (int i = 0; i < units.size(); i++) {
+            grams.add(prefix + units.get(i));
+            if (i + 1 < units.size()) {
+                grams.add(prefix + units.get(i) + ' ' + units.get(i + 1));
+            }
+        }
+    }
+
+    /**
+     * Fold the pinyin distinctions that are most often lost in recognition
+     */
+    static String fuzzy(String syllable) {
+        String folded = syllable;
+        if (folded.startsWith("zh") || folded.startsWith("ch") || folded.startsWith("sh")) {
+            folded = folded.charAt(0) + folded.substring(2);
+        }
+        if (folded.startsWith("n")) {
+            folded = "l" + folded.substring(1);
+        }
+        if (folded.endsWith("ng")) {
+            folded = folded.substring(0, folded.length() - 1);
+        }
+        return folded;
+    }
+
+    private void ensureLoaded() {
+        if (entries == null) {
+            entries = new HashMap<>();
+            postings.clear();
+            for (CampusLocation location : databaseService.getAllLocations()) {
+                put(location);
+            }
+        }
+    }
+
+    private void put(CampusLocation location) {
+        remove(location.getId());
+        String normalized = SearchText.normalize(location.getName());
+        Entry entry = new Entry(location, normalized, signature(normalized));
+        entries.put(location.getId(), entry);
+        for (String gram : entry.grams) {
+            List<Entry> list = postings.get(gram);
+            if (list == null) {
+                list = new ArrayList<>(2);
+                postings.put(gram, list);
+            }
+            list.add(entry);
+        }
+    }
+
+    private void remove(long locationId) {
+        Entry entry = entries.remove(locationId);
+        if (entry == null) {
+            return;
+        }
+        for (String gram : entry.grams) {
+            List<Entry> list = postings.get(gram);
+            if (list != null) {
+                list.remove(entry);
+                if (list.isEmpty()) {
+                    postings.remove(gram);
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized void onLocationAdded(long locationId, CampusLocation location) {
+        if (entries != null) {
+            put(location);
+        }
+    }
+
+    @Override
+    public synchronized void onLocationUpdated(CampusLocation location) {
+        if (entries != null) {
+            put(location);
+        }
+    }
+
+    @Override
+    public synchronized void onLocationDeleted(long locationId) {
+        if (entries != null) {
+            remove(locationId);
+        }
+    }
+
+    @Override
+    public void onRouteAdded(long routeId, Route route) {
+        // Walkways do not affect names
+    }
+
+    @Override
+    public synchronized void onDataReloaded() {
+        entries = null;
+        postings.clear();
+    }
+
+    /**
+     * Pinyin from the bundled table, read on first use; characters outside GB2312 have none
+     */
+    static class TablePronunciation implements Pronunciation {
+        private static final String TABLE = "pinyin.txt";
+
+        private Map<Integer, String> syllables;
+
+        @Override
+        public synchronized String syllable(int codePoint) {
+            if (syllables == null) {
+                syllables = load();
+            }
+            return syllables.get(codePoint);
+        }
+
+        /**
+         * Lines of a syllable, a space and the characters read that way; # starts a comment
+         */
+        private static Map<Integer, String> load() {
+            Map<Integer, String> syllables = new HashMap<>();
+            InputStream input = LocationMatcher.class.getResourceAsStream(TABLE);
+            if (input == null) {
+                Log.e(TAG, "Pinyin table missing, matching by characters only");
+                return syllables;
+            }
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int space = line.indexOf(' ');
+                    if (line.startsWith("#") || space <= 0) {
+                        continue;
+                    }
+                    String syllable = line.substring(0, space);
+                    for (int i = space + 1; i < line.length(); ) {
+                        int codePoint = line.codePointAt(i);
+                        syllables.put(codePoint, syllable);
+                        i += Character.charCount(codePoint);
+                    }
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to read the pinyin table", e);
+            }
+            return syllables;
+        }
+    }
+
+    /**
+     * Pinyin from the ICU transliterator built into Android since API 29, cached per character
+     */
+    private static class IcuPronunciation implements Pronunciation {
+        private final Map<Integer, String> cache = new HashMap<>();
+        private Transliterator transliterator;
+
+        @Override
+        public String syllable(int codePoint) {
+            if (Character.UnicodeScript.of(codePoint) != Character.UnicodeScript.HAN) {
+                return null;
+            }
+            String syllable = cache.get(codePoint);
+            if (syllable == null) {
+                if (transliterator == null) {
+                    transliterator = Transliterator.getInstance("Han-Latin; Latin-ASCII; Lower");
+                }
+                syllable = transliterator.transliterate(new String(Character.toChars(codePoint))).trim();
+                cache.put(codePoint, syllable);
+            }
+            return syllable.isEmpty() ? null : syllable;
+        }
+    }
+}
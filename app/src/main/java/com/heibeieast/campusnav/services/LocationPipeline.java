@@ -0,0 +1,231 @@
+package com.heibeieast.campusnav.services;
+
+import android.location.Location;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Dedicated thread for everything done with a location fix: filtering,
+ * navigation progress and instruction text.
+ * Fixes are handed over through a single-slot mailbox. When a new fix
+ * arrives before the previous one was picked up, the previous one is
+ * replaced and counted as dropped, so a slow step makes the pipeline skip
+ * ahead to the newest position instead of working through a growing
+ * backlog of stale ones.
+ * The thread's {@link Handler} can also be used to run sensor callbacks on it.
+ */
+public class LocationPipeline {
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final Processor processor;
+    private final Metrics metrics = new Metrics();
+    private final AtomicReference<Pending> mailbox = new AtomicReference<>();
+    // Notified whenever a fix has been processed
+    private final Object idleLock = new Object();
+    private volatile boolean quit = false;
+
+    public interface Processor {
+        /**
+         * Handle the newest fix; runs on the pipeline thread
+         */
+        void process(Location fix);
+    }
+
+    /**
+     * Counters and per-stage timings, safe to read from any thread
+     */
+    public static class Metrics {
+        private final AtomicLong received = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        private final AtomicLong processed = new AtomicLong();
+        private final Stage queueWait = new Stage("queue");
+        private final Stage filter = new Stage("filter");
+        private final Stage navigation = new Stage("navigation");
+        private final Stage uiDelivery = new Stage("ui");
+
+        public long getReceived() {
+            return received.get();
+        }
+
+        /**
+         * Fixes replaced in the mailbox by a newer one before they were processed
+         */
+        public long getDropped() {
+            return dropped.get();
+        }
+
+        public long getProcessed() {
+            return processed.get();
+        }
+
+        /**
+         * From receiving a fix until the pipeline thread picks it up
+         */
+        public Stage getQueueWait() {
+            return queueWait;
+        }
+
+        /**
+         * Filtering and dead-reckoning bookkeeping for one fix
+         */
+        public Stage getFilter() {
+            return filter;
+        }
+
+        /**
+         * Progress and instruction computation for one filtered position
+         */
+        public Stage getNavigation() {
+            return navigation;
+        }
+
+        /**
+         * From posting a UI state until the main thread applies it
+         */
+        public Stage getUiDelivery() {
+            return uiDelivery;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "received %d, dropped %d, processed %d; %s; %s; %s; %s",
+                    getReceived(), getDropped(), getProcessed(), queueWait, filter, navigation, uiDelivery);
+        }
+    }
+
+    /**
+     * Latency of one pipeline stage
+     */
+    public static class Stage {
+        private final String name;
+        private long count;
+        private long totalNanos;
+        private long maxNanos;
+
+        Stage(String name) {
+            this.name = name;
+        }
+
+        public synchronized void record(long nanos) {
+            count++;
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+        }
+
+        public synchronized long getCount() {
+            return count;
+        }
+
+        public synchronized long getMeanMicros() {
+            return count == 0 ? 0 : totalNanos / count / 1000;
+        }
+
+        public synchronized long getMaxMicros() {
+            return maxNanos / 1000;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return name + " mean " + getMeanMicros() + "us max " + getMaxMicros() + "us";
+        }
+    }
+
+    /**
+     * A fix waiting in the mailbox with the time it arrived
+     */
+    private static final class Pending {
+        final Location fix;
+        final long receivedNanos;
+
+        Pending(Location fix, long receivedNanos) {
+            this.fix = fix;
+            this.receivedNanos = receivedNanos;
+        }
+    }
+
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            Pending pending = mailbox.getAndSet(null);
+            if (pending == null) {
+                return;
+            }
+            metrics.queueWait.record(SystemClock.elapsedRealtimeNanos() - pending.receivedNanos);
+            processor.process(pending.fix);
+            metrics.processed.incrementAndGet();
+            synchronized (idleLock) {
+                idleLock.notifyAll();
+            }
+        }
+    };
+
+    public LocationPipeline(String name, Processor processor) {
+        this.processor = processor;
+        // Guidance is what the user is waiting for, so not background priority
+        this.thread = new HandlerThread(name, Process.THREAD_PRIORITY_DEFAULT);
+        this.thread.start();
+        this.handler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Hand over a fix from any thread; replaces one that is still waiting
+     */
+    public void offer(Location fix) {
+        metrics.received.incrementAndGet();
+        Pending previous = mailbox.getAndSet(new Pending(fix, SystemClock.elapsedRealtimeNanos()));
+        if (previous == null) {
+            handler.post(drainTask);
+        } else {
+            // Its drain task is already queued and will pick up this fix instead
+            metrics.dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Wait until every fix offered so far has been processed or replaced
+     * @return false on timeout, or if the pipeline quit first
+     */
+    public boolean awaitIdle(long timeoutMillis) throws InterruptedException {
+        long deadline = SystemClock.elapsedRealtime() + timeoutMillis;
+        synchronized (idleLock) {
+            // Every fix received is eventually either processed or counted as dropped
+            while (metrics.getProcessed() + metrics.getDropped() < metrics.getReceived()) {
+                long remaining = deadline - SystemClock.elapsedRealtime();
+                if (quit || remaining <= 0) {
+                    return false;
+                }
+                idleLock.wait(remaining);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Handler of the pipeline thread
+     */
+    public Handler getHandler() {
+        return handler;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Finish the task being run, drop anything waiting and end the thread
+     */
+    public void quit() {
+        quit = true;
+        mailbox.set(null);
+        thread.quitSafely();
+        synchronized (idleLock) {
+            idleLock.notifyAll();
+        }
+    }
+}
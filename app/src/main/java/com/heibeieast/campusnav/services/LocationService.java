@@ -1,37 +1,101 @@
 package com.heibeieast.campusnav.services;
 
 import android.Manifest;
-import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.location.Location;
-import android.location.LocationListener;
-import android.location.LocationManager;
-import android.os.Bundle;
 import android.util.Log;
 
 import androidx.core.app.ActivityCompat;
 
+import com.heibeieast.campusnav.models.UserPreferences;
+
+import java.util.concurrent.Callable;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
 public class LocationService {
     private static final String TAG = "LocationService";
-    private static final long MIN_TIME_BETWEEN_UPDATES = 1000; // 1 second
-    private static final float MIN_DISTANCE_FOR_UPDATE = 0; // 0 meters
+    // Only fixes at least this accurate (m) restart dead reckoning
+    private static final float MAX_ANCHOR_ACCURACY = 15;
+    public static final String DEAD_RECKONING_PROVIDER = "pdr";
+    // Longest the replay waits for one of its fixes to be processed
+    private static final long MAX_REPLAY_WAIT_MS = 5000;
+    // Range of step lengths (m) the settings screen offers
+    private static final double MIN_STEP_LENGTH = 0.5;
+    private static final double MAX_STEP_LENGTH = 1.0;
 
     private Context context;
-    private LocationManager locationManager;
+    private final LocationSource locationSource;
     private DatabaseService databaseService;
-    private Location currentLocation;
-    private boolean isTracking = false;
-    private LocationUpdateListener locationUpdateListener;
+    private NavigationRecorder navigationRecorder;
+    private volatile Location currentLocation;
+    private final MotionSensorService motionSensorService;
+    // Saved step length as last loaded on the database thread or calibrated, so callers never wait on SQLite
+    private volatile double averageStepLength = UserPreferences.defaults().getAverageStepLength();
+    private volatile boolean isTracking = false;
+    // Everyone receiving filtered locations; tracking runs while this is not empty
+    private final List<LocationUpdateListener> subscribers = new CopyOnWriteArrayList<>();
+    private final Object subscriptionLock = new Object();
+    // Current or last tracking session's pipeline
+    private volatile LocationPipeline pipeline;
+
+    // Guards the filter, the scheduler and the log; used by the pipeline thread,
+    // and by the main thread when tracking starts or stops
+    private final Object trackingLock = new Object();
+    private final LocationFilter locationFilter = new LocationFilter();
+    private final SamplingScheduler samplingScheduler = new SamplingScheduler();
+    private long trackingStartTime;
+    private PdrReplay.LogWriter motionLog;
+    // Keeps its samples from one tracking session to the next
+    private final StepLengthCalibrator stepLengthCalibrator = new StepLengthCalibrator();
+    private final HeadingFusion headingFusion = new HeadingFusion();
+    private volatile HeadingListener headingListener;
 
     public interface LocationUpdateListener {
+        /**
+         * Called on the location pipeline thread; post to the main thread to touch views
+         */
         void onLocationUpdated(Location location);
     }
 
+    public interface HeadingListener {
+        /**
+         * Called on the location pipeline thread for every compass reading
+         * @param heading Facing direction in degrees from true north
+         */
+        void onHeadingUpdated(double heading, long timeMillis);
+    }
+
     public LocationService(Context context) {
+        this(context, new DeviceLocationSource(context));
+    }
+
+    /**
+     * @param locationSource Where raw fixes come from, e.g. a {@link ReplayLocationSource}
+     *                       to drive navigation from a recorded trace
+     */
+    public LocationService(Context context, LocationSource locationSource) {
         this.context = context.getApplicationContext();
-        this.locationManager = (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
+        this.locationSource = locationSource;
         this.databaseService = DatabaseService.getInstance(context);
+        this.navigationRecorder = NavigationRecorder.getInstance(databaseService);
+        this.motionSensorService = new MotionSensorService(this.context, averageStepLength);
+        loadStepLength();
+    }
+
+    /**
+     * Read the saved step length on the database thread and hand it to dead reckoning
+     */
+    private void loadStepLength() {
+        AsyncDatabaseService.getInstance(databaseService).submit(this, new Callable<Void>() {
+            @Override
+            public Void call() {
+                averageStepLength = databaseService.getAverageStepLength();
+                motionSensorService.setStepLength(averageStepLength);
+                return null;
+            }
+        }, null);
     }
 
     public boolean checkLocationPermission() {
@@ -47,115 +111,393 @@ public class LocationService {
     }
 
     public Location getCurrentLocation() {
-        if (!checkLocationPermission()) {
-            return null;
+        // While tracking, the filtered fix is better than either provider's last one
+        Location tracked = currentLocation;
+        if (isTracking && tracked != null) {
+            return tracked;
         }
 
         try {
-            Location gpsLocation = null;
-            Location networkLocation = null;
+            Location lastKnown = locationSource.getLastKnownFix();
+            if (lastKnown != null) {
+                currentLocation = lastKnown;
+            }
+            return currentLocation;
+        } catch (SecurityException e) {
+            Log.e(TAG, "Security exception while getting location", e);
+            return null;
+        }
+    }
 
-            if (locationManager.isProviderEnabled(LocationManager.GPS_PROVIDER)) {
-                gpsLocation = locationManager.getLastKnownLocation(LocationManager.GPS_PROVIDER);
+    /**
+     * Start delivering filtered locations to a listener. All listeners share
+     * one subscription to the location source: the first one starts it and
+     * removing the last one stops it. Raw fixes are only handed to the
+     * {@link LocationPipeline} on the thread the source delivers them on;
+     * filtering and the listeners run on the pipeline thread. A listener
+     * first receives the latest location, if any.
+     * @return false without location permission or an enabled provider
+     */
+    public boolean addLocationUpdateListener(final LocationUpdateListener listener) {
+        synchronized (subscriptionLock) {
+            if (subscribers.contains(listener)) {
+                return true;
+            }
+            if (subscribers.isEmpty()) {
+                // Added first so no early fix misses it
+                subscribers.add(listener);
+                if (!startTracking()) {
+                    subscribers.remove(listener);
+                    return false;
+                }
+                // Give the listener a position right away instead of waiting for the first fix
+                Location lastKnown = locationSource.getLastKnownFix();
+                if (lastKnown != null) {
+                    pipeline.offer(lastKnown);
+                }
+                return true;
             }
 
-            if (locationManager.isProviderEnabled(LocationManager.NETWORK_PROVIDER)) {
-                networkLocation = locationManager.getLastKnownLocation(LocationManager.NETWORK_PROVIDER);
+            subscribers.add(listener);
+            final Location latest = currentLocation;
+            if (latest != null) {
+                pipeline.getHandler().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (subscribers.contains(listener)) {
+                            listener.onLocationUpdated(latest);
+                        }
+                    }
+                });
             }
+            return true;
+        }
+    }
 
-            // Use the most recent and accurate location
-            if (gpsLocation != null && networkLocation != null) {
-                if (gpsLocation.getTime() > networkLocation.getTime()) {
-                    currentLocation = gpsLocation;
-                } else {
-                    currentLocation = networkLocation;
-                }
-            } else if (gpsLocation != null) {
-                currentLocation = gpsLocation;
-            } else if (networkLocation != null) {
-                currentLocation = networkLocation;
+    /**
+     * Stop delivering to a listener; stops tracking when it was the last one
+     */
+    public void removeLocationUpdateListener(LocationUpdateListener listener) {
+        synchronized (subscriptionLock) {
+            if (subscribers.remove(listener) && subscribers.isEmpty()) {
+                stopTracking();
             }
+        }
+    }
 
-            return currentLocation;
-        } catch (SecurityException e) {
-            Log.e(TAG, "Security exception while getting location", e);
-            return null;
+    /**
+     * Stop tracking and drop every listener
+     */
+    public void stopLocationTracking() {
+        synchronized (subscriptionLock) {
+            subscribers.clear();
+            stopTracking();
         }
     }
 
-    @SuppressLint("MissingPermission")
-    public boolean startLocationTracking(LocationUpdateListener listener) {
-        if (!checkLocationPermission()) {
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    private boolean startTracking() {
+        if (!locationSource.isAvailable()) {
             return false;
         }
 
-        this.locationUpdateListener = listener;
-
-        if (!locationManager.isProviderEnabled(LocationManager.GPS_PROVIDER) &&
-                !locationManager.isProviderEnabled(LocationManager.NETWORK_PROVIDER)) {
+        pipeline = new LocationPipeline("LocationPipeline", fixProcessor);
+        try {
+            synchronized (trackingLock) {
+                long now = locationSource.getElapsedRealtime();
+                locationFilter.reset();
+                samplingScheduler.start(now);
+                stepLengthCalibrator.resetSegment();
+                headingFusion.reset();
+                trackingStartTime = now;
+                isTracking = true;
+                locationSource.start(sourceListener, samplingScheduler.getInterval());
+            }
+        } catch (SecurityException e) {
+            Log.e(TAG, "Security exception while starting location tracking", e);
+            isTracking = false;
+            pipeline.quit();
             return false;
         }
 
-        LocationListener locationListener = new LocationListener() {
-            @Override
-            public void onLocationChanged(Location location) {
-                currentLocation = location;
-                if (locationUpdateListener != null) {
-                    locationUpdateListener.onLocationUpdated(location);
-                }
-                Log.d(TAG, "Location updated: " + location.getLatitude() + ", " + location.getLongitude());
+        // The phone's own steps have nothing to do with a replayed walk
+        if (locationSource.isLive()) {
+            // The last loaded value until the reload lands, which also picks up any change in settings
+            motionSensorService.setStepLength(averageStepLength);
+            loadStepLength();
+            if (!motionSensorService.start(deadReckoningListener, pipeline.getHandler())) {
+                Log.d(TAG, "Tracking with location fixes only");
             }
+        }
+        return true;
+    }
 
-            @Override
-            public void onStatusChanged(String provider, int status, Bundle extras) {
-                Log.d(TAG, "Provider status changed: " + provider + ", status: " + status);
+    private void stopTracking() {
+        if (!isTracking) {
+            return;
+        }
+        locationSource.stop();
+        motionSensorService.stop();
+        synchronized (trackingLock) {
+            isTracking = false;
+            long now = locationSource.getElapsedRealtime();
+            Log.d(TAG, String.format("Tracking stopped: %d fixes, %.0f%% of the fixes at %d ms sampling",
+                    samplingScheduler.getReceivedFixes(), samplingScheduler.getDutyCycle(now) * 100,
+                    SamplingScheduler.BASE_INTERVAL_MS));
+        }
+        pipeline.quit();
+        Log.d(TAG, "Location pipeline: " + pipeline.getMetrics());
+    }
+
+    /**
+     * Counters and stage latencies of the current or last tracking session, or null before the first
+     */
+    public LocationPipeline.Metrics getPipelineMetrics() {
+        LocationPipeline current = pipeline;
+        return current == null ? null : current.getMetrics();
+    }
+
+    /**
+     * Tell the sampling scheduler how far the next turn or the destination is,
+     * so fixes can be requested less often on long straight legs
+     * @param meters Distance in meters, or NaN when no navigation is running
+     */
+    public void setDistanceToNextManeuver(double meters) {
+        synchronized (trackingLock) {
+            if (isTracking) {
+                applyIntervalLocked(samplingScheduler.setDistanceToManeuver(meters, locationSource.getElapsedRealtime()));
             }
+        }
+    }
 
-            @Override
-            public void onProviderEnabled(String provider) {
-                Log.d(TAG, "Provider enabled: " + provider);
+    /**
+     * Fraction of the fixes that sampling at the base rate would have requested, 0 to 1
+     */
+    public double getSamplingDutyCycle() {
+        synchronized (trackingLock) {
+            return samplingScheduler.getDutyCycle(locationSource.getElapsedRealtime());
+        }
+    }
+
+    private void applyIntervalLocked(long interval) {
+        if (interval == 0 || !isTracking) {
+            return;
+        }
+        Log.d(TAG, "Location sampling interval now " + interval + " ms");
+        try {
+            locationSource.setInterval(interval);
+        } catch (SecurityException e) {
+            Log.e(TAG, "Security exception while changing the sampling interval", e);
+        }
+    }
+
+    /**
+     * Receives raw fixes on the source's thread and only queues them
+     */
+    private final LocationSource.Listener sourceListener = new LocationSource.Listener() {
+        @Override
+        public void onFix(Location fix) {
+            LocationPipeline current = pipeline;
+            if (!isTracking || current == null) {
+                return;
             }
+            current.offer(fix);
+            if (!locationSource.isLive()) {
+                // A replay waits for each fix to be processed, so a run is repeatable
+                // and a fast one measures the pipeline instead of the mailbox dropping fixes
+                try {
+                    current.awaitIdle(MAX_REPLAY_WAIT_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    };
 
-            @Override
-            public void onProviderDisabled(String provider) {
-                Log.d(TAG, "Provider disabled: " + provider);
+    private final LocationPipeline.Processor fixProcessor = new LocationPipeline.Processor() {
+        @Override
+        public void process(Location fix) {
+            processFix(fix);
+        }
+    };
+
+    /**
+     * Filter one raw fix and pass the result on; runs on the pipeline thread
+     */
+    private void processFix(Location location) {
+        long startTime = System.nanoTime();
+        long time = location.getElapsedRealtimeNanos() / 1000000;
+        Location filtered;
+        synchronized (trackingLock) {
+            if (!isTracking) {
+                return;
+            }
+            // A last known fix from before tracking started is not part of this walk,
+            // and a replayed one has been recorded already
+            if (time >= trackingStartTime && locationSource.isLive()) {
+                // The raw fix is recorded so traces can be replayed through the filter later
+                navigationRecorder.recordFix(location.getLatitude(), location.getLongitude(),
+                        location.getAccuracy(), location.getTime());
+                if (motionLog != null) {
+                    motionLog.fix(time, location.getLatitude(), location.getLongitude(), location.getAccuracy());
+                }
+                if (stepLengthCalibrator.onFix(location.getLatitude(), location.getLongitude(),
+                        location.getAccuracy(), time)) {
+                    onStepLengthSampleLocked();
+                }
+                headingFusion.onFix(location.getLatitude(), location.getLongitude(), location.getAccuracy(), time);
+            }
+            if (!locationFilter.update(location.getLatitude(), location.getLongitude(),
+                    location.getAccuracy(), time)) {
+                Log.d(TAG, "Ignored late or outlying fix from " + location.getProvider());
+                return;
             }
-        };
+            if (location.getAccuracy() <= MAX_ANCHOR_ACCURACY) {
+                motionSensorService.anchor(locationFilter.getLatitude(), locationFilter.getLongitude(),
+                        locationFilter.getAccuracy(), time);
+            }
+            applyIntervalLocked(samplingScheduler.onFix(locationFilter.getSpeed(), locationSource.getElapsedRealtime()));
+            filtered = toFilteredLocked(new Location(location));
+        }
+        pipeline.getMetrics().getFilter().record(System.nanoTime() - startTime);
+        publish(filtered);
+    }
 
-        try {
-            if (locationManager.isProviderEnabled(LocationManager.GPS_PROVIDER)) {
-                locationManager.requestLocationUpdates(
-                        LocationManager.GPS_PROVIDER,
-                        MIN_TIME_BETWEEN_UPDATES,
-                        MIN_DISTANCE_FOR_UPDATE,
-                        locationListener);
+    /**
+     * Receives dead-reckoned positions; runs on the pipeline thread
+     */
+    private final MotionSensorService.Listener deadReckoningListener = new MotionSensorService.Listener() {
+        @Override
+        public void onPositionAdvanced(DeadReckoning deadReckoning) {
+            long startTime = System.nanoTime();
+            Location filtered;
+            synchronized (trackingLock) {
+                // Dead-reckoned positions go through the same filter, weighted by their growing uncertainty
+                if (!isTracking || !locationFilter.update(deadReckoning.getLatitude(),
+                        deadReckoning.getLongitude(), deadReckoning.getAccuracy(), deadReckoning.getTime())) {
+                    return;
+                }
+                Location location = new Location(DEAD_RECKONING_PROVIDER);
+                location.setTime(System.currentTimeMillis());
+                location.setElapsedRealtimeNanos(deadReckoning.getTime() * 1000000);
+                filtered = toFilteredLocked(location);
             }
+            pipeline.getMetrics().getFilter().record(System.nanoTime() - startTime);
+            publish(filtered);
+        }
 
-            if (locationManager.isProviderEnabled(LocationManager.NETWORK_PROVIDER)) {
-                locationManager.requestLocationUpdates(
-                        LocationManager.NETWORK_PROVIDER,
-                        MIN_TIME_BETWEEN_UPDATES,
-                        MIN_DISTANCE_FOR_UPDATE,
-                        locationListener);
+        @Override
+        public void onStep(long timeMillis) {
+            synchronized (trackingLock) {
+                if (isTracking && stepLengthCalibrator.onStep(timeMillis)) {
+                    onStepLengthSampleLocked();
+                }
             }
+        }
 
-            isTracking = true;
-            return true;
-        } catch (SecurityException e) {
-            Log.e(TAG, "Security exception while starting location tracking", e);
-            return false;
+        @Override
+        public void onHeading(double azimuth, long timeMillis) {
+            double heading;
+            synchronized (trackingLock) {
+                if (!isTracking) {
+                    return;
+                }
+                stepLengthCalibrator.onHeading(azimuth);
+                heading = headingFusion.onCompass(azimuth, timeMillis);
+            }
+            HeadingListener listener = headingListener;
+            if (listener != null) {
+                listener.onHeadingUpdated(heading, timeMillis);
+            }
+        }
+    };
+
+    /**
+     * Adopt the calibrated step length once it has converged and the saved
+     * one lies outside its confidence interval, so a settled estimate is not
+     * rewritten on every sample. Compares with the value last loaded or
+     * written instead of reading the database, and writes each change once.
+     */
+    private void onStepLengthSampleLocked() {
+        if (!stepLengthCalibrator.isConverged()) {
+            return;
         }
+        double saved = averageStepLength;
+        if (saved >= stepLengthCalibrator.getLowerBound() && saved <= stepLengthCalibrator.getUpperBound()) {
+            return;
+        }
+        // Whole centimeters within the settings range, as the settings screen would store it
+        double stepLength = Math.round(Math.max(MIN_STEP_LENGTH,
+                Math.min(MAX_STEP_LENGTH, stepLengthCalibrator.getEstimate())) * 100) / 100.0;
+        if (stepLength == saved) {
+            return;
+        }
+        Log.d(TAG, String.format("Step length calibrated: %.2f m [%.2f, %.2f] from %d samples, was %.2f m",
+                stepLengthCalibrator.getEstimate(), stepLengthCalibrator.getLowerBound(),
+                stepLengthCalibrator.getUpperBound(), stepLengthCalibrator.getSampleCount(), saved));
+        averageStepLength = stepLength;
+        motionSensorService.setStepLength(stepLength);
+        // A write, so it runs even though nothing ever cancels this service's tasks
+        AsyncDatabaseService.getInstance(databaseService).updateAverageStepLength(this, stepLength, null);
     }
 
-    public void stopLocationTracking() {
-        if (locationManager != null && isTracking) {
-            try {
-                locationManager.removeUpdates((LocationListener) locationUpdateListener);
-            } catch (Exception e) {
-                Log.e(TAG, "Error stopping location tracking", e);
-            }
-            isTracking = false;
-            locationUpdateListener = null;
+    /**
+     * Receive the facing direction at sensor rate, for turn cues; null stops.
+     * Needs a step and a rotation sensor, and a live location source.
+     * Call on the main thread.
+     */
+    public void setHeadingListener(HeadingListener listener) {
+        headingListener = listener;
+        motionSensorService.setFastHeading(listener != null);
+    }
+
+    /**
+     * Facing direction in degrees from true north, NaN when unknown
+     */
+    public double getHeading() {
+        synchronized (trackingLock) {
+            return isTracking ? headingFusion.getHeading() : Double.NaN;
+        }
+    }
+
+    /**
+     * Log raw fixes, steps and headings for replaying with {@link PdrReplay}; null stops logging.
+     * The caller owns the writer and closes it.
+     */
+    public void setMotionLog(PdrReplay.LogWriter log) {
+        synchronized (trackingLock) {
+            this.motionLog = log;
+        }
+        motionSensorService.setLog(log);
+    }
+
+    /**
+     * Copy the filter's current estimate into a fix
+     * @param fix The fix that produced it; receives the filtered position, accuracy, speed and bearing
+     */
+    private Location toFilteredLocked(Location fix) {
+        fix.setLatitude(locationFilter.getLatitude());
+        fix.setLongitude(locationFilter.getLongitude());
+        fix.setAccuracy(locationFilter.getAccuracy());
+        fix.setSpeed(locationFilter.getSpeed());
+        double heading = locationFilter.getHeading();
+        if (!Double.isNaN(heading)) {
+            fix.setBearing((float) heading);
+        }
+        return fix;
+    }
+
+    /**
+     * Hand a filtered location to every listener, outside the tracking lock
+     * since a listener may call back into this service
+     */
+    private void publish(Location fix) {
+        currentLocation = fix;
+        for (LocationUpdateListener listener : subscribers) {
+            listener.onLocationUpdated(fix);
         }
     }
 
@@ -190,6 +532,33 @@ public class LocationService {
         return R * c;
     }
 
+    /**
+     * Calculate distance from a point to the segment between two other points.
+     * Uses a local flat projection, which is accurate at campus scale.
+     * @return Distance in meters
+     */
+    public static double calculateDistanceToSegment(double lat, double lon,
+                                                    double lat1, double lon1, double lat2, double lon2) {
+        final int R = 6371000; // Earth's radius in meters
+        double cosLat = Math.cos(Math.toRadians(lat));
+
+        // Segment end points relative to the point, in meters
+        double x1 = Math.toRadians(lon1 - lon) * cosLat * R;
+        double y1 = Math.toRadians(lat1 - lat) * R;
+        double x2 = Math.toRadians(lon2 - lon) * cosLat * R;
+        double y2 = Math.toRadians(lat2 - lat) * R;
+
+        double dx = x2 - x1;
+        double dy = y2 - y1;
+        double lengthSquared = dx * dx + dy * dy;
+        double t = lengthSquared == 0 ? 0 : -(x1 * dx + y1 * dy) / lengthSquared;
+        t = Math.max(0, Math.min(1, t));
+
+        double px = x1 + t * dx;
+        double py = y1 + t * dy;
+        return Math.sqrt(px * px + py * py);
+    }
+
     /**
      * Calculate bearing (direction) between two points
      * @param lat1 First point latitude
@@ -245,8 +614,7 @@ public class LocationService {
      * @return Number of steps
      */
     public int calculateSteps(double distance) {
-        double stepLength = databaseService.getAverageStepLength();
-        return (int) Math.ceil(distance / stepLength);
+        return (int) Math.ceil(distance / averageStepLength);
     }
 
     /**
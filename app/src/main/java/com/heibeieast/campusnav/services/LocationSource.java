@@ -0,0 +1,55 @@
+package com.heibeieast.campusnav.services;
+
+import android.location.Location;
+
+/**
+ * Where {@link LocationService} gets raw fixes from: the device's location
+ * providers ({@link DeviceLocationSource}) or a recorded or synthetic trace
+ * ({@link ReplayLocationSource}).
+ * All times are elapsed-realtime milliseconds; a replay runs on its own
+ * clock, which may be faster than real time.
+ */
+public interface LocationSource {
+
+    interface Listener {
+        /**
+         * A new raw fix; may be called on any thread
+         */
+        void onFix(Location fix);
+    }
+
+    /**
+     * Whether {@link #start} can deliver fixes right now
+     */
+    boolean isAvailable();
+
+    /**
+     * Most recent fix known without starting, or null
+     */
+    Location getLastKnownFix();
+
+    /**
+     * Start delivering fixes about once per interval
+     * @throws SecurityException If the location permission was revoked
+     */
+    void start(Listener listener, long intervalMillis);
+
+    /**
+     * Change the interval of a started source without missing fixes
+     * @throws SecurityException If the location permission was revoked
+     */
+    void setInterval(long intervalMillis);
+
+    void stop();
+
+    /**
+     * Current time on the clock the fixes' elapsed-realtime timestamps use
+     */
+    long getElapsedRealtime();
+
+    /**
+     * Whether fixes describe where the phone is now, so its own step and
+     * heading sensors may fill the gaps between them
+     */
+    boolean isLive();
+}
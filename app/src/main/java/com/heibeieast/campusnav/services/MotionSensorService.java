@@ -0,0 +1,228 @@
+package com.heibeieast.campusnav.services;
+
+import android.content.Context;
+import android.hardware.GeomagneticField;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Handler;
+import android.util.Log;
+
+/**
+ * Feeds step and orientation sensors into {@link DeadReckoning}.
+ * Uses the step detector, or the step counter where there is none, and the
+ * rotation vector for the walking direction. Both are registered with a
+ * report latency so the sensor hub can batch events in its FIFO while the
+ * application processor sleeps; the heading sensor alone would otherwise
+ * wake it ten times a second. The engine copes with the bursts.
+ * The heading is the direction the top of the phone points, which is the
+ * walking direction when it is held in front of the body.
+ * While turn cues need the heading at once, the rotation vector can be
+ * switched to a faster rate without batching; see {@link #setFastHeading}.
+ */
+public class MotionSensorService {
+    private static final String TAG = "MotionSensorService";
+    private static final int HEADING_SAMPLING_US = 100000; // 10 Hz is plenty for one heading per step
+    private static final int MAX_REPORT_LATENCY_US = 1000000;
+    private static final int FAST_HEADING_SAMPLING_US = 20000;
+
+    private final SensorManager sensorManager;
+    private final DeadReckoning deadReckoning;
+    private volatile Listener listener;
+    private volatile PdrReplay.LogWriter log;
+    private boolean running = false;
+    private boolean fastHeading = false;
+    private Sensor rotationSensor;
+    private Handler handler;
+
+    // Reused for every orientation sample
+    private final float[] rotationMatrix = new float[9];
+    private final float[] orientation = new float[3];
+    private float declination;
+    private boolean hasDeclination = false;
+    private float lastStepCount = -1;
+
+    public interface Listener {
+        /**
+         * The dead-reckoned position moved by one or more steps
+         */
+        void onPositionAdvanced(DeadReckoning deadReckoning);
+
+        /**
+         * A step was detected, whether or not it moved the position
+         */
+        void onStep(long timeMillis);
+
+        /**
+         * A new walking direction in degrees from true north
+         */
+        void onHeading(double azimuth, long timeMillis);
+    }
+
+    private final SensorEventListener sensorListener = new SensorEventListener() {
+        @Override
+        public void onSensorChanged(SensorEvent event) {
+            long time = event.timestamp / 1000000; // elapsed realtime, as for location fixes
+            int applied = 0;
+            switch (event.sensor.getType()) {
+                case Sensor.TYPE_STEP_DETECTOR:
+                    onStep(time);
+                    applied = deadReckoning.onStep(time);
+                    break;
+                case Sensor.TYPE_STEP_COUNTER:
+                    // Cumulative since boot; each increase is taken as steps at this event's time
+                    float count = event.values[0];
+                    if (lastStepCount >= 0) {
+                        for (int i = 0; i < (int) (count - lastStepCount); i++) {
+                            onStep(time);
+                            applied += deadReckoning.onStep(time);
+                        }
+                    }
+                    lastStepCount = count;
+                    break;
+                case Sensor.TYPE_ROTATION_VECTOR:
+                    SensorManager.getRotationMatrixFromVector(rotationMatrix, event.values);
+                    SensorManager.getOrientation(rotationMatrix, orientation);
+                    double azimuth = (Math.toDegrees(orientation[0]) + declination + 360) % 360;
+                    if (log != null) {
+                        log.heading(time, azimuth);
+                    }
+                    if (listener != null) {
+                        listener.onHeading(azimuth, time);
+                    }
+                    applied = deadReckoning.onHeading(azimuth, time);
+                    break;
+                default:
+                    break;
+            }
+            if (applied > 0 && listener != null) {
+                listener.onPositionAdvanced(deadReckoning);
+            }
+        }
+
+        @Override
+        public void onAccuracyChanged(Sensor sensor, int accuracy) {
+            if (sensor.getType() == Sensor.TYPE_ROTATION_VECTOR) {
+                Log.d(TAG, "Compass accuracy changed: " + accuracy);
+            }
+        }
+    };
+
+    public MotionSensorService(Context context, double stepLength) {
+        this.sensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+        this.deadReckoning = new DeadReckoning(stepLength);
+    }
+
+    /**
+     * Start listening
+     * @param handler Handler of the thread that receives the events and the listener calls
+     * @return false if the device lacks a step or rotation sensor
+     */
+    public boolean start(Listener listener, Handler handler) {
+        if (running) {
+            return true;
+        }
+        Sensor step = sensorManager.getDefaultSensor(Sensor.TYPE_STEP_DETECTOR);
+        if (step == null) {
+            step = sensorManager.getDefaultSensor(Sensor.TYPE_STEP_COUNTER);
+        }
+        Sensor rotation = sensorManager.getDefaultSensor(Sensor.TYPE_ROTATION_VECTOR);
+        if (step == null || rotation == null) {
+            Log.w(TAG, "Dead reckoning unavailable: missing step or rotation sensor");
+            return false;
+        }
+
+        this.listener = listener;
+        this.rotationSensor = rotation;
+        this.handler = handler;
+        deadReckoning.reset();
+        lastStepCount = -1;
+        boolean registered = sensorManager.registerListener(sensorListener, step,
+                SensorManager.SENSOR_DELAY_NORMAL, MAX_REPORT_LATENCY_US, handler);
+        registered &= registerRotation();
+        if (!registered) {
+            // Step sensors need the activity recognition permission on Android 10+
+            Log.w(TAG, "Dead reckoning unavailable: sensor registration refused");
+            sensorManager.unregisterListener(sensorListener);
+            this.listener = null;
+            return false;
+        }
+        running = true;
+        Log.d(TAG, "Dead reckoning started, step FIFO holds " + step.getFifoMaxEventCount() + " events");
+        return true;
+    }
+
+    public void stop() {
+        if (running) {
+            sensorManager.unregisterListener(sensorListener);
+            running = false;
+            listener = null;
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Deliver headings at 50 Hz as they come instead of 10 Hz in batches.
+     * Keeps the processor awake, so only while someone acts on each turn.
+     * Call on the thread that starts and stops the service.
+     */
+    public void setFastHeading(boolean fast) {
+        if (fast == fastHeading) {
+            return;
+        }
+        fastHeading = fast;
+        if (running) {
+            // Registering the same listener for the same sensor again would fail
+            sensorManager.unregisterListener(sensorListener, rotationSensor);
+            if (!registerRotation()) {
+                Log.w(TAG, "Could not change the heading rate");
+            }
+        }
+    }
+
+    private boolean registerRotation() {
+        if (fastHeading) {
+            return sensorManager.registerListener(sensorListener, rotationSensor,
+                    FAST_HEADING_SAMPLING_US, 0, handler);
+        }
+        return sensorManager.registerListener(sensorListener, rotationSensor,
+                HEADING_SAMPLING_US, MAX_REPORT_LATENCY_US, handler);
+    }
+
+    /**
+     * Restart dead reckoning from a trusted position
+     */
+    public void anchor(double latitude, double longitude, float accuracy, long timeMillis) {
+        if (!hasDeclination) {
+            // Magnetic north is about 10 degrees off true north in Harbin; it hardly changes across a campus
+            declination = new GeomagneticField((float) latitude, (float) longitude, 0,
+                    System.currentTimeMillis()).getDeclination();
+            hasDeclination = true;
+        }
+        deadReckoning.anchor(latitude, longitude, accuracy, timeMillis);
+    }
+
+    public void setStepLength(double stepLength) {
+        deadReckoning.setStepLength(stepLength);
+    }
+
+    /**
+     * Also write steps and headings to a log for {@link PdrReplay}; null stops logging
+     */
+    public void setLog(PdrReplay.LogWriter log) {
+        this.log = log;
+    }
+
+    private void onStep(long time) {
+        if (log != null) {
+            log.step(time);
+        }
+        if (listener != null) {
+            listener.onStep(time);
+        }
+    }
+}
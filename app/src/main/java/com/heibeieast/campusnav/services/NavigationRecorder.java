@@ -0,0 +1,274 @@
+package com.heibeieast.campusnav.services;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records navigation sessions into user_navigation_history and their GPS
+ * fixes into navigation_trace_segments (packed by {@link TraceCodec}) without
+ * touching SQLite on the caller's thread. Fixes and session changes are
+ * buffered in memory and written in one transaction on a background thread
+ * once {@link #FLUSH_POINT_COUNT} fixes are waiting or {@link #FLUSH_INTERVAL_MS}
+ * has passed, whichever comes first, so a crash loses at most that many fixes.
+ * Ending a session flushes at once.
+ */
+public class NavigationRecorder {
+    private static final String TAG = "NavigationRecorder";
+    public static final int FLUSH_POINT_COUNT = 20;
+    public static final long FLUSH_INTERVAL_MS = 5000;
+    // Upper bound on buffered fixes while the database keeps failing; the oldest are dropped
+    private static final int MAX_PENDING_POINTS = 1000;
+
+    private static NavigationRecorder instance;
+
+    private final DatabaseService databaseService;
+    private final ScheduledExecutorService executor;
+    private final Object lock = new Object();
+
+    // Guarded by lock
+    private List<TracePoint> pendingPoints = new ArrayList<>();
+    private Map<Session, SessionRow> pendingSessions = new LinkedHashMap<>();
+    private Session currentSession;
+    private boolean flushScheduled = false;
+
+    /**
+     * One navigation from a start location to a destination
+     */
+    static class Session {
+        final long fromLocationId;
+        final long toLocationId;
+        final long startTime;
+        // Assigned and read only on the writer thread
+        long historyId = -1;
+        long segmentId = -1;
+        TraceCodec.Encoder segment;
+
+        // Guarded by the recorder's lock
+        double distanceTraveled;
+        double lastLatitude;
+        double lastLongitude;
+        boolean hasLastFix;
+
+        Session(long fromLocationId, long toLocationId, long startTime) {
+            this.fromLocationId = fromLocationId;
+            this.toLocationId = toLocationId;
+            this.startTime = startTime;
+        }
+    }
+
+    /**
+     * State of a session as of a flush
+     */
+    static class SessionRow {
+        final Session session;
+        final double distanceTraveled;
+        final long endTime; // 0 while the session is running
+        final boolean arrived;
+
+        SessionRow(Session session, double distanceTraveled, long endTime, boolean arrived) {
+            this.session = session;
+            this.distanceTraveled = distanceTraveled;
+            this.endTime = endTime;
+            this.arrived = arrived;
+        }
+    }
+
+    static class TracePoint {
+        final Session session;
+        final long time;
+        final double latitude;
+        final double longitude;
+        final float accuracy;
+
+        TracePoint(Session session, long time, double latitude, double longitude, float accuracy) {
+            this.session = session;
+            this.time = time;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.accuracy = accuracy;
+        }
+    }
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flushNow();
+        }
+    };
+
+    private NavigationRecorder(DatabaseService databaseService) {
+        this.databaseService = databaseService;
+        this.executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, "NavigationRecorder");
+            }
+        });
+    }
+
+    public static synchronized NavigationRecorder getInstance(DatabaseService databaseService) {
+        if (instance == null) {
+            instance = new NavigationRecorder(databaseService);
+        }
+        return instance;
+    }
+
+    /**
+     * Write what is buffered and drop the shared recorder, so the next
+     * getInstance records into a fresh database; for tests
+     */
+    static synchronized void resetInstance() throws InterruptedException {
+        if (instance != null) {
+            instance.executor.shutdownNow();
+            instance.executor.awaitTermination(5, TimeUnit.SECONDS);
+            instance.flushNow();
+            instance = null;
+        }
+    }
+
+    /**
+     * Start recording a navigation; ends the previous one as not arrived
+     */
+    public void startSession(long fromLocationId, long toLocationId) {
+        synchronized (lock) {
+            if (currentSession != null) {
+                endSessionLocked(false);
+            }
+            currentSession = new Session(fromLocationId, toLocationId, System.currentTimeMillis());
+            pendingSessions.put(currentSession, snapshotLocked(currentSession, 0, false));
+            scheduleFlushLocked(FLUSH_INTERVAL_MS);
+        }
+    }
+
+    /**
+     * Buffer a GPS fix for the running session; ignored when no session is running
+     */
+    public void recordFix(double latitude, double longitude, float accuracy, long time) {
+        synchronized (lock) {
+            Session session = currentSession;
+            if (session == null) {
+                return;
+            }
+            if (session.hasLastFix) {
+                session.distanceTraveled += LocationService.calculateDistance(
+                        session.lastLatitude, session.lastLongitude, latitude, longitude);
+            }
+            session.lastLatitude = latitude;
+            session.lastLongitude = longitude;
+            session.hasLastFix = true;
+
+            pendingPoints.add(new TracePoint(session, time, latitude, longitude, accuracy));
+            pendingSessions.put(session, snapshotLocked(session, 0, false));
+            if (pendingPoints.size() >= FLUSH_POINT_COUNT) {
+                scheduleFlushLocked(0);
+            } else {
+                scheduleFlushLocked(FLUSH_INTERVAL_MS);
+            }
+        }
+    }
+
+    /**
+     * End the running session and write everything buffered
+     * @param arrived true if the destination was reached, false if navigation was cancelled
+     */
+    public void endSession(boolean arrived) {
+        synchronized (lock) {
+            if (currentSession == null) {
+                return;
+            }
+            endSessionLocked(arrived);
+        }
+    }
+
+    public boolean isRecording() {
+        synchronized (lock) {
+            return currentSession != null;
+        }
+    }
+
+    private void endSessionLocked(boolean arrived) {
+        pendingSessions.put(currentSession, snapshotLocked(currentSession, System.currentTimeMillis(), arrived));
+        currentSession = null;
+        scheduleFlushLocked(0);
+    }
+
+    private SessionRow snapshotLocked(Session session, long endTime, boolean arrived) {
+        return new SessionRow(session, session.distanceTraveled, endTime, arrived);
+    }
+
+    private void scheduleFlushLocked(long delayMs) {
+        if (delayMs == 0) {
+            flushScheduled = true;
+            executor.execute(flushTask);
+        } else if (!flushScheduled) {
+            flushScheduled = true;
+            executor.schedule(flushTask, delayMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Write the buffered sessions and fixes; runs on the recorder thread
+     */
+    private void flushNow() {
+        List<TracePoint> points;
+        List<SessionRow> sessions;
+        synchronized (lock) {
+            flushScheduled = false;
+            if (pendingPoints.isEmpty() && pendingSessions.isEmpty()) {
+                return;
+            }
+            points = pendingPoints;
+            sessions = new ArrayList<>(pendingSessions.values());
+            pendingPoints = new ArrayList<>();
+            pendingSessions = new LinkedHashMap<>();
+        }
+
+        long startTime = System.nanoTime();
+        try {
+            databaseService.writeNavigationHistory(sessions, points);
+            Log.d(TAG, "Wrote " + sessions.size() + " sessions and " + points.size() + " fixes in "
+                    + (System.nanoTime() - startTime) / 1000 + "us");
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to write navigation history, keeping it for the next flush", e);
+            requeue(sessions, points);
+        }
+    }
+
+    /**
+     * Put a failed batch back in front of anything buffered since, keeping within MAX_PENDING_POINTS
+     */
+    private void requeue(List<SessionRow> sessions, List<TracePoint> points) {
+        synchronized (lock) {
+            List<TracePoint> merged = new ArrayList<>(points);
+            merged.addAll(pendingPoints);
+            if (merged.size() > MAX_PENDING_POINTS) {
+                Log.w(TAG, "Dropping " + (merged.size() - MAX_PENDING_POINTS) + " unwritten fixes");
+                merged = new ArrayList<>(merged.subList(merged.size() - MAX_PENDING_POINTS, merged.size()));
+            }
+            pendingPoints = merged;
+
+            Map<Session, SessionRow> mergedSessions = new LinkedHashMap<>();
+            for (SessionRow row : sessions) {
+                mergedSessions.put(row.session, row);
+            }
+            mergedSessions.putAll(pendingSessions); // newer state wins
+            pendingSessions = mergedSessions;
+            scheduleFlushLocked(FLUSH_INTERVAL_MS);
+        }
+    }
+}
@@ -0,0 +1,343 @@
+package com.heibeieast.campusnav.services;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Intent;
+import android.content.pm.ServiceInfo;
+import android.location.Location;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.core.app.NotificationCompat;
+
+import com.heibeieast.campusnav.NavigationActivity;
+import com.heibeieast.campusnav.R;
+import com.heibeieast.campusnav.models.NavigationInstruction;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hosts navigation for the whole app: one {@link LocationService}, and with
+ * it one location subscription, plus the voice and path planning services
+ * that use it. Screens bind to it and subscribe to locations while they need
+ * them. While anyone is subscribed the service runs in the foreground, so
+ * tracking and spoken instructions go on with the screen off; when the last
+ * subscriber leaves, tracking stops and the service goes back to living only
+ * as long as it is bound.
+ * It also runs the navigation in progress, with its spoken instructions, so
+ * guidance does not depend on any one screen: a screen attaches a
+ * {@link NavigationListener} while it is visible, and one the system
+ * recreates picks up the navigation from here.
+ * Subscribe, unsubscribe, start and stop on the main thread.
+ */
+public class NavigationService extends Service {
+    private static final String TAG = "NavigationService";
+    private static final String CHANNEL_ID = "navigation";
+    private static final int NOTIFICATION_ID = 1;
+
+    private final IBinder binder = new LocalBinder();
+    private LocationService locationService;
+    private VoiceService voiceService;
+    private PathPlanningService pathPlanningService;
+    private boolean isForeground = false;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // Navigation in progress, null when none; read on the location pipeline thread
+    private final AtomicReference<ActiveNavigation> navigation = new AtomicReference<>();
+    private volatile NavigationListener navigationListener;
+
+    /**
+     * Follows the navigation in progress, e.g. to show it on screen
+     */
+    public interface NavigationListener {
+        /**
+         * Called on the location pipeline thread after each position has been
+         * navigated; post to the main thread to touch views
+         */
+        void onNavigationProgress(Location location, NavigationInstruction instruction);
+
+        /**
+         * Called on the main thread once navigation has reached its destination and ended
+         */
+        void onArrived(Location location, String destination);
+    }
+
+    private static final class ActiveNavigation {
+        final String from;
+        final String to;
+
+        ActiveNavigation(String from, String to) {
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    private final LocationService.LocationUpdateListener trackingListener =
+            new LocationService.LocationUpdateListener() {
+                @Override
+                public void onLocationUpdated(Location location) {
+                    onNavigationLocation(location);
+                }
+            };
+
+    // Turn cues follow the compass between fixes
+    private final LocationService.HeadingListener headingListener = new LocationService.HeadingListener() {
+        @Override
+        public void onHeadingUpdated(double heading, long timeMillis) {
+            if (navigation.get() != null) {
+                pathPlanningService.updateHeading(heading, timeMillis);
+            }
+        }
+    };
+
+    public class LocalBinder extends Binder {
+        public NavigationService getService() {
+            return NavigationService.this;
+        }
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        DatabaseService databaseService = DatabaseService.getInstance(this);
+        locationService = new LocationService(this);
+        voiceService = new VoiceService(this);
+        pathPlanningService = new PathPlanningService(databaseService, locationService, voiceService);
+        voiceService.initializeTTS();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return binder;
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // A restarted process has no navigation to resume
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        navigation.set(null);
+        navigationListener = null;
+        mainHandler.removeCallbacksAndMessages(null);
+        locationService.setHeadingListener(null);
+        locationService.stopLocationTracking();
+        pathPlanningService.stopNavigation();
+        voiceService.shutdown();
+        super.onDestroy();
+    }
+
+    public LocationService getLocationService() {
+        return locationService;
+    }
+
+    public VoiceService getVoiceService() {
+        return voiceService;
+    }
+
+    public PathPlanningService getPathPlanningService() {
+        return pathPlanningService;
+    }
+
+    /**
+     * Receive filtered locations; the first subscriber starts tracking and
+     * puts the service in the foreground
+     * @return false if tracking could not be started
+     */
+    public boolean subscribe(LocationService.LocationUpdateListener listener) {
+        if (!locationService.addLocationUpdateListener(listener)) {
+            return false;
+        }
+        updateForeground();
+        return true;
+    }
+
+    /**
+     * Stop receiving locations; after the last subscriber tracking stops and
+     * the service leaves the foreground
+     */
+    public void unsubscribe(LocationService.LocationUpdateListener listener) {
+        locationService.removeLocationUpdateListener(listener);
+        updateForeground();
+    }
+
+    /**
+     * Guide along the path planned last until arrival or {@link #stopNavigation()},
+     * with or without a screen attached
+     * @return false if tracking could not be started; the planned path is dropped
+     */
+    public boolean startNavigation(String from, String to) {
+        navigation.set(new ActiveNavigation(from, to));
+        // Set first, so the compass starts at the fast rate
+        locationService.setHeadingListener(headingListener);
+        if (!subscribe(trackingListener)) {
+            navigation.set(null);
+            releaseNavigation();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * End the navigation in progress, if any, without announcing it
+     */
+    public void stopNavigation() {
+        if (navigation.getAndSet(null) != null) {
+            releaseNavigation();
+        }
+    }
+
+    public boolean isNavigating() {
+        return navigation.get() != null;
+    }
+
+    /**
+     * Start of the navigation in progress, null when none
+     */
+    public String getNavigationFrom() {
+        ActiveNavigation active = navigation.get();
+        return active != null ? active.from : null;
+    }
+
+    /**
+     * Destination of the navigation in progress, null when none
+     */
+    public String getNavigationTo() {
+        ActiveNavigation active = navigation.get();
+        return active != null ? active.to : null;
+    }
+
+    /**
+     * Follow the navigation; null detaches. Only one listener at a time, as
+     * only the visible screen shows it.
+     */
+    public void setNavigationListener(NavigationListener listener) {
+        navigationListener = listener;
+    }
+
+    private void releaseNavigation() {
+        locationService.setHeadingListener(null);
+        unsubscribe(trackingListener);
+        // planPath started a recording; end it rather than leave the session open
+        pathPlanningService.stopNavigation();
+    }
+
+    /**
+     * Advance navigation for a new position and speak what changed; runs on the
+     * location pipeline thread
+     */
+    private void onNavigationLocation(final Location location) {
+        final ActiveNavigation active = navigation.get();
+        if (active == null) {
+            return;
+        }
+
+        long startTime = System.nanoTime();
+        NavigationInstruction instruction = pathPlanningService.updateNavigationProgress(
+                location.getLatitude(), location.getLongitude(), active.to);
+        if (instruction != null) {
+            if (pathPlanningService.consumeReroute()) {
+                voiceService.announceReroute(instruction.getInstruction());
+            } else {
+                announceNavigationUpdate(instruction);
+            }
+        }
+        LocationPipeline.Metrics metrics = locationService.getPipelineMetrics();
+        if (metrics != null) {
+            metrics.getNavigation().record(System.nanoTime() - startTime);
+        }
+
+        if (instruction == null) {
+            // Arrived; only the first fix to get there ends it, and no later one is navigated
+            if (navigation.compareAndSet(active, null)) {
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onArrived(location, active.to);
+                    }
+                });
+            }
+            return;
+        }
+        NavigationListener listener = navigationListener;
+        if (listener != null) {
+            listener.onNavigationProgress(location, instruction);
+        }
+    }
+
+    private void onArrived(Location location, String destination) {
+        // Unless another navigation started since
+        if (navigation.get() == null) {
+            releaseNavigation();
+        }
+        voiceService.announceArrival(destination);
+        NavigationListener listener = navigationListener;
+        if (listener != null) {
+            listener.onArrived(location, destination);
+        }
+    }
+
+    private void announceNavigationUpdate(NavigationInstruction instruction) {
+        // Relative to where the user faces when the compass is known, else by compass points
+        double heading = locationService.getHeading();
+        String message;
+        if (Double.isNaN(heading)) {
+            String direction = LocationService.getDirectionName(instruction.getBearing());
+            message = String.format("请向%s方向走%.0f米", direction, instruction.getDistance());
+        } else {
+            int hour = HeadingFusion.toClockHour(HeadingFusion.relativeBearing(instruction.getBearing(), heading));
+            message = String.format("请向%s走%.0f米", HeadingFusion.getClockDirectionName(hour),
+                    instruction.getDistance());
+        }
+        voiceService.announceInstruction(message);
+    }
+
+    private void updateForeground() {
+        boolean wanted = locationService.getSubscriberCount() > 0;
+        if (wanted == isForeground) {
+            return;
+        }
+        if (wanted) {
+            // Started as well as bound, so navigation outlives the screen that began it
+            startService(new Intent(this, NavigationService.class));
+            Notification notification = buildNotification();
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                startForeground(NOTIFICATION_ID, notification, ServiceInfo.FOREGROUND_SERVICE_TYPE_LOCATION);
+            } else {
+                startForeground(NOTIFICATION_ID, notification);
+            }
+            Log.d(TAG, "Navigation in the foreground");
+        } else {
+            stopForeground(true);
+            stopSelf();
+            Log.d(TAG, "Navigation left the foreground");
+        }
+        isForeground = wanted;
+    }
+
+    private Notification buildNotification() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationChannel channel = new NotificationChannel(CHANNEL_ID,
+                    getString(R.string.navigation_channel_name), NotificationManager.IMPORTANCE_LOW);
+            getSystemService(NotificationManager.class).createNotificationChannel(channel);
+        }
+        Intent intent = new Intent(this, NavigationActivity.class);
+        intent.addFlags(Intent.FLAG_ACTIVITY_REORDER_TO_FRONT);
+        PendingIntent contentIntent = PendingIntent.getActivity(this, 0, intent, PendingIntent.FLAG_IMMUTABLE);
+        return new NotificationCompat.Builder(this, CHANNEL_ID)
+                .setSmallIcon(R.mipmap.ic_launcher)
+                .setContentTitle(getString(R.string.navigation_notification_title))
+                .setContentText(getString(R.string.navigation_notification_text))
+                .setContentIntent(contentIntent)
+                .setOngoing(true)
+                .build();
+    }
+}
@@ -0,0 +1,83 @@
+package com.heibeieast.campusnav.services;
+
+import java.util.Arrays;
+
+/**
+ * Binary min-heap of graph node indices keyed by a double priority.
+ * Decrease-key is done by pushing the node again; stale entries are skipped
+ * by the caller when popped. The backing arrays are reused between searches.
+ */
+class NodeHeap {
+    private int[] nodes;
+    private double[] keys;
+    private int size;
+
+    NodeHeap(int initialCapacity) {
+        int capacity = Math.max(initialCapacity, 16);
+        nodes = new int[capacity];
+        keys = new double[capacity];
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void push(int node, double key) {
+        if (size == nodes.length) {
+            nodes = Arrays.copyOf(nodes, size * 2);
+            keys = Arrays.copyOf(keys, size * 2);
+        }
+        int i = size++;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (keys[parent] <= key) {
+                break;
+            }
+            nodes[i] = nodes[parent];
+            keys[i] = keys[parent];
+            i = parent;
+        }
+        nodes[i] = node;
+        keys[i] = key;
+    }
+
+    /**
+     * Smallest key currently in the heap; only valid when not empty
+     */
+    double peekKey() {
+        return keys[0];
+    }
+
+    /**
+     * Remove the entry with the smallest key and return its node
+     */
+    int pop() {
+        int top = nodes[0];
+        size--;
+        if (size > 0) {
+            int node = nodes[size];
+            double key = keys[size];
+            int i = 0;
+            int half = size >>> 1;
+            while (i < half) {
+                int child = 2 * i + 1;
+                if (child + 1 < size && keys[child + 1] < keys[child]) {
+                    child++;
+                }
+                if (key <= keys[child]) {
+                    break;
+                }
+                nodes[i] = nodes[child];
+                keys[i] = keys[child];
+                i = child;
+            }
+            nodes[i] = node;
+            keys[i] = key;
+        }
+        return top;
+    }
+}
@@ -12,22 +12,45 @@ public class PathPlanningService {
     private static final String TAG = "PathPlanningService";
     private static final double ARRIVAL_THRESHOLD = 5.0; // 5 meters
     private static final double INSTRUCTION_UPDATE_THRESHOLD = 10.0; // 10 meters
+    private static final double OFF_ROUTE_THRESHOLD = 25.0; // 25 meters from the current leg
+    private static final int OFF_ROUTE_CONFIRM_FIXES = 3; // consecutive fixes before re-planning
+    private static final long MIN_TURN_CUE_INTERVAL_MS = 1500; // lets a cue finish before the next replaces it
 
     private DatabaseService databaseService;
     private LocationService locationService;
     private VoiceService voiceService;
+    private RoutingEngine routingEngine;
+    private NavigationRecorder navigationRecorder;
 
+    // Navigation state; progress updates come from the location pipeline thread
+    // and everything else from the main thread, so methods touching it are synchronized
     private CampusLocation startLocation;
     private CampusLocation destinationLocation;
     private List<NavigationInstruction> instructions;
+    private List<CampusLocation> waypoints;
     private int currentInstructionIndex = 0;
     private boolean isNavigating = false;
 
+    // Incremental re-planning when the walker leaves the route, created on first use
+    private DStarLite replanner;
+    private boolean replannerUnavailable = false;
+    private int offRouteFixes = 0;
+    private boolean rerouted = false;
+
+    // Clock-face direction of the current leg last spoken as a turn cue, 0 before the first
+    private int turnCueHour = 0;
+    private long lastTurnCueTime;
+    // Set when a new leg or route is announced, which already names its direction
+    private boolean turnCueAnnounced = false;
+
     public PathPlanningService(DatabaseService databaseService, LocationService locationService, VoiceService voiceService) {
         this.databaseService = databaseService;
         this.locationService = locationService;
         this.voiceService = voiceService;
+        this.routingEngine = RoutingEngine.getInstance(databaseService);
+        this.navigationRecorder = NavigationRecorder.getInstance(databaseService);
         this.instructions = new ArrayList<>();
+        this.waypoints = new ArrayList<>();
     }
 
     /**
@@ -36,26 +59,29 @@ public class PathPlanningService {
      * @param toLocationName Destination location name
      * @return true if path planned successfully, false otherwise
      */
-    public boolean planPath(String fromLocationName, String toLocationName) {
-        // Get locations from database
-        startLocation = getLocationByName(fromLocationName);
-        destinationLocation = getLocationByName(toLocationName);
-
-        if (startLocation == null) {
-            Log.e(TAG, "Start location not found: " + fromLocationName);
-            return false;
-        }
-
-        if (destinationLocation == null) {
-            Log.e(TAG, "Destination location not found: " + toLocationName);
+    public synchronized boolean planPath(String fromLocationName, String toLocationName) {
+        RouteCache.Entry route = resolveRoute(fromLocationName, toLocationName);
+        if (route == null) {
             return false;
         }
+        startLocation = route.getFrom();
+        destinationLocation = route.getTo();
 
         // Generate navigation instructions
-        instructions = generateNavigationInstructions(startLocation, destinationLocation);
+        waypoints = new ArrayList<>();
+        instructions = generateNavigationInstructions(route, waypoints);
         currentInstructionIndex = 0;
         isNavigating = true;
 
+        replanner = null;
+        replannerUnavailable = false;
+        offRouteFixes = 0;
+        rerouted = false;
+        turnCueHour = 0;
+        turnCueAnnounced = false;
+
+        navigationRecorder.startSession(startLocation.getId(), destinationLocation.getId());
+
         Log.d(TAG, "Path planned from " + fromLocationName + " to " + toLocationName +
                 " with " + instructions.size() + " instructions");
 
@@ -69,54 +95,126 @@ public class PathPlanningService {
      * @return List of navigation instructions
      */
     public List<NavigationInstruction> getNavigationInstructions(String fromLocationName, String toLocationName) {
-        CampusLocation fromLocation = getLocationByName(fromLocationName);
-        CampusLocation toLocation = getLocationByName(toLocationName);
-
-        if (fromLocation == null || toLocation == null) {
-            Log.e(TAG, "One or both locations not found");
+        RouteCache.Entry route = resolveRoute(fromLocationName, toLocationName);
+        if (route == null) {
             return new ArrayList<>();
         }
 
-        return generateNavigationInstructions(fromLocation, toLocation);
+        return generateNavigationInstructions(route, new ArrayList<CampusLocation>());
     }
 
     /**
-     * Generate step-by-step navigation instructions
+     * Look up the locations and walkway path for a pair of names, planning and
+     * caching the route on a cache miss
+     * @return The route, or null if either location does not exist
      */
-    private List<NavigationInstruction> generateNavigationInstructions(CampusLocation from, CampusLocation to) {
+    private RouteCache.Entry resolveRoute(String fromLocationName, String toLocationName) {
+        RouteCache routeCache = routingEngine.getRouteCache();
+        RouteCache.Entry route = routeCache.get(fromLocationName, toLocationName);
+        if (route != null) {
+            Log.d(TAG, "Route cache hit for " + fromLocationName + " -> " + toLocationName
+                    + " (" + routeCache.getHitCount() + " hits, " + routeCache.getMissCount() + " misses)");
+            return route;
+        }
+
+        // An edit landing while the route is planned must keep it out of the cache
+        long generation = routeCache.getGeneration();
+        CampusLocation from = getLocationByName(fromLocationName);
+        CampusLocation to = getLocationByName(toLocationName);
+
+        if (from == null) {
+            Log.e(TAG, "Start location not found: " + fromLocationName);
+            return null;
+        }
+
+        if (to == null) {
+            Log.e(TAG, "Destination location not found: " + toLocationName);
+            return null;
+        }
+
+        RoutingEngine.Path path = routingEngine.findPath(from.getId(), to.getId());
+        return routeCache.put(fromLocationName, toLocationName, from, to, path, generation);
+    }
+
+    /**
+     * Generate step-by-step navigation instructions, one per walkway leg.
+     * Falls back to a single straight-line instruction when the two locations
+     * are not connected in campus_routes.
+     * @param waypoints Filled with the locations the legs run between
+     */
+    private List<NavigationInstruction> generateNavigationInstructions(RouteCache.Entry route,
+                                                                       List<CampusLocation> waypoints) {
+        RoutingEngine.Path path = route.getPath();
+        if (path == null) {
+            Log.d(TAG, "No walkway path from " + route.getFrom().getName() + " to " + route.getTo().getName()
+                    + ", using direct route");
+            waypoints.add(route.getFrom());
+            waypoints.add(route.getTo());
+        } else {
+            waypoints.addAll(path.getWaypoints());
+        }
+
+        return buildInstructions(waypoints, path, 0);
+    }
+
+    /**
+     * Turn a list of waypoints into one instruction per leg
+     * @param path Walkway path the waypoints follow from firstPathLeg on, or null for straight lines
+     * @param firstPathLeg Number of leading straight-line legs before the walkway path starts
+     */
+    private List<NavigationInstruction> buildInstructions(List<CampusLocation> waypoints,
+                                                          RoutingEngine.Path path, int firstPathLeg) {
         List<NavigationInstruction> instructions = new ArrayList<>();
 
-        // Calculate total distance and bearing
-        double distance = LocationService.calculateDistance(
-                from.getLatitude(), from.getLongitude(),
-                to.getLatitude(), to.getLongitude()
-        );
+        int legCount = waypoints.size() - 1;
+        for (int leg = 0; leg < legCount; leg++) {
+            CampusLocation legStart = waypoints.get(leg);
+            CampusLocation legEnd = waypoints.get(leg + 1);
+            boolean onPath = path != null && leg >= firstPathLeg;
 
-        double bearing = LocationService.calculateBearing(
-                from.getLatitude(), from.getLongitude(),
-                to.getLatitude(), to.getLongitude()
-        );
+            double distance = onPath ? path.getLegDistance(leg - firstPathLeg) : LocationService.calculateDistance(
+                    legStart.getLatitude(), legStart.getLongitude(),
+                    legEnd.getLatitude(), legEnd.getLongitude()
+            );
 
-        int steps = locationService.calculateSteps(distance);
-        String direction = LocationService.getDirectionName(bearing);
+            double bearing = LocationService.calculateBearing(
+                    legStart.getLatitude(), legStart.getLongitude(),
+                    legEnd.getLatitude(), legEnd.getLongitude()
+            );
 
-        // For simplicity, we create a single instruction for direct navigation
-        // In a more complex system, this would be broken down into multiple waypoints
-        String instructionText = String.format("向%s方向走%.0f米，约%d步", direction, distance, steps);
+            int steps = locationService.calculateSteps(distance);
+            String instructionText = formatInstruction(bearing, distance, steps, leg, waypoints);
 
-        NavigationInstruction instruction = new NavigationInstruction(
-                1,
-                instructionText,
-                distance,
-                steps,
-                (int) bearing
-        );
+            String description = onPath ? path.getLegDescription(leg - firstPathLeg) : null;
+            if (description != null && !description.isEmpty()) {
+                instructionText += "（" + description + "）";
+            }
 
-        instructions.add(instruction);
+            instructions.add(new NavigationInstruction(
+                    leg + 1,
+                    instructionText,
+                    distance,
+                    steps,
+                    (int) bearing
+            ));
+        }
 
         return instructions;
     }
 
+    /**
+     * Build the spoken text for a leg; intermediate legs name the waypoint to walk to
+     */
+    private String formatInstruction(double bearing, double distance, int steps, int leg,
+                                     List<CampusLocation> waypoints) {
+        String direction = LocationService.getDirectionName(bearing);
+        if (leg < waypoints.size() - 2) {
+            return String.format("向%s方向走%.0f米，约%d步，到达%s",
+                    direction, distance, steps, waypoints.get(leg + 1).getName());
+        }
+        return String.format("向%s方向走%.0f米，约%d步", direction, distance, steps);
+    }
+
     /**
      * Update navigation progress based on current location
      * @param currentLat Current latitude
@@ -124,7 +222,7 @@ public class PathPlanningService {
      * @param destinationName Destination name
      * @return Current navigation instruction, or null if navigation is complete
      */
-    public NavigationInstruction updateNavigationProgress(double currentLat, double currentLon, String destinationName) {
+    public synchronized NavigationInstruction updateNavigationProgress(double currentLat, double currentLon, String destinationName) {
         if (!isNavigating || destinationLocation == null) {
             return null;
         }
@@ -139,29 +237,54 @@ public class PathPlanningService {
         // Check if arrived
         if (remainingDistance <= ARRIVAL_THRESHOLD) {
             isNavigating = false;
+            navigationRecorder.endSession(true);
+            locationService.setDistanceToNextManeuver(Double.NaN);
             voiceService.announceArrival(destinationName);
             return null;
         }
 
-        // Calculate bearing to destination
-        double bearing = LocationService.calculateBearing(
-                currentLat, currentLon,
-                destinationLocation.getLatitude(),
-                destinationLocation.getLongitude()
-        );
+        // Re-plan from the nearest walkway node after leaving the route
+        if (!replannerUnavailable && isOffRoute(currentLat, currentLon)) {
+            reroute(currentLat, currentLon);
+        }
 
-        // Update current instruction with new distance and bearing
+        // Move on to the next leg once the current waypoint has been reached
+        while (currentInstructionIndex < instructions.size() - 1) {
+            CampusLocation legTarget = waypoints.get(currentInstructionIndex + 1);
+            double legRemaining = LocationService.calculateDistance(
+                    currentLat, currentLon,
+                    legTarget.getLatitude(),
+                    legTarget.getLongitude()
+            );
+            if (legRemaining > INSTRUCTION_UPDATE_THRESHOLD) {
+                break;
+            }
+            nextInstruction();
+        }
+
+        // Update current instruction with distance and bearing to the leg target
         if (currentInstructionIndex < instructions.size()) {
+            CampusLocation legTarget = waypoints.get(currentInstructionIndex + 1);
+            double legDistance = LocationService.calculateDistance(
+                    currentLat, currentLon,
+                    legTarget.getLatitude(),
+                    legTarget.getLongitude()
+            );
+            double bearing = LocationService.calculateBearing(
+                    currentLat, currentLon,
+                    legTarget.getLatitude(),
+                    legTarget.getLongitude()
+            );
+
+            // Every leg ends in a turn or the destination
+            locationService.setDistanceToNextManeuver(legDistance);
+
             NavigationInstruction instruction = instructions.get(currentInstructionIndex);
-            instruction.setDistance(remainingDistance);
-            instruction.setSteps(locationService.calculateSteps(remainingDistance));
+            instruction.setDistance(legDistance);
+            instruction.setSteps(locationService.calculateSteps(legDistance));
             instruction.setBearing((int) bearing);
-
-            // Update instruction text
-            String direction = LocationService.getDirectionName(bearing);
-            String instructionText = String.format("向%s方向走%.0f米，约%d步",
-                    direction, remainingDistance, instruction.getSteps());
-            instruction.setInstruction(instructionText);
+            instruction.setInstruction(formatInstruction(bearing, legDistance,
+                    instruction.getSteps(), currentInstructionIndex, waypoints));
 
             return instruction;
         }
@@ -169,10 +292,129 @@ public class PathPlanningService {
         return null;
     }
 
+    /**
+     * Speak a relative turn cue when the current leg's clock-face direction,
+     * as seen from where the user faces, changes; meant to be called at
+     * sensor rate, so a turn is answered at once instead of at the next fix
+     * @param heading Facing direction in degrees from true north
+     */
+    public synchronized void updateHeading(double heading, long timeMillis) {
+        if (!isNavigating || currentInstructionIndex >= instructions.size() || Double.isNaN(heading)) {
+            return;
+        }
+        double relative = HeadingFusion.relativeBearing(
+                instructions.get(currentInstructionIndex).getBearing(), heading);
+        int hour = HeadingFusion.toClockHour(relative, turnCueHour);
+        if (hour == turnCueHour) {
+            return;
+        }
+        if (turnCueHour == 0) {
+            // Nothing to say yet when the user already faces the right way,
+            // or when the leg's announcement has just given the direction
+            turnCueHour = hour;
+            lastTurnCueTime = timeMillis;
+            if (hour == 12 || turnCueAnnounced) {
+                turnCueAnnounced = false;
+                return;
+            }
+        } else if (timeMillis - lastTurnCueTime < MIN_TURN_CUE_INTERVAL_MS) {
+            // Checked again with the next reading
+            return;
+        }
+        turnCueHour = hour;
+        lastTurnCueTime = timeMillis;
+        voiceService.announceTurnCue(hour);
+    }
+
+    /**
+     * Track how far the walker is from the current leg; true once they have
+     * been off it for several consecutive fixes, so single GPS jumps are ignored
+     */
+    private boolean isOffRoute(double currentLat, double currentLon) {
+        if (currentInstructionIndex >= waypoints.size() - 1) {
+            return false;
+        }
+
+        CampusLocation legStart = waypoints.get(currentInstructionIndex);
+        CampusLocation legEnd = waypoints.get(currentInstructionIndex + 1);
+        double offset = LocationService.calculateDistanceToSegment(
+                currentLat, currentLon,
+                legStart.getLatitude(), legStart.getLongitude(),
+                legEnd.getLatitude(), legEnd.getLongitude()
+        );
+
+        if (offset > OFF_ROUTE_THRESHOLD) {
+            offRouteFixes++;
+        } else {
+            offRouteFixes = 0;
+        }
+        return offRouteFixes >= OFF_ROUTE_CONFIRM_FIXES;
+    }
+
+    /**
+     * Replace the remaining instructions with a new route from the current position
+     */
+    private void reroute(double currentLat, double currentLon) {
+        offRouteFixes = 0;
+        // Start over when the walkways were edited since the re-planner was built
+        if (replanner == null || replanner.getGraph() != routingEngine.getGraph()) {
+            replanner = routingEngine.createReplanner(startLocation.getId(), destinationLocation.getId());
+            if (replanner == null) {
+                Log.w(TAG, "No walkway path to " + destinationLocation.getName() + ", not re-planning");
+                replannerUnavailable = true;
+                return;
+            }
+        }
+
+        int nearestNode = replanner.getGraph().nearestConnectedNode(currentLat, currentLon);
+        if (nearestNode < 0) {
+            return;
+        }
+
+        long startTime = System.nanoTime();
+        RoutingEngine.Path path = replanner.moveStart(nearestNode);
+        if (path == null) {
+            Log.w(TAG, "Re-planning found no walkway path to " + destinationLocation.getName());
+            return;
+        }
+
+        // Lead the walker back to the walkway network first if they are away from it
+        List<CampusLocation> newWaypoints = new ArrayList<>();
+        int firstPathLeg = 0;
+        CampusLocation rejoin = path.getWaypoints().get(0);
+        double rejoinDistance = LocationService.calculateDistance(
+                currentLat, currentLon,
+                rejoin.getLatitude(), rejoin.getLongitude()
+        );
+        if (rejoinDistance > INSTRUCTION_UPDATE_THRESHOLD || path.getWaypoints().size() < 2) {
+            newWaypoints.add(new CampusLocation(0, "当前位置", currentLat, currentLon, null, null, null));
+            firstPathLeg = 1;
+        }
+        newWaypoints.addAll(path.getWaypoints());
+
+        waypoints = newWaypoints;
+        instructions = buildInstructions(waypoints, path, firstPathLeg);
+        currentInstructionIndex = 0;
+        rerouted = true;
+        resetTurnCue();
+
+        Log.d(TAG, "Re-planned with " + replanner.getExpandedCount() + " expansions in "
+                + (System.nanoTime() - startTime) / 1000 + "us, " + instructions.size() + " instructions");
+    }
+
+    /**
+     * Check whether the last progress update replaced the route, and clear the flag
+     */
+    public synchronized boolean consumeReroute() {
+        boolean result = rerouted;
+        rerouted = false;
+        return result;
+    }
+
     /**
      * Get current instruction
      */
-    public NavigationInstruction getCurrentInstruction() {
+    public synchronized NavigationInstruction getCurrentInstruction() {
         if (currentInstructionIndex < instructions.size()) {
             return instructions.get(currentInstructionIndex);
         }
@@ -182,42 +424,63 @@ public class PathPlanningService {
     /**
      * Advance to next instruction
      */
-    public boolean nextInstruction() {
+    public synchronized boolean nextInstruction() {
         if (currentInstructionIndex < instructions.size() - 1) {
             currentInstructionIndex++;
+            resetTurnCue();
             return true;
         }
         return false;
     }
 
+    /**
+     * Start turn cues over for a new leg, so the last leg's hour and its
+     * hysteresis do not carry over and the leg's own announcement is not repeated
+     */
+    private void resetTurnCue() {
+        turnCueHour = 0;
+        turnCueAnnounced = true;
+    }
+
     /**
      * Get total number of instructions
      */
-    public int getTotalInstructions() {
+    public synchronized int getTotalInstructions() {
         return instructions.size();
     }
 
     /**
      * Get current instruction index
      */
-    public int getCurrentInstructionIndex() {
+    public synchronized int getCurrentInstructionIndex() {
         return currentInstructionIndex;
     }
 
     /**
      * Check if navigation is in progress
      */
-    public boolean isNavigating() {
+    public synchronized boolean isNavigating() {
         return isNavigating;
     }
 
     /**
      * Stop navigation
      */
-    public void stopNavigation() {
+    public synchronized void stopNavigation() {
+        if (isNavigating) {
+            navigationRecorder.endSession(false);
+            locationService.setDistanceToNextManeuver(Double.NaN);
+        }
         isNavigating = false;
         instructions.clear();
+        waypoints.clear();
         currentInstructionIndex = 0;
+        replanner = null;
+        replannerUnavailable = false;
+        offRouteFixes = 0;
+        rerouted = false;
+        turnCueHour = 0;
+        turnCueAnnounced = false;
     }
 
     /**
@@ -262,35 +525,13 @@ public class PathPlanningService {
      * Get nearest location to current position
      */
     public CampusLocation findNearestLocation(double currentLat, double currentLon) {
-        List<CampusLocation> allLocations = databaseService.getAllLocations();
-
-        if (allLocations.isEmpty()) {
-            return null;
-        }
-
-        CampusLocation nearest = null;
-        double minDistance = Double.MAX_VALUE;
-
-        for (CampusLocation location : allLocations) {
-            double distance = LocationService.calculateDistance(
-                    currentLat, currentLon,
-                    location.getLatitude(),
-                    location.getLongitude()
-            );
-
-            if (distance < minDistance) {
-                minDistance = distance;
-                nearest = location;
-            }
-        }
-
-        return nearest;
+        return routingEngine.findNearestLocation(currentLat, currentLon);
     }
 
     /**
      * Get remaining distance to destination
      */
-    public double getRemainingDistance(double currentLat, double currentLon) {
+    public synchronized double getRemainingDistance(double currentLat, double currentLon) {
         if (destinationLocation == null) {
             return -1;
         }
@@ -305,7 +546,7 @@ public class PathPlanningService {
     /**
      * Get bearing to destination from current position
      */
-    public double getBearingToDestination(double currentLat, double currentLon) {
+    public synchronized double getBearingToDestination(double currentLat, double currentLon) {
         if (destinationLocation == null) {
             return -1;
         }
@@ -0,0 +1,198 @@
+package com.heibeieast.campusnav.services;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Locale;
+
+/**
+ * Records step, heading and location events during tracking and replays such
+ * logs through {@link DeadReckoning} to measure how far it drifts.
+ * A log is plain text, one event per line, times in elapsed-realtime milliseconds:
+ * <pre>
+ * 120345,step
+ * 120352,heading,93.5
+ * 121002,fix,45.712345,126.612345,4.0
+ * </pre>
+ * Replay restarts dead reckoning from a good fix, then runs on steps and
+ * headings alone for a simulated GPS outage; every good fix inside the outage
+ * is compared with the dead-reckoned position. The result tells how many
+ * meters of error a meter of walking adds, which is what decides how long an
+ * outage navigation can bridge.
+ */
+public class PdrReplay {
+    private static final String STEP = "step";
+    private static final String HEADING = "heading";
+    static final String FIX = "fix";
+    // Fixes worse than this (m) are neither anchors nor references
+    private static final float MAX_REFERENCE_ACCURACY = 8;
+
+    private PdrReplay() {
+    }
+
+    /**
+     * Appends events to a log; errors are remembered instead of thrown so
+     * logging never interrupts navigation
+     */
+    public static class LogWriter {
+        private final Writer writer;
+        private IOException error;
+
+        public LogWriter(Writer writer) {
+            this.writer = writer;
+        }
+
+        public void step(long timeMillis) {
+            write(timeMillis + "," + STEP + "\n");
+        }
+
+        public void heading(long timeMillis, double degrees) {
+            write(String.format(Locale.ROOT, "%d,%s,%.1f%n", timeMillis, HEADING, degrees));
+        }
+
+        public void fix(long timeMillis, double latitude, double longitude, float accuracy) {
+            write(String.format(Locale.ROOT, "%d,%s,%.7f,%.7f,%.1f%n", timeMillis, FIX, latitude, longitude, accuracy));
+        }
+
+        public void close() {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+
+        /**
+         * First write error, or null
+         */
+        public IOException getError() {
+            return error;
+        }
+
+        private void write(String line) {
+            if (error != null) {
+                return;
+            }
+            try {
+                writer.write(line);
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+    }
+
+    /**
+     * Drift measured over one log
+     */
+    public static class Result {
+        private int outages;
+        private int samples;
+        private double errorSum;
+        private double maxError;
+        // Error and distance walked at the last sample of each outage
+        private double endErrorSum;
+        private double endWalkedSum;
+
+        public int getOutages() {
+            return outages;
+        }
+
+        /**
+         * Number of fixes compared with the dead-reckoned position
+         */
+        public int getSamples() {
+            return samples;
+        }
+
+        public double getMeanError() {
+            return samples == 0 ? 0 : errorSum / samples;
+        }
+
+        public double getMaxError() {
+            return maxError;
+        }
+
+        /**
+         * Meters of error per meter walked, taken at the end of each outage
+         * where drift rather than fix noise dominates
+         */
+        public double getDriftPerMeter() {
+            return endWalkedSum == 0 ? 0 : endErrorSum / endWalkedSum;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%d outages, %d samples, mean %.1f m, max %.1f m, %.1f%% of distance",
+                    outages, samples, getMeanError(), maxError, getDriftPerMeter() * 100);
+        }
+    }
+
+    /**
+     * Replay a log with simulated GPS outages
+     * @param stepLength Step length in meters
+     * @param outageMillis How long each simulated outage lasts
+     */
+    public static Result replay(Reader log, double stepLength, long outageMillis) throws IOException {
+        DeadReckoning deadReckoning = new DeadReckoning(stepLength);
+        Result result = new Result();
+        long outageEnd = -1;
+        double lastError = 0;
+        double lastWalked = 0;
+
+        BufferedReader reader = new BufferedReader(log);
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split(",");
+            try {
+                long time = Long.parseLong(fields[0]);
+                String type = fields[1];
+                if (STEP.equals(type)) {
+                    deadReckoning.onStep(time);
+                } else if (HEADING.equals(type)) {
+                    deadReckoning.onHeading(Double.parseDouble(fields[2]), time);
+                } else if (FIX.equals(type)) {
+                    double latitude = Double.parseDouble(fields[2]);
+                    double longitude = Double.parseDouble(fields[3]);
+                    float accuracy = Float.parseFloat(fields[4]);
+                    if (accuracy > MAX_REFERENCE_ACCURACY) {
+                        continue;
+                    }
+                    if (outageEnd >= 0 && time < outageEnd) {
+                        if (deadReckoning.getDistanceWalked() > 0) {
+                            double error = LocationService.calculateDistance(latitude, longitude,
+                                    deadReckoning.getLatitude(), deadReckoning.getLongitude());
+                            result.samples++;
+                            result.errorSum += error;
+                            result.maxError = Math.max(result.maxError, error);
+                            lastError = error;
+                            lastWalked = deadReckoning.getDistanceWalked();
+                        }
+                    } else {
+                        // The outage is over; start the next one from this fix
+                        result.endErrorSum += lastError;
+                        result.endWalkedSum += lastWalked;
+                        lastError = 0;
+                        lastWalked = 0;
+                        deadReckoning.anchor(latitude, longitude, accuracy, time);
+                        outageEnd = time + outageMillis;
+                        result.outages++;
+                    }
+                } else {
+                    throw new IOException("Unknown event '" + type + "' on line " + lineNumber);
+                }
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                throw new IOException("Malformed line " + lineNumber + ": " + line, e);
+            }
+        }
+        result.endErrorSum += lastError;
+        result.endWalkedSum += lastWalked;
+        return result;
+    }
+}
@@ -0,0 +1,373 @@
+package com.heibeieast.campusnav.services;
+
+import android.location.Location;
+import android.os.SystemClock;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+/**
+ * Plays a recorded or synthetic trace as if it came from the location
+ * providers, so navigation can be driven without walking around: on a
+ * device for debugging, and on the JVM for regression tests and benchmarks
+ * of the per-fix pipeline.
+ * Traces come from recorded navigations ({@link TraceCodec}), from motion
+ * logs or plain CSV, from GPX files, or from a generated walk along
+ * waypoints. They play on their own thread at real time, a multiple of it,
+ * or as fast as the listener takes them. Timestamps are shifted so the trace
+ * starts when the source is started, and fixes closer together than the
+ * requested interval are skipped like a provider would.
+ */
+public class ReplayLocationSource implements LocationSource {
+    public static final String PROVIDER = "replay";
+    // Accuracy (m) for fixes that carry none, and per unit of GPX HDOP
+    private static final float DEFAULT_ACCURACY = 5;
+    private static final float METERS_PER_HDOP = 5;
+    // A recorded fix this much early still counts as due
+    private static final long INTERVAL_TOLERANCE_MS = 100;
+    private static final double EARTH_RADIUS = 6371000;
+
+    private final List<Fix> fixes;
+    private volatile double speed = 1;
+    private volatile long intervalMillis;
+    private volatile Listener listener;
+    private volatile Location lastFix;
+
+    private Thread thread;
+    private CountDownLatch finished = new CountDownLatch(0);
+    // Replay clock: elapsed realtime at the start plus trace time played since
+    private volatile long baseElapsed = -1;
+    private volatile long baseNanos;
+    private volatile long playedUntil;
+
+    /**
+     * One fix of a trace; time in milliseconds on any clock
+     */
+    private static final class Fix {
+        final long time;
+        final double latitude;
+        final double longitude;
+        final float accuracy;
+
+        Fix(long time, double latitude, double longitude, float accuracy) {
+            this.time = time;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.accuracy = accuracy;
+        }
+    }
+
+    private ReplayLocationSource(List<Fix> fixes) {
+        this.fixes = Collections.unmodifiableList(fixes);
+    }
+
+    /**
+     * Replay a recorded navigation, see {@link DatabaseService#readTrace}
+     */
+    public static ReplayLocationSource fromTrace(TraceCodec.Reader trace) {
+        List<Fix> fixes = new ArrayList<>();
+        while (trace.next()) {
+            fixes.add(new Fix(trace.getTime(), trace.getLatitude(), trace.getLongitude(), trace.getAccuracy()));
+        }
+        return new ReplayLocationSource(fixes);
+    }
+
+    /**
+     * Replay the fixes of a CSV file. Lines are either
+     * {@code time,latitude,longitude[,accuracy]} or the fix lines of a
+     * {@link PdrReplay} motion log, whose step and heading lines are skipped.
+     */
+    public static ReplayLocationSource fromCsv(Reader csv) throws IOException {
+        List<Fix> fixes = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(csv);
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split(",");
+            try {
+                long time = Long.parseLong(fields[0].trim());
+                int first = 1;
+                if (!isNumber(fields[1])) {
+                    if (!PdrReplay.FIX.equals(fields[1].trim())) {
+                        continue;
+                    }
+                    first = 2;
+                }
+                float accuracy = fields.length > first + 2
+                        ? Float.parseFloat(fields[first + 2].trim()) : DEFAULT_ACCURACY;
+                fixes.add(new Fix(time, Double.parseDouble(fields[first].trim()),
+                        Double.parseDouble(fields[first + 1].trim()), accuracy));
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                throw new IOException("Malformed line " + lineNumber + ": " + line, e);
+            }
+        }
+        return new ReplayLocationSource(fixes);
+    }
+
+    /**
+     * Replay the track points of a GPX file; points without a time are skipped
+     */
+    public static ReplayLocationSource fromGpx(InputStream gpx) throws IOException {
+        Document document;
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(false);
+            document = factory.newDocumentBuilder().parse(gpx);
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new IOException("Unreadable GPX", e);
+        }
+
+        SimpleDateFormat seconds = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss", Locale.ROOT);
+        seconds.setTimeZone(TimeZone.getTimeZone("UTC"));
+        List<Fix> fixes = new ArrayList<>();
+        NodeList points = document.getElementsByTagName("trkpt");
+        for (int i = 0; i < points.getLength(); i++) {
+            Element point = (Element) points.item(i);
+            String time = childText(point, "time");
+            if (time == null) {
+                continue;
+            }
+            try {
+                String hdop = childText(point, "hdop");
+                float accuracy = hdop != null ? Float.parseFloat(hdop) * METERS_PER_HDOP : DEFAULT_ACCURACY;
+                fixes.add(new Fix(parseGpxTime(seconds, time), Double.parseDouble(point.getAttribute("lat")),
+                        Double.parseDouble(point.getAttribute("lon")), accuracy));
+            } catch (NumberFormatException | ParseException e) {
+                throw new IOException("Malformed track point " + (i + 1), e);
+            }
+        }
+        return new ReplayLocationSource(fixes);
+    }
+
+    /**
+     * A generated walk along waypoints with one noisy fix per second
+     * @param waypoints Latitude and longitude pairs
+     * @param walkingSpeed Speed in m/s
+     * @param accuracy Reported accuracy in meters; the noise is scaled to match it
+     * @param seed Seed of the noise, so the same arguments always give the same trace
+     */
+    public static ReplayLocationSource walk(double[][] waypoints, double walkingSpeed, float accuracy, long seed) {
+        Random random = new Random(seed);
+        // Android's accuracy is the radius holding 68% of fixes, about 1.5 sigma in two dimensions
+        double sigma = accuracy / 1.5;
+        List<Fix> fixes = new ArrayList<>();
+        long time = 0;
+        double carried = 0;
+        for (int i = 0; i + 1 < waypoints.length; i++) {
+            double[] from = waypoints[i];
+            double[] to = waypoints[i + 1];
+            double length = LocationService.calculateDistance(from[0], from[1], to[0], to[1]);
+            double metersPerDegreeLatitude = Math.toRadians(1) * EARTH_RADIUS;
+            double metersPerDegreeLongitude = metersPerDegreeLatitude * Math.cos(Math.toRadians(from[0]));
+            // One fix for every walkingSpeed meters, continuing the spacing across waypoints
+            double along = carried;
+            for (; along < length; along += walkingSpeed) {
+                double fraction = length == 0 ? 0 : along / length;
+                double latitude = from[0] + (to[0] - from[0]) * fraction
+                        + random.nextGaussian() * sigma / metersPerDegreeLatitude;
+                double longitude = from[1] + (to[1] - from[1]) * fraction
+                        + random.nextGaussian() * sigma / metersPerDegreeLongitude;
+                fixes.add(new Fix(time, latitude, longitude, accuracy));
+                time += SamplingScheduler.BASE_INTERVAL_MS;
+            }
+            carried = along - length;
+        }
+        double[] end = waypoints[waypoints.length - 1];
+        fixes.add(new Fix(time, end[0], end[1], accuracy));
+        return new ReplayLocationSource(fixes);
+    }
+
+    /**
+     * Playback speed as a multiple of real time; 0 or less plays every fix
+     * as soon as the listener returned from the previous one. Set before starting.
+     */
+    public void setSpeed(double speed) {
+        this.speed = speed;
+    }
+
+    public int getFixCount() {
+        return fixes.size();
+    }
+
+    /**
+     * Wait until the started trace has played to its end
+     * @return false on timeout
+     */
+    public boolean awaitEnd(long timeoutMillis) throws InterruptedException {
+        CountDownLatch current;
+        synchronized (this) {
+            current = finished;
+        }
+        return current.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return !fixes.isEmpty();
+    }
+
+    /**
+     * The last fix played, or null before the first
+     */
+    @Override
+    public Location getLastKnownFix() {
+        return lastFix;
+    }
+
+    @Override
+    public synchronized void start(Listener listener, long intervalMillis) {
+        stop();
+        this.listener = listener;
+        this.intervalMillis = intervalMillis;
+        lastFix = null;
+        baseElapsed = SystemClock.elapsedRealtime();
+        baseNanos = System.nanoTime();
+        playedUntil = baseElapsed;
+        finished = new CountDownLatch(1);
+        final CountDownLatch done = finished;
+        final long startWallTime = System.currentTimeMillis();
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    play(startWallTime);
+                } finally {
+                    done.countDown();
+                }
+            }
+        }, "LocationReplay");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void setInterval(long intervalMillis) {
+        this.intervalMillis = intervalMillis;
+    }
+
+    @Override
+    public synchronized void stop() {
+        listener = null;
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    /**
+     * Time on the replay clock, which runs at the playback speed from the start
+     */
+    @Override
+    public long getElapsedRealtime() {
+        if (baseElapsed < 0) {
+            return SystemClock.elapsedRealtime();
+        }
+        if (speed > 0) {
+            return baseElapsed + (long) ((System.nanoTime() - baseNanos) * speed / 1000000);
+        }
+        return playedUntil;
+    }
+
+    @Override
+    public boolean isLive() {
+        return false;
+    }
+
+    private void play(long startWallTime) {
+        if (fixes.isEmpty()) {
+            return;
+        }
+        long firstTime = fixes.get(0).time;
+        long lastPlayed = Long.MIN_VALUE;
+        for (Fix fix : fixes) {
+            long offset = fix.time - firstTime;
+            if (lastPlayed != Long.MIN_VALUE && offset - lastPlayed < intervalMillis - INTERVAL_TOLERANCE_MS) {
+                continue;
+            }
+            double currentSpeed = speed;
+            try {
+                if (currentSpeed > 0) {
+                    long wait = baseNanos + (long) (offset * 1000000 / currentSpeed) - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                } else if (Thread.interrupted()) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            Listener current = listener;
+            if (current == null) {
+                return;
+            }
+            lastPlayed = offset;
+            playedUntil = baseElapsed + offset;
+
+            Location location = new Location(PROVIDER);
+            location.setLatitude(fix.latitude);
+            location.setLongitude(fix.longitude);
+            location.setAccuracy(fix.accuracy);
+            location.setTime(startWallTime + offset);
+            location.setElapsedRealtimeNanos((baseElapsed + offset) * 1000000);
+            lastFix = location;
+            current.onFix(location);
+        }
+    }
+
+    private static boolean isNumber(String field) {
+        try {
+            Double.parseDouble(field.trim());
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static String childText(Element element, String tag) {
+        NodeList children = element.getElementsByTagName(tag);
+        return children.getLength() == 0 ? null : children.item(0).getTextContent().trim();
+    }
+
+    /**
+     * Milliseconds of an ISO 8601 GPX time such as 2024-05-01T08:00:00.250Z
+     */
+    private static long parseGpxTime(SimpleDateFormat seconds, String text) throws ParseException {
+        String value = text.endsWith("Z") ? text.substring(0, text.length() - 1) : text;
+        long millis = 0;
+        int dot = value.indexOf('.');
+        if (dot >= 0) {
+            String fraction = (value.substring(dot + 1) + "000").substring(0, 3);
+            millis = Long.parseLong(fraction);
+            value = value.substring(0, dot);
+        }
+        Date date = seconds.parse(value);
+        return date.getTime() + millis;
+    }
+}
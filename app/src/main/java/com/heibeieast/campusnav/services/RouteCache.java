@@ -0,0 +1,206 @@
+package com.heibeieast.campusnav.services;
+
+import com.heibeieast.campusnav.models.CampusLocation;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least-recently-used cache of planned routes keyed by start and destination name.
+ * Only the resolved locations and the walkway path are kept; instructions are
+ * rebuilt from them because they are mutated during navigation and their step
+ * counts depend on the current step length.
+ * Entries are dropped by {@link RoutingEngine} when the data they were built
+ * from changes, so a cached route never outlives its locations or walkways.
+ */
+public class RouteCache {
+    private static final int DEFAULT_CAPACITY = 32;
+
+    private final int capacity;
+    private final LinkedHashMap<String, Entry> entries;
+
+    private int hits;
+    private int misses;
+    private int invalidations;
+    // Bumped by every invalidation, so a route planned across one is not stored
+    private long generation;
+
+    /**
+     * A cached route; the path is null when the locations are not connected by walkways
+     */
+    public static class Entry {
+        private final CampusLocation from;
+        private final CampusLocation to;
+        private final RoutingEngine.Path path;
+
+        Entry(CampusLocation from, CampusLocation to, RoutingEngine.Path path) {
+            this.from = from;
+            this.to = to;
+            this.path = path;
+        }
+
+        public CampusLocation getFrom() {
+            return from;
+        }
+
+        public CampusLocation getTo() {
+            return to;
+        }
+
+        public RoutingEngine.Path getPath() {
+            return path;
+        }
+
+        /**
+         * Whether the route starts at, ends at or passes through a location
+         */
+        boolean uses(long locationId) {
+            if (from.getId() == locationId || to.getId() == locationId) {
+                return true;
+            }
+            if (path != null) {
+                for (CampusLocation waypoint : path.getWaypoints()) {
+                    if (waypoint.getId() == locationId) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Length of the route as it would be walked, used to check whether a new walkway could beat it
+         */
+        double getDistance() {
+            if (path != null) {
+                return path.getTotalDistance();
+            }
+            return LocationService.calculateDistance(from.getLatitude(), from.getLongitude(),
+                    to.getLatitude(), to.getLongitude());
+        }
+    }
+
+    public RouteCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public RouteCache(final int capacity) {
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > RouteCache.this.capacity;
+            }
+        };
+    }
+
+    private static String key(String fromName, String toName) {
+        return fromName + '\u0000' + toName;
+    }
+
+    /**
+     * Look up a route, counting the hit or miss
+     * @return The cached route, or null if it has to be planned
+     */
+    public synchronized Entry get(String fromName, String toName) {
+        Entry entry = entries.get(key(fromName, toName));
+        if (entry != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return entry;
+    }
+
+    /**
+     * Current invalidation generation; read it before looking up the data a route is planned from
+     */
+    synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Store a planned route unless the data changed since it was planned
+     * @param generation The value of {@link #getGeneration()} before planning started
+     * @return The route, which is returned but not cached if it may be stale
+     */
+    synchronized Entry put(String fromName, String toName, CampusLocation from, CampusLocation to,
+                           RoutingEngine.Path path, long generation) {
+        Entry entry = new Entry(from, to, path);
+        if (generation == this.generation) {
+            entries.put(key(fromName, toName), entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Drop every route that starts at, ends at or passes through a location
+     */
+    synchronized void invalidateLocation(long locationId) {
+        generation++;
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().uses(locationId)) {
+                iterator.remove();
+                invalidations++;
+            }
+        }
+    }
+
+    /**
+     * Drop the routes a new walkway between two locations could shorten.
+     * Any route using the walkway is at least as long as the straight-line
+     * distance to one end, plus the walkway, plus the straight-line distance
+     * from the other end; routes already shorter than that bound stay valid.
+     * Routes without a walkway path are always dropped since the new walkway may connect them.
+     * @param length Walkway length in meters as stored in the routing graph
+     */
+    synchronized void invalidateForWalkway(CampusLocation u, CampusLocation v, double length) {
+        generation++;
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.path == null || lowerBoundThrough(entry, u, v, length) < entry.getDistance()) {
+                iterator.remove();
+                invalidations++;
+            }
+        }
+    }
+
+    private static double lowerBoundThrough(Entry entry, CampusLocation u, CampusLocation v, double length) {
+        double viaUV = straightLine(entry.from, u) + length + straightLine(v, entry.to);
+        double viaVU = straightLine(entry.from, v) + length + straightLine(u, entry.to);
+        return Math.min(viaUV, viaVU);
+    }
+
+    private static double straightLine(CampusLocation a, CampusLocation b) {
+        return LocationService.calculateDistance(a.getLatitude(), a.getLongitude(),
+                b.getLatitude(), b.getLongitude());
+    }
+
+    public synchronized void clear() {
+        generation++;
+        invalidations += entries.size();
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized int getHitCount() {
+        return hits;
+    }
+
+    public synchronized int getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Number of entries dropped because their data changed (capacity evictions are not counted)
+     */
+    public synchronized int getInvalidationCount() {
+        return invalidations;
+    }
+}
@@ -0,0 +1,391 @@
+package com.heibeieast.campusnav.services;
+
+import android.os.Process;
+import android.util.Log;
+
+import com.heibeieast.campusnav.models.CampusGraph;
+import com.heibeieast.campusnav.models.CampusLocation;
+import com.heibeieast.campusnav.models.Route;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Routing over the campus walkway graph stored in campus_routes.
+ * The graph is read from the database once into a {@link CampusGraph}, so a
+ * search never touches SQLite while expanding nodes. An {@link AStarSearch}
+ * keeps its state in primitive arrays that are reused between queries.
+ * Larger campuses additionally get a {@link ContractionHierarchy}, stored next
+ * to campus_nav.db and rebuilt in the background only when the graph changes;
+ * until it is ready queries fall back to A*. Builds run one at a time, and a
+ * build whose graph has been dropped by the time it starts is skipped.
+ * One engine is shared by all screens; it listens for location and walkway
+ * edits and drops the graph and the affected cached routes when they happen.
+ * It also keeps a {@link SpatialIndex} of all locations for nearest-location
+ * queries, which is updated in place on edits rather than rebuilt.
+ */
+public class RoutingEngine implements DatabaseService.DataChangeListener {
+    private static final String TAG = "RoutingEngine";
+    private static final int HIERARCHY_MIN_NODES = 200; // smaller campuses are instant with A*
+
+    private static RoutingEngine instance;
+
+    private final DatabaseService databaseService;
+    private final ExecutorService hierarchyExecutor;
+    private final RouteCache routeCache;
+
+    private CampusGraph graph;
+    private volatile ContractionHierarchy hierarchy;
+    private SpatialIndex locationIndex;
+    private AStarSearch search;
+
+    /**
+     * Result of a successful search: the visited locations in order plus the
+     * walkway taken to reach each of them (leg i leads to waypoint i + 1)
+     */
+    public static class Path {
+        private final List<CampusLocation> waypoints;
+        private final float[] legDistances;
+        private final String[] legDescriptions;
+        private final double totalDistance;
+
+        Path(List<CampusLocation> waypoints, float[] legDistances, String[] legDescriptions, double totalDistance) {
+            this.waypoints = waypoints;
+            this.legDistances = legDistances;
+            this.legDescriptions = legDescriptions;
+            this.totalDistance = totalDistance;
+        }
+
+        public List<CampusLocation> getWaypoints() {
+            return waypoints;
+        }
+
+        public double getLegDistance(int leg) {
+            return legDistances[leg];
+        }
+
+        public String getLegDescription(int leg) {
+            return legDescriptions[leg];
+        }
+
+        public double getTotalDistance() {
+            return totalDistance;
+        }
+
+        /**
+         * Build a path from graph nodes and the arcs joining them
+         * @param nodes Nodes from start to destination
+         * @param arcs Arc between nodes[i] and nodes[i + 1], in either direction
+         */
+        static Path fromNodes(CampusGraph graph, int[] nodes, int[] arcs) {
+            int legCount = arcs.length;
+            List<CampusLocation> waypoints = new ArrayList<>(legCount + 1);
+            float[] legDistances = new float[legCount];
+            String[] legDescriptions = new String[legCount];
+            double totalDistance = 0;
+            waypoints.add(graph.getLocation(nodes[0]));
+            for (int leg = 0; leg < legCount; leg++) {
+                waypoints.add(graph.getLocation(nodes[leg + 1]));
+                legDistances[leg] = graph.getWeight(arcs[leg]);
+                legDescriptions[leg] = graph.getDescription(arcs[leg]);
+                totalDistance += legDistances[leg];
+            }
+            return new Path(waypoints, legDistances, legDescriptions, totalDistance);
+        }
+    }
+
+    private RoutingEngine(DatabaseService databaseService) {
+        this.databaseService = databaseService;
+        this.routeCache = new RouteCache();
+        this.hierarchyExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, "ContractionHierarchy");
+            }
+        });
+    }
+
+    public static synchronized RoutingEngine getInstance(DatabaseService databaseService) {
+        if (instance == null) {
+            instance = new RoutingEngine(databaseService);
+            databaseService.addDataChangeListener(instance);
+        }
+        return instance;
+    }
+
+    /**
+     * Drop the shared engine so the next getInstance reads a fresh database; for tests
+     */
+    static synchronized void resetInstance() {
+        if (instance != null) {
+            instance.databaseService.removeDataChangeListener(instance);
+            instance.hierarchyExecutor.shutdownNow();
+            instance = null;
+        }
+    }
+
+    public RouteCache getRouteCache() {
+        return routeCache;
+    }
+
+    /**
+     * Get the index of all campus locations, loading it from the database on first use.
+     * Only called with the engine locked.
+     */
+    private SpatialIndex getLocationIndex() {
+        if (locationIndex == null) {
+            long startTime = System.nanoTime();
+            locationIndex = SpatialIndex.of(databaseService.getAllLocations());
+            Log.d(TAG, "Location index built with " + locationIndex.size() + " locations in "
+                    + (System.nanoTime() - startTime) / 1000 + "us");
+        }
+        return locationIndex;
+    }
+
+    /**
+     * Closest campus location to a position
+     * @return The location, or null if there are none
+     */
+    public synchronized CampusLocation findNearestLocation(double latitude, double longitude) {
+        return getLocationIndex().nearest(latitude, longitude);
+    }
+
+    /**
+     * Up to k closest campus locations to a position, nearest first
+     */
+    public synchronized List<CampusLocation> findNearestLocations(double latitude, double longitude, int k) {
+        return getLocationIndex().kNearest(latitude, longitude, k);
+    }
+
+    /**
+     * Campus locations within a radius of a position, nearest first
+     * @param radius Radius in meters
+     */
+    public synchronized List<CampusLocation> findLocationsWithin(double latitude, double longitude, double radius) {
+        return getLocationIndex().withinRadius(latitude, longitude, radius);
+    }
+
+    /**
+     * Get the routing graph, loading it from the database on first use
+     */
+    public synchronized CampusGraph getGraph() {
+        if (graph == null) {
+            long startTime = System.nanoTime();
+            graph = databaseService.loadCampusGraph();
+
+            int nodeCount = graph.getNodeCount();
+            search = new AStarSearch(graph);
+
+            Log.d(TAG, "Graph built with " + nodeCount + " nodes and " + graph.getArcCount() / 2
+                    + " walkways in " + (System.nanoTime() - startTime) / 1000 + "us");
+
+            if (nodeCount >= HIERARCHY_MIN_NODES) {
+                prepareHierarchy(graph);
+            }
+        }
+        return graph;
+    }
+
+    /**
+     * Load the stored contraction hierarchy, or build and store a new one if
+     * the graph changed since it was written. Runs on the hierarchy thread,
+     * so only one build at a time writes the file.
+     */
+    private void prepareHierarchy(final CampusGraph graph) {
+        final File file = new File(databaseService.getDatabaseDirectory(), ContractionHierarchy.FILE_NAME);
+        hierarchyExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Edits in quick succession queue several builds; only the latest graph's matters
+                if (!isCurrentGraph(graph)) {
+                    return;
+                }
+                long fingerprint = graph.fingerprint();
+                ContractionHierarchy loaded = null;
+                try {
+                    loaded = ContractionHierarchy.readFrom(file, fingerprint);
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not read contraction hierarchy, rebuilding", e);
+                }
+
+                if (loaded == null) {
+                    long startTime = System.nanoTime();
+                    loaded = ContractionHierarchy.build(graph);
+                    Log.d(TAG, "Contraction hierarchy built with " + loaded.getShortcutCount()
+                            + " shortcuts in " + (System.nanoTime() - startTime) / 1000000 + "ms");
+                    if (!isCurrentGraph(graph)) {
+                        return;
+                    }
+                    try {
+                        loaded.writeTo(file, fingerprint);
+                    } catch (IOException e) {
+                        Log.w(TAG, "Could not store contraction hierarchy", e);
+                    }
+                }
+
+                installHierarchy(graph, loaded);
+            }
+        });
+    }
+
+    private synchronized boolean isCurrentGraph(CampusGraph builtFor) {
+        return graph == builtFor;
+    }
+
+    /**
+     * Start answering queries with a hierarchy, unless the graph it was built for has been dropped meanwhile
+     */
+    private synchronized void installHierarchy(CampusGraph builtFor, ContractionHierarchy ch) {
+        if (graph == builtFor) {
+            hierarchy = ch;
+        }
+    }
+
+    /**
+     * Drop the graph and hierarchy so the next query reloads them from the database
+     */
+    private synchronized void invalidateGraph() {
+        graph = null;
+        hierarchy = null;
+    }
+
+    private synchronized void updateLocationIndex(CampusLocation location) {
+        if (locationIndex != null) {
+            locationIndex.put(location);
+        }
+    }
+
+    @Override
+    public void onLocationAdded(long locationId, CampusLocation location) {
+        // A new location has no walkways yet, so no cached route can change
+        invalidateGraph();
+        updateLocationIndex(location);
+    }
+
+    @Override
+    public void onLocationUpdated(CampusLocation location) {
+        boolean moved = true;
+        synchronized (this) {
+            int node = graph != null ? graph.indexOf(location.getId()) : -1;
+            if (node >= 0) {
+                moved = graph.getLatitude(node) != location.getLatitude()
+                        || graph.getLongitude(node) != location.getLongitude();
+            }
+        }
+        if (moved) {
+            // Walkways without a stored length follow the coordinates, so any route may change
+            routeCache.clear();
+        } else {
+            routeCache.invalidateLocation(location.getId());
+        }
+        invalidateGraph();
+        updateLocationIndex(location);
+    }
+
+    @Override
+    public void onLocationDeleted(long locationId) {
+        // Removing a location only lengthens the routes that went through it
+        routeCache.invalidateLocation(locationId);
+        invalidateGraph();
+        synchronized (this) {
+            if (locationIndex != null) {
+                locationIndex.remove(locationId);
+            }
+        }
+    }
+
+    @Override
+    public void onDataReloaded() {
+        routeCache.clear();
+        invalidateGraph();
+        synchronized (this) {
+            locationIndex = null;
+        }
+    }
+
+    @Override
+    public void onRouteAdded(long routeId, Route route) {
+        CampusLocation from = databaseService.getLocationById(route.getFromLocationId());
+        CampusLocation to = databaseService.getLocationById(route.getToLocationId());
+        if (from != null && to != null && from.getId() != to.getId()) {
+            // The length the graph will give the walkway
+            double length = CampusGraph.walkwayLength(route.getDistanceMeters(),
+                    LocationService.calculateDistance(from.getLatitude(), from.getLongitude(),
+                            to.getLatitude(), to.getLongitude()));
+            routeCache.invalidateForWalkway(from, to, length);
+        }
+        invalidateGraph();
+    }
+
+    /**
+     * Find the shortest walkway path between two locations
+     * @param fromId Start location id
+     * @param toId Destination location id
+     * @return The path, or null if the locations are not connected by walkways
+     */
+    public synchronized Path findPath(long fromId, long toId) {
+        CampusGraph graph = getGraph();
+        int source = graph.indexOf(fromId);
+        int goal = graph.indexOf(toId);
+        if (source < 0 || goal < 0 || source == goal) {
+            return null;
+        }
+
+        ContractionHierarchy ch = hierarchy;
+        if (ch != null) {
+            return findPathWithHierarchy(ch, source, goal);
+        }
+
+        long startTime = System.nanoTime();
+        Path path = search.findPath(source, goal);
+        Log.d(TAG, "A* settled " + search.getSettledCount() + " nodes in "
+                + (System.nanoTime() - startTime) / 1000 + "us");
+        return path;
+    }
+
+    /**
+     * Bidirectional upward search over the contraction hierarchy
+     */
+    private Path findPathWithHierarchy(ContractionHierarchy ch, int source, int goal) {
+        long startTime = System.nanoTime();
+        ContractionHierarchy.Result result = ch.findPath(source, goal);
+        Log.d(TAG, "CH query took " + (System.nanoTime() - startTime) / 1000 + "us");
+        if (result == null) {
+            return null;
+        }
+        return Path.fromNodes(graph, result.nodes, result.arcs);
+    }
+
+    /**
+     * Create an incremental re-planner towards a destination, primed with a search from the start
+     * @return The re-planner, or null if the locations are not connected by walkways
+     */
+    public synchronized DStarLite createReplanner(long fromId, long toId) {
+        CampusGraph graph = getGraph();
+        int source = graph.indexOf(fromId);
+        int goal = graph.indexOf(toId);
+        if (source < 0 || goal < 0) {
+            return null;
+        }
+
+        long startTime = System.nanoTime();
+        DStarLite replanner = new DStarLite(graph, source, goal);
+        if (replanner.computePath() == null) {
+            return null;
+        }
+        Log.d(TAG, "D* Lite primed with " + replanner.getExpandedCount() + " expansions in "
+                + (System.nanoTime() - startTime) / 1000 + "us");
+        return replanner;
+    }
+}
@@ -0,0 +1,138 @@
+package com.heibeieast.campusnav.services;
+
+/**
+ * Chooses how often to ask for location fixes during tracking.
+ * Sampling stays at {@link #BASE_INTERVAL_MS} close to a turn or the
+ * destination, where a late fix means a late instruction, and slows down
+ * when the next maneuver is a minute or more away or the user has stood
+ * still for a while. Intervals come in a few fixed tiers and slowing down is
+ * rate limited, so the provider is not re-registered on every fix; speeding
+ * up always happens at once.
+ * It also keeps count of the fixes requested, so the achieved duty cycle can
+ * be compared with sampling at the base rate throughout.
+ * All times are in milliseconds on a monotonic clock. Not thread-safe.
+ */
+public class SamplingScheduler {
+    public static final long BASE_INTERVAL_MS = 1000;
+    private static final long CRUISE_INTERVAL_MS = 2000;
+    private static final long FAR_INTERVAL_MS = 5000;
+    private static final long STATIONARY_INTERVAL_MS = 10000;
+
+    // Within this distance (m) or walking time (ms) of a maneuver, sample at the base rate
+    private static final double NEAR_DISTANCE = 30;
+    private static final long NEAR_TIME_MS = 20000;
+    // Beyond this walking time, sample at the far rate
+    private static final long FAR_TIME_MS = 60000;
+    // Below this speed (m/s) for STATIONARY_CONFIRM_MS the user counts as standing
+    private static final double STATIONARY_SPEED = 0.3;
+    private static final long STATIONARY_CONFIRM_MS = 10000;
+    // Walking speed assumed while the filter has no speed yet (m/s)
+    private static final double MIN_PLANNING_SPEED = 0.5;
+    private static final long MIN_SLOWDOWN_GAP_MS = 10000;
+
+    private double distanceToManeuver = Double.NaN;
+    private double speed;
+    private long stillSince = -1;
+    private long interval = BASE_INTERVAL_MS;
+    private long lastChange;
+
+    private long startTime = -1;
+    private long accountedUntil;
+    private double requestedFixes;
+    private int receivedFixes;
+
+    /**
+     * Begin a tracking session at the base rate
+     */
+    public void start(long now) {
+        distanceToManeuver = Double.NaN;
+        speed = 0;
+        stillSince = -1;
+        interval = BASE_INTERVAL_MS;
+        lastChange = now;
+        startTime = now;
+        accountedUntil = now;
+        requestedFixes = 0;
+        receivedFixes = 0;
+    }
+
+    /**
+     * Account a received fix
+     * @param speed Filtered speed in m/s
+     * @return The interval to request from now on, or 0 if it stays the same
+     */
+    public long onFix(float speed, long now) {
+        receivedFixes++;
+        this.speed = speed;
+        if (speed >= STATIONARY_SPEED) {
+            stillSince = -1;
+        } else if (stillSince < 0) {
+            stillSince = now;
+        }
+        return evaluate(now);
+    }
+
+    /**
+     * Distance in meters to the next turn or the destination, NaN when not navigating
+     * @return The interval to request from now on, or 0 if it stays the same
+     */
+    public long setDistanceToManeuver(double meters, long now) {
+        distanceToManeuver = meters;
+        return evaluate(now);
+    }
+
+    public long getInterval() {
+        return interval;
+    }
+
+    public int getReceivedFixes() {
+        return receivedFixes;
+    }
+
+    /**
+     * Fixes requested so far relative to requesting at the base rate all along, 0 to 1
+     */
+    public double getDutyCycle(long now) {
+        account(now);
+        double baseline = (now - startTime) / (double) BASE_INTERVAL_MS;
+        return baseline <= 0 ? 1 : requestedFixes / baseline;
+    }
+
+    private long evaluate(long now) {
+        long wanted = targetInterval(now);
+        if (wanted == interval) {
+            return 0;
+        }
+        if (wanted > interval && now - lastChange < MIN_SLOWDOWN_GAP_MS) {
+            return 0;
+        }
+        account(now);
+        interval = wanted;
+        lastChange = now;
+        return wanted;
+    }
+
+    private long targetInterval(long now) {
+        boolean navigating = !Double.isNaN(distanceToManeuver);
+        double timeToManeuver = navigating
+                ? distanceToManeuver / Math.max(speed, MIN_PLANNING_SPEED) * 1000 : Double.NaN;
+        if (navigating && (distanceToManeuver <= NEAR_DISTANCE || timeToManeuver <= NEAR_TIME_MS)) {
+            // Even when standing still right before a turn
+            return BASE_INTERVAL_MS;
+        }
+        if (stillSince >= 0 && now - stillSince >= STATIONARY_CONFIRM_MS) {
+            return STATIONARY_INTERVAL_MS;
+        }
+        if (!navigating) {
+            return BASE_INTERVAL_MS;
+        }
+        return timeToManeuver > FAR_TIME_MS ? FAR_INTERVAL_MS : CRUISE_INTERVAL_MS;
+    }
+
+    private void account(long now) {
+        if (now > accountedUntil) {
+            requestedFixes += (now - accountedUntil) / (double) interval;
+            accountedUntil = now;
+        }
+    }
+}
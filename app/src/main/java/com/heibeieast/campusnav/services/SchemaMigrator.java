@@ -0,0 +1,160 @@
+package com.heibeieast.campusnav.services;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Applies numbered schema migrations in order, one transaction per step, and
+ * records each applied step with its duration in the schema_migrations table.
+ * Migrations only see {@link SqlExecutor}, so they can be run against a
+ * fixture database on the JVM as well as through SQLiteOpenHelper.
+ * Steps must change the schema in place; dropping and recreating user tables
+ * is not allowed, and a step that rewrites a whole table should say so in its
+ * description since its cost grows with the data.
+ */
+public class SchemaMigrator {
+    public static final String TABLE_MIGRATIONS = "schema_migrations";
+
+    private final List<Migration> migrations;
+
+    /**
+     * The few database operations a migration needs
+     */
+    public interface SqlExecutor {
+        void execSQL(String sql);
+
+        void execSQL(String sql, Object[] bindArgs);
+
+        /**
+         * Run a statement that may legitimately fail, e.g. one needing an optional SQLite module
+         * @return false if SQLite rejected it; the surrounding transaction stays usable
+         */
+        boolean tryExecSQL(String sql);
+
+        /**
+         * Run a query and hand each row to the handler, all columns read as strings
+         */
+        void query(String sql, RowHandler handler);
+
+        void beginTransaction();
+
+        void setTransactionSuccessful();
+
+        void endTransaction();
+    }
+
+    public interface RowHandler {
+        void onRow(String[] row);
+    }
+
+    /**
+     * One schema change, taking the database from version - 1 to version
+     */
+    public abstract static class Migration {
+        private final int version;
+        private final String description;
+
+        protected Migration(int version, String description) {
+            this.version = version;
+            this.description = description;
+        }
+
+        public int getVersion() {
+            return version;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        public abstract void migrate(SqlExecutor db);
+    }
+
+    /**
+     * Outcome of one applied migration
+     */
+    public static class Step {
+        private final int version;
+        private final String description;
+        private final long durationMillis;
+
+        Step(int version, String description, long durationMillis) {
+            this.version = version;
+            this.description = description;
+            this.durationMillis = durationMillis;
+        }
+
+        public int getVersion() {
+            return version;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        public long getDurationMillis() {
+            return durationMillis;
+        }
+    }
+
+    public SchemaMigrator(List<Migration> migrations) {
+        List<Migration> sorted = new ArrayList<>(migrations);
+        Collections.sort(sorted, new Comparator<Migration>() {
+            @Override
+            public int compare(Migration a, Migration b) {
+                return Integer.compare(a.version, b.version);
+            }
+        });
+        for (int i = 1; i < sorted.size(); i++) {
+            if (sorted.get(i).version == sorted.get(i - 1).version) {
+                throw new IllegalArgumentException("Duplicate migration version " + sorted.get(i).version);
+            }
+        }
+        this.migrations = sorted;
+    }
+
+    /**
+     * Highest version the migrations lead to
+     */
+    public int getLatestVersion() {
+        return migrations.isEmpty() ? 0 : migrations.get(migrations.size() - 1).version;
+    }
+
+    /**
+     * Apply every migration with oldVersion &lt; version &lt;= newVersion.
+     * A failing step is rolled back and its exception propagates; earlier
+     * steps stay applied unless the caller's own transaction is rolled back.
+     * @return The applied steps in order
+     */
+    public List<Step> migrate(SqlExecutor db, int oldVersion, int newVersion) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_MIGRATIONS + " (" +
+                "version INTEGER PRIMARY KEY, " +
+                "description TEXT, " +
+                "applied_at TEXT DEFAULT CURRENT_TIMESTAMP, " +
+                "duration_ms INTEGER)");
+
+        List<Step> applied = new ArrayList<>();
+        for (Migration migration : migrations) {
+            if (migration.version <= oldVersion || migration.version > newVersion) {
+                continue;
+            }
+
+            long start = System.nanoTime();
+            db.beginTransaction();
+            try {
+                migration.migrate(db);
+                long durationMillis = (System.nanoTime() - start) / 1000000;
+                db.execSQL("INSERT OR REPLACE INTO " + TABLE_MIGRATIONS +
+                                " (version, description, duration_ms) VALUES (?, ?, ?)",
+                        new Object[]{migration.version, migration.description, durationMillis});
+                db.setTransactionSuccessful();
+                applied.add(new Step(migration.version, migration.description, durationMillis));
+            } finally {
+                db.endTransaction();
+            }
+        }
+        return applied;
+    }
+}
@@ -0,0 +1,108 @@
+package com.heibeieast.campusnav.services;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Turns location text into the tokens stored in the full-text index and user
+ * input into matching FTS queries.
+ * SQLite's built-in tokenizer treats a run of Chinese characters as one word,
+ * so "书馆" would never find "图书馆". Every Han character is therefore made a
+ * token of its own and a query becomes a phrase, which matches any substring.
+ * Other letters and digits form ordinary lower-case words.
+ */
+final class SearchText {
+    private SearchText() {
+    }
+
+    /**
+     * Full-width forms folded, lower case, trimmed
+     */
+    static String normalize(String text) {
+        if (text == null) {
+            return "";
+        }
+        return Normalizer.normalize(text, Normalizer.Form.NFKC).toLowerCase(Locale.ROOT).trim();
+    }
+
+    static List<String> tokens(String text) {
+        String normalized = normalize(text);
+        List<String> tokens = new ArrayList<>();
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i < normalized.length(); ) {
+            int codePoint = normalized.codePointAt(i);
+            i += Character.charCount(codePoint);
+
+            if (Character.UnicodeScript.of(codePoint) == Character.UnicodeScript.HAN) {
+                flush(word, tokens);
+                tokens.add(new String(Character.toChars(codePoint)));
+            } else if (Character.isLetterOrDigit(codePoint)) {
+                word.appendCodePoint(codePoint);
+            } else {
+                flush(word, tokens);
+            }
+        }
+        flush(word, tokens);
+        return tokens;
+    }
+
+    /**
+     * Text as stored in the index: its tokens separated by spaces
+     */
+    static String toIndexText(String text) {
+        return join(tokens(text), " ");
+    }
+
+    /**
+     * Query matching the tokens as a phrase in any column, the last one as a prefix
+     */
+    static String phraseQuery(List<String> tokens) {
+        return "\"" + join(tokens, " ") + prefixMarker(tokens) + "\"";
+    }
+
+    /**
+     * Query matching all tokens in the name column, the last one as a prefix.
+     * FTS4 cannot restrict a phrase to a column, so adjacency is checked separately.
+     */
+    static String nameQuery(List<String> tokens, String column) {
+        StringBuilder query = new StringBuilder();
+        for (int i = 0; i < tokens.size(); i++) {
+            if (i > 0) {
+                query.append(' ');
+            }
+            query.append(column).append(':').append(tokens.get(i));
+        }
+        return query.append(prefixMarker(tokens)).toString();
+    }
+
+    /**
+     * A single Han character is a whole token, so searching it as a prefix
+     * would only add a range scan over the index
+     */
+    private static String prefixMarker(List<String> tokens) {
+        String last = tokens.get(tokens.size() - 1);
+        boolean han = last.codePointCount(0, last.length()) == 1
+                && Character.UnicodeScript.of(last.codePointAt(0)) == Character.UnicodeScript.HAN;
+        return han ? "" : "*";
+    }
+
+    private static void flush(StringBuilder word, List<String> tokens) {
+        if (word.length() > 0) {
+            tokens.add(word.toString());
+            word.setLength(0);
+        }
+    }
+
+    private static String join(List<String> tokens, String separator) {
+        StringBuilder joined = new StringBuilder();
+        for (String token : tokens) {
+            if (joined.length() > 0) {
+                joined.append(separator);
+            }
+            joined.append(token);
+        }
+        return joined.toString();
+    }
+}
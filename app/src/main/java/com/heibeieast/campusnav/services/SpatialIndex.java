@@ -0,0 +1,442 @@
+package com.heibeieast.campusnav.services;
+
+import com.heibeieast.campusnav.models.CampusLocation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory uniform grid over campus locations for nearest, k-nearest and radius queries.
+ * Coordinates are projected to meters on a local equirectangular plane around
+ * a reference latitude, which is accurate to well under a meter across a
+ * campus. Each grid cell keeps its locations and projected coordinates in
+ * parallel arrays, so a query only scans the few cells around the position.
+ * Locations can be added, moved and removed one at a time.
+ */
+public class SpatialIndex {
+    private static final double METERS_PER_DEGREE = 6371000 * Math.PI / 180;
+    private static final double DEFAULT_CELL_SIZE = 50.0; // meters
+
+    private final double cellSize;
+    private final double metersPerDegreeLon;
+
+    private final Map<Long, Cell> cells = new HashMap<>();
+    private final Map<Long, Long> cellKeysById = new HashMap<>();
+
+    // Bounds of the non-empty cells, so ring searches know when to stop
+    private int minCellX = Integer.MAX_VALUE;
+    private int maxCellX = Integer.MIN_VALUE;
+    private int minCellY = Integer.MAX_VALUE;
+    private int maxCellY = Integer.MIN_VALUE;
+
+    /**
+     * Locations sharing one grid cell
+     */
+    private static class Cell {
+        CampusLocation[] locations = new CampusLocation[4];
+        double[] xs = new double[4];
+        double[] ys = new double[4];
+        int size;
+
+        void add(CampusLocation location, double x, double y) {
+            if (size == locations.length) {
+                locations = Arrays.copyOf(locations, size * 2);
+                xs = Arrays.copyOf(xs, size * 2);
+                ys = Arrays.copyOf(ys, size * 2);
+            }
+            locations[size] = location;
+            xs[size] = x;
+            ys[size] = y;
+            size++;
+        }
+
+        boolean remove(long locationId) {
+            for (int i = 0; i < size; i++) {
+                if (locations[i].getId() == locationId) {
+                    size--;
+                    locations[i] = locations[size];
+                    xs[i] = xs[size];
+                    ys[i] = ys[size];
+                    locations[size] = null;
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Bounded max-heap of the best candidates found so far, ordered by squared distance
+     */
+    private static class Candidates {
+        final CampusLocation[] locations;
+        final double[] distances;
+        int size;
+
+        Candidates(int capacity) {
+            locations = new CampusLocation[capacity];
+            distances = new double[capacity];
+        }
+
+        boolean isFull() {
+            return size == locations.length;
+        }
+
+        double worst() {
+            return distances[0];
+        }
+
+        void offer(CampusLocation location, double distance) {
+            if (size < locations.length) {
+                int i = size++;
+                while (i > 0) {
+                    int parent = (i - 1) >>> 1;
+                    if (distances[parent] >= distance) {
+                        break;
+                    }
+                    locations[i] = locations[parent];
+                    distances[i] = distances[parent];
+                    i = parent;
+                }
+                locations[i] = location;
+                distances[i] = distance;
+            } else if (distance < distances[0]) {
+                int i = 0;
+                int half = size >>> 1;
+                while (i < half) {
+                    int child = 2 * i + 1;
+                    if (child + 1 < size && distances[child + 1] > distances[child]) {
+                        child++;
+                    }
+                    if (distances[child] <= distance) {
+                        break;
+                    }
+                    locations[i] = locations[child];
+                    distances[i] = distances[child];
+                    i = child;
+                }
+                locations[i] = location;
+                distances[i] = distance;
+            }
+        }
+
+        /**
+         * Drain the heap into a list ordered from nearest to farthest
+         */
+        List<CampusLocation> toSortedList() {
+            CampusLocation[] sorted = new CampusLocation[size];
+            while (size > 0) {
+                sorted[size - 1] = locations[0];
+                CampusLocation last = locations[size - 1];
+                double lastDistance = distances[size - 1];
+                locations[size - 1] = null;
+                size--;
+                if (size > 0) {
+                    // Re-insert the last element from the root
+                    int i = 0;
+                    int half = size >>> 1;
+                    while (i < half) {
+                        int child = 2 * i + 1;
+                        if (child + 1 < size && distances[child + 1] > distances[child]) {
+                            child++;
+                        }
+                        if (distances[child] <= lastDistance) {
+                            break;
+                        }
+                        locations[i] = locations[child];
+                        distances[i] = distances[child];
+                        i = child;
+                    }
+                    locations[i] = last;
+                    distances[i] = lastDistance;
+                }
+            }
+            return new ArrayList<>(Arrays.asList(sorted));
+        }
+    }
+
+    public SpatialIndex(double referenceLatitude) {
+        this(referenceLatitude, DEFAULT_CELL_SIZE);
+    }
+
+    /**
+     * @param referenceLatitude Latitude the projection is centered on, usually the campus center
+     * @param cellSize Grid cell edge length in meters
+     */
+    public SpatialIndex(double referenceLatitude, double cellSize) {
+        this.cellSize = cellSize;
+        this.metersPerDegreeLon = METERS_PER_DEGREE * Math.cos(Math.toRadians(referenceLatitude));
+    }
+
+    /**
+     * Build an index over a list of locations, centered on their mean latitude
+     */
+    public static SpatialIndex of(List<CampusLocation> locations) {
+        double latitudeSum = 0;
+        for (CampusLocation location : locations) {
+            latitudeSum += location.getLatitude();
+        }
+        SpatialIndex index = new SpatialIndex(locations.isEmpty() ? 0 : latitudeSum / locations.size());
+        for (CampusLocation location : locations) {
+            index.put(location);
+        }
+        return index;
+    }
+
+    public int size() {
+        return cellKeysById.size();
+    }
+
+    /**
+     * Add a location, or move it if a location with the same id is already indexed
+     */
+    public void put(CampusLocation location) {
+        remove(location.getId());
+
+        double x = projectX(location.getLongitude());
+        double y = projectY(location.getLatitude());
+        int cellX = cellOf(x);
+        int cellY = cellOf(y);
+        long key = cellKey(cellX, cellY);
+        Cell cell = cells.get(key);
+        if (cell == null) {
+            cell = new Cell();
+            cells.put(key, cell);
+        }
+        cell.add(location, x, y);
+        cellKeysById.put(location.getId(), key);
+
+        minCellX = Math.min(minCellX, cellX);
+        maxCellX = Math.max(maxCellX, cellX);
+        minCellY = Math.min(minCellY, cellY);
+        maxCellY = Math.max(maxCellY, cellY);
+    }
+
+    /**
+     * Remove a location
+     * @return true if it was indexed
+     */
+    public boolean remove(long locationId) {
+        Long key = cellKeysById.remove(locationId);
+        if (key == null) {
+            return false;
+        }
+        Cell cell = cells.get(key);
+        if (cell != null && cell.remove(locationId) && cell.size == 0) {
+            cells.remove(key);
+            int cellX = (int) (key >> 32);
+            int cellY = (int) (long) key;
+            if (cellX == minCellX || cellX == maxCellX || cellY == minCellY || cellY == maxCellY) {
+                updateBounds();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Shrink the bounds to the remaining cells, so searches do not cover space a removed location left empty
+     */
+    private void updateBounds() {
+        minCellX = Integer.MAX_VALUE;
+        maxCellX = Integer.MIN_VALUE;
+        minCellY = Integer.MAX_VALUE;
+        maxCellY = Integer.MIN_VALUE;
+        for (long key : cells.keySet()) {
+            int cellX = (int) (key >> 32);
+            int cellY = (int) key;
+            minCellX = Math.min(minCellX, cellX);
+            maxCellX = Math.max(maxCellX, cellX);
+            minCellY = Math.min(minCellY, cellY);
+            maxCellY = Math.max(maxCellY, cellY);
+        }
+    }
+
+    /**
+     * Closest location to a position
+     * @return The location, or null if the index is empty
+     */
+    public CampusLocation nearest(double latitude, double longitude) {
+        List<CampusLocation> result = kNearest(latitude, longitude, 1);
+        return result.isEmpty() ? null : result.get(0);
+    }
+
+    /**
+     * Up to k closest locations to a position, nearest first
+     */
+    public List<CampusLocation> kNearest(double latitude, double longitude, int k) {
+        if (k <= 0 || cellKeysById.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        double x = projectX(longitude);
+        double y = projectY(latitude);
+        int centerX = cellOf(x);
+        int centerY = cellOf(y);
+        Candidates candidates = new Candidates(Math.min(k, cellKeysById.size()));
+
+        // Rings closer than the occupied bounds are empty; a position far off campus
+        // would otherwise walk through millions of them
+        int firstRing = Math.max(
+                Math.max(minCellX - centerX, centerX - maxCellX),
+                Math.max(minCellY - centerY, centerY - maxCellY));
+        int lastRing = Math.max(
+                Math.max(centerX - minCellX, maxCellX - centerX),
+                Math.max(centerY - minCellY, maxCellY - centerY));
+        // Distance from the position to the edge of its own cell; ring r > 0 lies at
+        // least (r - 1) cell sizes beyond that
+        double margin = Math.min(
+                Math.min(x - centerX * cellSize, (centerX + 1) * cellSize - x),
+                Math.min(y - centerY * cellSize, (centerY + 1) * cellSize - y));
+        for (int ring = Math.max(0, firstRing); ring <= lastRing; ring++) {
+            if (ring > 0 && candidates.isFull()) {
+                double ringDistance = (ring - 1) * cellSize + margin;
+                if (candidates.worst() <= ringDistance * ringDistance) {
+                    break; // nothing in this ring or beyond can beat the k-th best
+                }
+            }
+            // Past the nearby cells a ring is mostly empty space, as between two
+            // distant clusters; visiting the occupied cells directly is then cheaper
+            if (ringCellCount(centerX, centerY, ring) > cells.size()) {
+                scanCellsFrom(centerX, centerY, ring, x, y, candidates);
+                break;
+            }
+            scanRing(centerX, centerY, ring, x, y, candidates);
+        }
+        return candidates.toSortedList();
+    }
+
+    /**
+     * All locations within a radius of a position, nearest first
+     * @param radius Radius in meters
+     */
+    public List<CampusLocation> withinRadius(double latitude, double longitude, double radius) {
+        double x = projectX(longitude);
+        double y = projectY(latitude);
+        double radiusSquared = radius * radius;
+        int fromX = Math.max(cellOf(x - radius), minCellX);
+        int toX = Math.min(cellOf(x + radius), maxCellX);
+        int fromY = Math.max(cellOf(y - radius), minCellY);
+        int toY = Math.min(cellOf(y + radius), maxCellY);
+
+        List<CampusLocation> found = new ArrayList<>();
+        List<Double> distances = new ArrayList<>();
+        for (int cellX = fromX; cellX <= toX; cellX++) {
+            for (int cellY = fromY; cellY <= toY; cellY++) {
+                Cell cell = cells.get(cellKey(cellX, cellY));
+                if (cell == null) {
+                    continue;
+                }
+                for (int i = 0; i < cell.size; i++) {
+                    double dx = cell.xs[i] - x;
+                    double dy = cell.ys[i] - y;
+                    double distance = dx * dx + dy * dy;
+                    if (distance <= radiusSquared) {
+                        found.add(cell.locations[i]);
+                        distances.add(distance);
+                    }
+                }
+            }
+        }
+
+        Candidates sorted = new Candidates(found.size());
+        for (int i = 0; i < found.size(); i++) {
+            sorted.offer(found.get(i), distances.get(i));
+        }
+        return sorted.toSortedList();
+    }
+
+    private void scanRing(int centerX, int centerY, int ring, double x, double y, Candidates candidates) {
+        if (ring == 0) {
+            scanCell(centerX, centerY, x, y, candidates);
+            return;
+        }
+        // Only the part of each side inside the occupied bounds
+        int fromX = Math.max(-ring, minCellX - centerX);
+        int toX = Math.min(ring, maxCellX - centerX);
+        for (int d = fromX; d <= toX; d++) {
+            scanCell(centerX + d, centerY - ring, x, y, candidates);
+            scanCell(centerX + d, centerY + ring, x, y, candidates);
+        }
+        int fromY = Math.max(-ring + 1, minCellY - centerY);
+        int toY = Math.min(ring - 1, maxCellY - centerY);
+        for (int d = fromY; d <= toY; d++) {
+            scanCell(centerX - ring, centerY + d, x, y, candidates);
+            scanCell(centerX + ring, centerY + d, x, y, candidates);
+        }
+    }
+
+    /**
+     * Number of cells scanRing looks up for a ring, the part of it inside the occupied bounds
+     */
+    private long ringCellCount(int centerX, int centerY, int ring) {
+        if (ring == 0) {
+            return 1;
+        }
+        long width = Math.max(0, Math.min(ring, maxCellX - centerX) - Math.max(-ring, minCellX - centerX) + 1);
+        long height = Math.max(0, Math.min(ring - 1, maxCellY - centerY) - Math.max(-ring + 1, minCellY - centerY) + 1);
+        return 2 * (width + height);
+    }
+
+    /**
+     * Scan the occupied cells at least the given number of rings from the center cell,
+     * skipping those that cannot beat the k-th best found so far
+     */
+    private void scanCellsFrom(int centerX, int centerY, int ring, double x, double y, Candidates candidates) {
+        for (Map.Entry<Long, Cell> entry : cells.entrySet()) {
+            long key = entry.getKey();
+            int cellX = (int) (key >> 32);
+            int cellY = (int) key;
+            if (Math.max(Math.abs(cellX - centerX), Math.abs(cellY - centerY)) < ring) {
+                continue; // already scanned
+            }
+            if (candidates.isFull()) {
+                double dx = Math.max(0, Math.max(cellX * cellSize - x, x - (cellX + 1) * cellSize));
+                double dy = Math.max(0, Math.max(cellY * cellSize - y, y - (cellY + 1) * cellSize));
+                if (candidates.worst() <= dx * dx + dy * dy) {
+                    continue;
+                }
+            }
+            Cell cell = entry.getValue();
+            for (int i = 0; i < cell.size; i++) {
+                double dx = cell.xs[i] - x;
+                double dy = cell.ys[i] - y;
+                candidates.offer(cell.locations[i], dx * dx + dy * dy);
+            }
+        }
+    }
+
+    private void scanCell(int cellX, int cellY, double x, double y, Candidates candidates) {
+        if (cellX < minCellX || cellX > maxCellX || cellY < minCellY || cellY > maxCellY) {
+            return;
+        }
+        Cell cell = cells.get(cellKey(cellX, cellY));
+        if (cell == null) {
+            return;
+        }
+        for (int i = 0; i < cell.size; i++) {
+            double dx = cell.xs[i] - x;
+            double dy = cell.ys[i] - y;
+            candidates.offer(cell.locations[i], dx * dx + dy * dy);
+        }
+    }
+
+    private double projectX(double longitude) {
+        return longitude * metersPerDegreeLon;
+    }
+
+    private double projectY(double latitude) {
+        return latitude * METERS_PER_DEGREE;
+    }
+
+    private int cellOf(double meters) {
+        return (int) Math.floor(meters / cellSize);
+    }
+
+    private static long cellKey(int cellX, int cellY) {
+        return ((long) cellX << 32) | (cellY & 0xffffffffL);
+    }
+}
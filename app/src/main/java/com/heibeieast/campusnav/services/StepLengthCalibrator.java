@@ -0,0 +1,295 @@
+package com.heibeieast.campusnav.services;
+
+import java.util.Arrays;
+
+/**
+ * Learns the user's step length from walking with good GPS.
+ * Fixes go through a {@link LocationFilter} of its own: the tracking filter
+ * also takes in dead-reckoned positions, which are made from the step length
+ * being learned. A segment starts at a filtered fix and grows while the
+ * position stays accurate; after a fixed time, the straight-line distance divided by the
+ * steps counted in between is one sample. A poor fix drops the segment, and
+ * one with too few steps, or whose steps were not taken in one direction by
+ * the compass, is dropped when it ends. Standing still adds neither steps
+ * nor distance, so a short stop does no harm.
+ * No test looks at the GPS track: a segment ended the moment its noisy
+ * length first reaches a threshold, or kept only while the track looks
+ * straight or the filtered speed looks like walking, survives more often
+ * when noise has pushed its end forward, which biased the estimate upward
+ * by 2 to 10 percent in simulation. Steps are kept with their timestamps, so a segment is
+ * only counted once the batched steps up to its end have arrived.
+ * Samples are combined by a Huber-weighted mean, each weighted by how
+ * precisely its two end positions were known, which keeps an odd segment
+ * (a miscounted stairway, a GPS jump that passed the filter) from pulling
+ * the estimate. The estimate counts as converged once enough samples agree
+ * to within a few centimeters.
+ * Work per step and per fix is constant; the estimate is recomputed once
+ * per finished segment. All times are in milliseconds on the same
+ * monotonic clock. Not thread-safe.
+ */
+public class StepLengthCalibrator {
+    // Segment requirements: duration, least straight-line length (m) and end position sigma (m)
+    private static final long SEGMENT_DURATION_MS = 30000;
+    private static final double MIN_SEGMENT_LENGTH = 20;
+    private static final float MAX_POSITION_SIGMA = 4;
+    // Length of the mean direction vector of the segment's steps; a right-angle
+    // turn halfway gives 0.71, the phone swaying while walking straight about 0.98
+    private static final double MIN_STRAIGHTNESS = 0.9;
+    private static final int MIN_SEGMENT_STEPS = 30;
+    // A segment's end waits this long for batched steps before it is counted anyway
+    private static final long STEP_LATENCY_MS = 2000;
+    // Samples outside this range (m) are miscounts, not steps
+    private static final double MIN_PLAUSIBLE_STEP = 0.3;
+    private static final double MAX_PLAUSIBLE_STEP = 1.3;
+    // Step detectors miss or add a step now and then (relative error per sample)
+    private static final double STEP_COUNT_ERROR = 0.02;
+
+    private static final int MAX_SAMPLES = 40;
+    private static final int MIN_SAMPLES = 6;
+    // Converged when the 95% interval is at most this fraction of the estimate on either side
+    private static final double CONVERGED_HALF_WIDTH = 0.03;
+    private static final double HUBER_K = 1.5;
+    private static final int HUBER_ITERATIONS = 5;
+    private static final int MAX_STEP_TIMES = 512;
+
+    private final LocationFilter filter = new LocationFilter();
+
+    // Ring buffer of recent step times and the compass heading at each
+    private final long[] stepTimes = new long[MAX_STEP_TIMES];
+    private final float[] stepHeadings = new float[MAX_STEP_TIMES];
+    private int stepStart;
+    private int stepCount;
+    private long lastStepTime = Long.MIN_VALUE;
+    private float heading = Float.NaN;
+
+    // Segment being walked
+    private boolean inSegment;
+    private double startLatitude;
+    private double startLongitude;
+    private float startSigma;
+    private long startTime;
+
+    // Segment waiting for its last steps
+    private boolean pending;
+    private double pendingLength;
+    private double pendingVariance;
+    private long pendingStart;
+    private long pendingEnd;
+
+    // Ring buffer of samples: step length and its variance
+    private final double[] samples = new double[MAX_SAMPLES];
+    private final double[] variances = new double[MAX_SAMPLES];
+    private int sampleStart;
+    private int sampleCount;
+
+    private double estimate = Double.NaN;
+    private double standardError = Double.NaN;
+
+    /**
+     * A new compass heading of the walking direction, in degrees
+     */
+    public void onHeading(double degrees) {
+        heading = (float) degrees;
+    }
+
+    /**
+     * A step was detected
+     * @return true if this finished a segment and changed the estimate
+     */
+    public boolean onStep(long timeMillis) {
+        if (stepCount == MAX_STEP_TIMES) {
+            stepStart = (stepStart + 1) % MAX_STEP_TIMES;
+            stepCount--;
+        }
+        int index = (stepStart + stepCount) % MAX_STEP_TIMES;
+        stepTimes[index] = timeMillis;
+        // Within a sensor batch the latest heading may be up to a second off, which is fine for a 30 s segment
+        stepHeadings[index] = heading;
+        stepCount++;
+        lastStepTime = Math.max(lastStepTime, timeMillis);
+        return pending && lastStepTime > pendingEnd && finishPending();
+    }
+
+    /**
+     * A raw location fix; dead-reckoned positions must not be passed in
+     * @param accuracy Reported accuracy in meters (one standard deviation)
+     * @return true if this finished a segment and changed the estimate
+     */
+    public boolean onFix(double rawLatitude, double rawLongitude, float accuracy, long timeMillis) {
+        boolean changed = pending && timeMillis - pendingEnd > STEP_LATENCY_MS && finishPending();
+        if (!filter.update(rawLatitude, rawLongitude, accuracy, timeMillis)) {
+            return changed;
+        }
+        double latitude = filter.getLatitude();
+        double longitude = filter.getLongitude();
+        float sigma = filter.getAccuracy();
+
+        if (sigma > MAX_POSITION_SIGMA) {
+            inSegment = false;
+            return changed;
+        }
+        if (!inSegment) {
+            startSegment(latitude, longitude, sigma, timeMillis);
+            return changed;
+        }
+        if (timeMillis - startTime < SEGMENT_DURATION_MS || pending) {
+            return changed;
+        }
+
+        double length = LocationService.calculateDistance(startLatitude, startLongitude, latitude, longitude);
+        if (length >= MIN_SEGMENT_LENGTH) {
+            pending = true;
+            pendingLength = length;
+            pendingVariance = (double) startSigma * startSigma + (double) sigma * sigma;
+            pendingStart = startTime;
+            pendingEnd = timeMillis;
+            if (lastStepTime > pendingEnd) {
+                changed |= finishPending();
+            }
+        }
+        // The next segment continues from here
+        startSegment(latitude, longitude, sigma, timeMillis);
+        return changed;
+    }
+
+    /**
+     * Forget the walk in progress but keep the samples
+     */
+    public void resetSegment() {
+        filter.reset();
+        inSegment = false;
+        pending = false;
+        stepCount = 0;
+    }
+
+    /**
+     * Step length in meters, NaN before the first sample
+     */
+    public double getEstimate() {
+        return estimate;
+    }
+
+    /**
+     * Lower end of the 95% confidence interval of the estimate
+     */
+    public double getLowerBound() {
+        return estimate - 1.96 * standardError;
+    }
+
+    /**
+     * Upper end of the 95% confidence interval of the estimate
+     */
+    public double getUpperBound() {
+        return estimate + 1.96 * standardError;
+    }
+
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * Whether enough samples agree closely enough to trust the estimate
+     */
+    public boolean isConverged() {
+        return sampleCount >= MIN_SAMPLES && 1.96 * standardError <= CONVERGED_HALF_WIDTH * estimate;
+    }
+
+    private void startSegment(double latitude, double longitude, float sigma, long timeMillis) {
+        inSegment = true;
+        startLatitude = latitude;
+        startLongitude = longitude;
+        startSigma = sigma;
+        startTime = timeMillis;
+    }
+
+    /**
+     * Turn the waiting segment into a sample
+     * @return true if the estimate changed
+     */
+    private boolean finishPending() {
+        pending = false;
+        while (stepCount > 0 && stepTimes[stepStart] <= pendingStart) {
+            stepStart = (stepStart + 1) % MAX_STEP_TIMES;
+            stepCount--;
+        }
+        int steps = 0;
+        double east = 0;
+        double north = 0;
+        for (int i = 0; i < stepCount; i++) {
+            int index = (stepStart + i) % MAX_STEP_TIMES;
+            if (stepTimes[index] <= pendingEnd) {
+                steps++;
+                double radians = Math.toRadians(stepHeadings[index]);
+                east += Math.sin(radians);
+                north += Math.cos(radians);
+            }
+        }
+        // NaN without a compass heading, which fails the test too
+        double straightness = Math.sqrt(east * east + north * north) / steps;
+        if (steps < MIN_SEGMENT_STEPS || !(straightness >= MIN_STRAIGHTNESS)) {
+            return false;
+        }
+        double stepLength = pendingLength / steps;
+        if (stepLength < MIN_PLAUSIBLE_STEP || stepLength > MAX_PLAUSIBLE_STEP) {
+            return false;
+        }
+        double relative = STEP_COUNT_ERROR * stepLength;
+        addSample(stepLength, pendingVariance / ((double) steps * steps) + relative * relative);
+        return true;
+    }
+
+    private void addSample(double stepLength, double variance) {
+        if (sampleCount == MAX_SAMPLES) {
+            sampleStart = (sampleStart + 1) % MAX_SAMPLES;
+            sampleCount--;
+        }
+        int index = (sampleStart + sampleCount) % MAX_SAMPLES;
+        samples[index] = stepLength;
+        variances[index] = variance;
+        sampleCount++;
+        updateEstimate();
+    }
+
+    /**
+     * Huber M-estimate of the samples, starting from their median. The
+     * standard error is widened when the samples scatter more than their
+     * variances say.
+     */
+    private void updateEstimate() {
+        double[] sorted = new double[sampleCount];
+        for (int i = 0; i < sampleCount; i++) {
+            sorted[i] = samples[(sampleStart + i) % MAX_SAMPLES];
+        }
+        Arrays.sort(sorted);
+        double mean = sorted[sampleCount / 2];
+
+        double weightSum = 0;
+        for (int iteration = 0; iteration < HUBER_ITERATIONS; iteration++) {
+            double weightedSum = 0;
+            weightSum = 0;
+            for (int i = 0; i < sampleCount; i++) {
+                int index = (sampleStart + i) % MAX_SAMPLES;
+                double weight = huberWeight(samples[index], variances[index], mean);
+                weightedSum += weight * samples[index];
+                weightSum += weight;
+            }
+            mean = weightedSum / weightSum;
+        }
+
+        double chiSquare = 0;
+        for (int i = 0; i < sampleCount; i++) {
+            int index = (sampleStart + i) % MAX_SAMPLES;
+            double residual = samples[index] - mean;
+            chiSquare += huberWeight(samples[index], variances[index], mean) * residual * residual;
+        }
+        double scatter = sampleCount > 1 ? Math.max(1, chiSquare / (sampleCount - 1)) : 1;
+        estimate = mean;
+        standardError = Math.sqrt(scatter / weightSum);
+    }
+
+    private static double huberWeight(double sample, double variance, double mean) {
+        double normalized = Math.abs(sample - mean) / Math.sqrt(variance);
+        double weight = 1 / variance;
+        return normalized <= HUBER_K ? weight : weight * HUBER_K / normalized;
+    }
+}
@@ -0,0 +1,201 @@
+package com.heibeieast.campusnav.services;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compact binary encoding for recorded GPS traces.
+ * A segment starts with a format byte and the first fix in absolute terms;
+ * every further fix stores only its difference to the previous one, as
+ * zigzag varints:
+ * <ul>
+ *   <li>latitude and longitude in millionths of a degree (about 0.1 m), as deltas</li>
+ *   <li>time in milliseconds, as the change of the interval, so a steady 1 Hz fix rate costs one byte</li>
+ *   <li>accuracy in decimeters, as deltas</li>
+ * </ul>
+ * A walking fix usually takes four bytes. Segments are appended to as fixes
+ * arrive, so the encoder carries the last fix from one append to the next.
+ */
+public final class TraceCodec {
+    private static final int FORMAT_VERSION = 1;
+    private static final double COORDINATE_SCALE = 1e6;
+    private static final double ACCURACY_SCALE = 10;
+
+    private TraceCodec() {
+    }
+
+    /**
+     * Appends fixes to one segment; not thread-safe
+     */
+    public static class Encoder {
+        private int count;
+        private int lastLatitude;
+        private int lastLongitude;
+        private long lastTime;
+        private long lastInterval;
+        private int lastAccuracy;
+
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * Copy of the current state, for rolling back an append that was not stored
+         */
+        public Encoder copy() {
+            Encoder copy = new Encoder();
+            copy.count = count;
+            copy.lastLatitude = lastLatitude;
+            copy.lastLongitude = lastLongitude;
+            copy.lastTime = lastTime;
+            copy.lastInterval = lastInterval;
+            copy.lastAccuracy = lastAccuracy;
+            return copy;
+        }
+
+        /**
+         * Encode one fix, continuing from the previous one
+         * @param out Receives the bytes to append to the segment
+         */
+        public void encode(ByteArrayOutputStream out, double latitude, double longitude, long time, float accuracy) {
+            int lat = (int) Math.round(latitude * COORDINATE_SCALE);
+            int lon = (int) Math.round(longitude * COORDINATE_SCALE);
+            int acc = Math.max(0, Math.round(accuracy * (float) ACCURACY_SCALE));
+
+            if (count == 0) {
+                out.write(FORMAT_VERSION);
+                writeVarLong(out, zigzag(lat));
+                writeVarLong(out, zigzag(lon));
+                writeVarLong(out, zigzag(time));
+                writeVarLong(out, acc);
+                lastInterval = 0;
+            } else {
+                long interval = time - lastTime;
+                writeVarLong(out, zigzag(lat - lastLatitude));
+                writeVarLong(out, zigzag(lon - lastLongitude));
+                writeVarLong(out, zigzag(interval - lastInterval));
+                writeVarLong(out, zigzag(acc - lastAccuracy));
+                lastInterval = interval;
+            }
+
+            lastLatitude = lat;
+            lastLongitude = lon;
+            lastTime = time;
+            lastAccuracy = acc;
+            count++;
+        }
+    }
+
+    /**
+     * Walks the fixes of one or more consecutive segments without allocating per fix.
+     * <pre>
+     * TraceCodec.Reader reader = ...;
+     * while (reader.next()) {
+     *     use(reader.getLatitude(), reader.getLongitude());
+     * }
+     * </pre>
+     */
+    public static class Reader {
+        private final List<byte[]> segments;
+        private int segmentIndex = -1;
+        private byte[] data;
+        private int position;
+
+        private int latitude;
+        private int longitude;
+        private long time;
+        private long interval;
+        private int accuracy;
+
+        public Reader(byte[] segment) {
+            this(Collections.singletonList(segment));
+        }
+
+        public Reader(List<byte[]> segments) {
+            this.segments = segments;
+        }
+
+        /**
+         * Advance to the next fix
+         * @return false once all segments are read
+         */
+        public boolean next() {
+            while (data == null || position >= data.length) {
+                segmentIndex++;
+                if (segmentIndex >= segments.size()) {
+                    return false;
+                }
+                data = segments.get(segmentIndex);
+                position = 0;
+                if (data.length == 0) {
+                    continue;
+                }
+                if (data[position++] != FORMAT_VERSION) {
+                    throw new IllegalArgumentException("Unknown trace format " + data[0]);
+                }
+                latitude = (int) unzigzag(readVarLong());
+                longitude = (int) unzigzag(readVarLong());
+                time = unzigzag(readVarLong());
+                accuracy = (int) readVarLong();
+                interval = 0;
+                return true;
+            }
+
+            latitude += (int) unzigzag(readVarLong());
+            longitude += (int) unzigzag(readVarLong());
+            interval += unzigzag(readVarLong());
+            time += interval;
+            accuracy += (int) unzigzag(readVarLong());
+            return true;
+        }
+
+        public double getLatitude() {
+            return latitude / COORDINATE_SCALE;
+        }
+
+        public double getLongitude() {
+            return longitude / COORDINATE_SCALE;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public float getAccuracy() {
+            return (float) (accuracy / ACCURACY_SCALE);
+        }
+
+        private long readVarLong() {
+            long value = 0;
+            int shift = 0;
+            while (true) {
+                if (position >= data.length) {
+                    throw new IllegalArgumentException("Truncated trace segment");
+                }
+                byte b = data[position++];
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+                shift += 7;
+            }
+        }
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -1,24 +1,39 @@
 package com.heibeieast.campusnav.services;
 
 import android.content.Context;
+import android.os.Bundle;
 import android.speech.RecognitionListener;
 import android.speech.RecognizerIntent;
 import android.speech.SpeechRecognizer;
 import android.speech.tts.TextToSpeech;
 import android.util.Log;
 
+import com.heibeieast.campusnav.models.UserPreferences;
+
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.Callable;
 
 public class VoiceService implements TextToSpeech.OnInitListener {
     private static final String TAG = "VoiceService";
 
     private Context context;
-    private TextToSpeech textToSpeech;
+    private volatile TextToSpeech textToSpeech;
     private SpeechRecognizer speechRecognizer;
-    private boolean isInitialized = false;
+    private volatile boolean isInitialized = false;
     private DatabaseService databaseService;
 
+    // Re-applies settings as soon as they are saved, registered while TTS is ready
+    private final DatabaseService.PreferencesChangeListener preferencesListener =
+            new DatabaseService.PreferencesChangeListener() {
+                @Override
+                public void onPreferencesChanged(UserPreferences preferences) {
+                    // The latest snapshot, in case concurrent updates arrive out of order
+                    applySettings(databaseService.getPreferences());
+                }
+            };
+
     public VoiceService(Context context) {
         this.context = context.getApplicationContext();
         this.databaseService = DatabaseService.getInstance(context);
@@ -39,7 +54,8 @@ public class VoiceService implements TextToSpeech.OnInitListener {
                 isInitialized = false;
             } else {
                 isInitialized = true;
-                applySettings();
+                databaseService.addPreferencesChangeListener(preferencesListener);
+                loadSettings();
                 Log.d(TAG, "TTS initialized successfully");
             }
         } else {
@@ -48,23 +64,36 @@ public class VoiceService implements TextToSpeech.OnInitListener {
         }
     }
 
-    private void applySettings() {
+    /**
+     * Read preferences on the database thread and apply them there, in order with any change listener call
+     */
+    private void loadSettings() {
+        AsyncDatabaseService.getInstance(databaseService).submit(this, new Callable<Void>() {
+            @Override
+            public Void call() {
+                applySettings(databaseService.getPreferences());
+                return null;
+            }
+        }, null);
+    }
+
+    private void applySettings(UserPreferences preferences) {
         if (textToSpeech != null && isInitialized) {
-            textToSpeech.setSpeechRate((float) databaseService.getVoiceSpeed());
+            textToSpeech.setSpeechRate((float) preferences.getVoiceSpeed());
             // Note: setPitch() is available but setVolume() is not directly available in older APIs
         }
     }
 
     public void speak(String text) {
-        if (!isInitialized || textToSpeech == null) {
+        // Navigation speaks from the location pipeline thread while the activity may shut TTS down
+        TextToSpeech tts = textToSpeech;
+        if (!isInitialized || tts == null) {
             Log.w(TAG, "TTS not initialized");
             return;
         }
 
-        // Stop any current speech before speaking new text
-        stop();
-
-        int speechStatus = textToSpeech.speak(text, TextToSpeech.QUEUE_FLUSH, null, null);
+        // QUEUE_FLUSH stops any current speech before speaking the new text
+        int speechStatus = tts.speak(text, TextToSpeech.QUEUE_FLUSH, null, null);
         if (speechStatus == TextToSpeech.ERROR) {
             Log.e(TAG, "Error speaking text: " + text);
         } else {
@@ -79,6 +108,7 @@ public class VoiceService implements TextToSpeech.OnInitListener {
     }
 
     public void shutdown() {
+        databaseService.removePreferencesChangeListener(preferencesListener);
         if (textToSpeech != null) {
             stop();
             textToSpeech.shutdown();
@@ -86,10 +116,7 @@ public class VoiceService implements TextToSpeech.OnInitListener {
             isInitialized = false;
         }
 
-        if (speechRecognizer != null) {
-            speechRecognizer.destroy();
-            speechRecognizer = null;
-        }
+        releaseSpeechRecognition();
     }
 
     public boolean isInitialized() {
@@ -125,6 +152,18 @@ public class VoiceService implements TextToSpeech.OnInitListener {
         speak(message);
     }
 
+    /**
+     * Tell which way to turn, relative to where the user faces
+     * @param clockHour Clock-face direction of the route, 12 straight ahead
+     */
+    public void announceTurnCue(int clockHour) {
+        if (clockHour == 12) {
+            speak("方向正确，请直行");
+        } else {
+            speak("请转向" + HeadingFusion.getClockDirectionName(clockHour));
+        }
+    }
+
     public void announceDistance(double distance, double steps) {
         String message;
         if (distance < 100) {
@@ -135,6 +174,10 @@ public class VoiceService implements TextToSpeech.OnInitListener {
         speak(message);
     }
 
+    public void announceReroute(String instruction) {
+        speak("已偏离路线，重新规划。" + instruction);
+    }
+
     public void announceArrival(String destination) {
         String message = "已到达" + destination;
         speak(message);
@@ -160,8 +203,29 @@ public class VoiceService implements TextToSpeech.OnInitListener {
         speak("设置已保存");
     }
 
+    /**
+     * Confirm the destination picked from speech
+     * @param candidates How many locations matched, the chosen one included
+     */
+    public void announceSpokenDestination(String destination, int candidates) {
+        if (candidates > 1) {
+            speak("终点为" + destination + "，另有" + (candidates - 1) + "个相近的位置可在列表中选择");
+        } else {
+            speak("终点为" + destination);
+        }
+    }
+
+    public void announceDestinationNotFound() {
+        speak("没有找到这个位置，请再说一遍");
+    }
+
     // Speech recognition (optional feature)
-    public void initializeSpeechRecognition(SpeechRecognitionCallback callback) {
+    /**
+     * Set up recognition for the screen that listens next, replacing any earlier screen's callback
+     * @return false if the device has no speech recognizer
+     */
+    public boolean initializeSpeechRecognition(final SpeechRecognitionCallback callback) {
+        releaseSpeechRecognition();
         if (SpeechRecognizer.isRecognitionAvailable(context)) {
             speechRecognizer = SpeechRecognizer.createSpeechRecognizer(context);
             speechRecognizer.setRecognitionListener(new RecognitionListener() {
@@ -203,7 +267,7 @@ public class VoiceService implements TextToSpeech.OnInitListener {
                         String spokenText = matches.get(0);
                         Log.d(TAG, "Recognized: " + spokenText);
                         if (callback != null) {
-                            callback.onResult(spokenText);
+                            callback.onResult(spokenText, matches);
                         }
                     }
                 }
@@ -216,6 +280,18 @@ public class VoiceService implements TextToSpeech.OnInitListener {
                 public void onEvent(int eventType, Bundle params) {
                 }
             });
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Drop the recognizer and with it the callback, so a closed screen is not kept alive
+     */
+    public void releaseSpeechRecognition() {
+        if (speechRecognizer != null) {
+            speechRecognizer.destroy();
+            speechRecognizer = null;
         }
     }
 
@@ -232,13 +308,18 @@ public class VoiceService implements TextToSpeech.OnInitListener {
     }
 
     public interface SpeechRecognitionCallback {
-        void onResult(String result);
+        /**
+         * @param alternatives All hypotheses, best first, for {@link LocationMatcher#match(List, int)}
+         */
+        void onResult(String result, List<String> alternatives);
         void onError(int error);
     }
 
     // Update settings when user changes preferences
     public void updateSettings() {
-        applySettings();
+        if (isInitialized) {
+            loadSettings();
+        }
     }
 
     public void setSpeechRate(float rate) {
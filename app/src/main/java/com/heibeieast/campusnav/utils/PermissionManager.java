@@ -137,6 +137,13 @@ public class PermissionManager {
             permissionsNeeded.add(Manifest.permission.RECORD_AUDIO);
         }
 
+        // Step sensors for dead reckoning; navigation works without them
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q
+                && ContextCompat.checkSelfPermission(activity, Manifest.permission.ACTIVITY_RECOGNITION)
+                != PackageManager.PERMISSION_GRANTED) {
+            permissionsNeeded.add(Manifest.permission.ACTIVITY_RECOGNITION);
+        }
+
         if (permissionsNeeded.isEmpty()) {
             if (callback != null) {
                 callback.onAllPermissionsGranted();
@@ -0,0 +1,162 @@
+package com.heibeieast.campusnav.models;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class CampusGraphTest {
+    private static final double METERS_PER_DEGREE = 6371000 * Math.PI / 180;
+
+    @Test
+    public void keepsEveryDuplicateWalkway() {
+        List<CampusLocation> locations = row(3);
+        // Two walkways each way between 1 and 2, one of them listed backwards
+        CampusGraph graph = new CampusGraph(locations,
+                new long[]{1, 2, 1, 2}, new long[]{2, 1, 2, 3},
+                new float[]{150, 120, 400, 100}, new String[]{"a", "b", "c", "d"}, 4);
+
+        assertEquals(8, graph.getArcCount());
+        int node1 = graph.indexOf(1);
+        int node2 = graph.indexOf(2);
+        assertEquals(3, graph.endArc(node1) - graph.firstArc(node1));
+        assertEquals(4, graph.endArc(node2) - graph.firstArc(node2));
+
+        List<Float> lengths = new ArrayList<>();
+        for (int arc = graph.firstArc(node1); arc < graph.endArc(node1); arc++) {
+            assertEquals(node2, graph.getTarget(arc));
+            lengths.add(graph.getWeight(arc));
+        }
+        Collections.sort(lengths);
+        assertEquals(Arrays.asList(120f, 150f, 400f), lengths);
+
+        // The reverse arcs carry the same lengths and descriptions
+        List<String> descriptions = new ArrayList<>();
+        for (int arc = graph.firstArc(node2); arc < graph.endArc(node2); arc++) {
+            if (graph.getTarget(arc) == node1) {
+                descriptions.add(graph.getDescription(arc));
+            }
+        }
+        Collections.sort(descriptions);
+        assertEquals(Arrays.asList("a", "b", "c"), descriptions);
+    }
+
+    @Test
+    public void dropsWalkwaysToUnknownLocations() {
+        List<CampusLocation> locations = row(3);
+        CampusGraph graph = new CampusGraph(locations,
+                new long[]{1, 99, 2, 3, 2}, new long[]{2, 1, 77, 3, 3},
+                new float[]{100, 100, 100, 100, 100}, new String[5], 5);
+
+        assertEquals(-1, graph.indexOf(99));
+        assertEquals(-1, graph.indexOf(77));
+        assertEquals(3, graph.getNodeCount());
+        // Only 1-2 and 2-3 remain; the loop at 3 is dropped as well
+        assertEquals(4, graph.getArcCount());
+        for (int node = 0; node < graph.getNodeCount(); node++) {
+            for (int arc = graph.firstArc(node); arc < graph.endArc(node); arc++) {
+                int target = graph.getTarget(arc);
+                assertTrue(target >= 0 && target < graph.getNodeCount());
+                assertNotEquals(node, target);
+            }
+        }
+
+        // Unknown ids in between do not shift the dense numbering
+        for (int node = 0; node < graph.getNodeCount(); node++) {
+            assertEquals(node + 1, graph.getLocationId(node));
+            assertEquals(node, graph.indexOf(node + 1));
+        }
+    }
+
+    @Test
+    public void locationsWithoutWalkwaysAreNeverNearest() {
+        List<CampusLocation> locations = row(3);
+        CampusGraph graph = new CampusGraph(locations, new long[]{2}, new long[]{3},
+                new float[]{100}, new String[1], 1);
+
+        CampusLocation first = locations.get(0);
+        assertEquals(graph.indexOf(2), graph.nearestConnectedNode(first.getLatitude(), first.getLongitude()));
+
+        CampusGraph empty = new CampusGraph(locations, new long[0], new long[0], new float[0], new String[0], 0);
+        assertEquals(-1, empty.nearestConnectedNode(first.getLatitude(), first.getLongitude()));
+    }
+
+    @Test
+    public void fingerprintIsStableAcrossRebuilds() {
+        List<CampusLocation> locations = row(6);
+        long[] from = {1, 2, 3, 4, 5, 1};
+        long[] to = {2, 3, 4, 5, 6, 6};
+        float[] lengths = {100, 110, 120, 130, 140, 600};
+        String[] descriptions = {"a", "b", "c", "d", "e", "f"};
+        long fingerprint = new CampusGraph(locations, from, to, lengths, descriptions, 6).fingerprint();
+
+        assertEquals(fingerprint, new CampusGraph(row(6), from.clone(), to.clone(), lengths.clone(),
+                descriptions.clone(), 6).fingerprint());
+
+        // Locations come from the database in no particular order
+        List<CampusLocation> shuffled = new ArrayList<>(locations);
+        Collections.shuffle(shuffled, new Random(3));
+        assertEquals(fingerprint, new CampusGraph(shuffled, from, to, lengths, descriptions, 6).fingerprint());
+
+        // Descriptions are not part of the routing data
+        assertEquals(fingerprint, new CampusGraph(locations, from, to, lengths, new String[6], 6).fingerprint());
+
+        // Entries past edgeCount are ignored
+        assertEquals(fingerprint, new CampusGraph(locations, Arrays.copyOf(from, 8), Arrays.copyOf(to, 8),
+                Arrays.copyOf(lengths, 8), Arrays.copyOf(descriptions, 8), 6).fingerprint());
+    }
+
+    @Test
+    public void fingerprintChangesWithTheWalkways() {
+        List<CampusLocation> locations = row(6);
+        long[] from = {1, 2, 3, 4, 5, 1};
+        long[] to = {2, 3, 4, 5, 6, 6};
+        float[] lengths = {100, 110, 120, 130, 140, 600};
+        long fingerprint = new CampusGraph(locations, from, to, lengths, new String[6], 6).fingerprint();
+
+        float[] longer = lengths.clone();
+        longer[2] += 1;
+        assertNotEquals(fingerprint, new CampusGraph(locations, from, to, longer, new String[6], 6).fingerprint());
+
+        assertNotEquals(fingerprint, new CampusGraph(locations, from, to, lengths, new String[6], 5).fingerprint());
+
+        long[] rewired = to.clone();
+        rewired[5] = 5;
+        assertNotEquals(fingerprint, new CampusGraph(locations, from, rewired, lengths, new String[6], 6).fingerprint());
+
+        List<CampusLocation> more = new ArrayList<>(locations);
+        more.add(location(7, 6));
+        assertNotEquals(fingerprint, new CampusGraph(more, from, to, lengths, new String[6], 6).fingerprint());
+
+        // A stored hierarchy refers to arcs by index, so renumbered arcs are a different graph
+        long[] swappedFrom = {2, 1, 3, 4, 5, 1};
+        long[] swappedTo = {3, 2, 4, 5, 6, 6};
+        float[] swappedLengths = {110, 100, 120, 130, 140, 600};
+        assertNotEquals(fingerprint, new CampusGraph(locations, swappedFrom, swappedTo, swappedLengths,
+                new String[6], 6).fingerprint());
+    }
+
+    /**
+     * Locations 1..count in a line running east, 80 m apart
+     */
+    private static List<CampusLocation> row(int count) {
+        List<CampusLocation> locations = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            locations.add(location(i + 1, i));
+        }
+        return locations;
+    }
+
+    private static CampusLocation location(long id, int position) {
+        double metersPerDegreeLon = METERS_PER_DEGREE * Math.cos(Math.toRadians(45.712));
+        return new CampusLocation(id, "L" + id, 45.712, 126.612 + position * 80 / metersPerDegreeLon,
+                "test", null, null);
+    }
+}
@@ -0,0 +1,109 @@
+package com.heibeieast.campusnav.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import com.heibeieast.campusnav.models.CampusGraph;
+import com.heibeieast.campusnav.models.CampusLocation;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class AStarSearchTest {
+
+    @Test
+    public void walkwaysAreNeverShorterThanStraightLine() {
+        assertEquals(120f, CampusGraph.walkwayLength(120, 100), 0);
+        assertEquals(100f, CampusGraph.walkwayLength(0, 100), 1e-4);
+        assertEquals(100f, CampusGraph.walkwayLength(3, 100), 1e-4);
+
+        // 0.1 is not a float; the rounded length must still not undercut it
+        assertTrue(CampusGraph.walkwayLength(0, 0.1) >= 0.1);
+        assertTrue(CampusGraph.walkwayLength(0.1, 0.1) >= 0.1);
+
+        CampusGraph graph = understatedGraph(20, 20, 9);
+        for (int node = 0; node < graph.getNodeCount(); node++) {
+            for (int arc = graph.firstArc(node); arc < graph.endArc(node); arc++) {
+                assertTrue(graph.getWeight(arc) >= graph.straightLineDistance(node, graph.getTarget(arc)));
+            }
+        }
+    }
+
+    @Test
+    public void findsShortestPathsWithUnderstatedLengths() {
+        CampusGraph graph = understatedGraph(20, 20, 9);
+        AStarSearch search = new AStarSearch(graph);
+        Random random = new Random(1);
+        for (int query = 0; query < 200; query++) {
+            int source = random.nextInt(graph.getNodeCount());
+            int goal = random.nextInt(graph.getNodeCount());
+            if (source == goal) {
+                continue;
+            }
+            RoutingEngine.Path path = search.findPath(source, goal);
+            assertNotNull(path);
+            assertEquals(dijkstra(graph, source)[goal], path.getTotalDistance(), 1e-6);
+            assertEquals(graph.getLocation(source), path.getWaypoints().get(0));
+            assertEquals(graph.getLocation(goal), path.getWaypoints().get(path.getWaypoints().size() - 1));
+        }
+    }
+
+    /**
+     * Grid campus where a third of the walkways are stored shorter than the straight line,
+     * as rounded or mistyped lengths would be, and some have no length at all
+     */
+    private static CampusGraph understatedGraph(int rows, int cols, long seed) {
+        CampusGraph grid = TestGraphs.grid(rows, cols, seed);
+        Random random = new Random(seed);
+        List<CampusLocation> locations = new ArrayList<>();
+        for (int node = 0; node < grid.getNodeCount(); node++) {
+            locations.add(grid.getLocation(node));
+        }
+        int capacity = grid.getArcCount() / 2;
+        long[] from = new long[capacity];
+        long[] to = new long[capacity];
+        float[] weights = new float[capacity];
+        String[] descriptions = new String[capacity];
+        int edgeCount = 0;
+        for (int node = 0; node < grid.getNodeCount(); node++) {
+            for (int arc = grid.firstArc(node); arc < grid.endArc(node); arc++) {
+                int target = grid.getTarget(arc);
+                if (target < node) {
+                    continue;
+                }
+                from[edgeCount] = grid.getLocationId(node);
+                to[edgeCount] = grid.getLocationId(target);
+                int kind = random.nextInt(6);
+                weights[edgeCount] = kind == 0 ? 0 : kind == 1 ? grid.getWeight(arc) * 0.3f : grid.getWeight(arc);
+                edgeCount++;
+            }
+        }
+        return new CampusGraph(locations, from, to, weights, descriptions, edgeCount);
+    }
+
+    private static double[] dijkstra(CampusGraph graph, int source) {
+        double[] distance = new double[graph.getNodeCount()];
+        boolean[] done = new boolean[graph.getNodeCount()];
+        Arrays.fill(distance, Double.POSITIVE_INFINITY);
+        distance[source] = 0;
+        for (int round = 0; round < graph.getNodeCount(); round++) {
+            int best = -1;
+            for (int node = 0; node < graph.getNodeCount(); node++) {
+                if (!done[node] && (best < 0 || distance[node] < distance[best])) {
+                    best = node;
+                }
+            }
+            done[best] = true;
+            for (int arc = graph.firstArc(best); arc < graph.endArc(best); arc++) {
+                distance[graph.getTarget(arc)] = Math.min(distance[graph.getTarget(arc)],
+                        distance[best] + graph.getWeight(arc));
+            }
+        }
+        return distance;
+    }
+}
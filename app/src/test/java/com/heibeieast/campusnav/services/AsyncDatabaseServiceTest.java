@@ -0,0 +1,199 @@
+package com.heibeieast.campusnav.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.os.Looper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+@RunWith(RobolectricTestRunner.class)
+public class AsyncDatabaseServiceTest {
+    private AsyncDatabaseService service;
+    private final Object owner = new Object();
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @Before
+    public void setUp() {
+        service = AsyncDatabaseService.getInstance(DatabaseService.getInstance(RuntimeEnvironment.getApplication()));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        release.countDown();
+        drain();
+    }
+
+    @Test
+    public void resultIsDeliveredOnMainThread() throws Exception {
+        RecordingCallback<Integer> callback = new RecordingCallback<>();
+        service.submit(owner, new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return 42;
+            }
+        }, callback);
+        drain();
+        assertTrue(callback.results.isEmpty());
+
+        idleMainLooper();
+        assertEquals(1, callback.results.size());
+        assertEquals(42, (int) callback.results.get(0));
+    }
+
+    @Test
+    public void cancelledReadIsSkipped() throws Exception {
+        blockDatabaseThread();
+        final AtomicBoolean ran = new AtomicBoolean();
+        RecordingCallback<Boolean> callback = new RecordingCallback<>();
+        AsyncDatabaseService.Task<Boolean> task = service.submit(owner, new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                ran.set(true);
+                return true;
+            }
+        }, callback);
+
+        service.cancelAll(owner);
+        release.countDown();
+        drain();
+        idleMainLooper();
+
+        assertTrue(task.isCancelled());
+        assertFalse(ran.get());
+        assertTrue(callback.results.isEmpty());
+        assertTrue(callback.errors.isEmpty());
+    }
+
+    @Test
+    public void cancelledWriteStillRunsWithoutCallback() throws Exception {
+        blockDatabaseThread();
+        final AtomicBoolean written = new AtomicBoolean();
+        RecordingCallback<Boolean> callback = new RecordingCallback<>();
+        AsyncDatabaseService.Task<Boolean> task = service.submitWrite(owner, new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                written.set(true);
+                return true;
+            }
+        }, callback);
+
+        // As an activity does in onDestroy right after saving
+        service.cancelAll(owner);
+        task.cancel();
+        release.countDown();
+        drain();
+        idleMainLooper();
+
+        assertFalse(task.isCancelled());
+        assertTrue(written.get());
+        assertTrue(task.get());
+        assertTrue(callback.results.isEmpty());
+        assertTrue(callback.errors.isEmpty());
+    }
+
+    @Test
+    public void readsBeyondLimitFailButWritesAreQueued() throws Exception {
+        blockDatabaseThread();
+        RecordingCallback<Boolean> reads = new RecordingCallback<>();
+        int submitted = 100;
+        for (int i = 0; i < submitted; i++) {
+            service.submit(owner, new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return true;
+                }
+            }, reads);
+        }
+        final AtomicBoolean written = new AtomicBoolean();
+        RecordingCallback<Boolean> write = new RecordingCallback<>();
+        service.submitWrite(owner, new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                written.set(true);
+                return true;
+            }
+        }, write);
+
+        release.countDown();
+        drain();
+        idleMainLooper();
+
+        assertTrue(written.get());
+        assertEquals(1, write.results.size());
+        assertFalse(reads.errors.isEmpty());
+        assertFalse(reads.results.isEmpty());
+        assertEquals(submitted, reads.results.size() + reads.errors.size());
+
+        // Rejected reads free their slots; the queue takes reads again
+        RecordingCallback<Boolean> later = new RecordingCallback<>();
+        service.submit(owner, new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return true;
+            }
+        }, later);
+        drain();
+        idleMainLooper();
+        assertEquals(1, later.results.size());
+    }
+
+    /**
+     * Occupy the database thread until {@link #release} counts down
+     */
+    private void blockDatabaseThread() {
+        service.submit(new Object(), new Callable<Void>() {
+            @Override
+            public Void call() throws InterruptedException {
+                release.await(5, TimeUnit.SECONDS);
+                return null;
+            }
+        }, null);
+    }
+
+    /**
+     * Wait until everything queued so far has run; tasks run one at a time in order
+     */
+    private void drain() throws Exception {
+        assertNull(service.submitWrite(new Object(), new Callable<Void>() {
+            @Override
+            public Void call() {
+                return null;
+            }
+        }, null).get(5, TimeUnit.SECONDS));
+    }
+
+    private static void idleMainLooper() {
+        shadowOf(Looper.getMainLooper()).idle();
+    }
+
+    private static class RecordingCallback<T> extends AsyncDatabaseService.Callback<T> {
+        final List<T> results = new ArrayList<>();
+        final List<Exception> errors = new ArrayList<>();
+
+        @Override
+        public void onResult(T result) {
+            results.add(result);
+        }
+
+        @Override
+        public void onError(Exception error) {
+            errors.add(error);
+        }
+    }
+}
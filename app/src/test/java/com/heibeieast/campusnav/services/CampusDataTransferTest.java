@@ -0,0 +1,264 @@
+package com.heibeieast.campusnav.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.gson.stream.JsonWriter;
+import com.heibeieast.campusnav.models.CampusLocation;
+import com.heibeieast.campusnav.models.Route;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+@RunWith(RobolectricTestRunner.class)
+public class CampusDataTransferTest {
+    private static final int LARGE_CAMPUS = 50000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private DatabaseService databaseService;
+    private CampusDataTransfer transfer;
+
+    @Before
+    public void setUp() {
+        DatabaseService.resetInstance();
+        databaseService = DatabaseService.getInstance(RuntimeEnvironment.getApplication());
+        transfer = new CampusDataTransfer(databaseService);
+    }
+
+    @After
+    public void tearDown() {
+        DatabaseService.resetInstance();
+    }
+
+    @Test
+    public void importsLargeCampusInSeconds() throws Exception {
+        File file = writeCampus(LARGE_CAMPUS);
+        final List<int[]> progress = new ArrayList<>();
+
+        long startTime = System.nanoTime();
+        CampusDataTransfer.ImportResult result;
+        Reader in = new FileReader(file);
+        try {
+            result = transfer.importFrom(in, true, new CampusDataTransfer.ProgressListener() {
+                @Override
+                public void onProgress(int locations, int routes) {
+                    progress.add(new int[]{locations, routes});
+                }
+            });
+        } finally {
+            in.close();
+        }
+        long importMillis = (System.nanoTime() - startTime) / 1000000;
+
+        startTime = System.nanoTime();
+        File exported = folder.newFile("exported.json");
+        Writer out = new FileWriter(exported);
+        try {
+            transfer.exportTo(out, null);
+        } finally {
+            out.close();
+        }
+        long exportMillis = (System.nanoTime() - startTime) / 1000000;
+
+        System.out.printf("%d locations and %d routes (%d KB): imported in %d ms, exported in %d ms%n",
+                result.getLocationsImported(), result.getRoutesImported(), file.length() / 1024,
+                importMillis, exportMillis);
+        assertEquals(LARGE_CAMPUS, result.getLocationsImported());
+        assertEquals(LARGE_CAMPUS - 1, result.getRoutesImported());
+        assertEquals(LARGE_CAMPUS, databaseService.getAllLocations().size());
+        assertTrue("import took " + importMillis + " ms", importMillis < 60000);
+
+        // Progress is reported every thousand rows and ends with the totals
+        assertTrue(progress.size() >= (2 * LARGE_CAMPUS - 1) / 1000);
+        for (int i = 1; i < progress.size(); i++) {
+            assertTrue(progress.get(i)[0] + progress.get(i)[1] >= progress.get(i - 1)[0] + progress.get(i - 1)[1]);
+        }
+        int[] last = progress.get(progress.size() - 1);
+        assertEquals(LARGE_CAMPUS, last[0]);
+        assertEquals(LARGE_CAMPUS - 1, last[1]);
+    }
+
+    @Test
+    public void exportedCampusImportsUnchanged() throws Exception {
+        importFile(writeCampus(2500), true);
+        Set<String> locations = locationRows();
+        Set<String> routes = routeRows();
+
+        File exported = folder.newFile("exported.json");
+        Writer out = new FileWriter(exported);
+        try {
+            transfer.exportTo(out, null);
+        } finally {
+            out.close();
+        }
+        CampusDataTransfer.ImportResult result = importFile(exported, true);
+
+        assertEquals(2500, result.getLocationsImported());
+        assertEquals(locations, locationRows());
+        assertEquals(routes, routeRows());
+    }
+
+    @Test
+    public void importingTwiceAddsNothing() throws Exception {
+        File file = writeCampus(1500);
+        importFile(file, false);
+        int locationCount = databaseService.getAllLocations().size();
+
+        CampusDataTransfer.ImportResult again = importFile(file, false);
+
+        assertEquals(0, again.getLocationsImported());
+        assertEquals(1500, again.getLocationsSkipped());
+        assertEquals(0, again.getRoutesImported());
+        assertEquals(locationCount, databaseService.getAllLocations().size());
+    }
+
+    @Test
+    public void rejectsOtherFiles() throws Exception {
+        int locationCount = databaseService.getAllLocations().size();
+        try {
+            transfer.importFrom(new StringReader("{\"format\": \"other\", \"locations\": []}"), true, null);
+            fail();
+        } catch (IOException expected) {
+            // The replace was rolled back with the batch
+        }
+        assertEquals(locationCount, databaseService.getAllLocations().size());
+    }
+
+    @Test
+    public void truncatedFileKeepsCommittedBatches() throws Exception {
+        File file = writeCampus(2500);
+        String text = new String(java.nio.file.Files.readAllBytes(file.toPath()), "UTF-8");
+        String truncated = text.substring(0, text.indexOf("\"POI 2400\""));
+        int locationCount = databaseService.getAllLocations().size();
+
+        try {
+            transfer.importFrom(new StringReader(truncated), false, null);
+            fail();
+        } catch (IOException expected) {
+            // Ends in the middle of the locations
+        }
+
+        assertEquals(locationCount + 2 * DatabaseService.BulkImport.BATCH_SIZE,
+                databaseService.getAllLocations().size());
+    }
+
+    @Test
+    public void abortedReplaceKeepsExistingData() throws Exception {
+        importFile(writeCampus(1500), false);
+        Set<String> locations = locationRows();
+        Set<String> routes = routeRows();
+
+        // Fails well past the first batch, after the delete and 2400 new rows
+        File file = writeCampus(2500);
+        String text = new String(java.nio.file.Files.readAllBytes(file.toPath()), "UTF-8");
+        String truncated = text.substring(0, text.indexOf("\"POI 2400\""));
+        try {
+            transfer.importFrom(new StringReader(truncated), true, null);
+            fail();
+        } catch (IOException expected) {
+            // Ends in the middle of the locations
+        }
+
+        assertEquals(locations, locationRows());
+        assertEquals(routes, routeRows());
+        assertEquals(1, databaseService.searchLocations("POI 1499", 5).size());
+        assertEquals(1, databaseService.getLocationsNear(TestGraphs.CENTER_LAT, TestGraphs.CENTER_LON, 1).size());
+    }
+
+    private CampusDataTransfer.ImportResult importFile(File file, boolean replaceExisting) throws IOException {
+        Reader in = new FileReader(file);
+        try {
+            return transfer.importFrom(in, replaceExisting, null);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Campus file with POIs on a grid and a walkway from each to the next, written as a stream
+     */
+    private File writeCampus(int locationCount) throws IOException {
+        File file = folder.newFile();
+        JsonWriter writer = new JsonWriter(new FileWriter(file));
+        try {
+            writer.beginObject();
+            writer.name("format").value("campusnav");
+            writer.name("version").value(1);
+            writer.name("locations").beginArray();
+            for (int i = 0; i < locationCount; i++) {
+                writer.beginObject();
+                writer.name("id").value(1000 + i);
+                writer.name("name").value("POI " + i);
+                writer.name("latitude").value(TestGraphs.CENTER_LAT + (i % 250) * 1e-4);
+                writer.name("longitude").value(TestGraphs.CENTER_LON + (i / 250) * 1e-4);
+                writer.name("category").value(i % 3 == 0 ? "building" : "gate");
+                if (i % 2 == 0) {
+                    writer.name("description").value("第" + i + "号地点");
+                }
+                writer.endObject();
+            }
+            writer.endArray();
+            writer.name("routes").beginArray();
+            for (int i = 1; i < locationCount; i++) {
+                writer.beginObject();
+                writer.name("fromId").value(1000 + i - 1);
+                writer.name("toId").value(1000 + i);
+                writer.name("distance").value(11.5);
+                writer.name("estimatedSteps").value(16);
+                writer.endObject();
+            }
+            writer.endArray();
+            writer.endObject();
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+
+    private Set<String> locationRows() {
+        Set<String> rows = new HashSet<>();
+        for (CampusLocation location : databaseService.getAllLocations()) {
+            rows.add(location.getName() + "|" + location.getLatitude() + "|" + location.getLongitude() + "|"
+                    + location.getCategory() + "|" + location.getDescription());
+        }
+        return rows;
+    }
+
+    private Set<String> routeRows() {
+        Map<Long, String> names = new HashMap<>();
+        for (CampusLocation location : databaseService.getAllLocations()) {
+            names.put(location.getId(), location.getName());
+        }
+        Set<String> rows = new HashSet<>();
+        for (long id : names.keySet()) {
+            for (Route route : databaseService.getRoutesFromLocation(id)) {
+                rows.add(names.get(route.getFromLocationId()) + "|" + names.get(route.getToLocationId()) + "|"
+                        + route.getDistanceMeters() + "|" + route.getEstimatedSteps());
+            }
+        }
+        return rows;
+    }
+}
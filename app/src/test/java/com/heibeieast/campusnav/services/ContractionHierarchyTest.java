@@ -0,0 +1,157 @@
+package com.heibeieast.campusnav.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.heibeieast.campusnav.models.CampusGraph;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class ContractionHierarchyTest {
+    private static final int ROWS = 60;
+    private static final int COLS = 60;
+    private static final int QUERIES = 2000;
+
+    private static CampusGraph graph;
+    private static ContractionHierarchy hierarchy;
+    private static int[][] pairs;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void buildHierarchy() {
+        graph = TestGraphs.grid(ROWS, COLS, 3);
+        long startTime = System.nanoTime();
+        hierarchy = ContractionHierarchy.build(graph);
+        System.out.printf("CH over %d nodes built with %d shortcuts in %d ms%n", graph.getNodeCount(),
+                hierarchy.getShortcutCount(), (System.nanoTime() - startTime) / 1000000);
+
+        Random random = new Random(5);
+        pairs = new int[QUERIES][];
+        for (int i = 0; i < QUERIES; i++) {
+            int source = random.nextInt(graph.getNodeCount());
+            int goal = random.nextInt(graph.getNodeCount() - 1);
+            pairs[i] = new int[]{source, goal >= source ? goal + 1 : goal};
+        }
+    }
+
+    @Test
+    public void matchesAStarDistances() {
+        AStarSearch search = new AStarSearch(graph);
+        for (int[] pair : pairs) {
+            RoutingEngine.Path expected = search.findPath(pair[0], pair[1]);
+            ContractionHierarchy.Result result = hierarchy.findPath(pair[0], pair[1]);
+            assertNotNull(expected);
+            assertNotNull(result);
+            assertEquals(expected.getTotalDistance(), result.distance, 1e-3 * expected.getTotalDistance());
+            assertValidPath(result, pair[0], pair[1]);
+        }
+    }
+
+    @Test
+    public void queriesFasterThanAStar() {
+        AStarSearch search = new AStarSearch(graph);
+        // Warm up the JIT before timing
+        for (int round = 0; round < 3; round++) {
+            for (int[] pair : pairs) {
+                search.findPath(pair[0], pair[1]);
+                hierarchy.findPath(pair[0], pair[1]);
+            }
+        }
+
+        long settled = 0;
+        long startTime = System.nanoTime();
+        for (int[] pair : pairs) {
+            search.findPath(pair[0], pair[1]);
+            settled += search.getSettledCount();
+        }
+        double aStarMicros = (System.nanoTime() - startTime) / 1000.0 / QUERIES;
+
+        startTime = System.nanoTime();
+        for (int[] pair : pairs) {
+            hierarchy.findPath(pair[0], pair[1]);
+        }
+        double hierarchyMicros = (System.nanoTime() - startTime) / 1000.0 / QUERIES;
+
+        System.out.printf("%d nodes: A* %.1f us per query (%d nodes settled), CH %.1f us per query%n",
+                graph.getNodeCount(), aStarMicros, settled / QUERIES, hierarchyMicros);
+        assertTrue("CH took " + hierarchyMicros + " us, A* " + aStarMicros + " us",
+                hierarchyMicros < aStarMicros);
+    }
+
+    @Test
+    public void storedHierarchyRoundTrips() throws Exception {
+        File file = new File(folder.getRoot(), ContractionHierarchy.FILE_NAME);
+        long fingerprint = graph.fingerprint();
+        hierarchy.writeTo(file, fingerprint);
+
+        assertNull(ContractionHierarchy.readFrom(file, fingerprint + 1));
+        ContractionHierarchy loaded = ContractionHierarchy.readFrom(file, fingerprint);
+        assertNotNull(loaded);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(hierarchy.findPath(pairs[i][0], pairs[i][1]).distance,
+                    loaded.findPath(pairs[i][0], pairs[i][1]).distance, 0);
+        }
+        assertEquals(1, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void concurrentWritesLeaveOneReadableFile() throws Exception {
+        final File file = new File(folder.getRoot(), ContractionHierarchy.FILE_NAME);
+        final long fingerprint = graph.fingerprint();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Void>> writes = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                writes.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        hierarchy.writeTo(file, fingerprint);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> write : writes) {
+                write.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertNotNull(ContractionHierarchy.readFrom(file, fingerprint));
+        // No temporary files left behind
+        assertEquals(1, folder.getRoot().list().length);
+    }
+
+    private static void assertValidPath(ContractionHierarchy.Result result, int source, int goal) {
+        assertEquals(source, result.nodes[0]);
+        assertEquals(goal, result.nodes[result.nodes.length - 1]);
+        assertEquals(result.nodes.length - 1, result.arcs.length);
+        double length = 0;
+        for (int i = 0; i < result.arcs.length; i++) {
+            int arc = result.arcs[i];
+            int a = result.nodes[i];
+            int b = result.nodes[i + 1];
+            boolean joins = (arc >= graph.firstArc(a) && arc < graph.endArc(a) && graph.getTarget(arc) == b)
+                    || (arc >= graph.firstArc(b) && arc < graph.endArc(b) && graph.getTarget(arc) == a);
+            assertTrue("arc " + arc + " does not join " + a + " and " + b, joins);
+            length += graph.getWeight(arc);
+        }
+        assertEquals(result.distance, length, 1e-3 * length);
+    }
+}
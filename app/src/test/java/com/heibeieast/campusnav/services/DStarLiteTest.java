@@ -0,0 +1,162 @@
+package com.heibeieast.campusnav.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.heibeieast.campusnav.models.CampusGraph;
+import com.heibeieast.campusnav.models.CampusLocation;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class DStarLiteTest {
+    // Within one location update of MIN_TIME_BETWEEN_UPDATES
+    private static final long REPLAN_BUDGET_MS = 1000;
+
+    @Test
+    public void firstPlanIsShortest() {
+        CampusGraph graph = TestGraphs.grid(20, 20, 1);
+        AStarSearch search = new AStarSearch(graph);
+        Random random = new Random(1);
+        for (int query = 0; query < 50; query++) {
+            int start = random.nextInt(graph.getNodeCount());
+            int goal = random.nextInt(graph.getNodeCount());
+            if (start == goal) {
+                continue;
+            }
+            RoutingEngine.Path path = new DStarLite(graph, start, goal).computePath();
+            assertNotNull(path);
+            assertEquals(search.findPath(start, goal).getTotalDistance(), path.getTotalDistance(), 1e-3);
+            assertEquals(graph.getLocation(start), path.getWaypoints().get(0));
+            assertEquals(graph.getLocation(goal), path.getWaypoints().get(path.getWaypoints().size() - 1));
+        }
+    }
+
+    @Test
+    public void wrongTurnsReplanToShortestPath() {
+        CampusGraph graph = TestGraphs.grid(40, 40, 2);
+        AStarSearch search = new AStarSearch(graph);
+        Random random = new Random(2);
+        int goal = graph.getNodeCount() - 1;
+        DStarLite replanner = new DStarLite(graph, 0, goal);
+        RoutingEngine.Path path = replanner.computePath();
+        int firstPlanExpanded = replanner.getExpandedCount();
+
+        int position = 0;
+        int replans = 0;
+        long replanExpanded = 0;
+        while (position != goal) {
+            // Take the planned walkway, or now and then a wrong one
+            int next = indexOf(graph, path.getWaypoints().get(1));
+            if (random.nextInt(3) == 0) {
+                next = wrongTurn(graph, position, next, random);
+            }
+            position = next;
+            path = replanner.moveStart(position);
+            replans++;
+            replanExpanded += replanner.getExpandedCount();
+
+            assertNotNull(path);
+            assertEquals(graph.getLocation(position), path.getWaypoints().get(0));
+            double expected = position == goal ? 0 : search.findPath(position, goal).getTotalDistance();
+            assertEquals(expected, path.getTotalDistance(), 1e-3);
+        }
+
+        // Each correction touches a small part of what the first plan searched
+        assertTrue(replanExpanded / replans + " vs " + firstPlanExpanded,
+                replanExpanded / replans * 5 < firstPlanExpanded);
+    }
+
+    @Test
+    public void unreachableGoalHasNoPath() {
+        CampusGraph graph = TestGraphs.grid(5, 5, 3);
+        List<CampusLocation> locations = new ArrayList<>();
+        for (int node = 0; node < graph.getNodeCount(); node++) {
+            locations.add(graph.getLocation(node));
+        }
+        locations.add(new CampusLocation(1000, "island", TestGraphs.CENTER_LAT, TestGraphs.CENTER_LON,
+                "test", null, null));
+        CampusGraph withIsland = new CampusGraph(locations, new long[]{1}, new long[]{2}, new float[]{30},
+                new String[]{null}, 1);
+        assertNull(new DStarLite(withIsland, 0, withIsland.indexOf(1000)).computePath());
+    }
+
+    @Test
+    public void replanningLargeCampusFitsUpdateInterval() {
+        CampusGraph graph = TestGraphs.grid(200, 200, 4);
+        AStarSearch search = new AStarSearch(graph);
+        Random random = new Random(4);
+        int goal = graph.getNodeCount() - 1;
+        // Warm up both searches
+        for (int round = 0; round < 3; round++) {
+            new DStarLite(graph, 0, goal).computePath();
+            search.findPath(0, goal);
+        }
+
+        long startTime = System.nanoTime();
+        DStarLite replanner = new DStarLite(graph, 0, goal);
+        RoutingEngine.Path path = replanner.computePath();
+        long firstPlanNanos = System.nanoTime() - startTime;
+
+        int position = 0;
+        int replans = 0;
+        long replanNanos = 0;
+        long maxReplanNanos = 0;
+        long searchNanos = 0;
+        while (position != goal && replans < 200) {
+            int next = indexOf(graph, path.getWaypoints().get(1));
+            if (random.nextInt(3) == 0) {
+                next = wrongTurn(graph, position, next, random);
+            }
+            position = next;
+
+            startTime = System.nanoTime();
+            path = replanner.moveStart(position);
+            long nanos = System.nanoTime() - startTime;
+            replanNanos += nanos;
+            maxReplanNanos = Math.max(maxReplanNanos, nanos);
+
+            // What re-planning from scratch would cost at the same place
+            startTime = System.nanoTime();
+            RoutingEngine.Path expected = position == goal ? null : search.findPath(position, goal);
+            searchNanos += System.nanoTime() - startTime;
+            if (expected != null) {
+                assertEquals(expected.getTotalDistance(), path.getTotalDistance(), 1e-2);
+            }
+            replans++;
+        }
+
+        System.out.printf("%d-node campus: first plan %.1f ms; %d re-plans %.3f ms on average, %.1f ms at most; "
+                        + "A* from scratch %.3f ms on average%n", graph.getNodeCount(), firstPlanNanos / 1e6,
+                replans, replanNanos / 1e6 / replans, maxReplanNanos / 1e6, searchNanos / 1e6 / replans);
+        assertTrue(maxReplanNanos / 1000000 + " ms", maxReplanNanos / 1000000 < REPLAN_BUDGET_MS);
+        assertTrue(replanNanos < searchNanos);
+    }
+
+    /**
+     * A neighbour of the node other than the planned next one, or the planned one if there is none
+     */
+    private static int wrongTurn(CampusGraph graph, int node, int planned, Random random) {
+        List<Integer> others = new ArrayList<>();
+        for (int arc = graph.firstArc(node); arc < graph.endArc(node); arc++) {
+            if (graph.getTarget(arc) != planned) {
+                others.add(graph.getTarget(arc));
+            }
+        }
+        if (others.isEmpty()) {
+            return planned;
+        }
+        Collections.shuffle(others, random);
+        return others.get(0);
+    }
+
+    private static int indexOf(CampusGraph graph, CampusLocation location) {
+        return graph.indexOf(location.getId());
+    }
+}
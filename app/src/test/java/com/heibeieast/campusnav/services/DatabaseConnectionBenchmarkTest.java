@@ -0,0 +1,114 @@
+package com.heibeieast.campusnav.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.heibeieast.campusnav.models.CampusLocation;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.List;
+
+/**
+ * Per-fix database cost of the navigation screen: the location lookups and the
+ * step length read for every GPS fix, on the helper's long-lived connection
+ * against opening and closing a connection for each query as before
+ */
+@RunWith(RobolectricTestRunner.class)
+public class DatabaseConnectionBenchmarkTest {
+    private static final int FIXES = 500;
+
+    private DatabaseService databaseService;
+    private String[] names;
+
+    @Before
+    public void setUp() {
+        DatabaseService.resetInstance();
+        databaseService = DatabaseService.getInstance(RuntimeEnvironment.getApplication());
+        List<CampusLocation> locations = databaseService.getAllLocations();
+        names = new String[locations.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = locations.get(i).getName();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        DatabaseService.resetInstance();
+    }
+
+    @Test
+    public void connectionUsesWriteAheadLog() {
+        Cursor cursor = databaseService.getReadableDatabase().rawQuery("PRAGMA journal_mode", null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals("wal", cursor.getString(0).toLowerCase());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void persistentConnectionIsFasterPerFix() {
+        String path = databaseService.getReadableDatabase().getPath();
+        // Warm up both paths before timing
+        for (int i = 0; i < FIXES / 5; i++) {
+            lookUpPerConnection(path, names[i % names.length]);
+            lookUpPersistent(names[i % names.length]);
+        }
+
+        long startTime = System.nanoTime();
+        for (int i = 0; i < FIXES; i++) {
+            lookUpPerConnection(path, names[i % names.length]);
+        }
+        double perConnectionMicros = (System.nanoTime() - startTime) / 1000.0 / FIXES;
+
+        startTime = System.nanoTime();
+        for (int i = 0; i < FIXES; i++) {
+            lookUpPersistent(names[i % names.length]);
+        }
+        double persistentMicros = (System.nanoTime() - startTime) / 1000.0 / FIXES;
+
+        System.out.printf("Per fix: open/close per query %.1f us, persistent connection %.1f us%n",
+                perConnectionMicros, persistentMicros);
+        assertTrue("persistent " + persistentMicros + " us, per connection " + perConnectionMicros + " us",
+                persistentMicros < perConnectionMicros);
+    }
+
+    private void lookUpPersistent(String name) {
+        long id = databaseService.getLocationIdByName(name);
+        assertEquals(name, databaseService.getLocationById(id).getName());
+        assertTrue(databaseService.getAverageStepLength() > 0);
+    }
+
+    /**
+     * The same three reads, each on a connection of its own as the service did before
+     */
+    private static void lookUpPerConnection(String path, String name) {
+        long id = queryLong(path, "SELECT id FROM campus_locations WHERE name = ?", name);
+        assertTrue(queryLong(path, "SELECT id FROM campus_locations WHERE id = ?", String.valueOf(id)) == id);
+        assertTrue(queryLong(path, "SELECT average_step_length FROM user_preferences LIMIT 1") >= 0);
+    }
+
+    private static long queryLong(String path, String sql, String... args) {
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(path, null, SQLiteDatabase.OPEN_READWRITE);
+        try {
+            Cursor cursor = db.rawQuery(sql, args);
+            try {
+                return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+            } finally {
+                cursor.close();
+            }
+        } finally {
+            db.close();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.heibeieast.campusnav.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class DeadReckoningTest {
+    private static final double STEP_LENGTH = 0.7;
+    private static final double LATITUDE = 45.7525;
+    private static final double LONGITUDE = 126.6485;
+    private static final double METERS_PER_DEGREE = 6371000 * Math.PI / 180;
+
+    @Test
+    public void stepsAdvanceAlongTheHeading() {
+        DeadReckoning deadReckoning = anchored(1000);
+        assertEquals(0, deadReckoning.onHeading(90, 1000));
+        for (int i = 1; i <= 10; i++) {
+            // A step is taken once the heading at its moment is known
+            assertEquals(0, deadReckoning.onStep(1000 + i * 500));
+            assertEquals(1, deadReckoning.onHeading(90, 1000 + i * 500));
+        }
+
+        assertEquals(0, north(deadReckoning), 1e-6);
+        assertEquals(10 * STEP_LENGTH, east(deadReckoning), 1e-6);
+        assertEquals(10 * STEP_LENGTH, deadReckoning.getDistanceWalked(), 1e-9);
+        assertEquals(6000, deadReckoning.getTime());
+        // The estimate grows less certain with every meter
+        assertEquals(4 + 0.08 * 10 * STEP_LENGTH, deadReckoning.getAccuracy(), 1e-4);
+
+        walk(deadReckoning, 180, 6500, 2);
+        assertEquals(-2 * STEP_LENGTH, north(deadReckoning), 1e-6);
+        assertEquals(10 * STEP_LENGTH, east(deadReckoning), 1e-6);
+    }
+
+    @Test
+    public void stepsWaitForTheirHeading() {
+        DeadReckoning deadReckoning = anchored(0);
+        // Batched sensors deliver steps before the headings around them
+        assertEquals(0, deadReckoning.onStep(100));
+        assertEquals(0, deadReckoning.onStep(600));
+        assertEquals(0, deadReckoning.getDistanceWalked(), 0);
+
+        assertEquals(0, deadReckoning.onHeading(0, 0));
+        // Both steps lie between the samples, so each takes the heading of its own moment
+        assertEquals(2, deadReckoning.onHeading(90, 1000));
+        double first = Math.toRadians(9);
+        double second = Math.toRadians(54);
+        assertEquals(STEP_LENGTH * (Math.cos(first) + Math.cos(second)), north(deadReckoning), 1e-6);
+        assertEquals(STEP_LENGTH * (Math.sin(first) + Math.sin(second)), east(deadReckoning), 1e-6);
+        assertEquals(600, deadReckoning.getTime());
+    }
+
+    @Test
+    public void headingInterpolatesTheShortWayRound() {
+        DeadReckoning deadReckoning = anchored(0);
+        deadReckoning.onHeading(350, 0);
+        deadReckoning.onStep(500);
+        deadReckoning.onHeading(10, 1000);
+        // Halfway from 350 to 10 is north, not south
+        assertEquals(STEP_LENGTH, north(deadReckoning), 1e-6);
+        assertEquals(0, east(deadReckoning), 1e-6);
+    }
+
+    @Test
+    public void stepsUseTheLastHeadingOnceTheyWaitTooLong() {
+        DeadReckoning deadReckoning = anchored(0);
+        deadReckoning.onHeading(270, 0);
+        assertEquals(0, deadReckoning.onStep(500));
+        assertEquals(0, deadReckoning.onStep(1500));
+        // No newer heading arrives; each waiting step goes ahead once it has waited two seconds
+        assertEquals(1, deadReckoning.onStep(2600));
+        assertEquals(1, deadReckoning.onStep(3600));
+        assertEquals(-2 * STEP_LENGTH, east(deadReckoning), 1e-6);
+        assertEquals(1500, deadReckoning.getTime());
+    }
+
+    @Test
+    public void fixReanchorsThePosition() {
+        DeadReckoning deadReckoning = anchored(0);
+        deadReckoning.onHeading(45, 0);
+        walk(deadReckoning, 45, 500, 20);
+        assertEquals(20 * STEP_LENGTH, deadReckoning.getDistanceWalked(), 1e-9);
+
+        // A step after the fix is waiting when it arrives; one before it is already part of the fix
+        deadReckoning.onStep(10600);
+        double fixLatitude = LATITUDE + 0.0005;
+        double fixLongitude = LONGITUDE - 0.0003;
+        deadReckoning.anchor(fixLatitude, fixLongitude, 3, 10500);
+        assertEquals(fixLatitude, deadReckoning.getLatitude(), 1e-12);
+        assertEquals(fixLongitude, deadReckoning.getLongitude(), 1e-12);
+        assertEquals(0, deadReckoning.getDistanceWalked(), 0);
+        assertEquals(3, deadReckoning.getAccuracy(), 0);
+        assertEquals(10500, deadReckoning.getTime());
+
+        assertEquals(0, deadReckoning.onStep(10400));
+        assertEquals(0, deadReckoning.onHeading(0, 10550));
+        assertEquals(1, deadReckoning.onHeading(0, 10700));
+        assertEquals(STEP_LENGTH, deadReckoning.getDistanceWalked(), 1e-9);
+        assertEquals(STEP_LENGTH, (deadReckoning.getLatitude() - fixLatitude) * METERS_PER_DEGREE, 1e-6);
+    }
+
+    @Test
+    public void nothingMovesWithoutAnAnchor() {
+        DeadReckoning deadReckoning = new DeadReckoning(STEP_LENGTH);
+        deadReckoning.onHeading(0, 0);
+        assertEquals(0, deadReckoning.onStep(500));
+        assertFalse(deadReckoning.hasPosition());
+
+        deadReckoning.anchor(LATITUDE, LONGITUDE, 4, 1000);
+        assertTrue(deadReckoning.hasPosition());
+        deadReckoning.reset();
+        assertFalse(deadReckoning.hasPosition());
+        assertEquals(0, deadReckoning.onStep(1500));
+    }
+
+    /**
+     * Steps every half second from the given time, each followed by its heading sample
+     */
+    private static void walk(DeadReckoning deadReckoning, double heading, long from, int steps) {
+        for (int i = 0; i < steps; i++) {
+            deadReckoning.onStep(from + i * 500);
+            deadReckoning.onHeading(heading, from + i * 500);
+        }
+    }
+
+    private static DeadReckoning anchored(long time) {
+        DeadReckoning deadReckoning = new DeadReckoning(STEP_LENGTH);
+        deadReckoning.anchor(LATITUDE, LONGITUDE, 4, time);
+        return deadReckoning;
+    }
+
+    private static double north(DeadReckoning deadReckoning) {
+        return (deadReckoning.getLatitude() - LATITUDE) * METERS_PER_DEGREE;
+    }
+
+    private static double east(DeadReckoning deadReckoning) {
+        return (deadReckoning.getLongitude() - LONGITUDE) * METERS_PER_DEGREE * Math.cos(Math.toRadians(LATITUDE));
+    }
+}
@@ -0,0 +1,128 @@
+package com.heibeieast.campusnav.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+public class HeadingFusionTest {
+    private static final double METERS_PER_DEGREE = 6371000 * Math.PI / 180;
+    private static final double COMPASS_BIAS = 25;
+
+    @Test
+    public void learnsCompassOffsetWhileWalkingStraight() {
+        HeadingFusion fusion = new HeadingFusion();
+        Walker walker = new Walker(fusion, 1);
+        walker.walk(5 * 60000, 70);
+
+        assertEquals(-COMPASS_BIAS, fusion.getOffset(), 6);
+        assertEquals(0, HeadingFusion.relativeBearing(70, fusion.getHeading()), 8);
+    }
+
+    @Test
+    public void answersTurnWithinTenthOfSecond() {
+        HeadingFusion fusion = new HeadingFusion();
+        Walker walker = new Walker(fusion, 2);
+        walker.walk(5 * 60000, 0);
+        double offset = fusion.getOffset();
+
+        // Turn right on the spot: the compass follows at once, GPS only seconds later
+        walker.sway = 0;
+        double heading = walker.walk(100, 90);
+        assertEquals(0, HeadingFusion.relativeBearing(90, heading), 8);
+
+        walker.sway = 3;
+        walker.walk(10000, 90);
+        assertEquals(offset, fusion.getOffset(), 2);
+    }
+
+    @Test
+    public void frequentTurnsDoNotSwingOffset() {
+        HeadingFusion fusion = new HeadingFusion();
+        Walker walker = new Walker(fusion, 3);
+        walker.walk(5 * 60000, 180);
+        double offset = fusion.getOffset();
+
+        double course = 180;
+        for (int leg = 0; leg < 20; leg++) {
+            course = (course + 90) % 360;
+            walker.walk(4000, course);
+        }
+        assertEquals(offset, fusion.getOffset(), 5);
+    }
+
+    @Test
+    public void standingStillLearnsNothing() {
+        HeadingFusion fusion = new HeadingFusion();
+        Walker walker = new Walker(fusion, 4);
+        walker.speed = 0;
+        walker.walk(5 * 60000, 0);
+        assertEquals(0, fusion.getOffset(), 2);
+        assertEquals(COMPASS_BIAS, fusion.getHeading(), 10);
+    }
+
+    @Test
+    public void clockHoursHoldAcrossSectorEdges() {
+        assertEquals(12, HeadingFusion.toClockHour(0));
+        assertEquals(3, HeadingFusion.toClockHour(90));
+        assertEquals(9, HeadingFusion.toClockHour(-90));
+        assertEquals(6, HeadingFusion.toClockHour(180));
+        assertEquals(12, HeadingFusion.toClockHour(-14));
+
+        // 2 o'clock starts at 45 degrees; the previous hour holds until 50
+        assertEquals(2, HeadingFusion.toClockHour(47, 0));
+        assertEquals(1, HeadingFusion.toClockHour(47, 1));
+        assertEquals(2, HeadingFusion.toClockHour(51, 1));
+        assertEquals(12, HeadingFusion.toClockHour(-19, 12));
+        assertEquals(11, HeadingFusion.toClockHour(-21, 12));
+
+        assertEquals(90, HeadingFusion.relativeBearing(0, 270), 1e-9);
+        assertEquals(-90, HeadingFusion.relativeBearing(270, 0), 1e-9);
+        assertEquals(180, HeadingFusion.relativeBearing(180, 0), 1e-9);
+    }
+
+    /**
+     * Walks with the compass sampled at 50 Hz, reading a fixed bias plus the
+     * phone swaying with each step, and a GPS fix every second with 3 m error
+     */
+    private static class Walker {
+        private final HeadingFusion fusion;
+        private final Random random;
+        double speed = 1.4;
+        double sway = 3;
+        private double north;
+        private double east;
+        private long time = 1000;
+        private long nextFix = 1000;
+
+        Walker(HeadingFusion fusion, long seed) {
+            this.fusion = fusion;
+            this.random = new Random(seed);
+        }
+
+        /**
+         * @return The fused heading at the end
+         */
+        double walk(long durationMillis, double course) {
+            double heading = Double.NaN;
+            long end = time + durationMillis;
+            for (; time < end; time += 20) {
+                double step = Math.sin(time / 1000.0 * Math.PI * 1.8);
+                heading = fusion.onCompass(course + COMPASS_BIAS + step * sway + random.nextGaussian(), time);
+                north += speed * 0.02 * Math.cos(Math.toRadians(course));
+                east += speed * 0.02 * Math.sin(Math.toRadians(course));
+                if (time >= nextFix) {
+                    double latitude = TestGraphs.CENTER_LAT + (north + random.nextGaussian() * 3) / METERS_PER_DEGREE;
+                    double longitude = TestGraphs.CENTER_LON + (east + random.nextGaussian() * 3)
+                            / (METERS_PER_DEGREE * Math.cos(Math.toRadians(TestGraphs.CENTER_LAT)));
+                    fusion.onFix(latitude, longitude, 3, time);
+                    nextFix += 1000;
+                }
+            }
+            assertTrue(!Double.isNaN(heading));
+            return heading;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.heibeieast.campusnav.services;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * {@link SchemaMigrator.SqlExecutor} over a SQLite file through JDBC, for
+ * running migrations and building fixture databases on the JVM. Transactions
+ * nest the way SQLiteDatabase's do: only the outermost one commits, and it
+ * rolls back if any nested one did not succeed.
+ */
+final class JdbcExecutor implements SchemaMigrator.SqlExecutor, AutoCloseable {
+    private final Connection connection;
+    // Whether each open transaction, innermost first, was marked successful
+    private final Deque<Boolean> transactions = new ArrayDeque<>();
+    private boolean failed;
+
+    JdbcExecutor(File file) throws SQLException {
+        connection = DriverManager.getConnection("jdbc:sqlite:" + file.getPath());
+    }
+
+    Connection getConnection() {
+        return connection;
+    }
+
+    @Override
+    public void execSQL(String sql) {
+        execSQL(sql, null);
+    }
+
+    @Override
+    public void execSQL(String sql, Object[] bindArgs) {
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            if (bindArgs != null) {
+                for (int i = 0; i < bindArgs.length; i++) {
+                    statement.setObject(i + 1, bindArgs[i]);
+                }
+            }
+            statement.execute();
+        } catch (SQLException e) {
+            throw new IllegalStateException(sql, e);
+        }
+    }
+
+    @Override
+    public boolean tryExecSQL(String sql) {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute(sql);
+            return true;
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void query(String sql, SchemaMigrator.RowHandler handler) {
+        try (Statement statement = connection.createStatement();
+             ResultSet rows = statement.executeQuery(sql)) {
+            String[] row = new String[rows.getMetaData().getColumnCount()];
+            while (rows.next()) {
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = rows.getString(i + 1);
+                }
+                handler.onRow(row);
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException(sql, e);
+        }
+    }
+
+    /**
+     * First column of the first row as a long, or -1 if there is no row
+     */
+    long queryLong(String sql) {
+        try (Statement statement = connection.createStatement();
+             ResultSet rows = statement.executeQuery(sql)) {
+            return rows.next() ? rows.getLong(1) : -1;
+        } catch (SQLException e) {
+            throw new IllegalStateException(sql, e);
+        }
+    }
+
+    @Override
+    public void beginTransaction() {
+        if (transactions.isEmpty()) {
+            execSQL("BEGIN IMMEDIATE");
+            failed = false;
+        }
+        transactions.push(false);
+    }
+
+    @Override
+    public void setTransactionSuccessful() {
+        transactions.pop();
+        transactions.push(true);
+    }
+
+    @Override
+    public void endTransaction() {
+        failed |= !transactions.pop();
+        if (transactions.isEmpty()) {
+            execSQL(failed ? "ROLLBACK" : "COMMIT");
+        }
+    }
+
+    @Override
+    public void close() throws SQLException {
+        connection.close();
+    }
+}
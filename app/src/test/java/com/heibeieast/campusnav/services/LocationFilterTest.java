@@ -0,0 +1,233 @@
+package com.heibeieast.campusnav.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+public class LocationFilterTest {
+    private static final double METERS_PER_DEGREE = 6371000 * Math.PI / 180;
+    private static final double SPEED = 1.3;
+
+    @Test
+    public void smoothsNoisyWalk() {
+        LocationFilter filter = new LocationFilter();
+        Walker walker = new Walker(1);
+        double rawError = 0;
+        double filteredError = 0;
+        double headingError = 0;
+        int rawFlips = 0;
+        int filteredFlips = 0;
+        int count = 0;
+        double[] previous = null;
+        for (int second = 0; second < 600; second++) {
+            // A right-angle turn every two minutes
+            walker.walk(1000, (second / 120) * 90 % 360);
+            double[] fix = walker.fix(5);
+            assertTrue(filter.update(fix[0], fix[1], 5, walker.time));
+            double[] last = previous;
+            previous = fix;
+            if (second % 120 < 20) {
+                // Let the filter settle after the start and each turn
+                continue;
+            }
+            rawError += square(walker.distanceTo(fix[0], fix[1]));
+            filteredError += square(walker.distanceTo(filter.getLatitude(), filter.getLongitude()));
+            // Pointing backwards, as the bearing between raw fixes often does
+            double rawBearing = LocationService.calculateBearing(last[0], last[1], fix[0], fix[1]);
+            if (Math.abs(HeadingFusion.relativeBearing(walker.heading, rawBearing)) > 90) {
+                rawFlips++;
+            }
+            double error = Math.abs(HeadingFusion.relativeBearing(walker.heading, filter.getHeading()));
+            if (error > 90) {
+                filteredFlips++;
+            }
+            headingError += error;
+            count++;
+        }
+
+        double rawRms = Math.sqrt(rawError / count);
+        double filteredRms = Math.sqrt(filteredError / count);
+        System.out.printf("Walk with 5 m fixes: raw error %.1f m, filtered %.1f m; heading off by %.0f deg "
+                + "on average, %d flips against %d between raw fixes%n",
+                rawRms, filteredRms, headingError / count, filteredFlips, rawFlips);
+        assertTrue(filteredRms + " vs " + rawRms, filteredRms < 0.6 * rawRms);
+        assertTrue(headingError / count + " deg", headingError / count < 25);
+        assertTrue(filteredFlips + " vs " + rawFlips, filteredFlips * 20 < rawFlips);
+        assertEquals(SPEED, filter.getSpeed(), 0.8);
+    }
+
+    @Test
+    public void weighsNetworkFixesByAccuracy() {
+        LocationFilter gpsOnly = new LocationFilter();
+        LocationFilter fused = new LocationFilter();
+        Walker walker = new Walker(2);
+        double gpsOnlyError = 0;
+        double fusedError = 0;
+        int count = 0;
+        for (int second = 0; second < 300; second++) {
+            walker.walk(1000, 45);
+            double[] gps = walker.fix(4);
+            gpsOnly.update(gps[0], gps[1], 4, walker.time);
+            fused.update(gps[0], gps[1], 4, walker.time);
+            // The network provider, a little later and far less accurate
+            double[] network = walker.fix(30);
+            fused.update(network[0], network[1], 30, walker.time + 1);
+            if (second >= 20) {
+                gpsOnlyError += square(walker.distanceTo(gpsOnly.getLatitude(), gpsOnly.getLongitude()));
+                fusedError += square(walker.distanceTo(fused.getLatitude(), fused.getLongitude()));
+                count++;
+            }
+        }
+        assertTrue(Math.sqrt(fusedError / count) < 1.2 * Math.sqrt(gpsOnlyError / count));
+
+        // Without GPS the network fixes carry the track
+        for (int second = 0; second < 120; second++) {
+            walker.walk(1000, 45);
+            double[] network = walker.fix(30);
+            assertTrue(fused.update(network[0], network[1], 30, walker.time));
+        }
+        assertTrue(walker.distanceTo(fused.getLatitude(), fused.getLongitude()) < 30);
+        assertTrue(fused.getAccuracy() > 4);
+    }
+
+    @Test
+    public void rejectsOutliersButFollowsRealJumps() {
+        LocationFilter filter = new LocationFilter();
+        Walker walker = new Walker(3);
+        for (int second = 0; second < 60; second++) {
+            walker.walk(1000, 0);
+            double[] fix = walker.fix(4);
+            filter.update(fix[0], fix[1], 4, walker.time);
+        }
+
+        // A single multipath fix 200 m away leaves the track alone
+        walker.walk(1000, 0);
+        assertFalse(filter.update(walker.latitude() + 200 / METERS_PER_DEGREE, walker.longitude(), 4, walker.time));
+        assertTrue(walker.distanceTo(filter.getLatitude(), filter.getLongitude()) < 10);
+
+        // A fix from before the last one is dropped
+        assertFalse(filter.update(walker.latitude(), walker.longitude(), 4, walker.time - 2000));
+
+        // Repeated fixes far away mean the track was wrong, e.g. after leaving a building
+        double latitude = walker.latitude() + 300 / METERS_PER_DEGREE;
+        boolean accepted = false;
+        for (int i = 0; i < 3 && !accepted; i++) {
+            walker.walk(1000, 0);
+            accepted = filter.update(latitude, walker.longitude(), 4, walker.time);
+        }
+        assertTrue(accepted);
+        assertEquals(latitude, filter.getLatitude(), 1e-9);
+    }
+
+    @Test
+    public void longGapStartsNewTrack() {
+        LocationFilter filter = new LocationFilter();
+        filter.update(TestGraphs.CENTER_LAT, TestGraphs.CENTER_LON, 5, 1000);
+        filter.update(TestGraphs.CENTER_LAT + 1e-5, TestGraphs.CENTER_LON, 5, 2000);
+        assertTrue(filter.update(TestGraphs.CENTER_LAT + 0.01, TestGraphs.CENTER_LON, 5, 60000));
+        assertEquals(TestGraphs.CENTER_LAT + 0.01, filter.getLatitude(), 1e-9);
+        assertEquals(0, filter.getSpeed(), 0);
+    }
+
+    @Test
+    public void updatesWithoutAllocating() {
+        LocationFilter filter = new LocationFilter();
+        Walker walker = new Walker(4);
+        int count = 100000;
+        double[][] fixes = new double[count][];
+        long[] times = new long[count];
+        for (int i = 0; i < count; i++) {
+            walker.walk(1000, (i / 60) * 90 % 360);
+            fixes[i] = walker.fix(5);
+            times[i] = walker.time;
+        }
+        // Warm up so the JIT has compiled update before measuring
+        for (int round = 0; round < 3; round++) {
+            feed(new LocationFilter(), fixes, times);
+        }
+
+        long startBytes = allocatedBytes();
+        long startTime = System.nanoTime();
+        feed(filter, fixes, times);
+        long nanos = System.nanoTime() - startTime;
+        long bytes = allocatedBytes() - startBytes;
+
+        System.out.printf("Filtered %d fixes in %.1f ms (%.0f ns each), %d bytes allocated%n",
+                count, nanos / 1e6, (double) nanos / count, bytes);
+        assertTrue(bytes + " bytes allocated", bytes < count);
+    }
+
+    private static double feed(LocationFilter filter, double[][] fixes, long[] times) {
+        double sum = 0;
+        for (int i = 0; i < fixes.length; i++) {
+            filter.update(fixes[i][0], fixes[i][1], 5, times[i]);
+            sum += filter.getLatitude() + filter.getHeading();
+        }
+        return sum;
+    }
+
+    private static double square(double value) {
+        return value * value;
+    }
+
+    private static long allocatedBytes() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    /**
+     * Walks at a steady 1.3 m/s and reports fixes with Gaussian error
+     */
+    private static class Walker {
+        private final Random random;
+        private double north;
+        private double east;
+        double heading;
+        long time = 1000;
+
+        Walker(long seed) {
+            this.random = new Random(seed);
+        }
+
+        void walk(long millis, double heading) {
+            this.heading = heading;
+            north += SPEED * millis / 1000 * Math.cos(Math.toRadians(heading));
+            east += SPEED * millis / 1000 * Math.sin(Math.toRadians(heading));
+            time += millis;
+        }
+
+        /**
+         * @param accuracy Standard deviation of the error in meters
+         * @return Latitude and longitude
+         */
+        double[] fix(double accuracy) {
+            return new double[]{
+                    latitude() + random.nextGaussian() * accuracy / METERS_PER_DEGREE,
+                    longitude() + random.nextGaussian() * accuracy / metersPerDegreeLongitude()};
+        }
+
+        double latitude() {
+            return TestGraphs.CENTER_LAT + north / METERS_PER_DEGREE;
+        }
+
+        double longitude() {
+            return TestGraphs.CENTER_LON + east / metersPerDegreeLongitude();
+        }
+
+        double distanceTo(double latitude, double longitude) {
+            return LocationService.calculateDistance(latitude(), longitude(), latitude, longitude);
+        }
+
+        private static double metersPerDegreeLongitude() {
+            return METERS_PER_DEGREE * Math.cos(Math.toRadians(TestGraphs.CENTER_LAT));
+        }
+    }
+}
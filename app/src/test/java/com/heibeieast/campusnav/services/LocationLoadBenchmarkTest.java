@@ -0,0 +1,215 @@
+package com.heibeieast.campusnav.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.heibeieast.campusnav.models.CampusLocation;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cost of loading 10k locations, of name lookups and of searches, against the
+ * per-row column lookups and per-call queries the service used before
+ */
+@RunWith(RobolectricTestRunner.class)
+public class LocationLoadBenchmarkTest {
+    private static final int LOCATION_COUNT = 10000;
+    private static final int LOOKUPS = 2000;
+    private static final int ROUNDS = 5;
+    private static final int SEARCH_LIMIT = 10;
+    private static final int SEARCHES = 200;
+    // Budget for one keystroke of the search box
+    private static final long SEARCH_BUDGET_NANOS = 10000000;
+
+    private DatabaseService databaseService;
+
+    @Before
+    public void setUp() {
+        DatabaseService.resetInstance();
+        databaseService = DatabaseService.getInstance(RuntimeEnvironment.getApplication());
+        DatabaseService.BulkImport bulkImport = databaseService.beginBulkImport(true);
+        for (int i = 0; i < LOCATION_COUNT; i++) {
+            bulkImport.insertLocation("POI " + i, TestGraphs.CENTER_LAT + (i % 100) * 1e-4,
+                    TestGraphs.CENTER_LON + (i / 100) * 1e-4, "test", "Test location " + i, null);
+        }
+        bulkImport.finish();
+    }
+
+    @After
+    public void tearDown() {
+        DatabaseService.resetInstance();
+    }
+
+    @Test
+    public void loadsAllLocations() {
+        // Warm up both mappers before measuring
+        for (int round = 0; round < 2; round++) {
+            databaseService.getAllLocations();
+            loadPerRowLookups();
+        }
+
+        Measurement mapped = new Measurement();
+        List<CampusLocation> locations = null;
+        for (int round = 0; round < ROUNDS; round++) {
+            locations = databaseService.getAllLocations();
+        }
+        mapped.stop();
+
+        Measurement perRow = new Measurement();
+        List<CampusLocation> expected = null;
+        for (int round = 0; round < ROUNDS; round++) {
+            expected = loadPerRowLookups();
+        }
+        perRow.stop();
+
+        System.out.printf("Load %d locations: row mapper %s, per-row column lookups %s%n",
+                LOCATION_COUNT, mapped.format(ROUNDS), perRow.format(ROUNDS));
+        assertEquals(LOCATION_COUNT, locations.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getId(), locations.get(i).getId());
+            assertEquals(expected.get(i).getName(), locations.get(i).getName());
+            assertEquals(expected.get(i).getLatitude(), locations.get(i).getLatitude(), 0);
+        }
+    }
+
+    @Test
+    public void compiledNameLookupIsFaster() {
+        SQLiteDatabase db = databaseService.getReadableDatabase();
+        for (int i = 0; i < LOOKUPS; i++) {
+            databaseService.getLocationIdByName("POI " + i);
+            lookUpByQuery(db, "POI " + i);
+        }
+
+        Measurement compiled = new Measurement();
+        for (int i = 0; i < LOOKUPS; i++) {
+            assertTrue(databaseService.getLocationIdByName("POI " + (i * 7 % LOCATION_COUNT)) > 0);
+        }
+        compiled.stop();
+
+        Measurement queried = new Measurement();
+        for (int i = 0; i < LOOKUPS; i++) {
+            assertTrue(lookUpByQuery(db, "POI " + (i * 7 % LOCATION_COUNT)) > 0);
+        }
+        queried.stop();
+
+        System.out.printf("Name lookup: compiled statement %s, query per call %s%n",
+                compiled.format(LOOKUPS), queried.format(LOOKUPS));
+        assertEquals(-1, databaseService.getLocationIdByName("no such location"));
+        assertTrue(compiled.nanos < queried.nanos);
+    }
+
+    @Test
+    public void searchesStayWithinKeystrokeBudget() {
+        // Name prefix; name word; name word prefix; description only; category matching every row; no match
+        String[] queries = {"POI 12", "POI 9999", "77", "location 4321", "test", "no such place"};
+        for (String query : queries) {
+            for (int i = 0; i < 20; i++) {
+                databaseService.searchLocations(query, SEARCH_LIMIT);
+            }
+        }
+
+        for (String query : queries) {
+            List<CampusLocation> results = null;
+            Measurement search = new Measurement();
+            for (int i = 0; i < SEARCHES; i++) {
+                results = databaseService.searchLocations(query, SEARCH_LIMIT);
+            }
+            search.stop();
+
+            System.out.printf("Search \"%s\" over %d locations: %s, %d results%n",
+                    query, LOCATION_COUNT, search.format(SEARCHES), results.size());
+            assertTrue(query, search.nanos / SEARCHES < SEARCH_BUDGET_NANOS);
+            assertEquals(query, query.startsWith("no "), results.isEmpty());
+        }
+    }
+
+    @Test
+    public void lookupsUseIndexes() {
+        SQLiteDatabase db = databaseService.getReadableDatabase();
+        assertTrue(queryPlan(db, "SELECT id FROM campus_locations WHERE name = 'POI 1'")
+                .contains("idx_campus_locations_name"));
+        assertTrue(queryPlan(db, "SELECT * FROM campus_routes WHERE from_location_id = 1")
+                .contains("idx_campus_routes_from"));
+    }
+
+    /**
+     * The service's old row mapping, resolving every column by name for every row
+     */
+    private List<CampusLocation> loadPerRowLookups() {
+        List<CampusLocation> locations = new ArrayList<>();
+        Cursor cursor = databaseService.getReadableDatabase().query("campus_locations", null, null, null,
+                null, null, "name ASC");
+        while (cursor.moveToNext()) {
+            locations.add(new CampusLocation(
+                    cursor.getLong(cursor.getColumnIndexOrThrow("id")),
+                    cursor.getString(cursor.getColumnIndexOrThrow("name")),
+                    cursor.getDouble(cursor.getColumnIndexOrThrow("latitude")),
+                    cursor.getDouble(cursor.getColumnIndexOrThrow("longitude")),
+                    cursor.getString(cursor.getColumnIndexOrThrow("category")),
+                    cursor.getString(cursor.getColumnIndexOrThrow("description")),
+                    cursor.getString(cursor.getColumnIndexOrThrow("created_at"))
+            ));
+        }
+        cursor.close();
+        return locations;
+    }
+
+    private static long lookUpByQuery(SQLiteDatabase db, String name) {
+        Cursor cursor = db.query("campus_locations", new String[]{"id"}, "name = ?", new String[]{name},
+                null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static String queryPlan(SQLiteDatabase db, String sql) {
+        StringBuilder plan = new StringBuilder();
+        Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN " + sql, null);
+        while (cursor.moveToNext()) {
+            plan.append(cursor.getString(cursor.getColumnCount() - 1)).append('\n');
+        }
+        cursor.close();
+        return plan.toString();
+    }
+
+    /**
+     * Wall time and, where the JVM reports it, bytes allocated by this thread
+     */
+    private static class Measurement {
+        private final long startNanos = System.nanoTime();
+        private final long startBytes = allocatedBytes();
+        long nanos;
+        long bytes;
+
+        void stop() {
+            nanos = System.nanoTime() - startNanos;
+            bytes = allocatedBytes() - startBytes;
+        }
+
+        String format(int count) {
+            return String.format("%.1f us, %d bytes each", nanos / 1000.0 / count, bytes / count);
+        }
+
+        private static long allocatedBytes() {
+            if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) {
+                return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                        .getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.heibeieast.campusnav.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.heibeieast.campusnav.models.CampusLocation;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs on the bundled pinyin table, which is what devices before API 29 use
+ */
+@RunWith(RobolectricTestRunner.class)
+public class LocationMatcherTest {
+    private DatabaseService databaseService;
+    private LocationMatcher matcher;
+
+    @Before
+    public void setUp() {
+        DatabaseService.resetInstance();
+        databaseService = DatabaseService.getInstance(RuntimeEnvironment.getApplication());
+        matcher = new LocationMatcher(databaseService, new LocationMatcher.TablePronunciation());
+        databaseService.addDataChangeListener(matcher);
+    }
+
+    @After
+    public void tearDown() {
+        databaseService.removeDataChangeListener(matcher);
+        DatabaseService.resetInstance();
+    }
+
+    @Test
+    public void tableHasTonelessSyllables() {
+        LocationMatcher.Pronunciation table = new LocationMatcher.TablePronunciation();
+        assertEquals("tu", table.syllable('图'));
+        assertEquals("shu", table.syllable('书'));
+        assertEquals("guan", table.syllable('馆'));
+        // Latin-ASCII drops the umlaut, as ICU does on newer devices
+        assertEquals("lu", table.syllable('绿'));
+        assertNull(table.syllable('A'));
+        assertNull(table.syllable('7'));
+        // Outside GB2312
+        assertNull(table.syllable(0x20000));
+    }
+
+    @Test
+    public void fuzzyFoldsCommonlyBlurredSounds() {
+        assertEquals("zuan", LocationMatcher.fuzzy("zhuang"));
+        assertEquals("ci", LocationMatcher.fuzzy("chi"));
+        assertEquals("su", LocationMatcher.fuzzy("shu"));
+        assertEquals("lan", LocationMatcher.fuzzy("nan"));
+        assertEquals("qin", LocationMatcher.fuzzy("qing"));
+        assertEquals("guan", LocationMatcher.fuzzy("guan"));
+    }
+
+    @Test
+    public void exactNameScoresOne() {
+        List<LocationMatcher.Match> matches = matcher.match("图书馆", 3);
+        assertEquals("图书馆", matches.get(0).getLocation().getName());
+        assertEquals(1.0, matches.get(0).getScore(), 0);
+        // Case and full-width forms do not matter
+        assertTrue(databaseService.addLocation(new CampusLocation("Lab 3", 45.7536, 126.6486, "building", null)) > 0);
+        assertEquals(1.0, matcher.match("ＬＡＢ ３", 1).get(0).getScore(), 0);
+    }
+
+    @Test
+    public void homophonesMatchBySound() {
+        assertBest("图书馆", "涂书管");
+        assertBest("体育馆", "提玉管");
+        // n/l and zh/z as southern accents blur them
+        assertBest("南门", "兰门");
+        assertBest("宿舍区", "诉设区");
+        LocationMatcher.Match homophone = matcher.match("涂书管", 1).get(0);
+        assertTrue(homophone.getScore() < 1.0);
+        assertTrue(homophone.getScore() >= 0.7);
+
+        // Nothing on campus sounds like this
+        assertEquals(new ArrayList<String>(), names(matcher.match("天安门广场", 5)));
+    }
+
+    @Test
+    public void partialNamesMatch() {
+        assertBest("图书馆", "图书");
+        assertBest("教学楼", "教学");
+        assertBest("宿舍区", "宿舍");
+        // A partial name spoken with the wrong characters
+        assertBest("体育馆", "提玉");
+    }
+
+    @Test
+    public void bestAlternativeWins() {
+        List<LocationMatcher.Match> matches = matcher.match(Arrays.asList("天安门", "涂书管", "图书"), 3);
+        assertEquals("图书馆", matches.get(0).getLocation().getName());
+        // The location keeps the score of the alternative that fits it best
+        double best = Math.max(matcher.match("涂书管", 1).get(0).getScore(), matcher.match("图书", 1).get(0).getScore());
+        assertEquals(best, matches.get(0).getScore(), 0);
+    }
+
+    @Test
+    public void returnsTopKInScoreOrder() {
+        add("图书馆东门");
+        add("图书馆西门");
+        add("旧图书馆");
+
+        List<LocationMatcher.Match> all = matcher.match("图书馆", 10);
+        assertEquals("图书馆", all.get(0).getLocation().getName());
+        assertEquals(1.0, all.get(0).getScore(), 0);
+        assertTrue(all.size() >= 4);
+        for (int i = 1; i < all.size(); i++) {
+            LocationMatcher.Match previous = all.get(i - 1);
+            LocationMatcher.Match match = all.get(i);
+            assertTrue(previous.getScore() >= match.getScore());
+            assertTrue(match.getScore() >= 0.3);
+            // Equal scores come in name order, so the list is stable
+            if (previous.getScore() == match.getScore()) {
+                assertTrue(previous.getLocation().getName().compareTo(match.getLocation().getName()) < 0);
+            }
+        }
+        // 旧图书馆 shares more of the name than either gate
+        assertTrue(names(all).indexOf("旧图书馆") < names(all).indexOf("图书馆东门"));
+
+        for (int k = 1; k <= all.size(); k++) {
+            assertEquals(names(all.subList(0, k)), names(matcher.match("图书馆", k)));
+        }
+        assertTrue(matcher.match("图书馆", 0).isEmpty());
+    }
+
+    @Test
+    public void followsLocationEdits() {
+        // Load the index first, so edits go through the listener rather than a reload
+        assertEquals(new ArrayList<String>(), names(matcher.match("游泳管", 5)));
+
+        CampusLocation pool = add("游泳馆");
+        assertBest("游泳馆", "游泳管");
+
+        CampusLocation renamed = new CampusLocation(pool.getId(), "游泳池", pool.getLatitude(), pool.getLongitude(),
+                pool.getCategory(), null, null);
+        assertTrue(databaseService.updateLocation(renamed));
+        assertEquals(1.0, matcher.match("游泳池", 1).get(0).getScore(), 0);
+        for (LocationMatcher.Match match : matcher.match("游泳管", 5)) {
+            assertTrue(!"游泳馆".equals(match.getLocation().getName()));
+        }
+
+        assertTrue(databaseService.deleteLocation(pool.getId()));
+        assertEquals(new ArrayList<String>(), names(matcher.match("游泳池", 5)));
+
+        // A bulk import replaces everything, so the index is rebuilt on the next match
+        DatabaseService.BulkImport bulkImport = databaseService.beginBulkImport(true);
+        bulkImport.insertLocation("实验楼", 45.7536, 126.6486, "building", null, null);
+        bulkImport.finish();
+        assertBest("实验楼", "十验楼");
+        assertEquals(new ArrayList<String>(), names(matcher.match("图书馆", 5)));
+    }
+
+    private CampusLocation add(String name) {
+        CampusLocation location = new CampusLocation(name, 45.7536, 126.6486, "building", null);
+        assertTrue(databaseService.addLocation(location) > 0);
+        return location;
+    }
+
+    private void assertBest(String expected, String spoken) {
+        List<LocationMatcher.Match> matches = matcher.match(spoken, 3);
+        assertTrue(spoken + " matched nothing", !matches.isEmpty());
+        assertEquals(spoken, expected, matches.get(0).getLocation().getName());
+    }
+
+    private static List<String> names(List<LocationMatcher.Match> matches) {
+        List<String> names = new ArrayList<>();
+        for (LocationMatcher.Match match : matches) {
+            names.add(match.getLocation().getName());
+        }
+        return names;
+    }
+}
@@ -0,0 +1,209 @@
+package com.heibeieast.campusnav.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.location.Location;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(RobolectricTestRunner.class)
+public class LocationPipelineTest {
+    private static final int BACKLOG = 50;
+    private static final long BLOCKED_MS = 50;
+
+    private LocationPipeline pipeline;
+
+    @After
+    public void tearDown() {
+        if (pipeline != null) {
+            pipeline.quit();
+        }
+    }
+
+    @Test
+    public void busyProcessorSkipsToTheNewestFix() throws Exception {
+        BlockingProcessor processor = new BlockingProcessor();
+        pipeline = new LocationPipeline("LocationPipelineTest", processor);
+        LocationPipeline.Metrics metrics = pipeline.getMetrics();
+
+        pipeline.offer(fix(0));
+        assertTrue(processor.started.await(5, TimeUnit.SECONDS));
+        // Everything offered while the first fix is being processed waits in the one-slot mailbox
+        for (int i = 1; i <= BACKLOG; i++) {
+            pipeline.offer(fix(i));
+        }
+        assertFalse(pipeline.awaitIdle(20));
+        Thread.sleep(BLOCKED_MS);
+        processor.release.countDown();
+        assertTrue(pipeline.awaitIdle(5000));
+
+        assertEquals(listOf(0, BACKLOG), processor.processedTimes());
+        assertEquals(BACKLOG + 1, metrics.getReceived());
+        assertEquals(2, metrics.getProcessed());
+        assertEquals(BACKLOG - 1, metrics.getDropped());
+        assertEquals(metrics.getReceived(), metrics.getProcessed() + metrics.getDropped());
+
+        // Each processed fix had its wait timed; the newest one waited out the blocked processor
+        LocationPipeline.Stage queueWait = metrics.getQueueWait();
+        assertEquals(2, queueWait.getCount());
+        assertTrue(queueWait.toString(), queueWait.getMaxMicros() >= BLOCKED_MS * 1000);
+        assertTrue(queueWait.getMeanMicros() <= queueWait.getMaxMicros());
+        // The processor's own stage, as LocationService records it; only the first fix was held up
+        assertEquals(2, metrics.getFilter().getCount());
+        assertTrue(metrics.getFilter().toString(), metrics.getFilter().getMaxMicros() >= BLOCKED_MS * 1000);
+        assertTrue(metrics.toString(), metrics.toString().startsWith(
+                "received " + (BACKLOG + 1) + ", dropped " + (BACKLOG - 1) + ", processed 2"));
+    }
+
+    @Test
+    public void everyFixFromManyThreadsIsProcessedOrDropped() throws Exception {
+        final List<Location> processed = Collections.synchronizedList(new ArrayList<Location>());
+        pipeline = new LocationPipeline("LocationPipelineTest", new LocationPipeline.Processor() {
+            @Override
+            public void process(Location fix) {
+                processed.add(fix);
+                // Slower than the offers, so some are replaced
+                long end = System.nanoTime() + 20000;
+                while (System.nanoTime() < end) {
+                    Thread.yield();
+                }
+            }
+        });
+        final int threads = 4;
+        final int perThread = 2000;
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> sources = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int source = t;
+            sources.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perThread; i++) {
+                        pipeline.offer(fix(source * perThread + i));
+                    }
+                }
+            }));
+        }
+        for (Thread source : sources) {
+            source.start();
+        }
+        start.countDown();
+        for (Thread source : sources) {
+            source.join();
+        }
+        assertTrue(pipeline.awaitIdle(5000));
+
+        LocationPipeline.Metrics metrics = pipeline.getMetrics();
+        assertEquals(threads * perThread, metrics.getReceived());
+        assertEquals(processed.size(), metrics.getProcessed());
+        assertEquals(metrics.getReceived(), metrics.getProcessed() + metrics.getDropped());
+        assertTrue(metrics.toString(), metrics.getDropped() > 0);
+        assertEquals(metrics.getProcessed(), metrics.getQueueWait().getCount());
+        // Each source's fixes are never processed out of order
+        long[] last = new long[threads];
+        Arrays.fill(last, -1);
+        for (Location fix : processed) {
+            int source = (int) (fix.getTime() / perThread);
+            assertTrue(fix.getTime() > last[source]);
+            last[source] = fix.getTime();
+        }
+    }
+
+    @Test
+    public void quitDropsTheWaitingFix() throws Exception {
+        BlockingProcessor processor = new BlockingProcessor();
+        pipeline = new LocationPipeline("LocationPipelineTest", processor);
+        pipeline.offer(fix(0));
+        assertTrue(processor.started.await(5, TimeUnit.SECONDS));
+        pipeline.offer(fix(1));
+
+        pipeline.quit();
+        // Nothing will process the waiting fix any more
+        assertFalse(pipeline.awaitIdle(5000));
+        processor.release.countDown();
+        Thread.sleep(BLOCKED_MS);
+        assertEquals(listOf(0), processor.processedTimes());
+    }
+
+    @Test
+    public void stageKeepsMeanAndMax() {
+        LocationPipeline.Stage stage = new LocationPipeline.Metrics().getNavigation();
+        assertEquals(0, stage.getMeanMicros());
+        stage.record(1000000);
+        stage.record(3000000);
+        stage.record(2000000);
+        assertEquals(3, stage.getCount());
+        assertEquals(2000, stage.getMeanMicros());
+        assertEquals(3000, stage.getMaxMicros());
+        assertEquals("navigation mean 2000us max 3000us", stage.toString());
+    }
+
+    /**
+     * Holds up every fix until released, and times itself into the filter stage
+     */
+    private class BlockingProcessor implements LocationPipeline.Processor {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        private final List<Location> processed = Collections.synchronizedList(new ArrayList<Location>());
+
+        @Override
+        public void process(Location fix) {
+            long startTime = System.nanoTime();
+            processed.add(fix);
+            started.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            pipeline.getMetrics().getFilter().record(System.nanoTime() - startTime);
+        }
+
+        List<Long> processedTimes() {
+            List<Long> times = new ArrayList<>();
+            synchronized (processed) {
+                for (Location fix : processed) {
+                    times.add(fix.getTime());
+                }
+            }
+            return times;
+        }
+    }
+
+    private static List<Long> listOf(long... values) {
+        List<Long> list = new ArrayList<>();
+        for (long value : values) {
+            list.add(value);
+        }
+        return list;
+    }
+
+    /**
+     * A fix told apart by its time
+     */
+    private static Location fix(long time) {
+        Location location = new Location("test");
+        location.setLatitude(45.7535);
+        location.setLongitude(126.6485);
+        location.setAccuracy(5);
+        location.setTime(time);
+        return location;
+    }
+}
@@ -0,0 +1,129 @@
+package com.heibeieast.campusnav.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.heibeieast.campusnav.models.CampusLocation;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+public class LocationSearchTest {
+    private DatabaseService databaseService;
+
+    @Before
+    public void setUp() {
+        DatabaseService.resetInstance();
+        databaseService = DatabaseService.getInstance(RuntimeEnvironment.getApplication());
+        add("Library Annex", "building", "Quiet study rooms");
+        add("Old Library", "building", null);
+        add("Reading Room", "building", "Next to the library");
+        add("东区图书馆分馆", "library", "夜间开放");
+    }
+
+    @After
+    public void tearDown() {
+        DatabaseService.resetInstance();
+    }
+
+    @Test
+    public void chineseMatchesAnySubstring() {
+        assertEquals(Arrays.asList("图书馆", "东区图书馆分馆"), names("书馆", 10));
+        assertEquals(Arrays.asList("图书馆", "东区图书馆分馆"), names("图书", 10));
+        assertEquals(Arrays.asList("体育馆"), names("育馆", 10));
+        // Shorter names first within a tier, then by name
+        assertEquals(Arrays.asList("体育馆", "图书馆", "东区图书馆分馆"), names("馆", 10));
+        // Characters that are not adjacent in the name do not match as a phrase
+        assertEquals(new ArrayList<String>(), names("图馆", 10));
+    }
+
+    @Test
+    public void namesRankAboveDescriptionsAndCategories() {
+        // Name prefix, then names containing the query, then descriptions and categories
+        assertEquals(Arrays.asList("Library Annex", "Old Library", "图书馆", "东区图书馆分馆", "Reading Room"),
+                names("libr", 10));
+        assertEquals(Arrays.asList("食堂"), names("餐饮", 10));
+        assertEquals(Arrays.asList("东区图书馆分馆"), names("夜间", 10));
+        // Equal lengths, so by name
+        assertEquals(Arrays.asList("北门", "南门"), names("gate", 10));
+    }
+
+    @Test
+    public void latinWordsMatchByPrefix() {
+        assertEquals(Arrays.asList("Library Annex"), names("ann", 10));
+        assertEquals(Arrays.asList("Library Annex"), names("library an", 10));
+        // Only the last word of the query is a prefix
+        assertEquals(new ArrayList<String>(), names("libr annex", 10));
+        // The middle of a word is not a prefix
+        assertEquals(new ArrayList<String>(), names("brary", 10));
+    }
+
+    @Test
+    public void queriesAreNormalized() {
+        List<String> expected = names("libr", 10);
+        assertEquals(expected, names("LIBR", 10));
+        assertEquals(expected, names("  Libr  ", 10));
+        // Full-width letters, as some Chinese input methods type them
+        assertEquals(expected, names("ＬＩＢＲ", 10));
+        assertEquals(Arrays.asList("Library Annex"), names("ＬＩＢＲＡＲＹ　ＡＮ", 10));
+    }
+
+    @Test
+    public void honoursTheLimitWithoutDuplicates() {
+        List<String> all = names("libr", 10);
+        for (int limit = 1; limit <= all.size(); limit++) {
+            assertEquals(all.subList(0, limit), names("libr", limit));
+        }
+        assertEquals(all.size(), new HashSet<>(all).size());
+
+        assertTrue(databaseService.searchLocations("libr", 0).isEmpty());
+        assertTrue(databaseService.searchLocations("", 10).isEmpty());
+        assertTrue(databaseService.searchLocations("  ", 10).isEmpty());
+        assertTrue(databaseService.searchLocations(null, 10).isEmpty());
+        // FTS query syntax in the input is not interpreted
+        assertTrue(databaseService.searchLocations("\"", 10).isEmpty());
+        assertEquals(new ArrayList<String>(), names("libr*\" OR annex", 10));
+        assertEquals(new ArrayList<String>(), names("%", 10));
+    }
+
+    @Test
+    public void indexFollowsUpdatesAndDeletes() {
+        CampusLocation location = add("Boathouse", "sports", "Rowing club");
+        assertEquals(Arrays.asList("Boathouse"), names("rowing", 10));
+
+        CampusLocation renamed = new CampusLocation(location.getId(), "船坞", location.getLatitude(),
+                location.getLongitude(), "sports", "赛艇俱乐部", null);
+        assertTrue(databaseService.updateLocation(renamed));
+        assertEquals(new ArrayList<String>(), names("boat", 10));
+        assertEquals(new ArrayList<String>(), names("rowing", 10));
+        assertEquals(Arrays.asList("船坞"), names("赛艇", 10));
+
+        assertTrue(databaseService.deleteLocation(location.getId()));
+        assertEquals(new ArrayList<String>(), names("船坞", 10));
+        assertEquals(new ArrayList<String>(), names("赛艇", 10));
+    }
+
+    private CampusLocation add(String name, String category, String description) {
+        CampusLocation location = new CampusLocation(name, 45.7535, 126.6485, category, description);
+        assertTrue(databaseService.addLocation(location) > 0);
+        return location;
+    }
+
+    private List<String> names(String query, int limit) {
+        List<String> names = new ArrayList<>();
+        for (CampusLocation location : databaseService.searchLocations(query, limit)) {
+            names.add(location.getName());
+        }
+        return names;
+    }
+}
@@ -0,0 +1,141 @@
+package com.heibeieast.campusnav.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.location.Location;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(RobolectricTestRunner.class)
+public class LocationServiceTest {
+    private CountingSource source;
+    private LocationService locationService;
+
+    @Before
+    public void setUp() {
+        source = new CountingSource();
+        locationService = new LocationService(RuntimeEnvironment.getApplication(), source);
+    }
+
+    @After
+    public void tearDown() {
+        locationService.stopLocationTracking();
+    }
+
+    @Test
+    public void subscribersShareOneRegistration() {
+        LocationService.LocationUpdateListener first = new RecordingListener();
+        LocationService.LocationUpdateListener second = new RecordingListener();
+
+        assertTrue(locationService.addLocationUpdateListener(first));
+        assertTrue(locationService.addLocationUpdateListener(second));
+        assertTrue(locationService.addLocationUpdateListener(second));
+        assertEquals(1, source.starts);
+        assertEquals(2, locationService.getSubscriberCount());
+
+        locationService.removeLocationUpdateListener(first);
+        assertEquals(0, source.stops);
+        assertTrue(locationService.isTracking());
+
+        locationService.removeLocationUpdateListener(second);
+        assertEquals(1, source.stops);
+        assertFalse(locationService.isTracking());
+
+        // Removing again changes nothing; a new subscriber registers once more
+        locationService.removeLocationUpdateListener(second);
+        assertEquals(1, source.stops);
+        assertTrue(locationService.addLocationUpdateListener(first));
+        assertEquals(2, source.starts);
+    }
+
+    @Test
+    public void unavailableSourceAddsNoSubscriber() {
+        source.available = false;
+        assertFalse(locationService.addLocationUpdateListener(new RecordingListener()));
+        assertEquals(0, locationService.getSubscriberCount());
+        assertEquals(0, source.starts);
+    }
+
+    @Test
+    public void everySubscriberReceivesEachFix() throws Exception {
+        RecordingListener first = new RecordingListener();
+        RecordingListener second = new RecordingListener();
+        locationService.addLocationUpdateListener(first);
+        locationService.addLocationUpdateListener(second);
+
+        Location fix = new Location("gps");
+        fix.setLatitude(TestGraphs.CENTER_LAT);
+        fix.setLongitude(TestGraphs.CENTER_LON);
+        fix.setAccuracy(5);
+        fix.setElapsedRealtimeNanos(1000000000L);
+        source.listener.onFix(fix);
+
+        assertTrue(first.received.await(2, TimeUnit.SECONDS));
+        assertTrue(second.received.await(2, TimeUnit.SECONDS));
+        assertEquals(1, source.starts);
+    }
+
+    /**
+     * Replayed source that counts how often it is started and stopped
+     */
+    private static class CountingSource implements LocationSource {
+        volatile boolean available = true;
+        int starts;
+        int stops;
+        LocationSource.Listener listener;
+
+        @Override
+        public boolean isAvailable() {
+            return available;
+        }
+
+        @Override
+        public Location getLastKnownFix() {
+            return null;
+        }
+
+        @Override
+        public void start(LocationSource.Listener listener, long intervalMillis) {
+            this.listener = listener;
+            starts++;
+        }
+
+        @Override
+        public void setInterval(long intervalMillis) {
+        }
+
+        @Override
+        public void stop() {
+            stops++;
+        }
+
+        @Override
+        public long getElapsedRealtime() {
+            return 1000;
+        }
+
+        @Override
+        public boolean isLive() {
+            return false;
+        }
+    }
+
+    private static class RecordingListener implements LocationService.LocationUpdateListener {
+        final CountDownLatch received = new CountDownLatch(1);
+
+        @Override
+        public void onLocationUpdated(Location location) {
+            received.countDown();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.heibeieast.campusnav.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+public class NavigationRecorderTest {
+    // Well under FLUSH_INTERVAL_MS, so only an immediate flush is seen in time
+    private static final long FLUSH_WAIT_MS = 2000;
+    private static final long START_TIME = 1700000000000L;
+
+    private DatabaseService databaseService;
+    private NavigationRecorder recorder;
+    private JdbcExecutor history;
+
+    @Before
+    public void setUp() throws Exception {
+        NavigationRecorder.resetInstance();
+        DatabaseService.resetInstance();
+        databaseService = DatabaseService.getInstance(RuntimeEnvironment.getApplication());
+        databaseService.getReadableDatabase();
+        recorder = NavigationRecorder.getInstance(databaseService);
+        history = new JdbcExecutor(new File(databaseService.getDatabaseDirectory(), "campus_nav.db"));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        history.close();
+        NavigationRecorder.resetInstance();
+        DatabaseService.resetInstance();
+    }
+
+    @Test
+    public void endingSessionFlushesAtOnce() throws Exception {
+        recorder.startSession(1, 2);
+        // Fewer than FLUSH_POINT_COUNT, so nothing but the end triggers a write
+        for (int i = 0; i < 5; i++) {
+            recorder.recordFix(45.7535 + i * 1e-5, 126.6485, 5, START_TIME + i * 1000);
+        }
+        assertTrue(recorder.isRecording());
+        recorder.endSession(true);
+        assertFalse(recorder.isRecording());
+
+        long historyId = awaitLong("SELECT id FROM user_navigation_history WHERE end_time IS NOT NULL"
+                + " AND arrived = 1 ORDER BY id DESC LIMIT 1");
+        assertEquals(5, awaitLong("SELECT SUM(point_count) FROM navigation_trace_segments WHERE history_id = "
+                + historyId + " HAVING SUM(point_count) = 5"));
+        assertEquals(1, history.queryLong("SELECT from_location_id = 1 AND to_location_id = 2"
+                + " FROM user_navigation_history WHERE id = " + historyId));
+        // Four steps of 1e-5 degrees of latitude, about 1.1 m each
+        assertEquals(1, history.queryLong("SELECT ABS(distance_traveled - 4.45) < 0.05"
+                + " FROM user_navigation_history WHERE id = " + historyId));
+        assertTrace(historyId, 5);
+    }
+
+    @Test
+    public void startingAnotherSessionEndsTheRunningOne() throws Exception {
+        recorder.startSession(1, 2);
+        recorder.recordFix(45.7535, 126.6485, 5, START_TIME);
+        recorder.startSession(2, 3);
+        recorder.recordFix(45.7540, 126.6490, 5, START_TIME + 1000);
+        recorder.endSession(true);
+
+        long second = awaitLong("SELECT id FROM user_navigation_history WHERE from_location_id = 2"
+                + " AND end_time IS NOT NULL");
+        long first = history.queryLong("SELECT id FROM user_navigation_history WHERE from_location_id = 1");
+        assertTrue(first > 0 && first < second);
+        assertEquals(1, history.queryLong("SELECT end_time IS NOT NULL AND arrived = 0"
+                + " FROM user_navigation_history WHERE id = " + first));
+        assertTrace(first, 1);
+        assertTrace(second, 1);
+
+        // Fixes without a session are dropped
+        recorder.recordFix(45.7545, 126.6475, 5, START_TIME + 2000);
+        NavigationRecorder.resetInstance();
+        assertEquals(2, history.queryLong("SELECT COUNT(*) FROM navigation_trace_segments"));
+    }
+
+    @Test
+    public void segmentsRollOverAtThePointLimit() throws Exception {
+        int fixes = 2 * DatabaseService.MAX_SEGMENT_POINTS + 200;
+        recorder.startSession(1, 2);
+        for (int i = 0; i < fixes; i++) {
+            // Written in batches of FLUSH_POINT_COUNT as the fixes arrive, so the open segment grows by appends
+            recorder.recordFix(45.7535 + (i % 100) * 1e-5, 126.6485 + (i / 100) * 1e-5, 5 + i % 7,
+                    START_TIME + i * 1000L);
+        }
+        recorder.endSession(false);
+
+        long historyId = awaitLong("SELECT id FROM user_navigation_history WHERE end_time IS NOT NULL");
+        awaitLong("SELECT SUM(point_count) FROM navigation_trace_segments WHERE history_id = " + historyId
+                + " HAVING SUM(point_count) = " + fixes);
+
+        final List<String[]> segments = new ArrayList<>();
+        history.query("SELECT point_count, start_time, end_time FROM navigation_trace_segments"
+                + " WHERE history_id = " + historyId + " ORDER BY id", new SchemaMigrator.RowHandler() {
+            @Override
+            public void onRow(String[] row) {
+                segments.add(row.clone());
+            }
+        });
+        assertEquals(3, segments.size());
+        int[] expectedCounts = {DatabaseService.MAX_SEGMENT_POINTS, DatabaseService.MAX_SEGMENT_POINTS, 200};
+        int first = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            String[] segment = segments.get(i);
+            assertEquals(expectedCounts[i], Integer.parseInt(segment[0]));
+            assertEquals(START_TIME + first * 1000L, Long.parseLong(segment[1]));
+            assertEquals(START_TIME + (first + expectedCounts[i] - 1) * 1000L, Long.parseLong(segment[2]));
+            first += expectedCounts[i];
+        }
+        // Segments grown by appending stay blobs and decode to every fix in order
+        assertEquals(0, history.queryLong("SELECT COUNT(*) FROM navigation_trace_segments"
+                + " WHERE typeof(data) != 'blob'"));
+        assertTrace(historyId, fixes);
+    }
+
+    /**
+     * The trace reads back every fix in order, as recorded
+     */
+    private void assertTrace(long historyId, int count) {
+        TraceCodec.Reader trace = databaseService.readTrace(historyId);
+        int read = 0;
+        long previousTime = Long.MIN_VALUE;
+        while (trace.next()) {
+            assertTrue(trace.getTime() > previousTime);
+            assertEquals(45.75, trace.getLatitude(), 0.01);
+            assertEquals(126.65, trace.getLongitude(), 0.01);
+            previousTime = trace.getTime();
+            read++;
+        }
+        assertEquals(count, read);
+    }
+
+    /**
+     * Wait for the recorder thread to write a row the query finds
+     * @return The query's first column
+     */
+    private long awaitLong(String sql) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + FLUSH_WAIT_MS;
+        long value;
+        while ((value = history.queryLong(sql)) == -1) {
+            assertTrue("Not written within " + FLUSH_WAIT_MS + " ms: " + sql, System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        return value;
+    }
+}
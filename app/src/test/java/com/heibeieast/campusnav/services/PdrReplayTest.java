@@ -0,0 +1,114 @@
+package com.heibeieast.campusnav.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+
+public class PdrReplayTest {
+    // pdr_walk.log: about 560 m with 0.68 m steps, sensors in 2 s batches
+    private static final String WALK = "pdr_walk.log";
+    private static final double STEP_LENGTH = 0.68;
+    // Long enough that drift outweighs the few meters of noise in the fixes it is measured against
+    private static final long OUTAGE_MS = 120000;
+    // What DeadReckoning assumes for the accuracy it reports
+    private static final double MODELLED_DRIFT_PER_METER = 0.08;
+
+    @Test
+    public void driftStaysWithinTheModel() throws IOException {
+        PdrReplay.Result result = PdrReplay.replay(walk(), STEP_LENGTH, OUTAGE_MS);
+        System.out.println("PDR replay, " + OUTAGE_MS / 1000 + " s outages: " + result);
+
+        // About 460 s of walking
+        assertTrue(result.toString(), result.getOutages() >= 4);
+        assertTrue(result.toString(), result.getSamples() >= 350);
+        assertTrue(result.toString(), result.getDriftPerMeter() < MODELLED_DRIFT_PER_METER);
+        // About 150 m walked per outage
+        assertTrue(result.toString(), result.getMaxError() < 20);
+        assertTrue(result.toString(), result.getMeanError() < 8);
+    }
+
+    @Test
+    public void wrongStepLengthShowsAsDrift() throws IOException {
+        PdrReplay.Result calibrated = PdrReplay.replay(walk(), STEP_LENGTH, OUTAGE_MS);
+        for (double stepLength : new double[]{0.5, 0.6, 0.75}) {
+            PdrReplay.Result wrong = PdrReplay.replay(walk(), stepLength, OUTAGE_MS);
+            assertEquals(calibrated.getSamples(), wrong.getSamples());
+            assertTrue(stepLength + ": " + wrong, wrong.getDriftPerMeter() > calibrated.getDriftPerMeter());
+        }
+        // A quarter of every step missing
+        PdrReplay.Result tooShort = PdrReplay.replay(walk(), 0.5, OUTAGE_MS);
+        assertTrue(tooShort.toString(), tooShort.getDriftPerMeter() > 0.2);
+        assertTrue(tooShort.getMeanError() > 2 * calibrated.getMeanError());
+    }
+
+    @Test
+    public void longerOutagesDriftFurther() throws IOException {
+        PdrReplay.Result shorter = PdrReplay.replay(walk(), STEP_LENGTH, 10000);
+        PdrReplay.Result longer = PdrReplay.replay(walk(), STEP_LENGTH, 60000);
+        assertTrue(shorter.getOutages() > longer.getOutages());
+        assertTrue(longer.getMaxError() >= shorter.getMaxError());
+    }
+
+    @Test
+    public void logWriterOutputReplaysTheSame() throws IOException {
+        // Write the walk again through LogWriter, the way the app records it
+        StringWriter written = new StringWriter();
+        PdrReplay.LogWriter writer = new PdrReplay.LogWriter(written);
+        BufferedReader reader = new BufferedReader(walk());
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split(",");
+            long time = Long.parseLong(fields[0]);
+            if (fields[1].equals("step")) {
+                writer.step(time);
+            } else if (fields[1].equals("heading")) {
+                writer.heading(time, Double.parseDouble(fields[2]));
+            } else {
+                writer.fix(time, Double.parseDouble(fields[2]), Double.parseDouble(fields[3]),
+                        Float.parseFloat(fields[4]));
+            }
+        }
+        writer.close();
+        assertEquals(null, writer.getError());
+
+        PdrReplay.Result original = PdrReplay.replay(walk(), STEP_LENGTH, OUTAGE_MS);
+        PdrReplay.Result rewritten = PdrReplay.replay(new StringReader(written.toString()), STEP_LENGTH, OUTAGE_MS);
+        assertEquals(original.toString(), rewritten.toString());
+    }
+
+    @Test
+    public void malformedLinesAreReported() {
+        assertMalformed("1000,fix,45.75,126.64\n", "line 1");
+        assertMalformed("# comment\n1000,step\n1000,compass,12\n", "line 3");
+        assertMalformed("1000,heading,north\n", "line 1");
+    }
+
+    private static void assertMalformed(String log, String where) {
+        try {
+            PdrReplay.replay(new StringReader(log), STEP_LENGTH, OUTAGE_MS);
+            fail("Accepted " + log);
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(where));
+        }
+    }
+
+    private static Reader walk() {
+        InputStream input = PdrReplayTest.class.getResourceAsStream(WALK);
+        assertTrue(WALK + " missing from the test resources", input != null);
+        return new InputStreamReader(input, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,208 @@
+package com.heibeieast.campusnav.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import com.heibeieast.campusnav.models.UserPreferences;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+@RunWith(RobolectricTestRunner.class)
+public class PreferencesTest {
+    private static final int UPDATES_PER_FIELD = 200;
+
+    private DatabaseService databaseService;
+    private final List<UserPreferences> notified = Collections.synchronizedList(new ArrayList<UserPreferences>());
+    private final DatabaseService.PreferencesChangeListener recorder = new DatabaseService.PreferencesChangeListener() {
+        @Override
+        public void onPreferencesChanged(UserPreferences preferences) {
+            notified.add(preferences);
+        }
+    };
+
+    @Before
+    public void setUp() {
+        DatabaseService.resetInstance();
+        databaseService = DatabaseService.getInstance(RuntimeEnvironment.getApplication());
+        databaseService.addPreferencesChangeListener(recorder);
+    }
+
+    @After
+    public void tearDown() {
+        databaseService.removePreferencesChangeListener(recorder);
+        DatabaseService.resetInstance();
+    }
+
+    @Test
+    public void notifiesOncePerChange() {
+        UserPreferences initial = databaseService.getPreferences();
+        assertEquals(UserPreferences.defaults(), initial);
+
+        assertTrue(databaseService.updateVoiceVolume(60));
+        assertTrue(databaseService.updateVoiceVolume(60));
+        assertTrue(databaseService.updatePreferences(databaseService.getPreferences()));
+        assertEquals(1, notified.size());
+        assertEquals(initial.withVoiceVolume(60), notified.get(0));
+
+        UserPreferences all = new UserPreferences(0.65, 1.2, 40, false);
+        assertTrue(databaseService.updatePreferences(all));
+        assertEquals(2, notified.size());
+        assertEquals(all, notified.get(1));
+        assertEquals(all, databaseService.getPreferences());
+
+        databaseService.removePreferencesChangeListener(recorder);
+        assertTrue(databaseService.updateAccessibilityMode(true));
+        assertEquals(2, notified.size());
+    }
+
+    @Test(timeout = 5000)
+    public void listenersRunWithoutThePreferencesLock() throws Exception {
+        final AtomicReference<Boolean> updatedFromOtherThread = new AtomicReference<>();
+        DatabaseService.PreferencesChangeListener waiter = new DatabaseService.PreferencesChangeListener() {
+            @Override
+            public void onPreferencesChanged(UserPreferences preferences) {
+                if (preferences.getVoiceVolume() != 70) {
+                    return;
+                }
+                // Another thread updating while this one is being notified must not block
+                Thread other = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        updatedFromOtherThread.set(databaseService.updateVoiceSpeed(1.5));
+                    }
+                });
+                other.start();
+                try {
+                    other.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        databaseService.addPreferencesChangeListener(waiter);
+        try {
+            assertTrue(databaseService.updateVoiceVolume(70));
+        } finally {
+            databaseService.removePreferencesChangeListener(waiter);
+        }
+        assertTrue(updatedFromOtherThread.get());
+        assertEquals(UserPreferences.defaults().withVoiceVolume(70).withVoiceSpeed(1.5),
+                databaseService.getPreferences());
+        assertEquals(2, notified.size());
+    }
+
+    @Test(timeout = 30000)
+    public void concurrentFieldUpdatesKeepConsistentSnapshots() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> writers = new ArrayList<>();
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        for (int field = 0; field < 4; field++) {
+            final int which = field;
+            writers.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 1; i <= UPDATES_PER_FIELD; i++) {
+                            assertTrue(update(which, i));
+                        }
+                    } catch (Throwable t) {
+                        failures.add(t);
+                    }
+                }
+            }));
+        }
+        for (Thread writer : writers) {
+            writer.start();
+        }
+        start.countDown();
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        assertEquals(Collections.<Throwable>emptyList(), failures);
+
+        // Every update changed its field, so each one is one notification
+        assertEquals(4 * UPDATES_PER_FIELD, notified.size());
+
+        // Every snapshot holds values a writer actually wrote, and each field's last value
+        // reaches the listeners whichever order the notifications arrived in
+        UserPreferences expected = new UserPreferences(stepLength(UPDATES_PER_FIELD), voiceSpeed(UPDATES_PER_FIELD),
+                voiceVolume(UPDATES_PER_FIELD), UPDATES_PER_FIELD % 2 == 0);
+        int[] seen = new int[3];
+        for (UserPreferences snapshot : notified) {
+            assertNotNull(snapshot);
+            assertTrue(isWritten(snapshot.getAverageStepLength(), 0) && isWritten(snapshot.getVoiceSpeed(), 1));
+            if (snapshot.getAverageStepLength() != UserPreferences.DEFAULT_STEP_LENGTH) {
+                seen[0] = Math.max(seen[0], index(snapshot.getAverageStepLength(), 0));
+            }
+            if (snapshot.getVoiceSpeed() != UserPreferences.DEFAULT_VOICE_SPEED) {
+                seen[1] = Math.max(seen[1], index(snapshot.getVoiceSpeed(), 1));
+            }
+            seen[2] = Math.max(seen[2], snapshot.getVoiceVolume() - voiceVolume(0));
+        }
+        assertEquals(UPDATES_PER_FIELD, seen[0]);
+        assertEquals(UPDATES_PER_FIELD, seen[1]);
+        assertEquals(UPDATES_PER_FIELD, seen[2]);
+        assertEquals(expected, databaseService.getPreferences());
+
+        // What was published is what was written
+        DatabaseService.resetInstance();
+        databaseService = DatabaseService.getInstance(RuntimeEnvironment.getApplication());
+        assertEquals(expected, databaseService.getPreferences());
+    }
+
+    private boolean update(int field, int i) {
+        switch (field) {
+            case 0:
+                return databaseService.updateAverageStepLength(stepLength(i));
+            case 1:
+                return databaseService.updateVoiceSpeed(voiceSpeed(i));
+            case 2:
+                return databaseService.updateVoiceVolume(voiceVolume(i));
+            default:
+                // Starts from the default, true, so every update flips it
+                return databaseService.updateAccessibilityMode(i % 2 == 0);
+        }
+    }
+
+    /**
+     * Distinct values, exact in binary so they survive the round trip through SQLite
+     */
+    private static double stepLength(int i) {
+        return 0.5 + i / 1024.0;
+    }
+
+    private static double voiceSpeed(int i) {
+        return 0.5 + i / 512.0;
+    }
+
+    private static int voiceVolume(int i) {
+        return UserPreferences.DEFAULT_VOICE_VOLUME + i;
+    }
+
+    private static int index(double value, int field) {
+        return (int) Math.round((value - 0.5) * (field == 0 ? 1024 : 512));
+    }
+
+    /**
+     * Default or one of the values a writer thread used
+     */
+    private static boolean isWritten(double value, int field) {
+        double defaultValue = field == 0 ? UserPreferences.DEFAULT_STEP_LENGTH : UserPreferences.DEFAULT_VOICE_SPEED;
+        int i = index(value, field);
+        return value == defaultValue || (i >= 1 && i <= UPDATES_PER_FIELD
+                && value == (field == 0 ? stepLength(i) : voiceSpeed(i)));
+    }
+}
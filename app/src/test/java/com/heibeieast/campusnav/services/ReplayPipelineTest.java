@@ -0,0 +1,276 @@
+package com.heibeieast.campusnav.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.location.Location;
+
+import com.heibeieast.campusnav.models.CampusLocation;
+import com.heibeieast.campusnav.models.NavigationInstruction;
+import com.heibeieast.campusnav.models.Route;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives LocationService, PathPlanningService and the voice announcements with
+ * replayed traces, the way the navigation screen wires them, without a device
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ReplayPipelineTest {
+    private static final String FROM = "南门";
+    private static final String TO = "主楼";
+    // Fast enough to keep the test short, slow enough that the pipeline never has to drop a fix
+    private static final double REGRESSION_SPEED = 100;
+    private static final int BENCHMARK_WALKS = 20;
+
+    private DatabaseService databaseService;
+    private RecordingVoiceService voiceService;
+    private LocationService locationService;
+    private PathPlanningService pathPlanningService;
+
+    @Before
+    public void setUp() {
+        Context context = RuntimeEnvironment.getApplication();
+        DatabaseService.resetInstance();
+        databaseService = DatabaseService.getInstance(context);
+        // 南门 -> 图书馆 -> 教学楼 -> 主楼 among the default locations
+        addWalkway("南门", "图书馆");
+        addWalkway("图书馆", "教学楼");
+        addWalkway("教学楼", "主楼");
+        voiceService = new RecordingVoiceService(context);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (locationService != null) {
+            locationService.stopLocationTracking();
+        }
+        RoutingEngine.resetInstance();
+        NavigationRecorder.resetInstance();
+        DatabaseService.resetInstance();
+    }
+
+    @Test
+    public void walkAlongRouteAnnouncesEveryLegAndArrival() throws Exception {
+        ReplayLocationSource source = ReplayLocationSource.walk(waypoints(FROM, "图书馆", "教学楼", TO), 1.3, 4, 1);
+        source.setSpeed(REGRESSION_SPEED);
+        Navigation navigation = navigate(source);
+
+        assertTrue(source.awaitEnd(60000));
+        assertTrue(navigation.awaitArrival(5000));
+
+        List<String> spoken = voiceService.getSpoken();
+        assertEquals(spoken.toString(), 4, spoken.size());
+        assertTrue(spoken.get(0), spoken.get(0).contains("到达图书馆"));
+        assertTrue(spoken.get(1), spoken.get(1).contains("到达教学楼"));
+        assertTrue(spoken.get(2), spoken.get(2).startsWith("向"));
+        assertEquals("已到达" + TO, spoken.get(3));
+        assertEquals(0, navigation.reroutes);
+        assertFalse(pathPlanningService.isNavigating());
+    }
+
+    @Test
+    public void detourIsReroutedAndStillArrives() throws Exception {
+        // Past the library 60 m east of the walkway, then straight to the main building
+        CampusLocation library = location("图书馆");
+        double[] detour = {library.getLatitude() + 0.0002, library.getLongitude() + 0.0008};
+        double[][] waypoints = waypoints(FROM, "图书馆");
+        double[][] walk = {waypoints[0], waypoints[1], detour, waypoints(TO)[0]};
+        ReplayLocationSource source = ReplayLocationSource.walk(walk, 1.3, 4, 2);
+        source.setSpeed(REGRESSION_SPEED);
+        Navigation navigation = navigate(source);
+
+        assertTrue(source.awaitEnd(60000));
+        assertTrue(navigation.awaitArrival(5000));
+
+        List<String> spoken = voiceService.getSpoken();
+        assertTrue(spoken.toString(), navigation.reroutes >= 1);
+        boolean announced = false;
+        for (String text : spoken) {
+            announced |= text.startsWith("已偏离路线");
+        }
+        assertTrue(spoken.toString(), announced);
+        assertEquals("已到达" + TO, spoken.get(spoken.size() - 1));
+    }
+
+    @Test
+    public void csvTraceDrivesTheSamePipeline() throws Exception {
+        // A recorded trace that stands at the main building
+        CampusLocation main = location(TO);
+        StringBuilder csv = new StringBuilder("# time,latitude,longitude,accuracy\n");
+        for (int i = 0; i < 10; i++) {
+            csv.append(1700000000000L + i * 1000).append(',').append(main.getLatitude()).append(',')
+                    .append(main.getLongitude()).append(",3\n");
+        }
+        ReplayLocationSource source = ReplayLocationSource.fromCsv(new StringReader(csv.toString()));
+        source.setSpeed(REGRESSION_SPEED);
+        Navigation navigation = navigate(source);
+
+        assertTrue(source.awaitEnd(10000));
+        assertTrue(navigation.awaitArrival(5000));
+        assertEquals(1, voiceService.getSpoken().size());
+        assertEquals("已到达" + TO, voiceService.getSpoken().get(0));
+    }
+
+    @Test
+    public void perFixPipelineThroughput() throws Exception {
+        double[][] route = waypoints(FROM, "图书馆", "教学楼", TO);
+        int fixes = 0;
+        long processed = 0;
+        long dropped = 0;
+        long wallNanos = 0;
+        // Count and count-weighted mean of queue wait, filter and navigation
+        long[] counts = new long[3];
+        long[] totalMicros = new long[3];
+        for (int walk = 0; walk < BENCHMARK_WALKS; walk++) {
+            ReplayLocationSource source = ReplayLocationSource.walk(route, 1.3, 4, walk);
+            // As fast as the source's listener returns; the pipeline replaces fixes it cannot keep up with
+            source.setSpeed(0);
+            long startTime = System.nanoTime();
+            Navigation navigation = navigate(source);
+            assertTrue(source.awaitEnd(60000));
+            navigation.awaitArrival(5000);
+            long nanos = System.nanoTime() - startTime;
+            LocationPipeline.Metrics metrics = locationService.getPipelineMetrics();
+            assertNotNull(metrics);
+            locationService.stopLocationTracking();
+
+            // The first walks warm up the JIT
+            if (walk < BENCHMARK_WALKS / 4) {
+                continue;
+            }
+            fixes += source.getFixCount();
+            processed += metrics.getProcessed();
+            dropped += metrics.getDropped();
+            wallNanos += nanos;
+            LocationPipeline.Stage[] stages = {metrics.getQueueWait(), metrics.getFilter(), metrics.getNavigation()};
+            for (int i = 0; i < stages.length; i++) {
+                counts[i] += stages[i].getCount();
+                totalMicros[i] += stages[i].getCount() * stages[i].getMeanMicros();
+            }
+        }
+
+        // Fixes closer together than the interval the sampling scheduler asked for are skipped by the source
+        System.out.printf("Replayed %d fixes: %d processed, %d replaced while busy, %.0f processed/s; "
+                        + "mean queue wait %d us, filter %d us, navigation %d us%n", fixes, processed, dropped,
+                processed / (wallNanos / 1e9), totalMicros[0] / Math.max(1, counts[0]),
+                totalMicros[1] / Math.max(1, counts[1]), totalMicros[2] / Math.max(1, counts[2]));
+        assertTrue(processed > 0);
+        assertTrue(counts[2] > 0);
+        // One fix a second leaves the pipeline idle nearly all the time
+        assertTrue(totalMicros[2] / counts[2] + " us", totalMicros[2] / counts[2] < 20000);
+    }
+
+    /**
+     * Start navigating from FROM to TO and subscribe the navigation loop to a new
+     * LocationService reading the given source
+     */
+    private Navigation navigate(ReplayLocationSource source) {
+        locationService = new LocationService(RuntimeEnvironment.getApplication(), source);
+        pathPlanningService = new PathPlanningService(databaseService, locationService, voiceService);
+        assertTrue(pathPlanningService.planPath(FROM, TO));
+        Navigation navigation = new Navigation();
+        assertTrue(locationService.addLocationUpdateListener(navigation));
+        return navigation;
+    }
+
+    /**
+     * The navigation screen's per-fix work: progress, then a reroute or a new
+     * leg announced; arrival is announced by the planner itself
+     */
+    private class Navigation implements LocationService.LocationUpdateListener {
+        private final CountDownLatch arrived = new CountDownLatch(1);
+        private int announcedLeg = -1;
+        volatile int reroutes;
+
+        @Override
+        public void onLocationUpdated(Location location) {
+            if (arrived.getCount() == 0) {
+                return;
+            }
+            long startTime = System.nanoTime();
+            NavigationInstruction instruction = pathPlanningService.updateNavigationProgress(
+                    location.getLatitude(), location.getLongitude(), TO);
+            if (instruction == null) {
+                arrived.countDown();
+            } else if (pathPlanningService.consumeReroute()) {
+                reroutes++;
+                announcedLeg = pathPlanningService.getCurrentInstructionIndex();
+                voiceService.announceReroute(instruction.getInstruction());
+            } else if (pathPlanningService.getCurrentInstructionIndex() != announcedLeg) {
+                announcedLeg = pathPlanningService.getCurrentInstructionIndex();
+                voiceService.announceInstruction(instruction.getInstruction());
+            }
+            LocationPipeline.Metrics metrics = locationService.getPipelineMetrics();
+            if (metrics != null) {
+                metrics.getNavigation().record(System.nanoTime() - startTime);
+            }
+        }
+
+        boolean awaitArrival(long timeoutMillis) throws InterruptedException {
+            return arrived.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Voice service that keeps what it would have spoken instead of needing TTS
+     */
+    private static class RecordingVoiceService extends VoiceService {
+        private final List<String> spoken = new ArrayList<>();
+
+        RecordingVoiceService(Context context) {
+            super(context);
+        }
+
+        @Override
+        public synchronized void speak(String text) {
+            spoken.add(text);
+        }
+
+        synchronized List<String> getSpoken() {
+            return new ArrayList<>(spoken);
+        }
+
+        synchronized void clear() {
+            spoken.clear();
+        }
+    }
+
+    private void addWalkway(String fromName, String toName) {
+        CampusLocation from = location(fromName);
+        CampusLocation to = location(toName);
+        assertNotNull(fromName, from);
+        assertNotNull(toName, to);
+        double distance = LocationService.calculateDistance(from.getLatitude(), from.getLongitude(),
+                to.getLatitude(), to.getLongitude());
+        assertTrue(databaseService.addRoute(new Route(from.getId(), to.getId(), distance, null,
+                (int) (distance / 0.7))) > 0);
+    }
+
+    private CampusLocation location(String name) {
+        return databaseService.getLocationById(databaseService.getLocationIdByName(name));
+    }
+
+    private double[][] waypoints(String... names) {
+        double[][] waypoints = new double[names.length][];
+        for (int i = 0; i < names.length; i++) {
+            CampusLocation location = location(names[i]);
+            waypoints[i] = new double[]{location.getLatitude(), location.getLongitude()};
+        }
+        return waypoints;
+    }
+}
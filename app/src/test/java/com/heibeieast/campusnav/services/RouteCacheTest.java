@@ -0,0 +1,151 @@
+package com.heibeieast.campusnav.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.heibeieast.campusnav.models.CampusGraph;
+import com.heibeieast.campusnav.models.CampusLocation;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class RouteCacheTest {
+    private static final int ROWS = 15;
+    private static final int COLS = 15;
+
+    @Test
+    public void evictsLeastRecentlyUsedAndCountsLookups() {
+        CampusGraph graph = TestGraphs.grid(ROWS, COLS, 1);
+        RouteCache cache = new RouteCache(2);
+        put(cache, graph, 0, 1);
+        put(cache, graph, 0, 2);
+        assertNotNull(cache.get("0", "1"));
+        put(cache, graph, 0, 3);
+
+        assertEquals(2, cache.size());
+        assertNotNull(cache.get("0", "1"));
+        assertNull(cache.get("0", "2"));
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(0, cache.getInvalidationCount());
+    }
+
+    @Test
+    public void routePlannedAcrossAnInvalidationIsNotStored() {
+        CampusGraph graph = TestGraphs.grid(ROWS, COLS, 2);
+        RouteCache cache = new RouteCache();
+        long generation = cache.getGeneration();
+        RoutingEngine.Path path = new AStarSearch(graph).findPath(0, 5);
+
+        // An edit unrelated to any cached route still means the graph the path came from is gone
+        cache.invalidateLocation(graph.getLocationId(100));
+        RouteCache.Entry entry = cache.put("0", "5", graph.getLocation(0), graph.getLocation(5), path, generation);
+
+        assertSame(path, entry.getPath());
+        assertEquals(0, cache.size());
+
+        put(cache, graph, 0, 5);
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void locationEditDropsOnlyRoutesThroughIt() {
+        CampusGraph graph = TestGraphs.grid(ROWS, COLS, 3);
+        RouteCache cache = new RouteCache();
+        RouteCache.Entry through = put(cache, graph, 0, ROWS * COLS - 1);
+        put(cache, graph, COLS - 1, COLS - 2);
+        long waypointId = through.getPath().getWaypoints().get(3).getId();
+        assertTrue(waypointId != graph.getLocationId(COLS - 1) && waypointId != graph.getLocationId(COLS - 2));
+
+        cache.invalidateLocation(waypointId);
+
+        assertNull(cache.get("0", String.valueOf(ROWS * COLS - 1)));
+        assertNotNull(cache.get(String.valueOf(COLS - 1), String.valueOf(COLS - 2)));
+        assertEquals(1, cache.getInvalidationCount());
+    }
+
+    @Test
+    public void newWalkwayKeepsOnlyRoutesItCannotShorten() {
+        CampusGraph graph = TestGraphs.grid(ROWS, COLS, 4);
+        Random random = new Random(4);
+        int kept = 0;
+        int dropped = 0;
+        for (int round = 0; round < 20; round++) {
+            RouteCache cache = new RouteCache(64);
+            List<int[]> pairs = new ArrayList<>();
+            for (int i = 0; i < 40; i++) {
+                int source = random.nextInt(graph.getNodeCount());
+                int goal = random.nextInt(graph.getNodeCount());
+                if (source != goal) {
+                    put(cache, graph, source, goal);
+                    pairs.add(new int[]{source, goal});
+                }
+            }
+
+            int u = random.nextInt(graph.getNodeCount());
+            int v = random.nextInt(graph.getNodeCount());
+            if (u == v) {
+                continue;
+            }
+            double length = CampusGraph.walkwayLength(0, graph.straightLineDistance(u, v));
+            cache.invalidateForWalkway(graph.getLocation(u), graph.getLocation(v), length);
+            AStarSearch search = new AStarSearch(withWalkway(graph, u, v, (float) length));
+
+            for (int[] pair : pairs) {
+                RouteCache.Entry entry = cache.get(String.valueOf(pair[0]), String.valueOf(pair[1]));
+                if (entry == null) {
+                    dropped++;
+                    continue;
+                }
+                kept++;
+                // A route that survived must still be a shortest one
+                assertEquals(search.findPath(pair[0], pair[1]).getTotalDistance(),
+                        entry.getPath().getTotalDistance(), 1e-6);
+            }
+        }
+        // The bound is precise enough to keep most routes far from the new walkway
+        assertTrue("kept " + kept + ", dropped " + dropped, kept > dropped);
+    }
+
+    private static RouteCache.Entry put(RouteCache cache, CampusGraph graph, int source, int goal) {
+        long generation = cache.getGeneration();
+        RoutingEngine.Path path = new AStarSearch(graph).findPath(source, goal);
+        return cache.put(String.valueOf(source), String.valueOf(goal), graph.getLocation(source),
+                graph.getLocation(goal), path, generation);
+    }
+
+    private static CampusGraph withWalkway(CampusGraph graph, int u, int v, float length) {
+        List<CampusLocation> locations = new ArrayList<>();
+        for (int node = 0; node < graph.getNodeCount(); node++) {
+            locations.add(graph.getLocation(node));
+        }
+        int capacity = graph.getArcCount() / 2 + 1;
+        long[] from = new long[capacity];
+        long[] to = new long[capacity];
+        float[] weights = new float[capacity];
+        String[] descriptions = new String[capacity];
+        int edgeCount = 0;
+        for (int node = 0; node < graph.getNodeCount(); node++) {
+            for (int arc = graph.firstArc(node); arc < graph.endArc(node); arc++) {
+                int target = graph.getTarget(arc);
+                if (target > node) {
+                    from[edgeCount] = graph.getLocationId(node);
+                    to[edgeCount] = graph.getLocationId(target);
+                    weights[edgeCount] = graph.getWeight(arc);
+                    edgeCount++;
+                }
+            }
+        }
+        from[edgeCount] = graph.getLocationId(u);
+        to[edgeCount] = graph.getLocationId(v);
+        weights[edgeCount] = length;
+        edgeCount++;
+        return new CampusGraph(locations, from, to, weights, descriptions, edgeCount);
+    }
+}
@@ -0,0 +1,103 @@
+package com.heibeieast.campusnav.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.heibeieast.campusnav.models.CampusLocation;
+import com.heibeieast.campusnav.models.Route;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.List;
+
+/**
+ * Routes over walkways between the default campus locations
+ */
+@RunWith(RobolectricTestRunner.class)
+public class RoutingEngineTest {
+    private DatabaseService databaseService;
+
+    @Before
+    public void setUp() {
+        DatabaseService.resetInstance();
+        databaseService = DatabaseService.getInstance(RuntimeEnvironment.getApplication());
+    }
+
+    @After
+    public void tearDown() {
+        RoutingEngine.resetInstance();
+        DatabaseService.resetInstance();
+    }
+
+    @Test
+    public void prefersShorterPathOverDirectWalkway() {
+        addWalkway("南门", "图书馆", 0);
+        addWalkway("图书馆", "主楼", 0);
+        addWalkway("南门", "主楼", 500);
+
+        RoutingEngine.Path path = engine().findPath(id("南门"), id("主楼"));
+
+        assertNotNull(path);
+        assertNames(path.getWaypoints(), "南门", "图书馆", "主楼");
+        assertEquals(straightLine("南门", "图书馆") + straightLine("图书馆", "主楼"),
+                path.getTotalDistance(), 1e-3);
+    }
+
+    @Test
+    public void walkwaysAreNeverShorterThanStraightLine() {
+        addWalkway("南门", "图书馆", 1);
+
+        RoutingEngine.Path path = engine().findPath(id("图书馆"), id("南门"));
+
+        assertNotNull(path);
+        assertNames(path.getWaypoints(), "图书馆", "南门");
+        assertEquals(straightLine("南门", "图书馆"), path.getLegDistance(0), 1e-3);
+    }
+
+    @Test
+    public void unconnectedLocationsHaveNoPath() {
+        addWalkway("南门", "图书馆", 0);
+        addWalkway("食堂", "宿舍区", 0);
+
+        RoutingEngine engine = engine();
+
+        assertNull(engine.findPath(id("南门"), id("宿舍区")));
+        assertNull(engine.findPath(id("北门"), id("南门")));
+        assertNull(engine.findPath(id("南门"), -1));
+    }
+
+    private RoutingEngine engine() {
+        return RoutingEngine.getInstance(databaseService);
+    }
+
+    private void addWalkway(String fromName, String toName, double distance) {
+        assertTrue(databaseService.addRoute(new Route(id(fromName), id(toName), distance, null, 0)) > 0);
+    }
+
+    private long id(String name) {
+        long id = databaseService.getLocationIdByName(name);
+        assertTrue(name, id > 0);
+        return id;
+    }
+
+    private double straightLine(String fromName, String toName) {
+        CampusLocation from = databaseService.getLocationById(id(fromName));
+        CampusLocation to = databaseService.getLocationById(id(toName));
+        return LocationService.calculateDistance(from.getLatitude(), from.getLongitude(),
+                to.getLatitude(), to.getLongitude());
+    }
+
+    private static void assertNames(List<CampusLocation> waypoints, String... names) {
+        assertEquals(names.length, waypoints.size());
+        for (int i = 0; i < names.length; i++) {
+            assertEquals(names[i], waypoints.get(i).getName());
+        }
+    }
+}
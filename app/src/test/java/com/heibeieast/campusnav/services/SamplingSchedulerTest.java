@@ -0,0 +1,122 @@
+package com.heibeieast.campusnav.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SamplingSchedulerTest {
+    private static final double SPEED = 1.3;
+
+    @Test
+    public void longStraightLegsSampleLess() {
+        SamplingScheduler scheduler = new SamplingScheduler();
+        Walk walk = new Walk(scheduler);
+        // Four 400 m legs, each ending in a turn
+        for (int leg = 0; leg < 4; leg++) {
+            walk.leg(400);
+        }
+
+        double dutyCycle = scheduler.getDutyCycle(walk.now);
+        System.out.printf("Walked %.0f s: %d fixes, duty cycle %.2f, %d interval changes%n",
+                walk.now / 1000.0, scheduler.getReceivedFixes(), dutyCycle, walk.changes);
+        assertTrue(dutyCycle + "", dutyCycle < 0.5);
+        // Tiers and the slow-down limit keep re-registrations to a few per leg
+        assertTrue(walk.changes + " changes", walk.changes <= 4 * 4);
+        // Every turn was approached at the base rate
+        assertEquals(0, walk.slowNearTurn);
+    }
+
+    @Test
+    public void turnSpeedsUpAtOnce() {
+        SamplingScheduler scheduler = new SamplingScheduler();
+        scheduler.start(0);
+        scheduler.onFix((float) SPEED, 1000);
+        assertEquals(5000, scheduler.setDistanceToManeuver(300, 1000 + 20000));
+        // A re-plan brought the next turn close two seconds later; speeding up is not rate limited
+        assertEquals(SamplingScheduler.BASE_INTERVAL_MS, scheduler.setDistanceToManeuver(20, 22000));
+        assertEquals(0, scheduler.setDistanceToManeuver(15, 23000));
+    }
+
+    @Test
+    public void slowingDownIsRateLimited() {
+        SamplingScheduler scheduler = new SamplingScheduler();
+        scheduler.start(0);
+        scheduler.onFix((float) SPEED, 0);
+        // Far from the turn, but too soon after starting to slow down
+        assertEquals(0, scheduler.setDistanceToManeuver(300, 1000));
+        assertEquals(SamplingScheduler.BASE_INTERVAL_MS, scheduler.getInterval());
+        assertEquals(5000, scheduler.setDistanceToManeuver(300, 10000));
+    }
+
+    @Test
+    public void standingStillSamplesRarely() {
+        SamplingScheduler scheduler = new SamplingScheduler();
+        scheduler.start(0);
+        long now = 0;
+        long interval = scheduler.getInterval();
+        while (now < 60000) {
+            now += interval;
+            long changed = scheduler.onFix(0.1f, now);
+            if (changed != 0) {
+                interval = changed;
+            }
+        }
+        assertEquals(10000, scheduler.getInterval());
+        assertTrue(scheduler.getDutyCycle(now) < 0.5);
+
+        // Walking again returns to the base rate right away when not navigating
+        assertEquals(SamplingScheduler.BASE_INTERVAL_MS, scheduler.onFix((float) SPEED, now + 10000));
+    }
+
+    @Test
+    public void standingAtTurnKeepsBaseRate() {
+        SamplingScheduler scheduler = new SamplingScheduler();
+        scheduler.start(0);
+        scheduler.setDistanceToManeuver(10, 0);
+        for (long now = 1000; now <= 60000; now += 1000) {
+            assertEquals(0, scheduler.onFix(0, now));
+        }
+        assertEquals(SamplingScheduler.BASE_INTERVAL_MS, scheduler.getInterval());
+        assertEquals(1, scheduler.getDutyCycle(60000), 1e-9);
+    }
+
+    /**
+     * Walks legs at a steady pace, receiving fixes at whatever interval the
+     * scheduler last asked for and telling it the distance left on the leg
+     */
+    private static class Walk {
+        private final SamplingScheduler scheduler;
+        long now;
+        long interval;
+        int changes;
+        int slowNearTurn;
+
+        Walk(SamplingScheduler scheduler) {
+            this.scheduler = scheduler;
+            scheduler.start(0);
+            interval = scheduler.getInterval();
+        }
+
+        void leg(double length) {
+            double remaining = length;
+            apply(scheduler.setDistanceToManeuver(remaining, now));
+            while (remaining > 0) {
+                now += interval;
+                remaining -= SPEED * interval / 1000;
+                apply(scheduler.onFix((float) SPEED, now));
+                apply(scheduler.setDistanceToManeuver(Math.max(0, remaining), now));
+                if (remaining < 20 && interval != SamplingScheduler.BASE_INTERVAL_MS) {
+                    slowNearTurn++;
+                }
+            }
+        }
+
+        private void apply(long changed) {
+            if (changed != 0) {
+                interval = changed;
+                changes++;
+            }
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package com.heibeieast.campusnav.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+/**
+ * Runs the app's migrations against fixture databases in the version 1 schema,
+ * which every install created before migrations were incremental
+ */
+public class SchemaMigratorTest {
+    private static final int LARGE_DATABASE = 50000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final SchemaMigrator migrator = new SchemaMigrator(DatabaseService.schemaMigrations());
+
+    @Test
+    public void upgradeKeepsUserData() throws Exception {
+        try (JdbcExecutor db = new JdbcExecutor(folder.newFile())) {
+            createVersionOne(db, 2000);
+            db.execSQL("INSERT INTO campus_locations (name, latitude, longitude) VALUES ('POI 7', 45.7, 126.6)");
+
+            List<SchemaMigrator.Step> steps = migrator.migrate(db, 1, migrator.getLatestVersion());
+
+            assertEquals(migrator.getLatestVersion() - 1, steps.size());
+            assertEquals(2001, db.queryLong("SELECT COUNT(*) FROM campus_locations"));
+            assertEquals(1999, db.queryLong("SELECT COUNT(*) FROM campus_routes"));
+            assertEquals(500, db.queryLong("SELECT COUNT(*) FROM user_navigation_history"));
+            assertEquals(1, db.queryLong("SELECT COUNT(*) FROM user_preferences"));
+            // The repeated name got the row id appended, the first one kept its name
+            assertEquals(8, db.queryLong("SELECT id FROM campus_locations WHERE name = 'POI 7'"));
+            assertEquals(1, db.queryLong("SELECT COUNT(*) FROM campus_locations WHERE name = 'POI 7 (2001)'"));
+            assertEquals(0, db.queryLong("SELECT COUNT(*) FROM user_navigation_history WHERE arrived != 0"));
+
+            // Indexes are filled from the existing rows
+            assertEquals(2001, db.queryLong("SELECT COUNT(*) FROM campus_locations_rtree"));
+            assertEquals(2001, db.queryLong("SELECT COUNT(*) FROM campus_locations_fts"));
+            final List<String> indexed = new ArrayList<>();
+            db.query("SELECT name FROM campus_locations_fts WHERE docid = 1235", new SchemaMigrator.RowHandler() {
+                @Override
+                public void onRow(String[] row) {
+                    indexed.add(row[0]);
+                }
+            });
+            assertEquals(Arrays.asList(SearchText.toIndexText("POI 1234")), indexed);
+            assertTrue(tryInsertDuplicateName(db));
+        }
+    }
+
+    @Test
+    public void recordsEachStep() throws Exception {
+        try (JdbcExecutor db = new JdbcExecutor(folder.newFile())) {
+            createVersionOne(db, 100);
+            List<SchemaMigrator.Step> steps = migrator.migrate(db, 1, migrator.getLatestVersion());
+
+            final List<String> recorded = new ArrayList<>();
+            db.query("SELECT version, description, duration_ms FROM schema_migrations ORDER BY version",
+                    new SchemaMigrator.RowHandler() {
+                        @Override
+                        public void onRow(String[] row) {
+                            recorded.add(row[0] + " " + row[1] + " " + row[2]);
+                        }
+                    });
+            List<String> expected = new ArrayList<>();
+            for (SchemaMigrator.Step step : steps) {
+                expected.add(step.getVersion() + " " + step.getDescription() + " " + step.getDurationMillis());
+            }
+            assertEquals(expected, recorded);
+            assertEquals(2, steps.get(0).getVersion());
+
+            // Nothing left to do at the latest version
+            assertTrue(migrator.migrate(db, migrator.getLatestVersion(), migrator.getLatestVersion()).isEmpty());
+        }
+    }
+
+    @Test
+    public void everyVersionUpgradesToSameSchema() throws Exception {
+        int latest = migrator.getLatestVersion();
+        TreeSet<String> expected;
+        try (JdbcExecutor db = new JdbcExecutor(folder.newFile())) {
+            createVersionOne(db, 50);
+            migrator.migrate(db, 1, latest);
+            expected = schema(db);
+        }
+
+        for (int version = 2; version < latest; version++) {
+            try (JdbcExecutor db = new JdbcExecutor(folder.newFile())) {
+                // A database left at an intermediate version by an earlier release
+                createVersionOne(db, 50);
+                migrator.migrate(db, 1, version);
+                List<SchemaMigrator.Step> steps = migrator.migrate(db, version, latest);
+
+                assertEquals(latest - version, steps.size());
+                assertEquals(version + 1, steps.get(0).getVersion());
+                assertEquals("from version " + version, expected, schema(db));
+                assertEquals(50, db.queryLong("SELECT COUNT(*) FROM campus_locations_fts"));
+            }
+        }
+    }
+
+    @Test
+    public void failingStepIsRolledBack() throws Exception {
+        SchemaMigrator failing = new SchemaMigrator(Arrays.asList(
+                new SchemaMigrator.Migration(2, "first") {
+                    @Override
+                    public void migrate(SchemaMigrator.SqlExecutor db) {
+                        db.execSQL("CREATE TABLE first (id INTEGER)");
+                    }
+                },
+                new SchemaMigrator.Migration(3, "broken") {
+                    @Override
+                    public void migrate(SchemaMigrator.SqlExecutor db) {
+                        db.execSQL("CREATE TABLE second (id INTEGER)");
+                        db.execSQL("ALTER TABLE no_such_table ADD COLUMN x INTEGER");
+                    }
+                },
+                new SchemaMigrator.Migration(4, "never reached") {
+                    @Override
+                    public void migrate(SchemaMigrator.SqlExecutor db) {
+                        db.execSQL("CREATE TABLE third (id INTEGER)");
+                    }
+                }));
+
+        try (JdbcExecutor db = new JdbcExecutor(folder.newFile())) {
+            createVersionOne(db, 10);
+            try {
+                failing.migrate(db, 1, 4);
+                fail();
+            } catch (IllegalStateException expected) {
+                // Thrown by the executor for the bad statement
+            }
+            TreeSet<String> tables = schema(db);
+            assertTrue(tables.toString(), tables.contains("table first"));
+            assertFalse(tables.contains("table second"));
+            assertFalse(tables.contains("table third"));
+            assertEquals(2, db.queryLong("SELECT MAX(version) FROM schema_migrations"));
+            assertEquals(10, db.queryLong("SELECT COUNT(*) FROM campus_locations"));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsDuplicateVersions() {
+        SchemaMigrator.Migration migration = new SchemaMigrator.Migration(2, "twice") {
+            @Override
+            public void migrate(SchemaMigrator.SqlExecutor db) {
+            }
+        };
+        new SchemaMigrator(Arrays.asList(migration, migration));
+    }
+
+    @Test
+    public void upgradeOfLargeDatabaseStaysBounded() throws Exception {
+        try (JdbcExecutor db = new JdbcExecutor(folder.newFile())) {
+            createVersionOne(db, LARGE_DATABASE);
+
+            long startTime = System.nanoTime();
+            List<SchemaMigrator.Step> steps = migrator.migrate(db, 1, migrator.getLatestVersion());
+            long totalMillis = (System.nanoTime() - startTime) / 1000000;
+
+            StringBuilder report = new StringBuilder();
+            for (SchemaMigrator.Step step : steps) {
+                report.append(String.format("%n  %d %s: %d ms", step.getVersion(), step.getDescription(),
+                        step.getDurationMillis()));
+            }
+            System.out.printf("Upgrade of %d locations from version 1 in %d ms:%s%n",
+                    LARGE_DATABASE, totalMillis, report);
+            assertEquals(LARGE_DATABASE, db.queryLong("SELECT COUNT(*) FROM campus_locations_rtree"));
+            assertTrue("upgrade took " + totalMillis + " ms", totalMillis < 30000);
+        }
+    }
+
+    /**
+     * Version 1 schema as DatabaseService.onCreate created it, with preferences, locations,
+     * a walkway between neighbouring locations and some navigation history
+     */
+    private static void createVersionOne(JdbcExecutor db, int locationCount) {
+        db.execSQL("CREATE TABLE campus_locations (id INTEGER PRIMARY KEY AUTOINCREMENT, name TEXT NOT NULL, "
+                + "latitude REAL NOT NULL, longitude REAL NOT NULL, category TEXT, description TEXT, "
+                + "created_at TEXT)");
+        db.execSQL("CREATE TABLE campus_routes (id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + "from_location_id INTEGER NOT NULL, to_location_id INTEGER NOT NULL, distance_meters REAL, "
+                + "route_description TEXT, estimated_steps INTEGER, "
+                + "FOREIGN KEY (from_location_id) REFERENCES campus_locations(id), "
+                + "FOREIGN KEY (to_location_id) REFERENCES campus_locations(id))");
+        db.execSQL("CREATE TABLE user_preferences (id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + "average_step_length REAL DEFAULT 0.7, voice_speed REAL DEFAULT 0.8, "
+                + "voice_volume INTEGER DEFAULT 100, accessibility_mode INTEGER DEFAULT 1)");
+        db.execSQL("CREATE TABLE user_navigation_history (id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + "from_location_id INTEGER NOT NULL, to_location_id INTEGER NOT NULL, start_time TEXT, "
+                + "end_time TEXT, distance_traveled REAL, "
+                + "FOREIGN KEY (from_location_id) REFERENCES campus_locations(id), "
+                + "FOREIGN KEY (to_location_id) REFERENCES campus_locations(id))");
+
+        Random random = new Random(locationCount);
+        db.beginTransaction();
+        try {
+            db.execSQL("INSERT INTO user_preferences (average_step_length) VALUES (0.68)");
+            for (int i = 0; i < locationCount; i++) {
+                db.execSQL("INSERT INTO campus_locations (name, latitude, longitude, category, description) "
+                                + "VALUES (?, ?, ?, ?, ?)",
+                        new Object[]{"POI " + i, TestGraphs.CENTER_LAT + random.nextDouble() * 0.02,
+                                TestGraphs.CENTER_LON + random.nextDouble() * 0.02, "building", "第" + i + "号楼"});
+                if (i > 0) {
+                    db.execSQL("INSERT INTO campus_routes (from_location_id, to_location_id, distance_meters) "
+                            + "VALUES (?, ?, ?)", new Object[]{i, i + 1, 20.0});
+                }
+            }
+            for (int i = 0; i < Math.min(500, locationCount / 4); i++) {
+                db.execSQL("INSERT INTO user_navigation_history (from_location_id, to_location_id, start_time) "
+                        + "VALUES (?, ?, '2024-05-01 08:00:00')", new Object[]{i + 1, i + 2});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Type and name of every table and index, with the SQL that defines it
+     */
+    private static TreeSet<String> schema(JdbcExecutor db) {
+        final TreeSet<String> schema = new TreeSet<>();
+        db.query("SELECT type, name, sql FROM sqlite_master WHERE name NOT LIKE 'sqlite_%'",
+                new SchemaMigrator.RowHandler() {
+                    @Override
+                    public void onRow(String[] row) {
+                        schema.add(row[0] + " " + row[1]);
+                        schema.add(row[1] + ": " + row[2]);
+                    }
+                });
+        return schema;
+    }
+
+    private static boolean tryInsertDuplicateName(JdbcExecutor db) {
+        return !db.tryExecSQL("INSERT INTO campus_locations (name, latitude, longitude) VALUES ('POI 1', 0, 0)");
+    }
+}
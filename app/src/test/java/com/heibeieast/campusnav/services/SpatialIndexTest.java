@@ -0,0 +1,197 @@
+package com.heibeieast.campusnav.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.heibeieast.campusnav.models.CampusLocation;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class SpatialIndexTest {
+    private static final int POI_COUNT = 100000;
+    private static final double CENTER_LAT = 45.712;
+    private static final double CENTER_LON = 126.612;
+    private static final double METERS_PER_DEGREE = 6371000 * Math.PI / 180;
+
+    private static List<CampusLocation> pois;
+    private static SpatialIndex index;
+    private static double referenceLatitude;
+
+    @BeforeClass
+    public static void buildIndex() {
+        // 100k POIs spread over about 4 x 4 km around the campus
+        Random random = new Random(42);
+        pois = new ArrayList<>(POI_COUNT);
+        double latitudeSum = 0;
+        for (int i = 0; i < POI_COUNT; i++) {
+            double latitude = CENTER_LAT + (random.nextDouble() - 0.5) * 0.036;
+            double longitude = CENTER_LON + (random.nextDouble() - 0.5) * 0.052;
+            pois.add(new CampusLocation(i + 1, "POI " + i, latitude, longitude, "test", null, null));
+            latitudeSum += latitude;
+        }
+        referenceLatitude = latitudeSum / POI_COUNT;
+        index = SpatialIndex.of(pois);
+    }
+
+    @Test
+    public void emptyIndexHasNoNearest() {
+        assertNull(new SpatialIndex(CENTER_LAT).nearest(CENTER_LAT, CENTER_LON));
+    }
+
+    @Test
+    public void kNearestMatchesBruteForceOnCampus() {
+        Random random = new Random(7);
+        for (int query = 0; query < 50; query++) {
+            double latitude = CENTER_LAT + (random.nextDouble() - 0.5) * 0.04;
+            double longitude = CENTER_LON + (random.nextDouble() - 0.5) * 0.06;
+            assertMatchesBruteForce(latitude, longitude, 10);
+        }
+    }
+
+    @Test(timeout = 2000)
+    public void farAwayQueryReturnsQuickly() {
+        // A 0,0 fix, another city about 1000 km away, and the far side of the earth
+        assertMatchesBruteForce(0, 0, 5);
+        assertMatchesBruteForce(CENTER_LAT - 9, CENTER_LON, 5);
+        assertMatchesBruteForce(-CENTER_LAT, CENTER_LON - 180, 1);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 1000; i++) {
+            index.nearest(CENTER_LAT - 9, CENTER_LON + i * 1e-4);
+        }
+        double micros = (System.nanoTime() - start) / 1000.0 / 1000;
+        System.out.printf("nearest from 1000 km away: %.1f us per query%n", micros);
+    }
+
+    @Test(timeout = 2000)
+    public void kNearestSkipsTheGapBetweenDistantClusters() {
+        // The campus and a second site 300 km north; 5 m cells put 60000 empty rings between them
+        List<CampusLocation> sites = new ArrayList<>();
+        Random random = new Random(5);
+        for (int i = 0; i < 200; i++) {
+            double north = i < 100 ? 0 : 2.7;
+            sites.add(new CampusLocation(i + 1, "Site " + i, CENTER_LAT + north + (random.nextDouble() - 0.5) * 0.004,
+                    CENTER_LON + (random.nextDouble() - 0.5) * 0.006, "test", null, null));
+        }
+        SpatialIndex clusters = new SpatialIndex(CENTER_LAT, 5);
+        for (CampusLocation site : sites) {
+            clusters.put(site);
+        }
+
+        for (int query = 0; query < 200; query++) {
+            double latitude = CENTER_LAT + (query % 2) * 2.7 + (random.nextDouble() - 0.5) * 0.004;
+            double longitude = CENTER_LON + (random.nextDouble() - 0.5) * 0.006;
+            // More than one cluster holds, so the search has to reach the other one
+            assertMatchesBruteForce(clusters, sites, CENTER_LAT, latitude, longitude, 105);
+            assertMatchesBruteForce(clusters, sites, CENTER_LAT, latitude, longitude, 3);
+        }
+        assertMatchesBruteForce(clusters, sites, CENTER_LAT, CENTER_LAT + 1.35, CENTER_LON, 10);
+
+        // Once the second site is gone the bounds shrink back to the campus
+        for (int i = 100; i < 200; i++) {
+            assertTrue(clusters.remove(i + 1));
+        }
+        List<CampusLocation> campus = sites.subList(0, 100);
+        for (int query = 0; query < 200; query++) {
+            assertMatchesBruteForce(clusters, campus, CENTER_LAT,
+                    CENTER_LAT + 2.7 + (random.nextDouble() - 0.5) * 0.004, CENTER_LON, 20);
+        }
+    }
+
+    @Test
+    public void nearestTakesMicroseconds() {
+        Random random = new Random(11);
+        int queries = 100000;
+        double[] latitudes = new double[queries];
+        double[] longitudes = new double[queries];
+        for (int i = 0; i < queries; i++) {
+            latitudes[i] = CENTER_LAT + (random.nextDouble() - 0.5) * 0.036;
+            longitudes[i] = CENTER_LON + (random.nextDouble() - 0.5) * 0.052;
+        }
+        // Warm up the JIT before timing
+        for (int i = 0; i < queries; i++) {
+            index.nearest(latitudes[i], longitudes[i]);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < queries; i++) {
+            index.nearest(latitudes[i], longitudes[i]);
+        }
+        double micros = (System.nanoTime() - start) / 1000.0 / queries;
+        System.out.printf("nearest over %d POIs: %.2f us per query%n", POI_COUNT, micros);
+        // Generous for slow CI machines; a full scan takes milliseconds
+        assertTrue("nearest took " + micros + " us", micros < 100);
+    }
+
+    @Test
+    public void withinRadiusMatchesBruteForce() {
+        double radius = 30;
+        List<CampusLocation> found = index.withinRadius(CENTER_LAT, CENTER_LON, radius);
+        int expected = 0;
+        for (CampusLocation poi : pois) {
+            if (projectedDistance(poi, CENTER_LAT, CENTER_LON) <= radius) {
+                expected++;
+            }
+        }
+        assertEquals(expected, found.size());
+        for (int i = 1; i < found.size(); i++) {
+            assertTrue(projectedDistance(found.get(i - 1), CENTER_LAT, CENTER_LON)
+                    <= projectedDistance(found.get(i), CENTER_LAT, CENTER_LON));
+        }
+    }
+
+    @Test
+    public void movedAndRemovedLocationsAreFound() {
+        SpatialIndex small = new SpatialIndex(CENTER_LAT);
+        small.put(new CampusLocation(1, "A", CENTER_LAT, CENTER_LON, "test", null, null));
+        small.put(new CampusLocation(2, "B", CENTER_LAT + 0.01, CENTER_LON, "test", null, null));
+        assertEquals(1, small.nearest(CENTER_LAT, CENTER_LON).getId());
+
+        small.put(new CampusLocation(1, "A", CENTER_LAT + 0.02, CENTER_LON, "test", null, null));
+        assertEquals(2, small.nearest(CENTER_LAT, CENTER_LON).getId());
+        assertEquals(2, small.size());
+
+        assertTrue(small.remove(2));
+        assertEquals(1, small.nearest(CENTER_LAT, CENTER_LON).getId());
+    }
+
+    private static void assertMatchesBruteForce(double latitude, double longitude, int k) {
+        assertMatchesBruteForce(index, pois, referenceLatitude, latitude, longitude, k);
+    }
+
+    private static void assertMatchesBruteForce(SpatialIndex index, List<CampusLocation> pois, double referenceLatitude,
+                                                double latitude, double longitude, int k) {
+        List<CampusLocation> result = index.kNearest(latitude, longitude, k);
+        assertEquals(k, result.size());
+
+        double[] distances = new double[pois.size()];
+        for (int i = 0; i < pois.size(); i++) {
+            distances[i] = projectedDistance(pois.get(i), referenceLatitude, latitude, longitude);
+        }
+        Arrays.sort(distances);
+        for (int i = 0; i < k; i++) {
+            assertEquals(distances[i], projectedDistance(result.get(i), referenceLatitude, latitude, longitude), 1e-6);
+        }
+    }
+
+    private static double projectedDistance(CampusLocation location, double latitude, double longitude) {
+        return projectedDistance(location, referenceLatitude, latitude, longitude);
+    }
+
+    /**
+     * Distance on the index's own projection, so ties are broken the same way
+     */
+    private static double projectedDistance(CampusLocation location, double referenceLatitude,
+                                            double latitude, double longitude) {
+        double metersPerDegreeLon = METERS_PER_DEGREE * Math.cos(Math.toRadians(referenceLatitude));
+        double dx = (location.getLongitude() - longitude) * metersPerDegreeLon;
+        double dy = (location.getLatitude() - latitude) * METERS_PER_DEGREE;
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+}
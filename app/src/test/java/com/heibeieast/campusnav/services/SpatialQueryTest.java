@@ -0,0 +1,180 @@
+package com.heibeieast.campusnav.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.heibeieast.campusnav.models.CampusLocation;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+@RunWith(RobolectricTestRunner.class)
+public class SpatialQueryTest {
+    // Well away from the default campus locations, so they never fall inside a query
+    private static final double AREA_LAT = 30.25;
+    private static final double AREA_LON = 120.15;
+    private static final double AREA_SPAN = 0.01; // about 1 km
+
+    private DatabaseService databaseService;
+    private JdbcExecutor rtree;
+
+    @Before
+    public void setUp() throws Exception {
+        DatabaseService.resetInstance();
+        databaseService = DatabaseService.getInstance(RuntimeEnvironment.getApplication());
+        databaseService.getReadableDatabase();
+        rtree = new JdbcExecutor(new File(databaseService.getDatabaseDirectory(), "campus_nav.db"));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        rtree.close();
+        DatabaseService.resetInstance();
+    }
+
+    @Test
+    public void boundingBoxMatchesTableScan() {
+        List<CampusLocation> added = addRandomLocations(500, 1);
+        Random random = new Random(2);
+        for (int query = 0; query < 50; query++) {
+            double minLatitude = AREA_LAT + random.nextDouble() * AREA_SPAN;
+            double minLongitude = AREA_LON + random.nextDouble() * AREA_SPAN;
+            double maxLatitude = minLatitude + random.nextDouble() * AREA_SPAN / 3;
+            double maxLongitude = minLongitude + random.nextDouble() * AREA_SPAN / 3;
+
+            Set<Long> expected = new HashSet<>();
+            for (CampusLocation location : added) {
+                if (location.getLatitude() >= minLatitude && location.getLatitude() <= maxLatitude
+                        && location.getLongitude() >= minLongitude && location.getLongitude() <= maxLongitude) {
+                    expected.add(location.getId());
+                }
+            }
+            assertEquals(expected, ids(databaseService.getLocationsInBoundingBox(
+                    minLatitude, minLongitude, maxLatitude, maxLongitude)));
+        }
+    }
+
+    @Test
+    public void boundingBoxUsesExactCoordinates() {
+        // Closer together than the R*Tree's 32-bit boxes can tell apart
+        CampusLocation inside = add("Inside", AREA_LAT, AREA_LON);
+        CampusLocation outside = add("Outside", AREA_LAT + 1e-7, AREA_LON);
+
+        Set<Long> found = ids(databaseService.getLocationsInBoundingBox(AREA_LAT, AREA_LON, AREA_LAT, AREA_LON));
+        assertTrue(found.contains(inside.getId()));
+        assertFalse(found.contains(outside.getId()));
+    }
+
+    @Test
+    public void nearReturnsLocationsWithinRadiusNearestFirst() {
+        List<CampusLocation> added = addRandomLocations(500, 3);
+        Random random = new Random(4);
+        for (int query = 0; query < 50; query++) {
+            double latitude = AREA_LAT + random.nextDouble() * AREA_SPAN;
+            double longitude = AREA_LON + random.nextDouble() * AREA_SPAN;
+            double radius = 20 + random.nextDouble() * 200;
+
+            Set<Long> expected = new HashSet<>();
+            for (CampusLocation location : added) {
+                if (distance(location, latitude, longitude) <= radius) {
+                    expected.add(location.getId());
+                }
+            }
+            List<CampusLocation> found = databaseService.getLocationsNear(latitude, longitude, radius);
+            assertEquals(expected, ids(found));
+            for (int i = 1; i < found.size(); i++) {
+                assertTrue(distance(found.get(i - 1), latitude, longitude)
+                        <= distance(found.get(i), latitude, longitude));
+            }
+        }
+    }
+
+    @Test
+    public void rtreeFollowsInsertUpdateAndDelete() {
+        long baseline = rtree.queryLong("SELECT COUNT(*) FROM campus_locations_rtree");
+        assertEquals(rtree.queryLong("SELECT COUNT(*) FROM campus_locations"), baseline);
+
+        CampusLocation location = add("Moving", AREA_LAT, AREA_LON);
+        assertBoxContains(location.getId(), AREA_LAT, AREA_LON);
+        assertEquals(baseline + 1, rtree.queryLong("SELECT COUNT(*) FROM campus_locations_rtree"));
+
+        double movedLatitude = AREA_LAT + 0.005;
+        double movedLongitude = AREA_LON + 0.005;
+        location.setLatitude(movedLatitude);
+        location.setLongitude(movedLongitude);
+        assertTrue(databaseService.updateLocation(location));
+        assertBoxContains(location.getId(), movedLatitude, movedLongitude);
+        assertEquals(baseline + 1, rtree.queryLong("SELECT COUNT(*) FROM campus_locations_rtree"));
+        assertFalse(ids(databaseService.getLocationsNear(AREA_LAT, AREA_LON, 50)).contains(location.getId()));
+        assertTrue(ids(databaseService.getLocationsNear(movedLatitude, movedLongitude, 50)).contains(location.getId()));
+
+        assertTrue(databaseService.deleteLocation(location.getId()));
+        assertEquals(-1, rtree.queryLong("SELECT id FROM campus_locations_rtree WHERE id = " + location.getId()));
+        assertEquals(baseline, rtree.queryLong("SELECT COUNT(*) FROM campus_locations_rtree"));
+        assertTrue(databaseService.getLocationsNear(movedLatitude, movedLongitude, 50).isEmpty());
+    }
+
+    @Test
+    public void failedUpdateLeavesRtreeUnchanged() {
+        CampusLocation first = add("First", AREA_LAT, AREA_LON);
+        add("Second", AREA_LAT + 0.005, AREA_LON);
+
+        // The name is taken, so neither the row nor its box may move
+        CampusLocation clash = new CampusLocation(first.getId(), "Second", AREA_LAT + 0.008, AREA_LON + 0.008,
+                "test", null, null);
+        assertFalse(databaseService.updateLocation(clash));
+        assertBoxContains(first.getId(), AREA_LAT, AREA_LON);
+        assertTrue(ids(databaseService.getLocationsNear(AREA_LAT, AREA_LON, 10)).contains(first.getId()));
+    }
+
+    private List<CampusLocation> addRandomLocations(int count, long seed) {
+        Random random = new Random(seed);
+        List<CampusLocation> added = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            added.add(add("Spot " + seed + "-" + i, AREA_LAT + random.nextDouble() * AREA_SPAN,
+                    AREA_LON + random.nextDouble() * AREA_SPAN));
+        }
+        return added;
+    }
+
+    private CampusLocation add(String name, double latitude, double longitude) {
+        CampusLocation location = new CampusLocation(name, latitude, longitude, "test", null);
+        assertTrue(databaseService.addLocation(location) > 0);
+        return location;
+    }
+
+    /**
+     * The R*Tree rounds boxes outwards to 32-bit floats, so the box must contain the point
+     */
+    private void assertBoxContains(long id, double latitude, double longitude) {
+        String where = " FROM campus_locations_rtree WHERE id = " + id;
+        assertEquals(1, rtree.queryLong("SELECT COUNT(*)" + where));
+        assertEquals(1, rtree.queryLong("SELECT min_lat <= " + latitude + " AND max_lat >= " + latitude
+                + " AND min_lon <= " + longitude + " AND max_lon >= " + longitude + where));
+        assertEquals(1, rtree.queryLong("SELECT max_lat - min_lat < 1e-4 AND max_lon - min_lon < 1e-4" + where));
+    }
+
+    private static Set<Long> ids(List<CampusLocation> locations) {
+        Set<Long> ids = new HashSet<>();
+        for (CampusLocation location : locations) {
+            ids.add(location.getId());
+        }
+        return ids;
+    }
+
+    private static double distance(CampusLocation location, double latitude, double longitude) {
+        return LocationService.calculateDistance(latitude, longitude, location.getLatitude(), location.getLongitude());
+    }
+}
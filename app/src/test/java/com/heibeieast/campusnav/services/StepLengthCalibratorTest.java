@@ -0,0 +1,119 @@
+package com.heibeieast.campusnav.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+public class StepLengthCalibratorTest {
+    private static final double STEP_LENGTH = 0.72;
+    private static final double METERS_PER_DEGREE = 6371000 * Math.PI / 180;
+
+    @Test
+    public void convergesOnStraightWalk() {
+        StepLengthCalibrator calibrator = new StepLengthCalibrator();
+        Walker walker = new Walker(calibrator, 1, 2.5f);
+        walker.walk(20 * 60000, 90);
+
+        assertTrue(calibrator.isConverged());
+        assertEquals(STEP_LENGTH, calibrator.getEstimate(), 0.02);
+        assertTrue(calibrator.getLowerBound() <= STEP_LENGTH && STEP_LENGTH <= calibrator.getUpperBound());
+    }
+
+    @Test
+    public void stopsAndTurnsDoNotBiasEstimate() {
+        StepLengthCalibrator calibrator = new StepLengthCalibrator();
+        Walker walker = new Walker(calibrator, 2, 2.5f);
+        double heading = 0;
+        for (int leg = 0; leg < 40; leg++) {
+            walker.walk(45000, heading);
+            walker.stand(15000);
+            heading = (heading + 90) % 360;
+        }
+
+        assertTrue(calibrator.getSampleCount() > 0);
+        assertEquals(STEP_LENGTH, calibrator.getEstimate(), 0.03);
+    }
+
+    @Test
+    public void pacingBackAndForthAddsNoSamples() {
+        // GPS sees almost no progress for many steps; such segments must not count
+        StepLengthCalibrator calibrator = new StepLengthCalibrator();
+        Walker walker = new Walker(calibrator, 3, 2.5f);
+        for (int leg = 0; leg < 60; leg++) {
+            walker.walk(10000, leg % 2 == 0 ? 0 : 180);
+        }
+        assertEquals(0, calibrator.getSampleCount());
+        assertFalse(calibrator.isConverged());
+    }
+
+    @Test
+    public void poorFixesAddNoSamples() {
+        StepLengthCalibrator calibrator = new StepLengthCalibrator();
+        Walker walker = new Walker(calibrator, 4, 25f);
+        walker.walk(10 * 60000, 45);
+        assertEquals(0, calibrator.getSampleCount());
+    }
+
+    /**
+     * Walks at 1.3 m/s with a step detector, a compass swaying a few degrees
+     * with each step and a GPS fix every second with Gaussian error
+     */
+    private static class Walker {
+        private final StepLengthCalibrator calibrator;
+        private final Random random;
+        private final float sigma;
+        private double north;
+        private double east;
+        private long time = 1000;
+        private long nextStep = 1000;
+        private long nextFix = 1000;
+
+        Walker(StepLengthCalibrator calibrator, long seed, float sigma) {
+            this.calibrator = calibrator;
+            this.random = new Random(seed);
+            this.sigma = sigma;
+        }
+
+        void walk(long durationMillis, double heading) {
+            long stepInterval = Math.round(STEP_LENGTH / 1.3 * 1000);
+            long end = time + durationMillis;
+            while (time < end) {
+                if (nextStep <= nextFix) {
+                    time = nextStep;
+                    calibrator.onHeading(heading + random.nextGaussian() * 5);
+                    calibrator.onStep(time);
+                    north += STEP_LENGTH * Math.cos(Math.toRadians(heading));
+                    east += STEP_LENGTH * Math.sin(Math.toRadians(heading));
+                    nextStep += stepInterval;
+                } else {
+                    time = nextFix;
+                    fix();
+                }
+            }
+        }
+
+        void stand(long durationMillis) {
+            long end = time + durationMillis;
+            while (nextFix < end) {
+                time = nextFix;
+                fix();
+            }
+            time = end;
+            nextStep = Math.max(nextStep, end);
+        }
+
+        private void fix() {
+            double fixNorth = north + random.nextGaussian() * sigma;
+            double fixEast = east + random.nextGaussian() * sigma;
+            double latitude = TestGraphs.CENTER_LAT + fixNorth / METERS_PER_DEGREE;
+            double longitude = TestGraphs.CENTER_LON
+                    + fixEast / (METERS_PER_DEGREE * Math.cos(Math.toRadians(TestGraphs.CENTER_LAT)));
+            calibrator.onFix(latitude, longitude, sigma, time);
+            nextFix += 1000;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.heibeieast.campusnav.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.os.Looper;
+import android.os.StrictMode;
+
+import com.heibeieast.campusnav.models.CampusLocation;
+import com.heibeieast.campusnav.models.UserPreferences;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The screens' main-thread code under a StrictMode policy that throws on database access,
+ * the way MainActivity's debug policy would log it
+ */
+@RunWith(RobolectricTestRunner.class)
+public class StrictModeTest {
+    private final Object owner = new Object();
+    private DatabaseService databaseService;
+    private AsyncDatabaseService asyncDatabaseService;
+    private StrictMode.ThreadPolicy previousPolicy;
+
+    @Before
+    public void setUp() {
+        databaseService = DatabaseService.getInstance(RuntimeEnvironment.getApplication());
+        asyncDatabaseService = AsyncDatabaseService.getInstance(databaseService);
+        previousPolicy = StrictMode.getThreadPolicy();
+        // Death alone, so the violation throws right away instead of waiting for the looper
+        StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+                .detectDiskReads()
+                .detectDiskWrites()
+                .detectCustomSlowCalls()
+                .penaltyDeath()
+                .build());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        StrictMode.setThreadPolicy(previousPolicy);
+        drain();
+        asyncDatabaseService.cancelAll(owner);
+        RoutingEngine.resetInstance();
+        NavigationRecorder.resetInstance();
+        DatabaseService.resetInstance();
+    }
+
+    @Test
+    public void policyCatchesDatabaseAccessOnMainThread() {
+        try {
+            databaseService.getAllLocations();
+            fail("Reading campus_locations on the main thread was not reported");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("StrictMode"));
+        }
+    }
+
+    @Test
+    public void screenDatabaseWorkRunsOffMainThread() throws Exception {
+        final List<UserPreferences> preferences = new ArrayList<>();
+        final List<Long> ids = new ArrayList<>();
+        final List<List<CampusLocation>> locations = new ArrayList<>();
+        asyncDatabaseService.getPreferences(owner, new AsyncDatabaseService.Callback<UserPreferences>() {
+            @Override
+            public void onResult(UserPreferences result) {
+                preferences.add(result);
+            }
+        });
+        CampusLocation added = new CampusLocation("严格模式测试点", 45.70, 126.60, "test", null);
+        asyncDatabaseService.addLocation(owner, added, new AsyncDatabaseService.Callback<Long>() {
+            @Override
+            public void onResult(Long result) {
+                ids.add(result);
+            }
+        });
+        asyncDatabaseService.getAllLocations(owner, new AsyncDatabaseService.Callback<List<CampusLocation>>() {
+            @Override
+            public void onResult(List<CampusLocation> result) {
+                locations.add(result);
+            }
+        });
+        drain();
+        idleMainLooper();
+
+        assertEquals(1, preferences.size());
+        assertEquals(1, ids.size());
+        assertEquals(1, locations.size());
+        boolean found = false;
+        for (CampusLocation location : locations.get(0)) {
+            found |= location.getId() == ids.get(0);
+        }
+        assertTrue(found);
+
+        asyncDatabaseService.deleteLocation(owner, ids.get(0), null);
+    }
+
+    @Test
+    public void navigationStartsWithoutDatabaseAccessOnMainThread() throws Exception {
+        // As NavigationService sets up and NavigationActivity plans a route
+        LocationService locationService = new LocationService(RuntimeEnvironment.getApplication(),
+                ReplayLocationSource.walk(new double[][]{{45.7535, 126.6485}, {45.7540, 126.6490}}, 1.2, 5, 1));
+        final PathPlanningService pathPlanningService = new PathPlanningService(databaseService, locationService, null);
+        final List<Boolean> planned = new ArrayList<>();
+        asyncDatabaseService.submit(owner, new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return pathPlanningService.planPath("图书馆", "主楼");
+            }
+        }, new AsyncDatabaseService.Callback<Boolean>() {
+            @Override
+            public void onResult(Boolean result) {
+                planned.add(result);
+            }
+        });
+        drain();
+        idleMainLooper();
+
+        assertEquals(1, planned.size());
+        asyncDatabaseService.submitWrite(owner, new Callable<Void>() {
+            @Override
+            public Void call() {
+                pathPlanningService.stopNavigation();
+                return null;
+            }
+        }, null);
+    }
+
+    private void drain() throws Exception {
+        asyncDatabaseService.submitWrite(new Object(), new Callable<Void>() {
+            @Override
+            public Void call() {
+                return null;
+            }
+        }, null).get(5, TimeUnit.SECONDS);
+    }
+
+    private static void idleMainLooper() {
+        shadowOf(Looper.getMainLooper()).idle();
+    }
+}
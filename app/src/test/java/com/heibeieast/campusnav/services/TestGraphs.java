@@ -0,0 +1,84 @@
+package com.heibeieast.campusnav.services;
+
+import com.heibeieast.campusnav.models.CampusGraph;
+import com.heibeieast.campusnav.models.CampusLocation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic campus walkway networks for routing tests
+ */
+final class TestGraphs {
+    static final double CENTER_LAT = 45.712;
+    static final double CENTER_LON = 126.612;
+    private static final double METERS_PER_DEGREE = 6371000 * Math.PI / 180;
+
+    private TestGraphs() {
+    }
+
+    /**
+     * Jittered grid of locations about 20 m apart, each joined to its right and lower
+     * neighbours and now and then diagonally, with walkways up to 30% longer than the
+     * straight line. Location ids are 1 + row * cols + col.
+     */
+    static CampusGraph grid(int rows, int cols, long seed) {
+        Random random = new Random(seed);
+        double spacing = 20;
+        double metersPerDegreeLon = METERS_PER_DEGREE * Math.cos(Math.toRadians(CENTER_LAT));
+        List<CampusLocation> locations = new ArrayList<>(rows * cols);
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < cols; col++) {
+                double north = (row + (random.nextDouble() - 0.5) * 0.4) * spacing;
+                double east = (col + (random.nextDouble() - 0.5) * 0.4) * spacing;
+                locations.add(new CampusLocation(id(row, col, cols), "P" + row + "-" + col,
+                        CENTER_LAT + north / METERS_PER_DEGREE, CENTER_LON + east / metersPerDegreeLon,
+                        "test", null, null));
+            }
+        }
+
+        int capacity = rows * cols * 3;
+        long[] from = new long[capacity];
+        long[] to = new long[capacity];
+        float[] weights = new float[capacity];
+        String[] descriptions = new String[capacity];
+        int edgeCount = 0;
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < cols; col++) {
+                int[][] neighbours = {{row, col + 1}, {row + 1, col}, {row + 1, col + 1}};
+                for (int i = 0; i < neighbours.length; i++) {
+                    int r = neighbours[i][0];
+                    int c = neighbours[i][1];
+                    if (r >= rows || c >= cols || (i == 2 && random.nextInt(4) != 0)) {
+                        continue;
+                    }
+                    CampusLocation a = locations.get(row * cols + col);
+                    CampusLocation b = locations.get(r * cols + c);
+                    from[edgeCount] = a.getId();
+                    to[edgeCount] = b.getId();
+                    weights[edgeCount] = (float) (distance(a, b) * (1 + random.nextDouble() * 0.3));
+                    descriptions[edgeCount] = "walkway " + edgeCount;
+                    edgeCount++;
+                }
+            }
+        }
+        return new CampusGraph(locations, from, to, weights, descriptions, edgeCount);
+    }
+
+    static long id(int row, int col, int cols) {
+        return 1 + row * cols + col;
+    }
+
+    /**
+     * Great-circle distance in meters, as the app computes it
+     */
+    static double distance(CampusLocation a, CampusLocation b) {
+        double latDistance = Math.toRadians(b.getLatitude() - a.getLatitude());
+        double lonDistance = Math.toRadians(b.getLongitude() - a.getLongitude());
+        double h = Math.sin(latDistance / 2) * Math.sin(latDistance / 2)
+                + Math.cos(Math.toRadians(a.getLatitude())) * Math.cos(Math.toRadians(b.getLatitude()))
+                * Math.sin(lonDistance / 2) * Math.sin(lonDistance / 2);
+        return 6371000 * 2 * Math.atan2(Math.sqrt(h), Math.sqrt(1 - h));
+    }
+}
@@ -0,0 +1,256 @@
+package com.heibeieast.campusnav.services;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class TraceCodecTest {
+    private static final double METERS_PER_DEGREE = 6371000 * Math.PI / 180;
+    private static final int WALKS = 5;
+    private static final int SEGMENT_POINTS = 900;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void decodesWhatWasEncoded() {
+        double[][] walk = walk(new Random(1), 3600);
+        List<byte[]> segments = encode(walk);
+        TraceCodec.Reader reader = new TraceCodec.Reader(segments);
+        for (double[] fix : walk) {
+            assertTrue(reader.next());
+            assertEquals(fix[0], reader.getLatitude(), 0.5e-6);
+            assertEquals(fix[1], reader.getLongitude(), 0.5e-6);
+            assertEquals((long) fix[2], reader.getTime());
+            assertEquals(fix[3], reader.getAccuracy(), 0.05);
+        }
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void appendingFixByFixMatchesOneEncoding() {
+        double[][] walk = walk(new Random(2), 200);
+        TraceCodec.Encoder encoder = new TraceCodec.Encoder();
+        ByteArrayOutputStream whole = new ByteArrayOutputStream();
+        for (double[] fix : walk) {
+            encoder.encode(whole, fix[0], fix[1], (long) fix[2], (float) fix[3]);
+        }
+
+        // As the recorder stores it: each fix appended to the segment on its own
+        TraceCodec.Encoder appending = new TraceCodec.Encoder();
+        ByteArrayOutputStream segment = new ByteArrayOutputStream();
+        for (double[] fix : walk) {
+            ByteArrayOutputStream append = new ByteArrayOutputStream();
+            TraceCodec.Encoder before = appending.copy();
+            appending.encode(append, fix[0], fix[1], (long) fix[2], (float) fix[3]);
+            assertEquals(before.getCount() + 1, appending.getCount());
+            segment.write(append.toByteArray(), 0, append.size());
+        }
+        assertArrayEquals(whole.toByteArray(), segment.toByteArray());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTruncatedSegment() {
+        byte[] segment = encode(walk(new Random(3), 10)).get(0);
+        TraceCodec.Reader reader = new TraceCodec.Reader(Arrays.copyOf(segment, segment.length - 1));
+        while (reader.next()) {
+            reader.getLatitude();
+        }
+    }
+
+    @Test
+    public void storesHourLongWalksAtLeastEightTimesSmaller() throws Exception {
+        Random random = new Random(4);
+        List<double[][]> walks = new ArrayList<>();
+        int fixCount = 0;
+        for (int i = 0; i < WALKS; i++) {
+            walks.add(walk(random, 3600));
+            fixCount += 3600;
+        }
+
+        long rowBytes = storeRows(folder.newFile(), walks);
+        long segmentBytes = storeSegments(folder.newFile(), walks);
+        int encodedBytes = 0;
+        for (double[][] walk : walks) {
+            for (byte[] segment : encode(walk)) {
+                encodedBytes += segment.length;
+            }
+        }
+
+        System.out.printf("%d fixes over %d hour-long walks: %d KB as rows, %d KB as segments "
+                        + "(%.1f bytes per fix encoded), %.1fx smaller%n", fixCount, WALKS, rowBytes / 1024,
+                segmentBytes / 1024, (double) encodedBytes / fixCount, (double) rowBytes / segmentBytes);
+        assertTrue(rowBytes + " vs " + segmentBytes, rowBytes >= 8 * segmentBytes);
+    }
+
+    @Test
+    public void decodesWithoutAllocatingPerFix() {
+        List<byte[]> segments = encode(walk(new Random(5), 3600 * WALKS));
+        // Warm up before measuring
+        for (int round = 0; round < 5; round++) {
+            sumLatitudes(segments);
+        }
+
+        long startBytes = allocatedBytes();
+        long startTime = System.nanoTime();
+        sumLatitudes(segments);
+        long nanos = System.nanoTime() - startTime;
+        long bytes = allocatedBytes() - startBytes;
+
+        System.out.printf("Decoded %d fixes in %.2f ms, %d bytes allocated%n",
+                3600 * WALKS, nanos / 1e6, bytes);
+        assertTrue(bytes + " bytes allocated", bytes < 3600 * WALKS);
+    }
+
+    private static double sumLatitudes(List<byte[]> segments) {
+        double sum = 0;
+        TraceCodec.Reader reader = new TraceCodec.Reader(segments);
+        while (reader.next()) {
+            sum += reader.getLatitude();
+        }
+        return sum;
+    }
+
+    /**
+     * A walk at 1.3 m/s that turns now and then, with a fix about every second,
+     * GPS noise, accuracy that drifts between 3 and 20 m and an occasional gap
+     * @return Rows of latitude, longitude, time in milliseconds and accuracy
+     */
+    private static double[][] walk(Random random, int fixCount) {
+        double[][] fixes = new double[fixCount][];
+        double north = 0;
+        double east = 0;
+        double heading = random.nextDouble() * 360;
+        double accuracy = 5;
+        long time = 1700000000000L + random.nextInt(1000000);
+        for (int i = 0; i < fixCount; i++) {
+            long interval = random.nextInt(50) == 0 ? 5000 + random.nextInt(10000) : 1000 + random.nextInt(3) - 1;
+            time += interval;
+            if (random.nextInt(60) == 0) {
+                heading += random.nextBoolean() ? 90 : -90;
+            }
+            north += 1.3 * interval / 1000 * Math.cos(Math.toRadians(heading));
+            east += 1.3 * interval / 1000 * Math.sin(Math.toRadians(heading));
+            accuracy = Math.max(3, Math.min(20, accuracy + random.nextGaussian() * 0.3));
+            double latitude = TestGraphs.CENTER_LAT + (north + random.nextGaussian() * 2) / METERS_PER_DEGREE;
+            double longitude = TestGraphs.CENTER_LON + (east + random.nextGaussian() * 2)
+                    / (METERS_PER_DEGREE * Math.cos(Math.toRadians(TestGraphs.CENTER_LAT)));
+            fixes[i] = new double[]{latitude, longitude, time, (float) accuracy};
+        }
+        return fixes;
+    }
+
+    private static List<byte[]> encode(double[][] walk) {
+        List<byte[]> segments = new ArrayList<>();
+        TraceCodec.Encoder encoder = null;
+        ByteArrayOutputStream out = null;
+        for (double[] fix : walk) {
+            if (encoder == null || encoder.getCount() == SEGMENT_POINTS) {
+                if (out != null) {
+                    segments.add(out.toByteArray());
+                }
+                encoder = new TraceCodec.Encoder();
+                out = new ByteArrayOutputStream();
+            }
+            encoder.encode(out, fix[0], fix[1], (long) fix[2], (float) fix[3]);
+        }
+        if (out != null) {
+            segments.add(out.toByteArray());
+        }
+        return segments;
+    }
+
+    /**
+     * One row per fix, in the navigation_trace_points layout
+     * @return Size of the database file
+     */
+    private static long storeRows(File file, List<double[][]> walks) throws Exception {
+        try (JdbcExecutor db = new JdbcExecutor(file)) {
+            db.execSQL("CREATE TABLE navigation_trace_points (id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                    + "history_id INTEGER NOT NULL, recorded_at INTEGER NOT NULL, latitude REAL NOT NULL, "
+                    + "longitude REAL NOT NULL, accuracy REAL)");
+            db.execSQL("CREATE INDEX idx_navigation_trace_points_history ON navigation_trace_points(history_id)");
+            Connection connection = db.getConnection();
+            db.beginTransaction();
+            try (PreparedStatement insert = connection.prepareStatement("INSERT INTO navigation_trace_points "
+                    + "(history_id, recorded_at, latitude, longitude, accuracy) VALUES (?, ?, ?, ?, ?)")) {
+                for (int walk = 0; walk < walks.size(); walk++) {
+                    for (double[] fix : walks.get(walk)) {
+                        insert.setLong(1, walk + 1);
+                        insert.setLong(2, (long) fix[2]);
+                        insert.setDouble(3, fix[0]);
+                        insert.setDouble(4, fix[1]);
+                        insert.setDouble(5, fix[3]);
+                        insert.executeUpdate();
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            return compactedSize(db);
+        }
+    }
+
+    /**
+     * Packed segments, in the navigation_trace_segments layout
+     * @return Size of the database file
+     */
+    private static long storeSegments(File file, List<double[][]> walks) throws Exception {
+        try (JdbcExecutor db = new JdbcExecutor(file)) {
+            db.execSQL("CREATE TABLE navigation_trace_segments (id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                    + "history_id INTEGER NOT NULL, start_time INTEGER NOT NULL, end_time INTEGER NOT NULL, "
+                    + "point_count INTEGER NOT NULL, data BLOB NOT NULL)");
+            db.execSQL("CREATE INDEX idx_navigation_trace_segments_history ON navigation_trace_segments(history_id)");
+            db.beginTransaction();
+            try {
+                for (int walk = 0; walk < walks.size(); walk++) {
+                    double[][] fixes = walks.get(walk);
+                    int first = 0;
+                    for (byte[] segment : encode(fixes)) {
+                        int last = Math.min(first + SEGMENT_POINTS, fixes.length) - 1;
+                        db.execSQL("INSERT INTO navigation_trace_segments (history_id, start_time, end_time, "
+                                + "point_count, data) VALUES (?, ?, ?, ?, ?)", new Object[]{walk + 1,
+                                (long) fixes[first][2], (long) fixes[last][2], last - first + 1, segment});
+                        first = last + 1;
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            return compactedSize(db);
+        }
+    }
+
+    private static long compactedSize(JdbcExecutor db) throws Exception {
+        try (Statement statement = db.getConnection().createStatement()) {
+            statement.execute("VACUUM");
+        }
+        return db.queryLong("PRAGMA page_count") * db.queryLong("PRAGMA page_size");
+    }
+
+    private static long allocatedBytes() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+}